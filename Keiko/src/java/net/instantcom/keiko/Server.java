@@ -2,19 +2,30 @@ package net.instantcom.keiko;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.PropertyConfigurator;
 
+import net.instantcom.keiko.bandwidth.BandwidthManager;
 import net.instantcom.keiko.bandwidth.BandwidthStats;
 import net.instantcom.keiko.bittorrent.cache.PieceCache;
+import net.instantcom.keiko.bittorrent.protocol.Acceptor;
+import net.instantcom.keiko.bittorrent.protocol.Connector;
 import net.instantcom.keiko.bittorrent.protocol.HandshakeException;
+import net.instantcom.keiko.bittorrent.protocol.HandshakeExecutor;
 import net.instantcom.keiko.bittorrent.protocol.PeerConnection;
 import net.instantcom.keiko.bittorrent.protocol.Torrent;
 import net.instantcom.keiko.bittorrent.protocol.encryption.EncryptedHandshake;
@@ -22,17 +33,18 @@ import net.instantcom.keiko.config.Configuration;
 import net.instantcom.keiko.deploy.DeployDirectory;
 import net.instantcom.keiko.deploy.DeployDirectoryListener;
 import net.instantcom.keiko.diskmanager.DiskManager;
+import net.instantcom.keiko.diskmanager.EvictionListener;
 import net.instantcom.keiko.filefilter.TorrentFileFilter;
-import net.instantcom.keiko.ipfilter.IP;
 import net.instantcom.keiko.ipfilter.IPFilter;
 import net.instantcom.util.BDecoder;
 import net.instantcom.util.HumanReadable;
+import net.instantcom.util.SHA1Util;
 
 public class Server implements DeployDirectoryListener {
 
     private static final Log log = LogFactory.getLog(Server.class);
 
-    private class InboundConnection extends Thread {
+    private class InboundConnection implements Runnable {
 
         private final Log log = LogFactory.getLog(InboundConnection.class);
 
@@ -50,6 +62,8 @@ public class Server implements DeployDirectoryListener {
             PeerConnection pc = null;
             boolean success = false;
             try {
+                // peer which stops responding mustn't hold handshake thread
+                socket.setSoTimeout(Connector.TIMEOUT);
                 // try encrypted handshake
                 if (log.isDebugEnabled()) {
                     log.debug("trying encrypted handshake");
@@ -88,6 +102,9 @@ public class Server implements DeployDirectoryListener {
                             pc.setEncrypted(encryptedSuccess);
                             pc.setFullyEncrypted(encryptedSuccess ? encrypted
                                 .isFullyEncrypted() : false);
+                            pc.setStreamCiphers(encrypted.getInputCipher(),
+                                encrypted.getOutputCipher());
+                            socket.setSoTimeout(0);
                             torrent.addPeer(pc, true);
                             success = true;
                         }
@@ -125,9 +142,57 @@ public class Server implements DeployDirectoryListener {
 
     }
 
+    /**
+     * Torrent which is known but not loaded.
+     */
+    private static final class DormantTorrent {
+
+        private DormantTorrent(long lastActivityTime, long dormantSince) {
+            this.lastActivityTime = lastActivityTime;
+            this.dormantSince = dormantSince;
+        }
+
+        private final long lastActivityTime;
+        private final long dormantSince;
+
+    }
+
+    /**
+     * Torrent which is going dormant or being activated. Whoever asks for it
+     * meanwhile waits until it's done, so state is never loaded before it's
+     * saved and torrent is loaded once.
+     */
+    private static final class Transition {
+
+        // waits until transition is done, false if interrupted
+        private boolean await() {
+            try {
+                done.await();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        // torrent was removed meanwhile, guarded by torrents
+        private boolean removed;
+
+    }
+
     public Server(int port, int backLog) throws Exception {
-        serverSocket = new ServerSocket(port, backLog);
-        // serverSocket.setPerformancePreferences(0, 1, 2);
+        // accepted sockets have channels needed for zero-copy upload and
+        // peer engine
+        acceptors =
+            Acceptor.open(port, backLog, Configuration.getInstance().getInt(
+                "socket.acceptors", 1), new Acceptor.Handler() {
+
+                public Runnable newHandshake(Socket socket) {
+                    return new InboundConnection(socket);
+                }
+
+            });
     }
 
     public static void addTorrent(File torrentFile) throws Exception {
@@ -136,9 +201,10 @@ public class Server implements DeployDirectoryListener {
 
     public static void addTorrent(Torrent torrent) throws Exception {
         String key = torrent.getMetaInfo().getInfoHashAsString();
-        if (!torrents.containsKey(key)) {
+        if (null == getTorrent(key)) {
             synchronized (torrents) {
                 torrents.put(key, torrent);
+                req2Hashes.put(getReq2Key(key), key);
             }
             log.info("added torrent '" + torrent.getMetaInfo().getName() + "'");
             torrent.start();
@@ -148,6 +214,214 @@ public class Server implements DeployDirectoryListener {
         }
     }
 
+    /**
+     * Stops torrent and removes it from the list of torrents.
+     * 
+     * @param infoHash
+     *            info hash of torrent
+     */
+    public static void removeTorrent(String infoHash) {
+        Torrent torrent;
+        synchronized (torrents) {
+            torrent = torrents.remove(infoHash);
+            dormantTorrents.remove(infoHash);
+            req2Hashes.remove(getReq2Key(infoHash));
+            // not waited for, disk failure while loading removes torrents
+            Transition transition = transitions.get(infoHash);
+            if (null != transition) {
+                transition.removed = true;
+            }
+        }
+        DiskManager.getInstance().deleteTorrent(infoHash);
+        if (null != torrent) {
+            torrent.stop();
+            log.info("removed torrent '" + torrent.getMetaInfo().getName()
+                + "'");
+        }
+    }
+
+    /**
+     * Gets torrent, activating it if it's dormant. Waits while torrent is
+     * going dormant or being activated by someone else.
+     * 
+     * @param infoHash
+     *            info hash of torrent
+     * @return torrent or null if there is no such torrent
+     */
+    public static Torrent getTorrent(String infoHash) {
+        Transition transition;
+        DormantTorrent dormant;
+        while (true) {
+            synchronized (torrents) {
+                Torrent torrent = torrents.get(infoHash);
+                if (null != torrent) {
+                    return torrent;
+                }
+                transition = transitions.get(infoHash);
+                if (null == transition) {
+                    dormant = dormantTorrents.remove(infoHash);
+                    if (null == dormant) {
+                        return null;
+                    }
+                    // we activate it
+                    transition = new Transition();
+                    transitions.put(infoHash, transition);
+                    break;
+                }
+            }
+            if (!transition.await()) {
+                return null;
+            }
+        }
+        // disk is read without holding the lock
+        Torrent torrent = null;
+        try {
+            torrent = activate(infoHash);
+        } finally {
+            boolean removed;
+            synchronized (torrents) {
+                transitions.remove(infoHash);
+                removed = transition.removed;
+                if (null == torrent) {
+                    req2Hashes.remove(getReq2Key(infoHash));
+                } else if (!removed) {
+                    torrents.put(infoHash, torrent);
+                }
+            }
+            transition.done.countDown();
+            if (removed && null != torrent) {
+                torrent.stop();
+                torrent = null;
+            }
+        }
+        if (null != torrent && log.isDebugEnabled()) {
+            log.debug("activated torrent " + infoHash
+                + (0 == dormant.lastActivityTime ? "" : ", last active "
+                    + new Date(dormant.lastActivityTime)));
+        }
+        return torrent;
+    }
+
+    // loads and starts dormant torrent, returns null if it can't be loaded
+    private static Torrent activate(String infoHash) {
+        DiskManager diskManager = DiskManager.getInstance();
+        Torrent torrent;
+        try {
+            torrent = diskManager.loadTorrent(infoHash);
+        } catch (IOException e) {
+            log.error("error loading torrent " + infoHash, e);
+            return null;
+        }
+        // piece index knows better what's on disk
+        diskManager.restoreHavePieces(torrent);
+        if (running) {
+            torrent.start();
+        }
+        return torrent;
+    }
+
+    /**
+     * Finds torrent by hash of its info hash sent in encrypted handshake.
+     * 
+     * @param req2Hash
+     *            SHA1("req2" + info hash)
+     * @return torrent or null if there is no such torrent
+     */
+    public static Torrent findTorrentByReq2Hash(byte[] req2Hash) {
+        String infoHash;
+        synchronized (torrents) {
+            infoHash = req2Hashes.get(SHA1Util.convertToString(req2Hash));
+        }
+        return null == infoHash ? null : getTorrent(infoHash);
+    }
+
+    private static String getReq2Key(String infoHash) {
+        try {
+            return SHA1Util.convertToString(SHA1Util.getSHA1("req2"
+                .getBytes(), SHA1Util.convertFromString(infoHash)));
+        } catch (NoSuchAlgorithmException e) {
+            // encrypted handshakes can't work either
+            return infoHash;
+        }
+    }
+
+    /**
+     * Puts torrents which had no peers for <tt>torrent.idle.timeout</tt>
+     * minutes to sleep. Dormant torrent keeps no threads or pieces in memory,
+     * it's activated again when peer asks for it or when it's time to announce
+     * it to trackers.
+     */
+    private static void checkDormantTorrents() {
+        Configuration config = Configuration.getInstance();
+        long idleTimeout =
+            60000L * config.getInt("torrent.idle.timeout", 30);
+        ArrayList<Torrent> idle = new ArrayList<Torrent>();
+        synchronized (torrents) {
+            if (idleTimeout > 0) {
+                for (Iterator<Torrent> it = torrents.values().iterator(); it
+                    .hasNext();) {
+                    Torrent torrent = it.next();
+                    if (torrent.isIdle(idleTimeout)) {
+                        it.remove();
+                        // it's dormant once its state is saved
+                        transitions.put(torrent.getMetaInfo()
+                            .getInfoHashAsString(), new Transition());
+                        idle.add(torrent);
+                    }
+                }
+            }
+        }
+        DiskManager diskManager = DiskManager.getInstance();
+        for (Torrent torrent : idle) {
+            String infoHash = torrent.getMetaInfo().getInfoHashAsString();
+            torrent.stop();
+            if (torrent.clearDirty()) {
+                try {
+                    diskManager.saveTorrent(torrent);
+                } catch (IOException e) {
+                    log.error("error saving torrent " + infoHash, e);
+                }
+            }
+            Transition transition;
+            synchronized (torrents) {
+                transition = transitions.remove(infoHash);
+                if (!transition.removed) {
+                    dormantTorrents.put(infoHash, new DormantTorrent(torrent
+                        .getLastActivityTime(), System.currentTimeMillis()));
+                }
+            }
+            if (transition.removed) {
+                // state was saved after files were deleted
+                diskManager.deleteTorrent(infoHash);
+            }
+            transition.done.countDown();
+        }
+        if (!idle.isEmpty() && log.isDebugEnabled()) {
+            log.debug(idle.size() + " torrents went dormant");
+        }
+
+        // wake up dormant torrents which should be announced to trackers
+        long announceInterval =
+            60000L * config.getInt("torrent.dormant.announce.interval", 60);
+        if (announceInterval > 0
+            && config.getBoolean("torrent.use.trackers", false)) {
+            long now = System.currentTimeMillis();
+            ArrayList<String> due = new ArrayList<String>();
+            synchronized (torrents) {
+                for (Map.Entry<String, DormantTorrent> entry : dormantTorrents
+                    .entrySet()) {
+                    long dormantTime = now - entry.getValue().dormantSince;
+                    if (dormantTime >= announceInterval) {
+                        due.add(entry.getKey());
+                    }
+                }
+            }
+            for (String infoHash : due) {
+                getTorrent(infoHash);
+            }
+        }
+    }
+
     public static void startTorrents() {
         synchronized (torrents) {
             for (Torrent torrent : torrents.values()) {
@@ -186,6 +460,15 @@ public class Server implements DeployDirectoryListener {
                 new DeployDirectory(file, new TorrentFileFilter(), this);
         }
 
+        // forget torrents deleted from disk
+        DiskManager.getInstance().setEvictionListener(new EvictionListener() {
+
+            public void onTorrentEvicted(String infoHash) {
+                removeTorrent(infoHash);
+            }
+
+        });
+
         // configure ip filter
         IPFilter ipfilter = IPFilter.getInstance();
         ipfilter.add(config.getString("ipfilter", null));
@@ -240,6 +523,15 @@ public class Server implements DeployDirectoryListener {
                             + " up, ratio "
                             + HumanReadable.humanReadableRatio(bandwidthStats
                                 .getRatio()));
+                        HandshakeExecutor handshakes =
+                            HandshakeExecutor.getInstance();
+                        log.debug("handshakes: "
+                            + handshakes.getLatency() + ", "
+                            + handshakes.getNumPending() + " pending, "
+                            + handshakes.getNumRejected() + " refused, "
+                            + handshakes.getNumTimedOut() + " timed out, "
+                            + Acceptor.getNumRateLimited()
+                            + " rate limited");
                         log.debug("==========================================");
                     }
                 }
@@ -251,6 +543,18 @@ public class Server implements DeployDirectoryListener {
 
         }, 5000L, 5000L); // calculate each 5 seconds
 
+        // apply new bandwidth limits if configuration was edited
+        scheduler.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                if (Configuration.getInstance().reloadIfChanged()) {
+                    BandwidthManager.getInstance().reload();
+                }
+            }
+
+        }, 10000L, 10000L); // 10 seconds
+
         // check deploy directory
         if (null != torrentDeployDirectory) {
             scheduler.schedule(new TimerTask() {
@@ -266,41 +570,42 @@ public class Server implements DeployDirectoryListener {
         // start torrents
         startTorrents();
 
-        log.info("listening on port " + serverSocket.getLocalPort());
-        while (running) {
-            try {
-                listening = true;
-                Socket socket = serverSocket.accept();
-                if (IPFilter.getInstance().isBlocking(
-                    new IP(socket.getInetAddress().getHostAddress()))) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("ipfilter blocked "
-                            + socket.getInetAddress().getHostAddress() + ":"
-                            + socket.getPort());
-                    }
-                    try {
-                        socket.close();
-                    } catch (IOException ignored) {
-                    }
-                } else {
-                    new InboundConnection(socket).start();
-                }
-            } catch (Exception e) {
-                log.error("error " + e.toString());
+        // put idle torrents to sleep
+        scheduler.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                checkDormantTorrents();
             }
+
+        }, 60000L, 60000L); // 1 minute
+
+        int port = acceptors[0].getLocalPort();
+        log.info("listening on port " + port
+            + (acceptors.length > 1 ? " (" + acceptors.length + " acceptors)"
+                : ""));
+        listening = true;
+        for (int i = 1; i < acceptors.length; i++) {
+            Thread thread = new Thread(acceptors[i], "Acceptor-" + i);
+            thread.setDaemon(true);
+            thread.start();
         }
-        log.info("stopped listening on port" + serverSocket.getLocalPort());
+        // returns when stopped
+        acceptors[0].run();
+        log.info("stopped listening on port " + port);
         scheduler.cancel();
         stopTorrents();
-        try {
-            serverSocket.close();
-        } catch (Exception ignored) {
+        for (Acceptor acceptor : acceptors) {
+            acceptor.close();
         }
         listening = false;
     }
 
     public void stop() {
         running = false;
+        for (Acceptor acceptor : acceptors) {
+            acceptor.close();
+        }
     }
 
     /*
@@ -321,6 +626,11 @@ public class Server implements DeployDirectoryListener {
         return false;
     }
 
+    /**
+     * Gets active torrents, dormant torrents are not included.
+     * 
+     * @return active torrents
+     */
     public static HashMap<String, Torrent> getTorrents() {
         return torrents;
     }
@@ -340,7 +650,7 @@ public class Server implements DeployDirectoryListener {
             server =
                 new Server(config.getInt("torrent.port",
                     Configuration.DEFAULT_PORT), config.getInt(
-                    "socket.backlog", 10));
+                    "socket.backlog", 128));
             server.start();
         } catch (Exception e) {
             log.error("error", e);
@@ -348,6 +658,9 @@ public class Server implements DeployDirectoryListener {
             if (null != server) {
                 server.stop();
             }
+            if (!DiskManager.getInstance().flush(60000L)) {
+                log.error("not all pieces were saved");
+            }
             saveState();
             log.info(About.PRODUCT_VERSION + " stopped");
         }
@@ -357,14 +670,25 @@ public class Server implements DeployDirectoryListener {
         if (log.isDebugEnabled()) {
             log.debug("loading saved state");
         }
-        try {
-            HashMap<String, Torrent> torrents =
-                DiskManager.getInstance().loadTorrents();
-            if (null != torrents) {
-                Server.torrents = torrents;
+        // saved torrents start dormant, announces are spread over interval
+        List<String> infoHashes = DiskManager.getInstance().listTorrents();
+        long announceInterval =
+            60000L * Configuration.getInstance().getInt(
+                "torrent.dormant.announce.interval", 60);
+        Random random = new Random();
+        long now = System.currentTimeMillis();
+        synchronized (torrents) {
+            for (String infoHash : infoHashes) {
+                long dormantSince =
+                    announceInterval > 0 ? now
+                        - (long) (random.nextDouble() * announceInterval) : now;
+                dormantTorrents.put(infoHash,
+                    new DormantTorrent(0, dormantSince));
+                req2Hashes.put(getReq2Key(infoHash), infoHash);
             }
-        } catch (Exception e) {
-            log.error("error loading torrents", e);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(infoHashes.size() + " saved torrents");
         }
         try {
             BandwidthStats bandwidthStats =
@@ -382,10 +706,26 @@ public class Server implements DeployDirectoryListener {
             log.debug("saving state");
         }
         DiskManager diskManager = DiskManager.getInstance();
-        try {
-            diskManager.saveTorrents(torrents);
-        } catch (Exception e) {
-            log.error("error saving torrents");
+        ArrayList<Torrent> loaded;
+        synchronized (torrents) {
+            loaded = new ArrayList<Torrent>(torrents.values());
+        }
+        // only changed torrents are written
+        int count = 0;
+        for (Torrent torrent : loaded) {
+            if (torrent.clearDirty()) {
+                try {
+                    diskManager.saveTorrent(torrent);
+                    ++count;
+                } catch (IOException e) {
+                    torrent.setDirty();
+                    log.error("error saving torrent "
+                        + torrent.getMetaInfo().getInfoHashAsString(), e);
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("saved " + count + " torrents");
         }
         try {
             diskManager.saveBandwidthStats(bandwidthStats);
@@ -399,15 +739,29 @@ public class Server implements DeployDirectoryListener {
                 + HumanReadable.humanReadableBytes(cache.getCurrentByteSize())
                 + "/"
                 + HumanReadable.humanReadableBytes(cache.getMaxByteSize())
-                + " (" + cache.size() + " pieces)");
+                + " (" + cache.size() + " pieces, "
+                + HumanReadable.humanReadableBytes(cache.getInProgressByteSize())
+                + " in progress), hits: " + cache.getHitCount() + ", misses: "
+                + cache.getMissCount() + ", evictions: "
+                + cache.getEvictionCount());
         }
     }
 
     private static boolean running;
     public static boolean listening;
-    private ServerSocket serverSocket;
+    private final Acceptor[] acceptors;
     private static HashMap<String, Torrent> torrents =
         new HashMap<String, Torrent>();
+    // torrents which aren't loaded, guarded by torrents
+    private static final HashMap<String, DormantTorrent> dormantTorrents =
+        new HashMap<String, DormantTorrent>();
+    // torrents going dormant or being activated, guarded by torrents
+    private static final HashMap<String, Transition> transitions =
+        new HashMap<String, Transition>();
+    // SHA1("req2" + info hash) -> info hash of all torrents, guarded by
+    // torrents
+    private static final HashMap<String, String> req2Hashes =
+        new HashMap<String, String>();
     public static BandwidthStats bandwidthStats = new BandwidthStats();
     private static DeployDirectory torrentDeployDirectory;
     public static final Timer scheduler = new Timer(true);
@@ -0,0 +1,135 @@
+package net.instantcom.keiko.bandwidth;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.instantcom.keiko.config.Configuration;
+import net.instantcom.keiko.ipfilter.IPFilter;
+
+/**
+ * Keeps upload and download limits and hands out token buckets enforcing
+ * them. Every peer's bucket has its torrent's bucket as parent which has
+ * global bucket as parent. Peers inside local address ranges don't cost
+ * transit so they have their own, usually larger, global budget and no peer
+ * or torrent limit.
+ * <p>
+ * Limits are read from configuration, <code>reload()</code> applies new
+ * limits to all existing buckets.
+ */
+public final class BandwidthManager {
+
+    private static final Log log = LogFactory.getLog(BandwidthManager.class);
+    private static final BandwidthManager instance = new BandwidthManager();
+
+    private BandwidthManager() {
+        reload();
+    }
+
+    public static BandwidthManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * Reads limits and local address ranges from configuration.
+     */
+    public void reload() {
+        Configuration config = Configuration.getInstance();
+        setRate(globalUploadRate, config, "bandwidth.upload.max");
+        setRate(globalDownloadRate, config, "bandwidth.download.max");
+        setRate(torrentUploadRate, config, "bandwidth.torrent.upload.max");
+        setRate(torrentDownloadRate, config, "bandwidth.torrent.download.max");
+        setRate(peerUploadRate, config, "bandwidth.peer.upload.max");
+        setRate(peerDownloadRate, config, "bandwidth.peer.download.max");
+        setRate(localUploadRate, config, "bandwidth.local.upload.max");
+        setRate(localDownloadRate, config, "bandwidth.local.download.max");
+        IPFilter ranges = new IPFilter();
+        ranges.add(config.getString("bandwidth.local.ranges", null));
+        localRanges = ranges;
+        if (log.isDebugEnabled()) {
+            log.debug("bandwidth limits (bytes/s): up " + globalUploadRate
+                + ", down " + globalDownloadRate + ", torrent up "
+                + torrentUploadRate + ", torrent down " + torrentDownloadRate
+                + ", peer up " + peerUploadRate + ", peer down "
+                + peerDownloadRate + ", local up " + localUploadRate
+                + ", local down " + localDownloadRate + " ("
+                + ranges.size() + " local ranges)");
+        }
+    }
+
+    /**
+     * Creates bucket for a torrent.
+     *
+     * @param upload
+     *            true for upload, false for download
+     * @return token bucket
+     */
+    public TokenBucket newTorrentBucket(boolean upload) {
+        return upload ? new TokenBucket(torrentUploadRate, globalUpload)
+            : new TokenBucket(torrentDownloadRate, globalDownload);
+    }
+
+    /**
+     * Creates bucket for a peer.
+     *
+     * @param upload
+     *            true for upload, false for download
+     * @param torrentBucket
+     *            bucket of peer's torrent or null if it's not known yet
+     * @param address
+     *            peer's address, may be null
+     * @return token bucket
+     */
+    public TokenBucket newPeerBucket(boolean upload, TokenBucket torrentBucket,
+        InetAddress address) {
+        if (isLocal(address)) {
+            return new TokenBucket(UNLIMITED, upload ? localUpload
+                : localDownload);
+        }
+        if (null == torrentBucket) {
+            torrentBucket = upload ? globalUpload : globalDownload;
+        }
+        return new TokenBucket(upload ? peerUploadRate : peerDownloadRate,
+            torrentBucket);
+    }
+
+    /**
+     * Checks if address is inside local address ranges.
+     *
+     * @param address
+     *            address
+     * @return true if address is local
+     */
+    public boolean isLocal(InetAddress address) {
+        return localRanges.contains(address);
+    }
+
+    // limits are in KB/s
+    private static void setRate(AtomicLong rate, Configuration config,
+        String key) {
+        rate.set(1024L * Math.max(0L, config.getLong(key, 0L)));
+    }
+
+    private static final AtomicLong UNLIMITED = new AtomicLong();
+
+    private final AtomicLong globalUploadRate = new AtomicLong();
+    private final AtomicLong globalDownloadRate = new AtomicLong();
+    private final AtomicLong torrentUploadRate = new AtomicLong();
+    private final AtomicLong torrentDownloadRate = new AtomicLong();
+    private final AtomicLong peerUploadRate = new AtomicLong();
+    private final AtomicLong peerDownloadRate = new AtomicLong();
+    private final AtomicLong localUploadRate = new AtomicLong();
+    private final AtomicLong localDownloadRate = new AtomicLong();
+    private final TokenBucket globalUpload =
+        new TokenBucket(globalUploadRate, null);
+    private final TokenBucket globalDownload =
+        new TokenBucket(globalDownloadRate, null);
+    private final TokenBucket localUpload =
+        new TokenBucket(localUploadRate, null);
+    private final TokenBucket localDownload =
+        new TokenBucket(localDownloadRate, null);
+    private volatile IPFilter localRanges;
+
+}
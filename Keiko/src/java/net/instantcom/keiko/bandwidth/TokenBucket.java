@@ -0,0 +1,200 @@
+package net.instantcom.keiko.bandwidth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting rate of upload or download. Buckets form a hierarchy
+ * (peer, torrent, global) and bytes are taken from a bucket and all of its
+ * parents, so the tightest limit wins. Rate is shared by all buckets of the
+ * same kind and can be changed at any time, zero means unlimited.
+ * <p>
+ * Bytes can be taken while every bucket in hierarchy has some tokens left,
+ * even if it has fewer than asked for. Bucket goes into debt which has to be
+ * paid off before anything else is taken, so whole blocks are sent and
+ * average rate still holds.
+ * <p>
+ * Buckets are taken from by every connection for every block, so they don't
+ * lock: each is a single atomic counter, and unlimited bucket is only read.
+ */
+public class TokenBucket {
+
+    // unused tokens are kept for this long (ms) of rate, short burst keeps
+    // traffic smooth
+    private static final long BURST_TIME = 250L;
+
+    // but at least this many bytes
+    private static final long MIN_BURST = 32768L;
+
+    /**
+     * Creates new token bucket.
+     *
+     * @param rate
+     *            rate in bytes per second, 0 for unlimited
+     * @param parent
+     *            parent bucket or null
+     */
+    public TokenBucket(AtomicLong rate, TokenBucket parent) {
+        this.rate = rate;
+        this.parent = parent;
+        clock = new AtomicLong(System.nanoTime());
+        clockRate = rate.get();
+    }
+
+    /**
+     * Takes specified number of bytes if this bucket and its parents have
+     * tokens left.
+     *
+     * @param amount
+     *            number of bytes
+     * @return true if bytes were taken
+     */
+    public boolean tryTake(int amount) {
+        long now = System.nanoTime();
+        for (TokenBucket b = this; null != b; b = b.parent) {
+            if (b.getDebt(now) > 0) {
+                return false;
+            }
+        }
+        // another thread may take in between, which only adds to the debt
+        for (TokenBucket b = this; null != b; b = b.parent) {
+            b.add(amount, now);
+        }
+        return true;
+    }
+
+    /**
+     * Takes specified number of bytes even if there are no tokens left, such
+     * as for bytes which already arrived.
+     *
+     * @param amount
+     *            number of bytes
+     */
+    public void take(int amount) {
+        long now = System.nanoTime();
+        for (TokenBucket b = this; null != b; b = b.parent) {
+            b.add(amount, now);
+        }
+    }
+
+    /**
+     * Gives back bytes which were taken but not used, such as for a block
+     * which couldn't be sent after all. Unused tokens still don't exceed a
+     * burst.
+     *
+     * @param amount
+     *            number of bytes
+     */
+    public void giveBack(int amount) {
+        long now = System.nanoTime();
+        for (TokenBucket b = this; null != b; b = b.parent) {
+            b.remove(amount, now);
+        }
+    }
+
+    /**
+     * Checks if this bucket and its parents have tokens left.
+     *
+     * @return true if bytes can be taken
+     */
+    public boolean hasTokens() {
+        return 0 == getDelay();
+    }
+
+    /**
+     * Gets time until this bucket and its parents have tokens again.
+     *
+     * @return delay in milliseconds, 0 if bytes can be taken now
+     */
+    public long getDelay() {
+        long now = System.nanoTime();
+        long debt = 0;
+        for (TokenBucket b = this; null != b; b = b.parent) {
+            debt = Math.max(debt, b.getDebt(now));
+        }
+        return 0 == debt ? 0 : 1L + debt / 1000000L;
+    }
+
+    // Bucket is kept as a clock: time when everything taken so far is paid
+    // for. Clock ahead of now is debt, behind now are unused tokens, at most
+    // a burst of them. Taking moves clock forward by time it takes to send
+    // the bytes at bucket's rate.
+
+    // returns debt in nanoseconds, 0 if there are tokens left
+    private long getDebt(long now) {
+        long r = rate.get();
+        if (r != clockRate) {
+            rateChanged(r, now);
+        }
+        if (r <= 0) {
+            return 0;
+        }
+        return Math.max(0, clock.get() - now);
+    }
+
+    private void add(int amount, long now) {
+        long r = rate.get();
+        if (r != clockRate) {
+            rateChanged(r, now);
+        }
+        if (r <= 0) {
+            // unlimited bucket is never written
+            return;
+        }
+        long cost = amount * 1000000000L / r;
+        long burst =
+            Math.max(BURST_TIME * 1000000L, MIN_BURST * 1000000000L / r);
+        while (true) {
+            long c = clock.get();
+            if (clock.compareAndSet(c, Math.max(c, now - burst) + cost)) {
+                return;
+            }
+        }
+    }
+
+    private void remove(int amount, long now) {
+        long r = rate.get();
+        if (r != clockRate) {
+            rateChanged(r, now);
+        }
+        if (r <= 0) {
+            return;
+        }
+        long cost = amount * 1000000000L / r;
+        long burst =
+            Math.max(BURST_TIME * 1000000L, MIN_BURST * 1000000000L / r);
+        while (true) {
+            long c = clock.get();
+            long next = Math.max(c - cost, now - burst);
+            if (next >= c || clock.compareAndSet(c, next)) {
+                return;
+            }
+        }
+    }
+
+    // debt is converted to new rate, there is none after being unlimited
+    private synchronized void rateChanged(long r, long now) {
+        long old = clockRate;
+        if (old == r) {
+            return;
+        }
+        if (r > 0) {
+            while (true) {
+                long c = clock.get();
+                long next =
+                    old <= 0 ? now : (c <= now ? c : now
+                        + (long) ((c - now) * ((double) old / r)));
+                if (clock.compareAndSet(c, next)) {
+                    break;
+                }
+            }
+        }
+        clockRate = r;
+    }
+
+    private final AtomicLong rate;
+    private final TokenBucket parent;
+    private final AtomicLong clock;
+    // rate clock was last moved at
+    private volatile long clockRate;
+
+}
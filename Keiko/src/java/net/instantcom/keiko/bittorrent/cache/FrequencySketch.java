@@ -0,0 +1,104 @@
+package net.instantcom.keiko.bittorrent.cache;
+
+/**
+ * Count-min sketch estimating how often a key was seen. Every key is counted
+ * in 4 of 4-bit counters (so max frequency is 15), counters are packed 16 per
+ * long. Once number of recorded accesses reaches sample size all counters are
+ * halved so frequencies of keys which aren't used any more fade away.
+ * <p>
+ * This class is not synchronized.
+ */
+public class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS =
+        {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+
+    /**
+     * Creates new sketch.
+     *
+     * @param maxEntries
+     *            expected max number of distinct keys in cache
+     */
+    public FrequencySketch(int maxEntries) {
+        int size = 16;
+        while (size < maxEntries && size < (1 << 30)) {
+            size <<= 1;
+        }
+        table = new long[size];
+        sampleSize = 10 * Math.max(size, 16);
+    }
+
+    /**
+     * Gets estimated frequency of specified key.
+     *
+     * @param key
+     *            key
+     * @return frequency in range 0-15
+     */
+    public int frequency(long key) {
+        int min = 15;
+        for (int i = 0; i < 4; i++) {
+            int h = hash(key, i);
+            int count =
+                (int) ((table[index(h)] >>> offset(h, i)) & 0xfL);
+            if (count < min) {
+                min = count;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Records access of specified key.
+     *
+     * @param key
+     *            key
+     */
+    public void increment(long key) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int h = hash(key, i);
+            int index = index(h);
+            int offset = offset(h, i);
+            long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    // halves all counters
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+
+    private int index(int h) {
+        return (h >>> 4) & (table.length - 1);
+    }
+
+    // each hash function uses its own group of 4 counters within a long
+    private static int offset(int h, int i) {
+        return ((i << 2) + (h & 3)) << 2;
+    }
+
+    private static int hash(long key, int i) {
+        long h = (key + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h;
+    }
+
+    private final long[] table;
+    private final int sampleSize;
+    private int additions;
+
+}
@@ -0,0 +1,89 @@
+package net.instantcom.keiko.bittorrent.cache;
+
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Piece data stored in a byte array in Java heap.
+ */
+public class HeapPieceData implements PieceData {
+
+    public HeapPieceData(int size) {
+        this(new byte[size]);
+    }
+
+    public HeapPieceData(byte[] data) {
+        this.data = data;
+    }
+
+    public int getSize() {
+        return data.length;
+    }
+
+    public void read(int offset, byte[] dst, int dstOffset, int length) {
+        System.arraycopy(data, offset, dst, dstOffset, length);
+    }
+
+    public void read(int offset, ByteBuffer dst) {
+        dst.put(data, offset, dst.remaining());
+    }
+
+    public void write(int offset, byte[] src, int srcOffset, int length) {
+        System.arraycopy(src, srcOffset, data, offset, length);
+    }
+
+    public void write(int offset, ByteBuffer src) {
+        src.get(data, offset, src.remaining());
+    }
+
+    public void writeTo(DataOutput out, int offset, int length)
+        throws IOException {
+        out.write(data, offset, length);
+    }
+
+    public void readFrom(FileChannel channel, long position)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    public void writeTo(FileChannel channel, long position)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    public void updateDigest(MessageDigest digest) {
+        digest.update(data);
+    }
+
+    public void clear() {
+        Arrays.fill(data, (byte) 0);
+    }
+
+    public byte[] toByteArray() {
+        return data;
+    }
+
+    public boolean isOffHeap() {
+        return false;
+    }
+
+    public void free() {
+        // garbage collector will take care of it
+    }
+
+    private final byte[] data;
+
+}
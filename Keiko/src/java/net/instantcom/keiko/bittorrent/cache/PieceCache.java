@@ -1,24 +1,293 @@
 package net.instantcom.keiko.bittorrent.cache;
 
-import java.util.ArrayDeque;
-import java.util.HashMap;
-import java.util.Queue;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import net.instantcom.keiko.bittorrent.protocol.Piece;
 import net.instantcom.keiko.bittorrent.protocol.Torrent;
 import net.instantcom.keiko.config.Configuration;
 import net.instantcom.keiko.diskmanager.DiskManager;
+import net.instantcom.util.LongObjectMap;
 
+/**
+ * Cache of recently used pieces. Pieces are keyed by (torrent id, piece index)
+ * pair packed in a long.
+ * <p>
+ * Two modes are supported, selected by <tt>cache.mode</tt>:
+ * <ul>
+ * <li><tt>heap</tt> - piece data is kept in byte arrays in Java heap, size
+ * is limited by <tt>cache.heap.max.size</tt> (MB)</li>
+ * <li><tt>offheap</tt> - piece data is kept in slab allocated direct (or
+ * memory mapped) buffers, size is limited by <tt>cache.offheap.max.size</tt>
+ * (MB)</li>
+ * </ul>
+ * Pieces returned by <code>get()</code> are retained for the caller and must
+ * be released with <code>Piece.release()</code> when caller is done with them.
+ * <p>
+ * Cache is split into segments, each guarded by its own lock which is never
+ * held during disk I/O. Misses are loaded by a pool of loader threads; while a
+ * piece is being loaded every other request for it waits on the same load.
+ * <p>
+ * What stays in cache is decided by <tt>TinyLfuPolicy</tt>. Pieces being
+ * downloaded get <tt>cache.policy.inprogress</tt> percent of cache, the rest
+ * is used by verified pieces. Lookups don't take the policy lock, they are
+ * recorded in lock-free buffer of their segment and replayed to policy in
+ * batches by whoever gets the lock. Accesses which don't fit in a full
+ * buffer are dropped, policy only needs a good sample of them.
+ */
 public final class PieceCache {
 
-    // private static final Log log = LogFactory.getLog(PieceCache.class);
+    private static final Log log = LogFactory.getLog(PieceCache.class);
 
+    private static final long MB = 1024L * 1024L;
+    private static final int NUM_SEGMENTS = 16; // must be power of 2
+    // buffered accesses of a segment which make a lookup drain buffers
+    private static final int DRAIN_THRESHOLD = 16;
     private static final PieceCache instance = new PieceCache();
-    private static final int MAX_SIZE =
-        1024 * 1024 * Configuration.getInstance().getInt("cache.heap.max.size",
-            64);
+
+    /**
+     * Load of a single piece which can tell others when it's done.
+     */
+    private static final class LoadTask extends FutureTask<Piece> {
+
+        private LoadTask(Callable<Piece> callable) {
+            super(callable);
+        }
+
+        /**
+         * Runs listener once load is done, right away if it's done already.
+         */
+        private void whenDone(Runnable listener) {
+            synchronized (this) {
+                if (!finished) {
+                    if (null == listeners) {
+                        listeners = new ArrayList<Runnable>(2);
+                    }
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        @Override
+        protected void done() {
+            List<Runnable> toRun;
+            synchronized (this) {
+                finished = true;
+                toRun = listeners;
+                listeners = null;
+            }
+            if (null != toRun) {
+                for (Runnable listener : toRun) {
+                    try {
+                        listener.run();
+                    } catch (RuntimeException e) {
+                        log.error("error", e);
+                    }
+                }
+            }
+        }
+
+        private boolean finished;
+        private List<Runnable> listeners;
+
+    }
+
+    /**
+     * Ring buffer of accesses waiting for policy. Any thread can add, only
+     * holder of policy lock drains.
+     */
+    private static final class AccessBuffer {
+
+        private static final int SIZE = 64; // must be power of 2
+
+        /**
+         * Adds access unless buffer is full or another thread is adding at
+         * the same time.
+         *
+         * @param access
+         *            node which was hit or key (Long) which missed
+         * @return number of accesses waiting, or -1 if access was dropped
+         */
+        private int offer(Object access) {
+            long w = writes.get();
+            long waiting = w - reads;
+            if (waiting >= SIZE || !writes.compareAndSet(w, w + 1)) {
+                return -1;
+            }
+            entries.lazySet((int) w & (SIZE - 1), access);
+            return (int) waiting + 1;
+        }
+
+        // must be called while holding the policy lock
+        private void drain(TinyLfuPolicy policy,
+            List<TinyLfuPolicy.Node> evicted) {
+            long w = writes.get();
+            long r = reads;
+            for (; r < w; r++) {
+                int i = (int) r & (SIZE - 1);
+                Object access = entries.get(i);
+                if (null == access) {
+                    // still being written, next drain gets it
+                    break;
+                }
+                entries.lazySet(i, null);
+                if (access instanceof TinyLfuPolicy.Node) {
+                    TinyLfuPolicy.Node node = (TinyLfuPolicy.Node) access;
+                    policy.recordAccess(node.key);
+                    policy.onHit(node, evicted);
+                } else {
+                    policy.recordAccess(((Long) access).longValue());
+                }
+            }
+            reads = r;
+        }
+
+        private final AtomicReferenceArray<Object> entries =
+            new AtomicReferenceArray<Object>(SIZE);
+        private final AtomicLong writes = new AtomicLong();
+        // written by holder of policy lock only
+        private volatile long reads;
+
+    }
+
+    /**
+     * Part of the cache guarded by a single lock. Lock of a segment is never
+     * held while acquiring lock of the policy.
+     */
+    private final class Segment {
+
+        /**
+         * Gets cached node.
+         *
+         * @param key
+         *            key
+         * @return node with retained piece or null if not cached
+         */
+        private synchronized TinyLfuPolicy.Node get(long key) {
+            TinyLfuPolicy.Node node = storage.get(key);
+            if (null != node && node.piece.tryRetain()) {
+                return node;
+            }
+            return null;
+        }
+
+        private synchronized TinyLfuPolicy.Node peek(long key) {
+            return storage.get(key);
+        }
+
+        /**
+         * Starts loading a piece unless it's already cached or being loaded.
+         *
+         * @return pending load or null if piece got cached in the meantime
+         */
+        private synchronized LoadTask load(final long key,
+            final Torrent torrent, final int pieceIndex) {
+            if (storage.containsKey(key)) {
+                return null;
+            }
+            LoadTask task = loading.get(key);
+            if (null == task) {
+                task = new LoadTask(new Callable<Piece>() {
+
+                    public Piece call() throws Exception {
+                        Piece piece = null;
+                        try {
+                            piece = loadOrCreate(torrent, pieceIndex);
+                        } finally {
+                            TinyLfuPolicy.Node node = finishLoad(key, piece);
+                            if (null != node) {
+                                add(node);
+                            }
+                        }
+                        return piece;
+                    }
+
+                });
+                loading.put(key, task);
+                loader.execute(task);
+            }
+            return task;
+        }
+
+        private synchronized TinyLfuPolicy.Node finishLoad(long key,
+            Piece piece) {
+            loading.remove(key);
+            if (null == piece) {
+                return null;
+            }
+            TinyLfuPolicy.Node node = new TinyLfuPolicy.Node(key, piece);
+            storage.put(key, node);
+            return node;
+        }
+
+        // called while holding the policy lock
+        private synchronized void remove(TinyLfuPolicy.Node node) {
+            if (storage.get(node.key) == node) {
+                storage.remove(node.key);
+            }
+        }
+
+        private synchronized int size() {
+            return storage.size();
+        }
+
+        private final LongObjectMap<TinyLfuPolicy.Node> storage =
+            new LongObjectMap<TinyLfuPolicy.Node>();
+        private final LongObjectMap<LoadTask> loading =
+            new LongObjectMap<LoadTask>();
+        private final AccessBuffer accesses = new AccessBuffer();
+
+    }
 
     private PieceCache() {
+        Configuration config = Configuration.getInstance();
+        if ("offheap".equalsIgnoreCase(config.getString("cache.mode", "heap"))) {
+            maxSize = MB * config.getLong("cache.offheap.max.size", 1024);
+            String mmapFile = config.getString("cache.offheap.mmap.file", null);
+            allocator =
+                new SlabAllocator(maxSize, (int) (MB * config.getInt(
+                    "cache.offheap.slab.size", 64)), Piece.BLOCK_SIZE,
+                    null == mmapFile ? null : new File(mmapFile));
+            log.info("off-heap piece cache: " + (maxSize / MB) + " MB");
+        } else {
+            maxSize = MB * config.getInt("cache.heap.max.size", 64);
+            allocator = null;
+        }
+        policy =
+            new TinyLfuPolicy(maxSize, config.getInt(
+                "cache.policy.inprogress", 25), config.getInt(
+                "cache.policy.window", 1), (int) Math.min(Integer.MAX_VALUE,
+                maxSize / (16 * Piece.BLOCK_SIZE)));
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+        loader =
+            Executors.newFixedThreadPool(config.getInt("cache.loader.threads",
+                4), new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PieceCache loader");
+                    t.setDaemon(true);
+                    return t;
+                }
+
+            });
     }
 
     public static PieceCache getInstance() {
@@ -26,88 +295,371 @@ public final class PieceCache {
     }
 
     public int size() {
-        return storage.size();
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
     }
 
-    public int getCurrentByteSize() {
-        return byteSize;
+    public long getCurrentByteSize() {
+        policyLock.lock();
+        try {
+            return policy.getByteSize();
+        } finally {
+            policyLock.unlock();
+        }
     }
 
-    public int getMaxByteSize() {
-        return MAX_SIZE;
+    /**
+     * Gets number of bytes used by pieces which are still being downloaded.
+     *
+     * @return size in bytes
+     */
+    public long getInProgressByteSize() {
+        policyLock.lock();
+        try {
+            return policy.getInProgressByteSize();
+        } finally {
+            policyLock.unlock();
+        }
     }
 
-    private boolean removeEldestEntry() {
-        Piece piece = order.poll();
-        if (null != piece) {
-            String key =
-                piece.getTorrent().getMetaInfo().getInfoHashAsString()
-                    + piece.getIndex();
-            storage.remove(key);
-            byteSize -= piece.getApproximateSizeOf();
-            return true;
-        }
-        return false;
+    /**
+     * Gets number of lookups which found piece in cache.
+     *
+     * @return hit count
+     */
+    public long getHitCount() {
+        return hits.get();
     }
 
-    // public synchronized void put(Torrent torrent, Piece piece) {
-    // String key = piece.getKey();
-    // if (null == key || storage.containsKey(key)) {
-    // return;
-    // }
-    // storage.put(key, piece);
-    // order.offer(piece);
-    // byteSize += piece.getApproximateSizeOf();
-    // }
+    /**
+     * Gets number of lookups which didn't find piece in cache.
+     *
+     * @return miss count
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
 
-    public synchronized Piece get(Torrent torrent, int pieceIndex) {
-        String key = torrent.getMetaInfo().getInfoHashAsString() + pieceIndex;
-        Piece piece = storage.get(key);
-        if (null == piece) {
-            // not in cache, try disk
-            piece = DiskManager.getInstance().load(torrent, pieceIndex);
+    /**
+     * Gets number of pieces evicted or refused by admission policy.
+     *
+     * @return eviction count
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getMaxByteSize() {
+        return maxSize;
+    }
+
+    /**
+     * Checks if cache keeps piece data outside of Java heap.
+     *
+     * @return true if off-heap
+     */
+    public boolean isOffHeap() {
+        return null != allocator;
+    }
+
+    /**
+     * Gets piece from cache, loading it from disk or creating empty one as
+     * needed. Blocks while piece is being loaded. Returned piece is retained
+     * and caller must release it.
+     *
+     * @param torrent
+     *            torrent
+     * @param pieceIndex
+     *            piece index
+     * @return retained piece or null if piece couldn't be loaded
+     */
+    public Piece get(Torrent torrent, int pieceIndex) {
+        long key = key(torrent, pieceIndex);
+        Segment segment = segmentFor(key);
+        boolean missed = false;
+        while (true) {
+            TinyLfuPolicy.Node node = segment.get(key);
+            if (null != node) {
+                if (!missed) {
+                    hit(node);
+                }
+                return node.piece;
+            }
+            if (!missed) {
+                missed = true;
+                miss(key);
+            }
+            Piece piece;
+            Future<Piece> load = segment.load(key, torrent, pieceIndex);
+            if (null == load) {
+                // got cached in the meantime
+                continue;
+            }
+            try {
+                piece = load.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                log.error("error loading piece " + pieceIndex, e.getCause());
+                return null;
+            }
             if (null == piece) {
-                // not on disk either
-                // create empty piece
-                piece = new Piece(torrent, pieceIndex, true);
-                byte[] sha1 = new byte[20];
-                System.arraycopy(torrent.getMetaInfo().getPiecesSHA1(),
-                    20 * pieceIndex, sha1, 0, 20);
-                piece.setSHA1(sha1);
-            } else {
-                // got piece from disk
-
-                // couple of things can happen here:
-                // a) piece is complete and bit is set in "have" - piece was
-                // downloaded before the state was saved - good
-                // b) piece is complete but bit is not set in "have" - piece was
-                // downloaded after state was saved - bad
-
-                // as we're not saving unfinished pieces to disk we're solving
-                // b) by setting all blocks as available and update appropriate
-                // bit in "have"
-                piece.getBlockAvailability().setAll();
-                torrent.getHavePieces().set(piece.getIndex());
-            }
-            storage.put(piece.getKey(), piece);
-            order.offer(piece);
-            byteSize += piece.getApproximateSizeOf();
+                return null;
+            }
+            // piece could have been evicted and freed before we got to it,
+            // load it again in that case
+            if (piece.tryRetain()) {
+                return piece;
+            }
+        }
+    }
+
+    /**
+     * Gets piece only if it's already cached. Never blocks on disk I/O.
+     * Returned piece is retained and caller must release it.
+     *
+     * @param torrent
+     *            torrent
+     * @param pieceIndex
+     *            piece index
+     * @return retained piece or null if piece is not cached
+     */
+    public Piece getIfPresent(Torrent torrent, int pieceIndex) {
+        long key = key(torrent, pieceIndex);
+        TinyLfuPolicy.Node node = segmentFor(key).get(key);
+        if (null == node) {
+            miss(key);
+            return null;
+        }
+        hit(node);
+        return node.piece;
+    }
+
+    /**
+     * Starts loading a piece in background unless it's already cached or being
+     * loaded.
+     *
+     * @param torrent
+     *            torrent
+     * @param pieceIndex
+     *            piece index
+     */
+    public void prefetch(Torrent torrent, int pieceIndex) {
+        prefetch(torrent, pieceIndex, null);
+    }
+
+    /**
+     * Starts loading a piece in background unless it's already cached or being
+     * loaded. Listener is run once load is done, or right away if piece is
+     * already cached.
+     *
+     * @param torrent
+     *            torrent
+     * @param pieceIndex
+     *            piece index
+     * @param listener
+     *            runs on loader thread (or on caller's thread if piece is
+     *            already loaded), may be null
+     */
+    public void prefetch(Torrent torrent, int pieceIndex, Runnable listener) {
+        long key = key(torrent, pieceIndex);
+        LoadTask load = segmentFor(key).load(key, torrent, pieceIndex);
+        if (null == listener) {
+            return;
+        }
+        if (null == load) {
+            // loaded since caller looked
+            listener.run();
         } else {
-            if (order.remove(piece)) {
-                order.offer(piece);
+            load.whenDone(listener);
+        }
+    }
+
+    /**
+     * Tells cache that piece was downloaded and passed hash check so it's no
+     * longer counted against budget of pieces being downloaded.
+     *
+     * @param piece
+     *            verified piece
+     */
+    public void verified(Piece piece) {
+        long key = key(piece.getTorrent(), piece.getIndex());
+        TinyLfuPolicy.Node node = segmentFor(key).peek(key);
+        if (null != node && node.piece == piece) {
+            List<TinyLfuPolicy.Node> evicted =
+                new ArrayList<TinyLfuPolicy.Node>(2);
+            policyLock.lock();
+            try {
+                drainAccesses(evicted);
+                policy.onVerified(node, evicted);
+                removeEvicted(evicted);
+            } finally {
+                policyLock.unlock();
             }
+            releaseEvicted(evicted);
+        }
+    }
+
+    private void hit(TinyLfuPolicy.Node node) {
+        hits.incrementAndGet();
+        recordAccess(node.key, node);
+    }
+
+    private void miss(long key) {
+        misses.incrementAndGet();
+        recordAccess(key, Long.valueOf(key));
+    }
+
+    // buffers access, policy sees it once buffer is drained. lookups never
+    // wait for the policy lock
+    private void recordAccess(long key, Object access) {
+        int waiting = segmentFor(key).accesses.offer(access);
+        if ((waiting < 0 || waiting >= DRAIN_THRESHOLD)
+            && policyLock.tryLock()) {
+            List<TinyLfuPolicy.Node> evicted =
+                new ArrayList<TinyLfuPolicy.Node>(2);
+            try {
+                drainAccesses(evicted);
+                removeEvicted(evicted);
+            } finally {
+                policyLock.unlock();
+            }
+            releaseEvicted(evicted);
+        }
+    }
+
+    // replays buffered accesses of all segments, must be called while
+    // holding the policy lock
+    private void drainAccesses(List<TinyLfuPolicy.Node> evicted) {
+        for (Segment segment : segments) {
+            segment.accesses.drain(policy, evicted);
+        }
+    }
+
+    // hands loaded piece over to policy, restricts byte size of storage
+    private void add(TinyLfuPolicy.Node node) {
+        List<TinyLfuPolicy.Node> evicted = new ArrayList<TinyLfuPolicy.Node>(2);
+        policyLock.lock();
+        try {
+            drainAccesses(evicted);
+            policy.onAdd(node, evicted);
+            removeEvicted(evicted);
+        } finally {
+            policyLock.unlock();
+        }
+        releaseEvicted(evicted);
+    }
+
+    // must be called while holding the policy lock
+    private void removeEvicted(List<TinyLfuPolicy.Node> evicted) {
+        for (TinyLfuPolicy.Node node : evicted) {
+            segmentFor(node.key).remove(node);
         }
-        // restrict byte size of storage
-        while (byteSize > MAX_SIZE) {
-            if (!removeEldestEntry()) {
-                break;
+    }
+
+    // must be called without holding any lock
+    private void releaseEvicted(List<TinyLfuPolicy.Node> evicted) {
+        if (!evicted.isEmpty()) {
+            evictions.addAndGet(evicted.size());
+            // drop cache's references, storage is freed once nobody else uses
+            // the pieces
+            for (TinyLfuPolicy.Node node : evicted) {
+                node.piece.release();
             }
         }
+    }
+
+    // called by loader threads, no locks are held
+    private Piece loadOrCreate(Torrent torrent, int pieceIndex) {
+        // pieces are read from disk straight into their final storage
+        PieceData data = allocate(torrent, pieceIndex);
+        // try disk
+        Piece piece = DiskManager.getInstance().load(torrent, pieceIndex, data);
+        if (null == piece) {
+            // not on disk either
+            // create empty piece
+            piece = new Piece(torrent, pieceIndex, data);
+            byte[] sha1 = new byte[20];
+            System.arraycopy(torrent.getMetaInfo().getPiecesSHA1(),
+                20 * pieceIndex, sha1, 0, 20);
+            piece.setSHA1(sha1);
+        }
+        if (piece.isComplete()) {
+            // got piece from disk
+
+            // couple of things can happen here:
+            // a) piece is complete and bit is set in "have" - piece was
+            // downloaded before the state was saved - good
+            // b) piece is complete but bit is not set in "have" - piece was
+            // downloaded after state was saved - bad
+
+            // as we're not saving unfinished pieces to disk we're solving
+            // b) by updating appropriate bit in "have"
+            torrent.setHavePiece(piece.getIndex());
+        }
         return piece;
     }
 
-    private int byteSize = 0;
-    private final HashMap<String, Piece> storage = new HashMap<String, Piece>();
-    private final Queue<Piece> order = new ArrayDeque<Piece>();
+    // allocates storage for piece data, must not be called while holding a
+    // segment lock
+    private PieceData allocate(Torrent torrent, int pieceIndex) {
+        int size = Piece.getSize(torrent, pieceIndex);
+        if (!isOffHeap()) {
+            return new HeapPieceData(size);
+        }
+        PieceData data = allocator.allocate(size);
+        while (null == data && evictOne()) {
+            data = allocator.allocate(size);
+        }
+        if (null == data) {
+            // all slots are in use by pieces still referenced by connections
+            if (log.isDebugEnabled()) {
+                log.debug("off-heap cache exhausted, using heap for piece "
+                    + pieceIndex);
+            }
+            data = new HeapPieceData(size);
+        }
+        return data;
+    }
+
+    // evicts a single piece to free memory
+    private boolean evictOne() {
+        List<TinyLfuPolicy.Node> evicted = new ArrayList<TinyLfuPolicy.Node>(1);
+        policyLock.lock();
+        try {
+            if (!policy.evictAny(evicted)) {
+                return false;
+            }
+            removeEvicted(evicted);
+        } finally {
+            policyLock.unlock();
+        }
+        releaseEvicted(evicted);
+        return true;
+    }
+
+    private Segment segmentFor(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        h ^= (h >>> 16);
+        return segments[h & (NUM_SEGMENTS - 1)];
+    }
+
+    private static long key(Torrent torrent, int pieceIndex) {
+        return LongObjectMap.key(torrent.getId(), pieceIndex);
+    }
+
+    private final long maxSize;
+    private final SlabAllocator allocator;
+    private final TinyLfuPolicy policy;
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Segment[] segments = new Segment[NUM_SEGMENTS];
+    private final ExecutorService loader;
 
 }
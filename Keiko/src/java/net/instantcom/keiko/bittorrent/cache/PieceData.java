@@ -0,0 +1,150 @@
+package net.instantcom.keiko.bittorrent.cache;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Storage for the data of a single piece. Data can live either in Java heap
+ * (<tt>HeapPieceData</tt>) or in off-heap slab memory (<tt>SlabPieceData</tt>).
+ * <p>
+ * All offsets are relative to the start of the piece.
+ */
+public interface PieceData {
+
+    /**
+     * Gets size of data in bytes.
+     *
+     * @return size
+     */
+    public int getSize();
+
+    /**
+     * Copies data from storage to specified array.
+     *
+     * @param offset
+     *            offset in piece
+     * @param dst
+     *            destination array
+     * @param dstOffset
+     *            offset in destination array
+     * @param length
+     *            number of bytes to copy
+     */
+    public void read(int offset, byte[] dst, int dstOffset, int length);
+
+    /**
+     * Copies data from storage to specified buffer, from buffer's position to
+     * its limit. Buffer's position is moved to its limit.
+     *
+     * @param offset
+     *            offset in piece
+     * @param dst
+     *            destination buffer, heap or direct
+     */
+    public void read(int offset, ByteBuffer dst);
+
+    /**
+     * Copies data from specified array to storage.
+     *
+     * @param offset
+     *            offset in piece
+     * @param src
+     *            source array
+     * @param srcOffset
+     *            offset in source array
+     * @param length
+     *            number of bytes to copy
+     */
+    public void write(int offset, byte[] src, int srcOffset, int length);
+
+    /**
+     * Copies remaining bytes of specified buffer to storage. Buffer's
+     * position is moved to its limit.
+     *
+     * @param offset
+     *            offset in piece
+     * @param src
+     *            source buffer
+     */
+    public void write(int offset, ByteBuffer src);
+
+    /**
+     * Writes part of data to specified output.
+     *
+     * @param out
+     *            output
+     * @param offset
+     *            offset in piece
+     * @param length
+     *            number of bytes to write
+     * @throws IOException
+     *             if write fails
+     */
+    public void writeTo(DataOutput out, int offset, int length)
+        throws IOException;
+
+    /**
+     * Fills the whole storage with data read from file channel. Channel's
+     * position is not changed.
+     *
+     * @param channel
+     *            channel to read from
+     * @param position
+     *            position in file where data starts
+     * @throws IOException
+     *             if read fails or end of file is reached
+     */
+    public void readFrom(FileChannel channel, long position)
+        throws IOException;
+
+    /**
+     * Writes the whole data to file channel. Channel's position is not
+     * changed.
+     *
+     * @param channel
+     *            channel to write to
+     * @param position
+     *            position in file where data starts
+     * @throws IOException
+     *             if write fails
+     */
+    public void writeTo(FileChannel channel, long position)
+        throws IOException;
+
+    /**
+     * Updates digest with the whole data.
+     *
+     * @param digest
+     *            digest to update
+     */
+    public void updateDigest(MessageDigest digest);
+
+    /**
+     * Fills data with zeroes.
+     */
+    public void clear();
+
+    /**
+     * Returns data as byte array. Heap storage returns its backing array,
+     * off-heap storage returns a copy.
+     *
+     * @return data
+     */
+    public byte[] toByteArray();
+
+    /**
+     * Checks if data lives outside of Java heap.
+     *
+     * @return true if off-heap
+     */
+    public boolean isOffHeap();
+
+    /**
+     * Releases storage. Data must not be accessed after this call.
+     */
+    public void free();
+
+}
@@ -0,0 +1,191 @@
+package net.instantcom.keiko.bittorrent.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Off-heap slab allocator. Memory is reserved in large regions (slabs) which
+ * are carved into fixed size slots. Slabs are either direct buffers or, if
+ * backing file is specified, regions of a memory mapped file (useful with
+ * tmpfs or hugetlbfs).
+ * <p>
+ * Slabs are allocated lazily, up to specified capacity, and are never given
+ * back to the operating system. Slots are identified by int so no objects
+ * are created per slot.
+ */
+public class SlabAllocator {
+
+    private static final Log log = LogFactory.getLog(SlabAllocator.class);
+
+    /**
+     * Creates new slab allocator.
+     *
+     * @param capacity
+     *            max number of bytes to allocate
+     * @param slabSize
+     *            size of a single slab in bytes, will be rounded down to
+     *            multiple of slot size
+     * @param slotSize
+     *            size of a single slot in bytes
+     * @param backingFile
+     *            file to map slabs from or null to use direct buffers
+     * @throws IllegalArgumentException
+     *             if sizes are invalid
+     */
+    public SlabAllocator(long capacity, int slabSize, int slotSize,
+        File backingFile) throws IllegalArgumentException {
+        if (slotSize <= 0 || slabSize < slotSize) {
+            throw new IllegalArgumentException("invalid slab/slot size: "
+                + slabSize + "/" + slotSize);
+        }
+        this.slotSize = slotSize;
+        slotsPerSlab = slabSize / slotSize;
+        this.slabSize = slotsPerSlab * slotSize;
+        int numSlabs = (int) (capacity / this.slabSize);
+        if (numSlabs < 1) {
+            numSlabs = 1;
+        }
+        slabs = new ByteBuffer[numSlabs];
+        freeSlots = new int[numSlabs * slotsPerSlab];
+        this.backingFile = backingFile;
+    }
+
+    /**
+     * Gets slot size.
+     *
+     * @return slot size in bytes
+     */
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * Gets max number of bytes this allocator can hand out.
+     *
+     * @return capacity in bytes
+     */
+    public long getCapacity() {
+        return (long) slabs.length * slabSize;
+    }
+
+    /**
+     * Gets number of bytes currently handed out.
+     *
+     * @return used bytes
+     */
+    public synchronized long getUsedBytes() {
+        return (long) usedSlots * slotSize;
+    }
+
+    /**
+     * Allocates piece data of specified size.
+     *
+     * @param size
+     *            size in bytes
+     * @return piece data or null if there is not enough free slots
+     */
+    public PieceData allocate(int size) {
+        int numSlots = (size + slotSize - 1) / slotSize;
+        int[] slots = new int[numSlots];
+        synchronized (this) {
+            while (numFreeSlots < numSlots && numSlabs < slabs.length) {
+                if (!addSlab()) {
+                    break;
+                }
+            }
+            if (numFreeSlots < numSlots) {
+                return null;
+            }
+            for (int i = 0; i < numSlots; i++) {
+                slots[i] = freeSlots[--numFreeSlots];
+            }
+            usedSlots += numSlots;
+        }
+        return new SlabPieceData(this, size, slots);
+    }
+
+    /**
+     * Gives slots back to allocator.
+     *
+     * @param slots
+     *            slots to free
+     */
+    protected synchronized void free(int[] slots) {
+        for (int slot : slots) {
+            freeSlots[numFreeSlots++] = slot;
+        }
+        usedSlots -= slots.length;
+    }
+
+    /**
+     * Gets a view of specified slot. Returned buffer has position set to the
+     * start of the slot and limit set to the end of the slot. Caller is free to
+     * change position and limit of returned buffer.
+     *
+     * @param slot
+     *            slot
+     * @return buffer view of a slot
+     */
+    protected ByteBuffer view(int slot) {
+        ByteBuffer buffer = slabs[slot / slotsPerSlab].duplicate();
+        int start = (slot % slotsPerSlab) * slotSize;
+        buffer.limit(start + slotSize);
+        buffer.position(start);
+        return buffer;
+    }
+
+    // must be called while holding the lock
+    private boolean addSlab() {
+        ByteBuffer slab;
+        try {
+            if (null == backingFile) {
+                slab = ByteBuffer.allocateDirect(slabSize);
+            } else {
+                RandomAccessFile file = new RandomAccessFile(backingFile, "rw");
+                try {
+                    slab =
+                        file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                            (long) numSlabs * slabSize, slabSize);
+                } finally {
+                    // mapping stays valid after file is closed
+                    file.close();
+                }
+            }
+        } catch (OutOfMemoryError e) {
+            log.error("can't allocate slab, increase -XX:MaxDirectMemorySize"
+                + " or lower cache.offheap.max.size");
+            return false;
+        } catch (IOException e) {
+            log.error("can't map slab from " + backingFile.getAbsolutePath(),
+                e);
+            return false;
+        }
+        int firstSlot = numSlabs * slotsPerSlab;
+        slabs[numSlabs++] = slab;
+        // push in reverse so lower slots get used first
+        for (int i = slotsPerSlab - 1; i >= 0; i--) {
+            freeSlots[numFreeSlots++] = firstSlot + i;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("allocated slab " + numSlabs + "/" + slabs.length);
+        }
+        return true;
+    }
+
+    private final int slotSize;
+    private final int slotsPerSlab;
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    private final int[] freeSlots;
+    private final File backingFile;
+    private int numSlabs;
+    private int numFreeSlots;
+    private int usedSlots;
+
+}
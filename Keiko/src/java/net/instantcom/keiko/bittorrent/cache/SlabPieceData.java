@@ -0,0 +1,187 @@
+package net.instantcom.keiko.bittorrent.cache;
+
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Piece data stored in off-heap slots of a <tt>SlabAllocator</tt>. Piece
+ * is split into slot sized chunks, slots don't need to be adjacent.
+ */
+public class SlabPieceData implements PieceData {
+
+    // used to move data between slots and streams
+    private static final ThreadLocal<byte[]> scratch =
+        new ThreadLocal<byte[]>();
+
+    protected SlabPieceData(SlabAllocator allocator, int size, int[] slots) {
+        this.allocator = allocator;
+        this.size = size;
+        this.slots = slots;
+        slotSize = allocator.getSlotSize();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void read(int offset, byte[] dst, int dstOffset, int length) {
+        checkBounds(offset, length);
+        while (length > 0) {
+            ByteBuffer view = view(offset);
+            int chunk = Math.min(length, view.remaining());
+            view.get(dst, dstOffset, chunk);
+            offset += chunk;
+            dstOffset += chunk;
+            length -= chunk;
+        }
+    }
+
+    public void read(int offset, ByteBuffer dst) {
+        int length = dst.remaining();
+        checkBounds(offset, length);
+        while (length > 0) {
+            ByteBuffer view = view(offset);
+            int chunk = Math.min(length, view.remaining());
+            view.limit(view.position() + chunk);
+            dst.put(view);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    public void write(int offset, byte[] src, int srcOffset, int length) {
+        checkBounds(offset, length);
+        while (length > 0) {
+            ByteBuffer view = view(offset);
+            int chunk = Math.min(length, view.remaining());
+            view.put(src, srcOffset, chunk);
+            offset += chunk;
+            srcOffset += chunk;
+            length -= chunk;
+        }
+    }
+
+    public void write(int offset, ByteBuffer src) {
+        int length = src.remaining();
+        checkBounds(offset, length);
+        int limit = src.limit();
+        try {
+            while (length > 0) {
+                ByteBuffer view = view(offset);
+                int chunk = Math.min(length, view.remaining());
+                src.limit(src.position() + chunk);
+                view.put(src);
+                offset += chunk;
+                length -= chunk;
+            }
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    public void writeTo(DataOutput out, int offset, int length)
+        throws IOException {
+        byte[] tmp = scratch.get();
+        if (null == tmp || tmp.length < slotSize) {
+            tmp = new byte[slotSize];
+            scratch.set(tmp);
+        }
+        while (length > 0) {
+            int chunk = Math.min(length, slotSize - (offset % slotSize));
+            read(offset, tmp, 0, chunk);
+            out.write(tmp, 0, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    public void readFrom(FileChannel channel, long position)
+        throws IOException {
+        int offset = 0;
+        while (offset < size) {
+            ByteBuffer view = view(offset);
+            view.limit(view.position()
+                + Math.min(size - offset, view.remaining()));
+            while (view.hasRemaining()) {
+                int n = channel.read(view, position + offset);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                offset += n;
+            }
+        }
+    }
+
+    public void writeTo(FileChannel channel, long position)
+        throws IOException {
+        int offset = 0;
+        while (offset < size) {
+            ByteBuffer view = view(offset);
+            view.limit(view.position()
+                + Math.min(size - offset, view.remaining()));
+            while (view.hasRemaining()) {
+                offset += channel.write(view, position + offset);
+            }
+        }
+    }
+
+    public void updateDigest(MessageDigest digest) {
+        int offset = 0;
+        while (offset < size) {
+            ByteBuffer view = view(offset);
+            int chunk = Math.min(size - offset, view.remaining());
+            view.limit(view.position() + chunk);
+            digest.update(view);
+            offset += chunk;
+        }
+    }
+
+    public void clear() {
+        byte[] zeroes = new byte[slotSize];
+        for (int offset = 0; offset < size; offset += slotSize) {
+            write(offset, zeroes, 0, Math.min(slotSize, size - offset));
+        }
+    }
+
+    public byte[] toByteArray() {
+        byte[] data = new byte[size];
+        read(0, data, 0, size);
+        return data;
+    }
+
+    public boolean isOffHeap() {
+        return true;
+    }
+
+    public synchronized void free() {
+        if (!freed) {
+            freed = true;
+            allocator.free(slots);
+        }
+    }
+
+    // returns view of slot which contains offset, positioned at offset
+    private ByteBuffer view(int offset) {
+        ByteBuffer view = allocator.view(slots[offset / slotSize]);
+        view.position(view.position() + (offset % slotSize));
+        return view;
+    }
+
+    private void checkBounds(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IndexOutOfBoundsException("offset=" + offset
+                + " length=" + length + " size=" + size);
+        }
+    }
+
+    private final SlabAllocator allocator;
+    private final int size;
+    private final int[] slots;
+    private final int slotSize;
+    private boolean freed;
+
+}
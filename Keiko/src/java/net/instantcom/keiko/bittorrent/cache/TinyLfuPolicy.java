@@ -0,0 +1,343 @@
+package net.instantcom.keiko.bittorrent.cache;
+
+import java.util.List;
+
+import net.instantcom.keiko.bittorrent.protocol.Piece;
+
+/**
+ * W-TinyLFU admission and eviction policy for <tt>PieceCache</tt>.
+ * <p>
+ * Pieces which are still being downloaded are kept in their own LRU list with
+ * its own budget so they can't push out pieces peers ask for. Pieces being
+ * downloaded which someone else holds are never evicted, peers joining them
+ * would get an empty copy; the budget may be exceeded by them. Verified pieces
+ * enter a small LRU window. Pieces falling out of the window are admitted to
+ * main (segmented LRU: probation and protected) only if they're used more
+ * often than the piece they would replace, frequencies are estimated by a
+ * <tt>FrequencySketch</tt>. This keeps one-off scans from flushing the cache.
+ * <p>
+ * All operations but skipping held pieces are O(1). This class is not
+ * synchronized.
+ */
+public final class TinyLfuPolicy {
+
+    public static final int NONE = 0;
+    public static final int IN_PROGRESS = 1;
+    public static final int WINDOW = 2;
+    public static final int PROBATION = 3;
+    public static final int PROTECTED = 4;
+
+    /**
+     * Cache entry. Links are owned by the policy.
+     */
+    public static final class Node {
+
+        public Node(long key, Piece piece) {
+            this.key = key;
+            this.piece = piece;
+            size = piece.getApproximateSizeOf();
+        }
+
+        /**
+         * Gets queue this node is in.
+         *
+         * @return queue, <code>NONE</code> if evicted
+         */
+        public int getQueue() {
+            return queue;
+        }
+
+        final long key;
+        final Piece piece;
+        final int size;
+        int queue = NONE;
+        Node prev;
+        Node next;
+
+    }
+
+    /**
+     * Intrusive doubly linked list of nodes, head is least recently used.
+     */
+    private static final class NodeList {
+
+        private NodeList(int queue) {
+            this.queue = queue;
+        }
+
+        private void addLast(Node node) {
+            node.queue = queue;
+            node.prev = tail;
+            node.next = null;
+            if (null == tail) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            bytes += node.size;
+            ++count;
+        }
+
+        private void remove(Node node) {
+            if (null == node.prev) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (null == node.next) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.queue = NONE;
+            bytes -= node.size;
+            --count;
+        }
+
+        private void moveToTail(Node node) {
+            if (tail != node) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        private final int queue;
+        private Node head;
+        private Node tail;
+        private long bytes;
+        private int count;
+
+    }
+
+    /**
+     * Creates new policy.
+     *
+     * @param maxSize
+     *            max size of cache in bytes
+     * @param inProgressPercent
+     *            share of max size reserved for pieces being downloaded
+     * @param windowPercent
+     *            share of verified pieces budget used by admission window
+     * @param maxEntries
+     *            expected max number of pieces in cache
+     */
+    public TinyLfuPolicy(long maxSize, int inProgressPercent,
+        int windowPercent, int maxEntries) {
+        inProgressMax = maxSize * inProgressPercent / 100;
+        long verifiedMax = maxSize - inProgressMax;
+        windowMax = verifiedMax * windowPercent / 100;
+        mainMax = verifiedMax - windowMax;
+        protectedMax = mainMax * 80 / 100;
+        sketch = new FrequencySketch(maxEntries);
+    }
+
+    /**
+     * Records that specified key was asked for.
+     *
+     * @param key
+     *            key
+     */
+    public void recordAccess(long key) {
+        sketch.increment(key);
+    }
+
+    /**
+     * Adds new node to cache.
+     *
+     * @param node
+     *            node to add
+     * @param evicted
+     *            nodes evicted to make room are added here
+     */
+    public void onAdd(Node node, List<Node> evicted) {
+        if (node.piece.isComplete()) {
+            addToWindow(node, evicted);
+        } else {
+            inProgress.addLast(node);
+            // always keep the newest piece, its downloader needs it
+            while (inProgress.bytes > inProgressMax) {
+                Node victim = getUnheldInProgress(node);
+                if (null == victim) {
+                    break;
+                }
+                evict(victim, evicted);
+            }
+        }
+    }
+
+    /**
+     * Updates recency of cached node.
+     *
+     * @param node
+     *            node which was used
+     * @param evicted
+     *            nodes evicted to make room are added here
+     */
+    public void onHit(Node node, List<Node> evicted) {
+        switch (node.queue) {
+        case IN_PROGRESS:
+            if (node.piece.isComplete()) {
+                onVerified(node, evicted);
+            } else {
+                inProgress.moveToTail(node);
+            }
+            break;
+        case WINDOW:
+            window.moveToTail(node);
+            break;
+        case PROBATION:
+            probation.remove(node);
+            protect(node);
+            break;
+        case PROTECTED:
+            protectedList.moveToTail(node);
+            break;
+        default:
+            // already evicted
+            break;
+        }
+    }
+
+    /**
+     * Moves downloaded piece from in-progress budget to verified budget.
+     *
+     * @param node
+     *            node of verified piece
+     * @param evicted
+     *            nodes evicted to make room are added here
+     */
+    public void onVerified(Node node, List<Node> evicted) {
+        if (IN_PROGRESS == node.queue) {
+            inProgress.remove(node);
+            addToWindow(node, evicted);
+        }
+    }
+
+    /**
+     * Evicts a single node, used when memory is needed for new piece.
+     *
+     * @param evicted
+     *            evicted node is added here
+     * @return true if node was evicted, false if cache is empty
+     */
+    public boolean evictAny(List<Node> evicted) {
+        Node victim = probation.head;
+        if (null == victim) {
+            victim = window.head;
+        }
+        if (null == victim) {
+            victim = protectedList.head;
+        }
+        if (null == victim) {
+            victim = getUnheldInProgress(null);
+        }
+        if (null == victim) {
+            return false;
+        }
+        evict(victim, evicted);
+        return true;
+    }
+
+    public long getByteSize() {
+        return inProgress.bytes + window.bytes + probation.bytes
+            + protectedList.bytes;
+    }
+
+    public long getInProgressByteSize() {
+        return inProgress.bytes;
+    }
+
+    // returns least recently used piece being downloaded which nobody but
+    // cache holds, other than except
+    private Node getUnheldInProgress(Node except) {
+        for (Node node = inProgress.head; null != node; node = node.next) {
+            if (node != except && !node.piece.isShared()) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private void addToWindow(Node node, List<Node> evicted) {
+        window.addLast(node);
+        while (window.bytes > windowMax && window.count > 1) {
+            Node candidate = window.head;
+            window.remove(candidate);
+            admit(candidate, evicted);
+        }
+        // window may hold a single piece bigger than its budget
+        while (window.bytes + probation.bytes + protectedList.bytes > windowMax
+            + mainMax) {
+            Node victim = null != probation.head ? probation.head
+                : protectedList.head;
+            if (null == victim) {
+                break;
+            }
+            evict(victim, evicted);
+        }
+    }
+
+    // lets candidate from window into main if it's more popular than
+    // pieces it would replace
+    private void admit(Node candidate, List<Node> evicted) {
+        int candidateFreq = sketch.frequency(candidate.key);
+        while (probation.bytes + protectedList.bytes + candidate.size > mainMax) {
+            Node victim = null != probation.head ? probation.head
+                : protectedList.head;
+            if (null == victim) {
+                break;
+            }
+            if (candidateFreq > sketch.frequency(victim.key)) {
+                evict(victim, evicted);
+            } else {
+                evicted.add(candidate);
+                return;
+            }
+        }
+        probation.addLast(candidate);
+    }
+
+    private void protect(Node node) {
+        protectedList.addLast(node);
+        // demote least recently used back to probation
+        while (protectedList.bytes > protectedMax && protectedList.count > 1) {
+            Node demoted = protectedList.head;
+            protectedList.remove(demoted);
+            probation.addLast(demoted);
+        }
+    }
+
+    private void evict(Node node, List<Node> evicted) {
+        switch (node.queue) {
+        case IN_PROGRESS:
+            inProgress.remove(node);
+            break;
+        case WINDOW:
+            window.remove(node);
+            break;
+        case PROBATION:
+            probation.remove(node);
+            break;
+        case PROTECTED:
+            protectedList.remove(node);
+            break;
+        default:
+            return;
+        }
+        evicted.add(node);
+    }
+
+    private final long inProgressMax;
+    private final long windowMax;
+    private final long mainMax;
+    private final long protectedMax;
+    private final FrequencySketch sketch;
+    private final NodeList inProgress = new NodeList(IN_PROGRESS);
+    private final NodeList window = new NodeList(WINDOW);
+    private final NodeList probation = new NodeList(PROBATION);
+    private final NodeList protectedList = new NodeList(PROTECTED);
+
+}
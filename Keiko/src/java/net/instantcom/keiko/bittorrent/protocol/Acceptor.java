@@ -0,0 +1,268 @@
+package net.instantcom.keiko.bittorrent.protocol;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.instantcom.keiko.config.Configuration;
+import net.instantcom.keiko.ipfilter.IP;
+import net.instantcom.keiko.ipfilter.IPFilter;
+import net.instantcom.util.LongObjectMap;
+
+/**
+ * Accepts inbound connections and hands them to handshake executor. Accepting
+ * does nothing but checks which don't need to read from peer: IP filter, at
+ * most <tt>socket.accept.ip.rate</tt> connections per minute from one address
+ * and room in handshake executor. Connection which fails any of them is closed
+ * at once, so accepting keeps up with a connection storm and backlog doesn't
+ * overflow.
+ * <p>
+ * With <tt>socket.acceptors</tt> above one, that many sockets listen on the
+ * same port with SO_REUSEPORT, each with its own backlog and thread, and
+ * kernel spreads connections among them. SO_REUSEPORT needs Java 9 and is
+ * looked up by reflection; without it there is one acceptor.
+ */
+public final class Acceptor implements Runnable {
+
+    private static final Log log = LogFactory.getLog(Acceptor.class);
+
+    // how long to wait (ms) after accept failed, such as when out of file
+    // descriptors
+    private static final long ERROR_DELAY = 100L;
+
+    // connections accepted from one address per minute, 0 for no limit
+    private static final int RATE =
+        Configuration.getInstance().getInt("socket.accept.ip.rate", 20);
+
+    private static final RateLimit rateLimit = new RateLimit(RATE, 60000L);
+
+    private static final AtomicLong rateLimited = new AtomicLong();
+
+    /**
+     * Creates handshakes for accepted connections.
+     */
+    public interface Handler {
+
+        /**
+         * Creates handshake of accepted connection, run by handshake
+         * executor.
+         *
+         * @param socket
+         *            accepted socket in blocking mode
+         * @return handshake
+         */
+        Runnable newHandshake(Socket socket);
+
+    }
+
+    // connections accepted from each address in current period
+    private static final class RateLimit {
+
+        private RateLimit(int max, long period) {
+            this.max = max;
+            this.period = period;
+        }
+
+        private synchronized boolean allow(InetAddress address) {
+            if (max <= 0) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now - periodStart >= period) {
+                // forget everyone, map can't grow beyond addresses seen in
+                // one period
+                counts.clear();
+                periodStart = now;
+            }
+            long key = key(address);
+            int[] count = counts.get(key);
+            if (null == count) {
+                counts.put(key, new int[] { 1 });
+                return true;
+            }
+            return ++count[0] <= max;
+        }
+
+        // IPv6 hosts usually own whole /64, they are limited by prefix
+        private static long key(InetAddress address) {
+            if (address instanceof Inet4Address) {
+                return IP.toLong((Inet4Address) address);
+            }
+            byte[] b = address.getAddress();
+            long key = 0;
+            for (int i = 0; i < 8 && i < b.length; i++) {
+                key = (key << 8) | (b[i] & 0xff);
+            }
+            return key;
+        }
+
+        private final int max;
+        private final long period;
+        private final LongObjectMap<int[]> counts =
+            new LongObjectMap<int[]>();
+        private long periodStart;
+
+    }
+
+    private Acceptor(ServerSocketChannel channel, Handler handler) {
+        this.channel = channel;
+        this.handler = handler;
+    }
+
+    /**
+     * Opens listening sockets, all on the same port.
+     *
+     * @param port
+     *            port
+     * @param backlog
+     *            backlog of each socket
+     * @param count
+     *            number of acceptors wanted, more than one needs
+     *            SO_REUSEPORT
+     * @param handler
+     *            creates handshakes
+     * @return acceptors, at least one
+     * @throws IOException
+     *             if port can't be bound
+     */
+    public static Acceptor[] open(int port, int backlog, int count,
+        Handler handler) throws IOException {
+        ArrayList<Acceptor> acceptors = new ArrayList<Acceptor>();
+        try {
+            for (int i = 0; i < Math.max(1, count); i++) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                acceptors.add(new Acceptor(channel, handler));
+                if (count > 1 && !setReusePort(channel)) {
+                    // first socket tells, others would fail to bind
+                    log.warn("SO_REUSEPORT is not supported, using one"
+                        + " acceptor");
+                    count = 1;
+                }
+                channel.socket().bind(new InetSocketAddress(port), backlog);
+                // others share port first one got, even if any was asked
+                port = channel.socket().getLocalPort();
+            }
+        } catch (IOException e) {
+            for (Acceptor acceptor : acceptors) {
+                acceptor.close();
+            }
+            throw e;
+        }
+        return acceptors.toArray(new Acceptor[acceptors.size()]);
+    }
+
+    /**
+     * Accepts connections until closed.
+     */
+    public void run() {
+        while (channel.isOpen()) {
+            SocketChannel accepted;
+            try {
+                accepted = channel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                log.error("error " + e.toString());
+                try {
+                    Thread.sleep(ERROR_DELAY);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                continue;
+            }
+            admit(accepted.socket());
+        }
+    }
+
+    /**
+     * Stops accepting and closes listening socket.
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Gets port this acceptor listens on.
+     *
+     * @return port
+     */
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * Gets number of connections closed because their address connected too
+     * often, by all acceptors.
+     *
+     * @return number of rate limited connections
+     */
+    public static long getNumRateLimited() {
+        return rateLimited.get();
+    }
+
+    private void admit(Socket socket) {
+        InetAddress address = socket.getInetAddress();
+        String reason = null;
+        if (IPFilter.getInstance().isBlocking(address)) {
+            reason = "ipfilter blocked ";
+        } else if (!rateLimit.allow(address)) {
+            rateLimited.incrementAndGet();
+            reason = "too many connections from ";
+        } else if (!HandshakeExecutor.getInstance().execute(
+            handler.newHandshake(socket), socket)) {
+            reason = "handshake refused ";
+        }
+        if (null != reason) {
+            if (log.isDebugEnabled()) {
+                log.debug(reason + address.getHostAddress() + ":"
+                    + socket.getPort());
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // sets SO_REUSEPORT through Java 9 socket options
+    private static boolean setReusePort(ServerSocketChannel channel) {
+        try {
+            Object option =
+                Class.forName("java.net.StandardSocketOptions").getField(
+                    "SO_REUSEPORT").get(null);
+            Method setOption =
+                ServerSocketChannel.class.getMethod("setOption", Class
+                    .forName("java.net.SocketOption"), Object.class);
+            setOption.invoke(channel, option, Boolean.TRUE);
+            return true;
+        } catch (InvocationTargetException e) {
+            // not supported by platform
+            if (log.isDebugEnabled()) {
+                log.debug("can't set SO_REUSEPORT: " + e.getCause());
+            }
+            return false;
+        } catch (Exception e) {
+            // older Java
+            return false;
+        }
+    }
+
+    private final ServerSocketChannel channel;
+    private final Handler handler;
+
+}
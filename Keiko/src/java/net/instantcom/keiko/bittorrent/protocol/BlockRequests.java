@@ -46,7 +46,18 @@ public class BlockRequests {
      * @return number of blocks requested
      */
     public int getNumBlocksRequested() {
-        return requestedBlocks.getNumOnes();
+        return numBlocksRequested;
+    }
+
+    /**
+     * Checks if specified block is requested.
+     * 
+     * @param index
+     *            block index
+     * @return true if block is requested
+     */
+    public boolean isBlockRequested(int index) {
+        return requestedBlocks.get(index);
     }
 
     /**
@@ -56,7 +67,10 @@ public class BlockRequests {
      *            block index
      */
     public void requestBlock(int index) {
-        requestedBlocks.set(index);
+        if (!requestedBlocks.get(index)) {
+            requestedBlocks.set(index);
+            ++numBlocksRequested;
+        }
     }
 
     /**
@@ -66,7 +80,10 @@ public class BlockRequests {
      *            block index
      */
     public void unrequestBlock(int index) {
-        requestedBlocks.clear(index);
+        if (requestedBlocks.get(index)) {
+            requestedBlocks.clear(index);
+            --numBlocksRequested;
+        }
     }
 
     /**
@@ -81,5 +98,6 @@ public class BlockRequests {
     private int pieceIndex;
     private BitField requestedBlocks;
     private int currentBlockIndex;
+    private int numBlocksRequested;
 
 }
@@ -3,14 +3,18 @@ package net.instantcom.keiko.bittorrent.protocol;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.HashMap;
-import java.util.NoSuchElementException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import net.instantcom.keiko.Server;
+import net.instantcom.keiko.bandwidth.TokenBucket;
 import net.instantcom.keiko.bittorrent.cache.PieceCache;
+import net.instantcom.keiko.config.Configuration;
+import net.instantcom.keiko.diskmanager.DiskManager;
 import net.instantcom.util.BitField;
 
 /**
@@ -18,13 +22,52 @@ import net.instantcom.util.BitField;
  * PeerConections. While there can be thousands of PeerConnections, number of
  * ConnectionThreads is usually limited to small number such as 4 per torrent.
  * Actual number depends on number of unchoked connections.
+ * <p>
+ * Connections handled by peer engine don't get a thread, their event loop
+ * calls <code>resume()</code> instead whenever something happens or
+ * <code>getWakeupDelay()</code> passes.
+ * <p>
+ * Connection downloads as many pieces at once as it takes to keep request
+ * pipeline full, next piece is started as soon as all blocks of pieces being
+ * downloaded are requested so requests don't run dry at piece boundaries.
+ * Blocks are requested only if PiecePicker assigns them, requests for blocks
+ * which arrived from other peers are cancelled. Peer which sends no requested
+ * block for a while is snubbed, it's kept to one request at a time and its
+ * blocks are given to other peers.
  */
 public class ConnectionThread implements Runnable {
 
     private static final Log log = LogFactory.getLog(ConnectionThread.class);
 
-    private static final int MIN_REQUESTS = 4;
-    private static final int MAX_REQUESTS = 256;
+    // changes which aren't signalled (end game, pieces given up by other
+    // peers) are noticed at least this often
+    private static final long MAX_WAKEUP_DELAY = 500L;
+
+    // upload sent per step (bytes), at least one block
+    private static final int UPLOAD_QUANTUM =
+        1024 * Math.max(Piece.BLOCK_SIZE / 1024, Configuration.getInstance()
+            .getInt("torrent.upload.quantum", 64));
+
+    // peer is snubbed if no requested block arrives for this long (ms)
+    private static final long SNUB_TIME =
+        1000L * Configuration.getInstance().getInt("torrent.snub.time", 60);
+
+    // piece being downloaded and its blocks which are requested from remote
+    private static final class PieceDownload {
+
+        private PieceDownload(Piece piece) {
+            this.piece = piece;
+            int numBlocks = piece.getBlockAvailability().getSize();
+            blocksRequested = new BitField(numBlocks);
+            requestTimes = new long[numBlocks];
+        }
+
+        private final Piece piece;
+        private final BitField blocksRequested;
+        // when each block was requested (System.nanoTime())
+        private final long[] requestTimes;
+
+    }
 
     protected ConnectionThread(PeerConnection connection, Torrent torrent) {
         this(connection, torrent, false);
@@ -35,21 +78,60 @@ public class ConnectionThread implements Runnable {
         this.connection = connection;
         this.torrent = torrent;
         this.optimisticallyUnchoked = optimisticallyUnchoked;
-        currentPiece = null;
-        blocksRequested = null;
     }
 
     protected void start() {
         if (!running) {
             running = true;
-            Thread t = new Thread(this);
-            t.setDaemon(true);
-            t.start();
+            PeerChannel peerChannel = connection.getPeerChannel();
+            if (null != peerChannel) {
+                // event loop steps it, no thread needed
+                peerChannel.activate(this);
+            } else {
+                PeerThreads.execute(this);
+            }
         }
     }
 
     protected void stop() {
         running = false;
+        wakeup();
+    }
+
+    /**
+     * Wakes up connection thread if it's taking a nap. Event loop steps
+     * connection it drives as soon as it can.
+     */
+    protected void wakeup() {
+        Thread t = thread;
+        if (null != t) {
+            LockSupport.unpark(t);
+            return;
+        }
+        PeerChannel peerChannel = connection.getPeerChannel();
+        if (null != peerChannel) {
+            peerChannel.wakeup();
+        }
+    }
+
+    /**
+     * Gets time until idle connection needs a step even if nothing happens,
+     * such as sending keep-alive or advertising pieces.
+     * 
+     * @return delay in milliseconds
+     */
+    protected long getWakeupDelay() {
+        long now = System.currentTimeMillis();
+        long delay =
+            Math.min(connection.getLastAdvertiseTime() + 10000L, connection
+                .getMyLastTrafficTime() + 120000L)
+                - now;
+        if (uploadThrottled) {
+            // blocks can be sent again once upload limit allows it
+            delay =
+                Math.min(delay, connection.getUploadBucket().getDelay());
+        }
+        return Math.max(0L, Math.min(delay, MAX_WAKEUP_DELAY));
     }
 
     protected boolean isRunning() {
@@ -72,292 +154,341 @@ public class ConnectionThread implements Runnable {
         this.snubbed = snubbed;
     }
 
+    /**
+     * Checks if last step had nothing to do.
+     * 
+     * @return true if idle
+     */
+    protected boolean isIdle() {
+        return idle;
+    }
+
     public void run() {
-        if (log.isDebugEnabled()) {
-            debug("ConnectionThread started");
+        thread = Thread.currentThread();
+        while (resume()) {
+            if (idle) {
+                // take a short nap, not much going on around here
+                // don't sleep too long for bandwidth's sake, blocking
+                // sockets can't wake us when data arrives
+                long napTime = getWakeupDelay();
+                if (getNumBlocksRequested() > 0) {
+                    napTime = 20L;
+                } else if (!connection.getUploadQueue().isEmpty()
+                    && !uploadThrottled) {
+                    napTime = 20L;
+                }
+                // parking doesn't pin virtual threads and lets stop() cut
+                // the nap short
+                LockSupport.parkNanos(this, napTime * 1000000L);
+            }
         }
+        thread = null;
+    }
+
+    /**
+     * Does one step of work for connection, starting it on first call and
+     * cleaning up once it's done. Used by own thread and by event loop.
+     * 
+     * @return true if connection is still active
+     */
+    protected boolean resume() {
         boolean socketError = false;
-        connection.setConnectionThread(this);
         try {
-            // update interested status
-            connection.updateInterestedStatus();
-
-            // unchoke if remote is interested or he's optimistically unchoked
-            if (connection.amChoking()
-                && (connection.isInterested() || optimisticallyUnchoked)) {
-                connection.unchoke();
+            if (!started) {
+                started = true;
+                begin();
+            }
+            if (running && step()) {
+                return true;
+            }
+        } catch (SocketException e) {
+            socketError = true;
+            if (log.isDebugEnabled()) {
+                debug("connection lost");
+            }
+        } catch (IOException e) {
+            socketError = true;
+            if (log.isDebugEnabled()) {
+                debug("connection lost");
             }
+        } catch (Exception e) {
+            log.error("error", e);
+        }
+        finish(socketError);
+        return false;
+    }
 
-            while (running && isSocketConnected(connection.getSocket())) {
-                boolean idle = true;
-                // process a message from incoming traffic
-                if (connection.hasIncomingTraffic()) {
-                    idle = false;
-                    boolean remoteWasChoking = connection.isChoking();
-                    connection.processIncomingTraffic();
-                    if (connection.isChoking() && !remoteWasChoking) {
-                        // remote just choked us
-                        if (!connection.isInterested()) {
-                            if (log.isDebugEnabled()) {
-                                debug("exiting loop because remote just choked me"
-                                    + " and he's not interested");
-                            }
-                            break;
-                        }
-                    }
-                }
+    /**
+     * Cleans up after connection was closed from outside.
+     */
+    protected void abort() {
+        running = false;
+        finish(true);
+    }
 
-                // get remote requests
-                if (null == remoteRequests) {
-                    HashMap<Integer, BlockRequests> remoteQueue =
-                        connection.getRemoteQueue();
-                    if (!remoteQueue.isEmpty()) {
-                        try {
-                            remoteRequests =
-                                remoteQueue.values().iterator().next();
-                        } catch (NoSuchElementException ignored) {
-                        }
-                    }
+    private void begin() throws IOException {
+        if (log.isDebugEnabled()) {
+            debug("ConnectionThread started");
+        }
+        connection.setConnectionThread(this);
+        // update interested status
+        connection.updateInterestedStatus();
+
+        // unchoke if remote is interested or he's optimistically unchoked
+        if (connection.amChoking()
+            && (connection.isInterested() || optimisticallyUnchoked)) {
+            connection.unchoke();
+        }
+        remoteWasChoking = connection.isChoking();
+    }
+
+    private boolean step() throws IOException {
+        if (!isSocketConnected(connection.getSocket())) {
+            return false;
+        }
+        idle = true;
+        // process a message from incoming traffic (event loop processes
+        // messages before stepping), data over download limit is left in
+        // socket so remote slows down
+        if (connection.getDownloadBucket().hasTokens()
+            && connection.hasIncomingTraffic()) {
+            idle = false;
+            connection.processIncomingTraffic();
+        }
+        if (connection.isChoking() && !remoteWasChoking) {
+            // remote just choked us
+            if (!connection.isInterested()) {
+                if (log.isDebugEnabled()) {
+                    debug("exiting loop because remote just choked me"
+                        + " and he's not interested");
                 }
-                // send a remotely queued block
-                if (null != remoteRequests) {
-                    idle = false;
-                    // get piece from cache and send requested block
-                    int pieceIndex = remoteRequests.getPieceIndex();
-                    int blockIndex = remoteRequests.getRequestedBlockIndex();
-                    if (blockIndex < 0) {
-                        // no more requests
-                        remoteRequests = null;
-                        // remove from map
-                        connection.getRemoteQueue().remove(pieceIndex);
-                    } else {
-                        // snubbed clients don't get any upload from us
-                        // unless they're optimistically unchoked
-                        if (!snubbed || optimisticallyUnchoked) {
-                            // don't send blocks to seeders
-                            if (!connection.isSeeder()) {
-                                Piece piece =
-                                    PieceCache.getInstance().get(torrent,
-                                        pieceIndex);
-                                if (null != piece) {
-                                    connection.piece(piece, blockIndex
-                                        * Piece.BLOCK_SIZE, getBlockSize(piece,
-                                        blockIndex));
-                                }
-                            }
-                            remoteRequests.unrequestBlock(blockIndex);
-                        }
-                    }
+                return false;
+            }
+        }
+        remoteWasChoking = connection.isChoking();
+
+        // send remotely queued blocks, unless remote isn't taking what
+        // was already sent
+        UploadQueue uploadQueue = connection.getUploadQueue();
+        uploadThrottled = false;
+        if (uploadQueue.isEmpty()) {
+            // deficit round robin: credit isn't kept by peers which have
+            // nothing to send
+            deficit = 0;
+        } else if (connection.isSeeder()) {
+            // don't send blocks to seeders
+            idle = false;
+            uploadQueue.clear();
+        } else if (snubbed && !optimisticallyUnchoked) {
+            // snubbed clients don't get any upload from us unless they're
+            // optimistically unchoked, requests wait in case it changes
+        } else if (!connection.isOutputBacklogged()) {
+            // every step is a round in which peer may send its quantum
+            // and what was left over from last round, so peers sharing
+            // a thread (or disk and cache) get even share no matter how
+            // much they asked for
+            deficit = Math.min(deficit, UPLOAD_QUANTUM) + UPLOAD_QUANTUM;
+            while (!uploadQueue.isEmpty()) {
+                int sent = sendBlocks(uploadQueue, uploadQueue.peek());
+                if (sent <= 0) {
+                    break;
                 }
+                idle = false;
+                deficit -= sent;
+            }
+        }
 
-                if (!connection.isChoking()) {
-                    // pick a piece to download
-                    if (null == currentPiece && !torrent.isCompleted()) {
-                        int pieceIndex =
-                            torrent.getPiecePicker().pickPiece(connection);
-                        if (pieceIndex >= 0) {
-                            currentPiece =
-                                PieceCache.getInstance().get(torrent,
-                                    pieceIndex);
-                            // sometimes pieces are downloaded after state
-                            // was saved (abnormal termination) so after state
-                            // is resumed torrent will be missing some 1 in
-                            // "have". cache will fix this while fetching piece
-                            // from disk but that will happen after piecepicker
-                            // already chose a piece. that's why we need to
-                            // check it again here
-                            if (null != currentPiece
-                                && currentPiece.isComplete()) {
-                                currentPiece = null;
-                            } else {
-                                if (null != currentPiece) {
-                                    blocksRequested =
-                                        new BitField(currentPiece
-                                            .getBlockAvailability().getSize());
-                                } else {
-                                    // nothing to download from remote, send not
-                                    // interested
-                                    connection.notInterested();
-                                }
-                            }
-                        }
-                    }
-
-                    if (null != currentPiece) {
-                        // check if other connection thread already
-                        // downloaded it (end game)
-                        if (currentPiece.isComplete()) {
-                            cancelAllRequestedBlocks();
-                            currentPiece = null;
-                            blocksRequested = null;
-                        } else {
-                            // limit block requests based on download speed
-                            // (one block per each 4kB/s)
-                            int requestLimit =
-                                (int) (connection.getDownloadRate() / 4096L);
-                            if (requestLimit < MIN_REQUESTS) {
-                                requestLimit = MIN_REQUESTS;
-                            } else if (requestLimit > MAX_REQUESTS) {
-                                requestLimit = MAX_REQUESTS;
-                            }
-                            // request blocks as needed
-                            int totalBlocks = blocksRequested.getSize();
-                            int i = 0;
-                            int oldNumBlocksRequested =
-                                blocksRequested.getNumOnes();
-                            int newBlocksRequested = 0;
-                            BitField blockAvailability =
-                                currentPiece.getBlockAvailability();
-                            while (oldNumBlocksRequested + newBlocksRequested < requestLimit
-                                && i < totalBlocks) {
-                                for (; i < totalBlocks; i++) {
-                                    if (!blockAvailability.get(i)
-                                        && !blocksRequested.get(i)) {
-                                        connection.request(currentPiece
-                                            .getIndex(), i * Piece.BLOCK_SIZE,
-                                            getBlockSize(currentPiece, i));
-                                        blocksRequested.set(i);
-                                        newBlocksRequested++;
-                                        break;
-                                    }
-                                }
-                            }
-                            // flush queued (not flushed) requests
-                            if (newBlocksRequested > 0) {
-                                idle = false;
-                                connection.flushOutputStream();
-                            }
-                        }
-                    }
+        if (!connection.isChoking()) {
+            // drop pieces which other connection threads already downloaded
+            // (end game)
+            for (int j = downloads.size() - 1; j >= 0; j--) {
+                PieceDownload download = downloads.get(j);
+                if (download.piece.isComplete()) {
+                    cancelRequestedBlocks(download);
+                    releasePiece(j);
                 }
+            }
 
-                // if i'm choking
-                if (connection.amChoking()) {
-                    // unchoke if remote is interested
-                    if (connection.isInterested()) {
-                        if (log.isDebugEnabled()) {
-                            debug("unchoking because remote is interested");
+            // keep as many requests outstanding as it takes to fill the
+            // pipe, starting new pieces when all blocks of pieces being
+            // downloaded are requested. snubbed peers get one request at a
+            // time
+            PiecePicker picker = torrent.getPiecePicker();
+            RequestPipeline pipeline = connection.getRequestPipeline();
+            int requestLimit = snubbed ? 1 : pipeline.getDepth();
+            long requestTime = System.nanoTime();
+            int oldNumBlocksRequested = getNumBlocksRequested();
+            int newBlocksRequested = 0;
+            boolean cancelled = false;
+            for (int j = 0; j < downloads.size()
+                || oldNumBlocksRequested + newBlocksRequested < requestLimit;
+                j++) {
+                boolean newPiece = j == downloads.size();
+                if (newPiece && !startPiece()) {
+                    break;
+                }
+                // request blocks as needed
+                PieceDownload download = downloads.get(j);
+                int pieceIndex = download.piece.getIndex();
+                BitField blockAvailability =
+                    download.piece.getBlockAvailability();
+                BitField blocksRequested = download.blocksRequested;
+                int totalBlocks = blocksRequested.getSize();
+                for (int i = 0; i < totalBlocks; i++) {
+                    if (blockAvailability.get(i)) {
+                        if (blocksRequested.get(i)) {
+                            // got it from other peer
+                            blocksRequested.clear(i);
+                            connection.cancel(pieceIndex, i
+                                * Piece.BLOCK_SIZE, getBlockSize(pieceIndex,
+                                i));
+                            cancelled = true;
                         }
-                        connection.unchoke();
-                    }
-                } else {
-                    // i'm not choking
-                    // choke if remote is not interested
-                    if (!connection.isInterested()) {
-                        if (log.isDebugEnabled()) {
-                            debug("choking because remote is not interested");
+                    } else if (!blocksRequested.get(i)
+                        && oldNumBlocksRequested + newBlocksRequested
+                        < requestLimit
+                        && picker.assignBlock(connection, pieceIndex, i)) {
+                        connection.request(pieceIndex, i * Piece.BLOCK_SIZE,
+                            getBlockSize(pieceIndex, i));
+                        if (0 == oldNumBlocksRequested
+                            && 0 == newBlocksRequested) {
+                            pipeline.onRequestsResumed(requestTime);
+                            lastBlockTime = System.currentTimeMillis();
                         }
-                        connection.choke();
+                        blocksRequested.set(i);
+                        download.requestTimes[i] = requestTime;
+                        newBlocksRequested++;
                     }
                 }
-
-                // exit loop if both are choking
-                if (connection.amChoking() && connection.isChoking()) {
-                    if (log.isDebugEnabled()) {
-                        debug("exiting loop because both are choking");
+                if (0 == blocksRequested.getNumOnes()) {
+                    // other peers have all its blocks, join again later if
+                    // they're too slow
+                    releasePiece(j--);
+                    if (newPiece) {
+                        break;
                     }
-                    break;
-                }
-
-                // exit loop if both are uninterested (if not optimistically
-                // unchoked)
-                if (!optimisticallyUnchoked && !connection.amInterested()
-                    && !connection.isInterested()) {
-                    if (log.isDebugEnabled()) {
-                        debug("exiting loop because no one is interested");
-                    }
-                    break;
                 }
+            }
+            // flush queued (not flushed) requests and cancels
+            if (newBlocksRequested > 0 || cancelled) {
+                idle = false;
+                connection.flushOutputStream();
+            }
 
-                // advertise pieces and update interested status every 10
-                // seconds
-                long now = System.currentTimeMillis();
-                if (now - connection.getLastAdvertiseTime() >= 10000L) {
-                    connection.advertisePieces();
-                    connection.updateInterestedStatus();
+            // snub peer which doesn't send what it's asked for
+            if (!snubbed && oldNumBlocksRequested > 0
+                && System.currentTimeMillis() - lastBlockTime > SNUB_TIME) {
+                if (log.isDebugEnabled()) {
+                    debug("snubbed, no block for " + SNUB_TIME + " ms");
                 }
+                snubbed = true;
+            }
+        }
 
-                // send keep-alive as needed at least every 2 minutes
-                now = System.currentTimeMillis();
-                if (now - connection.getMyLastTrafficTime() >= 120000L) {
-                    connection.keepAlive();
-                    // active connection should never be idle so long
-                    // there is high chance of packet loss so both sides are
-                    // waiting for each other
-                    // demote back to choked
-                    if (log.isDebugEnabled()) {
-                        debug("exiting loop because i sent keep-alive");
-                    }
-                    running = false;
-                    break;
+        // if i'm choking
+        if (connection.amChoking()) {
+            // unchoke if remote is interested
+            if (connection.isInterested()) {
+                if (log.isDebugEnabled()) {
+                    debug("unchoking because remote is interested");
                 }
-
-                if (idle) {
-                    // take a short nap, not much going on around here
-                    // don't sleep too long for bandwidth's sake
-                    long napTime = 500L;
-                    if (null != blocksRequested
-                        && blocksRequested.getNumOnes() > 0) {
-                        napTime = 20L;
-                    } else if (null != remoteRequests
-                        && remoteRequests.getNumBlocksRequested() > 0) {
-                        napTime = 20L;
-                    }
-                    try {
-                        Thread.sleep(napTime);
-                    } catch (InterruptedException ignored) {
-                    }
+                connection.unchoke();
+            }
+        } else {
+            // i'm not choking
+            // choke if remote is not interested
+            if (!connection.isInterested()) {
+                if (log.isDebugEnabled()) {
+                    debug("choking because remote is not interested");
                 }
+                connection.choke();
             }
-        } catch (SocketException e) {
-            socketError = true;
+        }
+
+        // exit loop if both are choking
+        if (connection.amChoking() && connection.isChoking()) {
             if (log.isDebugEnabled()) {
-                debug("connection lost");
+                debug("exiting loop because both are choking");
             }
-        } catch (IOException e) {
-            socketError = true;
+            return false;
+        }
+
+        // exit loop if both are uninterested (if not optimistically
+        // unchoked)
+        if (!optimisticallyUnchoked && !connection.amInterested()
+            && !connection.isInterested()) {
             if (log.isDebugEnabled()) {
-                debug("connection lost");
+                debug("exiting loop because no one is interested");
             }
-        } catch (Exception e) {
-            log.error("error", e);
-        } finally {
+            return false;
+        }
+
+        // advertise pieces and update interested status every 10
+        // seconds
+        long now = System.currentTimeMillis();
+        if (now - connection.getLastAdvertiseTime() >= 10000L) {
+            connection.advertisePieces();
+            connection.updateInterestedStatus();
+        }
+
+        // send keep-alive as needed at least every 2 minutes
+        now = System.currentTimeMillis();
+        if (now - connection.getMyLastTrafficTime() >= 120000L) {
+            connection.keepAlive();
+            // active connection should never be idle so long
+            // there is high chance of packet loss so both sides are
+            // waiting for each other
+            // demote back to choked
             if (log.isDebugEnabled()) {
-                debug("entered finally");
+                debug("exiting loop because i sent keep-alive");
             }
-            // cancel all outbound requests, choke and send not interested
-            if (!socketError && isSocketConnected(connection.getSocket())) {
-                try {
-                    cancelAllRequestedBlocks();
-                    if (!connection.amChoking()) {
-                        connection.choke();
-                    }
-                    if (connection.amInterested()) {
-                        connection.notInterested();
-                    }
-                } catch (SocketException e) {
-                    socketError = true;
-                } catch (IOException e) {
-                    socketError = true;
+            running = false;
+            return false;
+        }
+        return true;
+    }
+
+    private void finish(boolean socketError) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (log.isDebugEnabled()) {
+            debug("entered finally");
+        }
+        // cancel all outbound requests, choke and send not interested
+        if (!socketError && isSocketConnected(connection.getSocket())) {
+            try {
+                cancelAllRequestedBlocks();
+                if (!connection.amChoking()) {
+                    connection.choke();
                 }
-            }
-            // clear all incoming requests
-            connection.getRemoteQueue().clear();
-            remoteRequests = null;
-            // cancel all piece reservations
-            torrent.getPiecePicker().cancelReservations(connection);
-            // remove self from activePeers
-            torrent.removeActivePeer(this);
-            // close socket if error
-            if (socketError) {
-                connection.close();
-            } else if (isSocketConnected(connection.getSocket())) {
-                // add connection to choked peer list
-                try {
-                    torrent.addPeer(connection, false);
-                } catch (SocketException ignored) {
-                } catch (IOException ignored) {
+                if (connection.amInterested()) {
+                    connection.notInterested();
                 }
+            } catch (SocketException e) {
+                socketError = true;
+            } catch (IOException e) {
+                socketError = true;
+            }
+        }
+        // let go of pieces being downloaded
+        releasePieces();
+        // clear all incoming requests
+        connection.getUploadQueue().clear();
+        // cancel all piece reservations
+        torrent.getPiecePicker().cancelReservations(connection);
+        // remove self from activePeers
+        torrent.removeActivePeer(this);
+        // close socket if error
+        if (socketError) {
+            connection.close();
+        } else if (isSocketConnected(connection.getSocket())) {
+            // add connection to choked peer list
+            try {
+                torrent.addPeer(connection, false);
+            } catch (SocketException ignored) {
+            } catch (IOException ignored) {
             }
         }
         connection.setConnectionThread(null);
@@ -366,88 +497,273 @@ public class ConnectionThread implements Runnable {
         }
     }
 
-    protected void onBlockArrived(int pieceIndex, int offset, int size,
-        byte[] data) throws IOException {
-        if (null == currentPiece) {
+    /**
+     * Stores arrived block into piece being downloaded. Block is copied
+     * before this method returns, caller may reuse it afterwards.
+     * 
+     * @param pieceIndex
+     *            piece index
+     * @param offset
+     *            offset of block in piece
+     * @param block
+     *            block data (from position to limit)
+     * @throws IOException
+     *             if piece can't be saved
+     */
+    protected void onBlockArrived(int pieceIndex, int offset, ByteBuffer block)
+        throws IOException {
+        int size = block.remaining();
+        int j = indexOfDownload(pieceIndex);
+        if (j < 0) {
+            // cancelled requests may still arrive
             if (log.isDebugEnabled()) {
                 debug("got block unrequested, ignoring");
             }
             return;
         }
-        synchronized (currentPiece) {
-            if (currentPiece.getIndex() != pieceIndex) {
-                // damn riaa/mpaa freak, wasting bandwidth with random data
-                connection.close();
-                throw new IllegalArgumentException("received block for piece "
-                    + pieceIndex + " but block for piece "
-                    + currentPiece.getIndex() + " was expected");
-            }
+        PieceDownload download = downloads.get(j);
+        Piece piece = download.piece;
+        piece.lock();
+        try {
             // check if other connection thread already downloaded
             // it (end game)
-            if (currentPiece.isComplete()) {
-                cancelAllRequestedBlocks();
-                currentPiece = null;
-                blocksRequested = null;
+            if (piece.isComplete()) {
+                cancelRequestedBlocks(download);
+                releasePiece(j);
                 return;
             }
-            blocksRequested.clear(offset / Piece.BLOCK_SIZE);
-            currentPiece.writeBlock(offset, data);
+            int blockIndex = offset / Piece.BLOCK_SIZE;
+            if (download.blocksRequested.get(blockIndex)) {
+                download.blocksRequested.clear(blockIndex);
+                connection.getRequestPipeline().onBlockArrived(size,
+                    download.requestTimes[blockIndex], System.nanoTime());
+                lastBlockTime = System.currentTimeMillis();
+                if (snubbed) {
+                    if (log.isDebugEnabled()) {
+                        debug("not snubbed anymore");
+                    }
+                    snubbed = false;
+                }
+            }
+            // other peer may have sent it first
+            if (!piece.isBlockAvailable(blockIndex)) {
+                piece.writeBlock(offset, block);
+                torrent.getPiecePicker().blockReceived(pieceIndex,
+                    blockIndex);
+            }
             // update session stats
             torrent.updateDownloadStats(size);
             Server.bandwidthStats.update(size, 0);
             // check if piece is completed
-            if (currentPiece.isComplete()) {
+            if (piece.isComplete()) {
                 // check hash
-                if (currentPiece.setData(currentPiece.getData())) {
+                if (piece.verify()) {
                     // piece done
                     // save to disk
-                    currentPiece.save();
+                    piece.save();
+                    PieceCache.getInstance().verified(piece);
 
                     // mark bit in HAVE
-                    torrent.getHavePieces().set(currentPiece.getIndex());
-
-                    // cancel reservation
-                    torrent.getPiecePicker().cancelReservations(connection);
-
-                    // prepare for next piece
-                    currentPiece = null;
-                    blocksRequested = null;
+                    torrent.setHavePiece(piece.getIndex());
                 } else {
                     // failed hash check, clear data and download from other
                     // peer (or the same if there is only one)
-                    currentPiece.clearData();
-                    currentPiece = null;
-                    blocksRequested = null;
-                    torrent.getPiecePicker().cancelReservations(connection);
+                    piece.clearData();
+                    torrent.getPiecePicker().pieceFailed(pieceIndex);
                 }
+                // cancel assignments, other pieces carry on
+                releasePiece(j);
             }
+        } finally {
+            piece.unlock();
+        }
+    }
+
+    // joins a started piece or starts another one, returns false if there is
+    // none or if piece has to be loaded first. never waits for disk, piece
+    // which isn't cached is loaded in background and wakes connection up
+    private boolean startPiece() throws IOException {
+        if (torrent.isCompleted()) {
+            return false;
+        }
+        int pieceIndex = torrent.getPiecePicker().pickPiece(connection);
+        if (pieceIndex < 0) {
+            return false;
+        }
+        if (indexOfDownload(pieceIndex) >= 0) {
+            // its blocks were just tried
+            return false;
+        }
+        PiecePicker picker = torrent.getPiecePicker();
+        Piece piece = picker.joinPiece(pieceIndex);
+        if (null != piece) {
+            // other connection is downloading it
+            downloads.add(new PieceDownload(piece));
+            return true;
+        }
+        piece = PieceCache.getInstance().getIfPresent(torrent, pieceIndex);
+        if (null == piece) {
+            // no blocks are assigned yet, piece is picked again once loaded
+            PieceCache.getInstance().prefetch(torrent, pieceIndex,
+                wakeupTask);
+            return false;
+        }
+        // sometimes pieces are downloaded after state was saved (abnormal
+        // termination) so after state is resumed torrent will be missing
+        // some 1 in "have". cache will fix this while fetching piece from
+        // disk but that will happen after piecepicker already chose a
+        // piece. that's why we need to check it again here
+        if (piece.isComplete()) {
+            piece.release();
+            torrent.getPiecePicker().cancelReservation(connection,
+                pieceIndex);
+            // try another one on next step
+            idle = false;
+            return false;
+        }
+        downloads.add(new PieceDownload(picker.joinPiece(pieceIndex, piece)));
+        return true;
+    }
+
+    private int indexOfDownload(int pieceIndex) {
+        for (int j = 0; j < downloads.size(); j++) {
+            if (downloads.get(j).piece.getIndex() == pieceIndex) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    private int getNumBlocksRequested() {
+        int numBlocksRequested = 0;
+        for (int j = 0; j < downloads.size(); j++) {
+            numBlocksRequested += downloads.get(j).blocksRequested.getNumOnes();
+        }
+        return numBlocksRequested;
+    }
+
+    // drops reference to piece being downloaded and cancels its block
+    // assignments
+    private void releasePiece(int j) {
+        Piece piece = downloads.remove(j).piece;
+        torrent.getPiecePicker().leavePiece(connection, piece.getIndex());
+        piece.release();
+    }
+
+    // sends requested blocks of a piece while deficit and upload limit
+    // last, with one cache lookup. returns number of bytes sent, or 0 if
+    // piece has to be loaded, quantum is used up or upload is throttled
+    private int sendBlocks(UploadQueue uploadQueue, BlockRequests reqs)
+        throws IOException {
+        int pieceIndex = reqs.getPieceIndex();
+        Piece piece = null;
+        // connections driven by event loop must not block its thread on
+        // disk, they send from cache only
+        if (null != connection.getPeerChannel()
+            || !DiskManager.getInstance().contains(torrent, pieceIndex)) {
+            // never wait for disk here, if piece isn't cached yet have it
+            // loaded in background and keep the requests queued until it is
+            piece = PieceCache.getInstance().getIfPresent(torrent, pieceIndex);
+            if (null == piece) {
+                // carry on once it's loaded
+                PieceCache.getInstance().prefetch(torrent, pieceIndex,
+                    wakeupTask);
+                return 0;
+            }
+        }
+        int sent = 0;
+        try {
+            TokenBucket bucket = connection.getUploadBucket();
+            int blockIndex;
+            while ((blockIndex = reqs.getRequestedBlockIndex()) >= 0) {
+                if (null != piece && !piece.isComplete()) {
+                    // don't send what we don't have, drop the request
+                    uploadQueue.remove(pieceIndex, blockIndex);
+                    continue;
+                }
+                int size = getBlockSize(pieceIndex, blockIndex);
+                if (size > deficit - sent || connection.isOutputBacklogged()) {
+                    break;
+                }
+                if (!bucket.tryTake(size)) {
+                    uploadThrottled = true;
+                    break;
+                }
+                boolean sentBlock = false;
+                try {
+                    if (null == piece) {
+                        // saved pieces are sent straight from disk
+                        sentBlock =
+                            connection.pieceFromDisk(pieceIndex, blockIndex
+                                * Piece.BLOCK_SIZE, size);
+                    } else {
+                        connection.piece(piece, blockIndex
+                            * Piece.BLOCK_SIZE, size);
+                        sentBlock = true;
+                    }
+                } finally {
+                    if (!sentBlock) {
+                        // nothing went out, neither may the tokens
+                        bucket.giveBack(size);
+                    }
+                }
+                if (!sentBlock) {
+                    // not on disk anymore, next round goes to cache
+                    break;
+                }
+                uploadQueue.remove(pieceIndex, blockIndex);
+                sent += size;
+            }
+        } finally {
+            if (null != piece) {
+                piece.release();
+            }
+        }
+        return sent;
+    }
+
+    // drops references to all pieces being downloaded
+    private void releasePieces() {
+        for (int j = downloads.size() - 1; j >= 0; j--) {
+            releasePiece(j);
         }
     }
 
     private boolean isSocketConnected(Socket socket) {
-        return !(socket.isInputShutdown() || socket.isOutputShutdown());
+        return !(socket.isClosed() || socket.isInputShutdown() || socket
+            .isOutputShutdown());
     }
 
     private void cancelAllRequestedBlocks() throws IOException {
-        if (null != currentPiece && null != blocksRequested
-            && blocksRequested.getNumOnes() > 0) {
+        if (getNumBlocksRequested() > 0) {
             if (log.isDebugEnabled()) {
                 log.debug("cancelling all requests");
             }
+            for (int j = 0; j < downloads.size(); j++) {
+                cancelRequestedBlocks(downloads.get(j));
+            }
+        }
+    }
+
+    private void cancelRequestedBlocks(PieceDownload download)
+        throws IOException {
+        BitField blocksRequested = download.blocksRequested;
+        if (blocksRequested.getNumOnes() > 0) {
+            int pieceIndex = download.piece.getIndex();
             for (int i = 0; i < blocksRequested.getSize(); i++) {
                 if (blocksRequested.get(i)) {
                     blocksRequested.clear(i);
-                    connection.cancel(currentPiece.getIndex(), i
-                        * Piece.BLOCK_SIZE, getBlockSize(currentPiece, i));
+                    connection.cancel(pieceIndex, i * Piece.BLOCK_SIZE,
+                        getBlockSize(pieceIndex, i));
                 }
             }
             connection.flushOutputStream();
         }
     }
 
-    private int getBlockSize(Piece piece, int blockIndex) {
+    private int getBlockSize(int pieceIndex, int blockIndex) {
         int blockSize = Piece.BLOCK_SIZE;
-        if (piece.getIndex() == (torrent.getMetaInfo().getNumPieces() - 1)
+        if (pieceIndex == (torrent.getMetaInfo().getNumPieces() - 1)
             && ((blockIndex * Piece.BLOCK_SIZE) + Piece.BLOCK_SIZE > torrent
                 .getMetaInfo().getLastPieceLength())) {
             blockSize =
@@ -475,13 +791,31 @@ public class ConnectionThread implements Runnable {
     // log.debug(getRemoteIPPrefix() + s, e);
     // }
 
-    private boolean running;
+    private volatile boolean running;
+    private volatile Thread thread;
+    private boolean started;
+    private boolean finished;
+    private boolean idle;
+    private boolean remoteWasChoking;
     private PeerConnection connection;
     private Torrent torrent;
     private boolean optimisticallyUnchoked;
-    private boolean snubbed;
-    private Piece currentPiece;
-    private BitField blocksRequested;
-    private BlockRequests remoteRequests;
+    private volatile boolean snubbed;
+    // when last requested block arrived or requests were sent while none
+    // was outstanding (System.currentTimeMillis())
+    private long lastBlockTime;
+    private final ArrayList<PieceDownload> downloads =
+        new ArrayList<PieceDownload>();
+    // bytes of upload this peer may still send in current round
+    private int deficit;
+    // upload limit stopped last round
+    private boolean uploadThrottled;
+    private final Runnable wakeupTask = new Runnable() {
+
+        public void run() {
+            wakeup();
+        }
+
+    };
 
 }
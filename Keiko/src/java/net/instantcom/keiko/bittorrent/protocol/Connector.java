@@ -0,0 +1,340 @@
+package net.instantcom.keiko.bittorrent.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.instantcom.keiko.config.Configuration;
+
+/**
+ * Opens outbound connections of all torrents from one thread. Connects are
+ * non-blocking and fail after <tt>torrent.connect.timeout</tt>, at most
+ * <tt>torrent.connect.max.halfopen</tt> of them are in progress at once.
+ * <p>
+ * Torrents which have peers to connect to take turns, each turn starts one
+ * connect, so a torrent with long list of peers doesn't hold up others.
+ * Torrent decides how many connects it may have in flight (as many as peers
+ * it still needs), so new torrent ramps up quickly while torrent which has
+ * enough peers doesn't start any.
+ * <p>
+ * Connected socket is switched back to blocking mode and handed over to
+ * handshake executor. No new connects are started while its queue is full.
+ */
+public final class Connector implements Runnable {
+
+    private static final Log log = LogFactory.getLog(Connector.class);
+
+    /**
+     * Connect timeout in milliseconds, also used for reads during handshake.
+     */
+    public static final int TIMEOUT =
+        1000 * Configuration.getInstance().getInt("torrent.connect.timeout",
+            10);
+
+    private static final int MAX_HALF_OPEN =
+        Math.max(1, Configuration.getInstance().getInt(
+            "torrent.connect.max.halfopen", 32));
+
+    // how often (ms) to check if handshake executor has room again
+    private static final long BUSY_DELAY = 100L;
+
+    private static Connector instance;
+
+    /**
+     * Outbound connection attempt.
+     */
+    interface Request {
+
+        /**
+         * Gets address to connect to.
+         *
+         * @return address
+         */
+        InetSocketAddress getAddress();
+
+        /**
+         * Called on a handshake thread once connected, socket is in
+         * blocking mode.
+         *
+         * @param socket
+         *            connected socket
+         */
+        void connected(Socket socket);
+
+        /**
+         * Called on connector's thread if connect failed or timed out, must
+         * not block.
+         *
+         * @param e
+         *            reason
+         */
+        void failed(IOException e);
+
+    }
+
+    /**
+     * Torrent's queue of connection attempts.
+     */
+    interface Source {
+
+        /**
+         * Gets next connection attempt. Called on connector's thread, must
+         * not block.
+         *
+         * @return connection attempt or null if none is needed for now
+         */
+        Request nextConnectRequest();
+
+    }
+
+    // connect in progress
+    private static final class Pending {
+
+        private Pending(Request request, long deadline) {
+            this.request = request;
+            this.deadline = deadline;
+        }
+
+        private final Request request;
+        private final long deadline;
+
+    }
+
+    private Connector() throws IOException {
+        selector = Selector.open();
+        Thread thread = new Thread(this, "Connector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized Connector getInstance() throws IOException {
+        if (null == instance) {
+            instance = new Connector();
+        }
+        return instance;
+    }
+
+    /**
+     * Tells connector that source has peers to connect to. Source is asked
+     * for connection attempts until it has no more. Can be called from any
+     * thread, as often as needed.
+     *
+     * @param source
+     *            torrent
+     */
+    void request(Source source) {
+        requested.offer(source);
+        selector.wakeup();
+    }
+
+    /**
+     * Connects again with same request, ahead of new requests, such as to
+     * retry handshake in plaintext. Can be called from any thread.
+     *
+     * @param request
+     *            connection attempt
+     */
+    void retry(Request request) {
+        retries.offer(request);
+        selector.wakeup();
+    }
+
+    /**
+     * Gets number of connects in progress.
+     *
+     * @return number of half-open connections
+     */
+    public int getNumHalfOpen() {
+        return numHalfOpen;
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Source source;
+                while (null != (source = requested.poll())) {
+                    if (waiting.add(source)) {
+                        ready.offer(source);
+                    }
+                }
+                boolean busy = !startConnects();
+                long timeout = expireConnects();
+                if (busy) {
+                    timeout = 0 == timeout ? BUSY_DELAY : Math.min(timeout,
+                        BUSY_DELAY);
+                }
+                if (timeout > 0) {
+                    selector.select(timeout);
+                } else {
+                    selector.select();
+                }
+                finishConnects();
+            } catch (Exception e) {
+                log.error("error", e);
+            }
+        }
+    }
+
+    // starts connects while under half-open limit, torrents take turns.
+    // returns false if handshake executor is too busy
+    private boolean startConnects() {
+        while (numHalfOpen < MAX_HALF_OPEN) {
+            if (!HandshakeExecutor.getInstance().hasCapacity()) {
+                return false;
+            }
+            Request request = retries.poll();
+            if (null == request) {
+                Source source = ready.poll();
+                if (null == source) {
+                    break;
+                }
+                request = source.nextConnectRequest();
+                if (null == request) {
+                    // nothing more, source asks again when it needs to
+                    waiting.remove(source);
+                    continue;
+                }
+                ready.offer(source);
+            }
+            connect(request);
+        }
+        return true;
+    }
+
+    private void connect(Request request) {
+        SocketChannel channel = null;
+        try {
+            InetSocketAddress address = request.getAddress();
+            if (address.isUnresolved()) {
+                throw new IOException("unknown host: "
+                    + address.getHostName());
+            }
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(address)) {
+                // local connections may succeed at once
+                handOver(request, channel);
+                return;
+            }
+            channel.register(selector, SelectionKey.OP_CONNECT, new Pending(
+                request, System.currentTimeMillis() + TIMEOUT));
+            ++numHalfOpen;
+        } catch (IOException e) {
+            close(channel);
+            request.failed(e);
+        }
+    }
+
+    // fails connects which took too long, returns time until next one
+    // expires or 0 if none is in progress
+    private long expireConnects() {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            Pending pending = (Pending) key.attachment();
+            if (now >= pending.deadline) {
+                abort(key, new IOException("connect timed out"));
+            } else {
+                next = Math.min(next, pending.deadline);
+            }
+        }
+        return Long.MAX_VALUE == next ? 0L : Math.max(1L, next - now);
+    }
+
+    private void finishConnects() throws IOException {
+        Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+        while (i.hasNext()) {
+            SelectionKey key = i.next();
+            i.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                if (channel.finishConnect()) {
+                    key.cancel();
+                    --numHalfOpen;
+                    connected.add(key);
+                }
+            } catch (IOException e) {
+                abort(key, e);
+            }
+        }
+        if (!connected.isEmpty()) {
+            // channel can't be switched to blocking mode until its
+            // cancelled key is gone from selector
+            selector.selectNow();
+            for (int j = 0; j < connected.size(); j++) {
+                SelectionKey key = connected.get(j);
+                Request request = ((Pending) key.attachment()).request;
+                SocketChannel channel = (SocketChannel) key.channel();
+                try {
+                    handOver(request, channel);
+                } catch (IOException e) {
+                    close(channel);
+                    request.failed(e);
+                }
+            }
+            connected.clear();
+        }
+    }
+
+    private void abort(SelectionKey key, IOException e) {
+        key.cancel();
+        --numHalfOpen;
+        close((SocketChannel) key.channel());
+        ((Pending) key.attachment()).request.failed(e);
+    }
+
+    private void handOver(final Request request, SocketChannel channel)
+        throws IOException {
+        channel.configureBlocking(true);
+        final Socket socket = channel.socket();
+        if (!HandshakeExecutor.getInstance().execute(new Runnable() {
+
+            public void run() {
+                request.connected(socket);
+            }
+
+        }, socket)) {
+            throw new IOException("too many handshakes");
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (null != channel) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final Selector selector;
+    private final Queue<Source> requested =
+        new ConcurrentLinkedQueue<Source>();
+    private final Queue<Request> retries =
+        new ConcurrentLinkedQueue<Request>();
+    // sources taking turns and set of them, used by connector's thread only
+    private final ArrayDeque<Source> ready = new ArrayDeque<Source>();
+    private final HashSet<Source> waiting = new HashSet<Source>();
+    private final ArrayList<SelectionKey> connected =
+        new ArrayList<SelectionKey>();
+    private volatile int numHalfOpen;
+
+}
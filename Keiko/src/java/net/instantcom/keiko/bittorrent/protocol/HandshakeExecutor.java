@@ -0,0 +1,171 @@
+package net.instantcom.keiko.bittorrent.protocol;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.instantcom.keiko.config.Configuration;
+import net.instantcom.util.Histogram;
+
+/**
+ * Runs inbound and outbound handshakes on a fixed number of threads
+ * (<tt>torrent.handshake.threads</tt>) with a bounded queue
+ * (<tt>torrent.handshake.queue</tt>). Handshake which doesn't fit is refused
+ * and its connection closed by the caller, so a connection storm costs a
+ * bounded amount of CPU and threads while established peers keep going.
+ * <p>
+ * Handshake must end within <tt>torrent.handshake.timeout</tt> of admission,
+ * otherwise its socket is closed. Read timeout alone doesn't free a handshake
+ * thread held by a peer which never speaks but trickles bytes.
+ * <p>
+ * Time from admission to end of every handshake, including time spent in
+ * queue, is recorded in a histogram.
+ */
+public final class HandshakeExecutor {
+
+    private static final HandshakeExecutor instance = new HandshakeExecutor();
+
+    private HandshakeExecutor() {
+        Configuration config = Configuration.getInstance();
+        int numThreads =
+            Math.max(1, config.getInt("torrent.handshake.threads", 16));
+        int queueSize =
+            Math.max(1, config.getInt("torrent.handshake.queue", 64));
+        executor =
+            new ThreadPoolExecutor(numThreads, numThreads, 60L,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+
+                    public Thread newThread(Runnable r) {
+                        Thread t =
+                            new Thread(r, "Handshake-"
+                                + nextId.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+
+                });
+        executor.allowCoreThreadTimeOut(true);
+        timeout = 1000L * config.getInt("torrent.handshake.timeout", 30);
+    }
+
+    public static HandshakeExecutor getInstance() {
+        return instance;
+    }
+
+    /**
+     * Queues handshake if there is room for it.
+     *
+     * @param handshake
+     *            handshake task
+     * @param socket
+     *            socket to close if handshake takes too long
+     * @return false if handshake was refused
+     */
+    public boolean execute(final Runnable handshake, final Socket socket) {
+        final long start = System.currentTimeMillis();
+        final TimerTask watchdog = timeout <= 0 ? null : new TimerTask() {
+
+            @Override
+            public void run() {
+                timedOut.incrementAndGet();
+                try {
+                    // blocked read or write fails, handshake cleans up
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+        };
+        if (null != watchdog) {
+            // before handshake can end and cancel it
+            watchdogs.schedule(watchdog, timeout);
+        }
+        try {
+            executor.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        handshake.run();
+                    } finally {
+                        if (null != watchdog) {
+                            watchdog.cancel();
+                        }
+                        latency.record(System.currentTimeMillis() - start);
+                    }
+                }
+
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (null != watchdog) {
+                watchdog.cancel();
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Checks if a handshake queued now would be accepted.
+     *
+     * @return true if queue has room
+     */
+    public boolean hasCapacity() {
+        return executor.getQueue().remainingCapacity() > 0;
+    }
+
+    /**
+     * Gets number of handshakes in progress or waiting.
+     *
+     * @return number of handshakes
+     */
+    public int getNumPending() {
+        return executor.getActiveCount() + executor.getQueue().size();
+    }
+
+    /**
+     * Gets number of refused handshakes.
+     *
+     * @return number of refused handshakes
+     */
+    public long getNumRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Gets number of handshakes whose socket was closed because they took too
+     * long.
+     *
+     * @return number of timed out handshakes
+     */
+    public long getNumTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * Gets histogram of handshake times.
+     *
+     * @return latency histogram
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final long timeout;
+    private final Timer watchdogs = new Timer("HandshakeTimeout", true);
+    private final Histogram latency = new Histogram();
+
+}
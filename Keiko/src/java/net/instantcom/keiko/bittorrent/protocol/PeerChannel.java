@@ -0,0 +1,269 @@
+package net.instantcom.keiko.bittorrent.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bouncycastle.crypto.StreamCipher;
+
+import net.instantcom.keiko.bittorrent.protocol.encryption.RC4Cipher;
+import net.instantcom.keiko.bittorrent.protocol.nio.ChannelHandler;
+import net.instantcom.keiko.bittorrent.protocol.nio.EventLoop;
+import net.instantcom.keiko.bittorrent.protocol.nio.MessageProcessor;
+import net.instantcom.keiko.bittorrent.protocol.nio.OutboundQueue;
+import net.instantcom.keiko.bittorrent.protocol.nio.PeerEngine;
+
+/**
+ * Drives a PeerConnection from an event loop. Incoming data is decrypted (if
+ * needed) and parsed by MessageProcessor which calls PeerConnection's
+ * MessageHandler methods. While peer is active its ConnectionThread is
+ * stepped after every read, when pending output is sent, when it's woken up
+ * and when its timer expires instead of running in its own thread. Idle
+ * connection thread costs nothing until one of these happens.
+ * <p>
+ * Output is queued by any thread and sent only from event loop, once per loop
+ * iteration, so messages queued in the meantime leave with one gathering
+ * write.
+ * <p>
+ * When download limit is used up channel stops reading until connection's
+ * download bucket has tokens again.
+ */
+final class PeerChannel implements ChannelHandler {
+
+    // max steps of active peer in a row before other channels get their turn
+    private static final int MAX_STEPS = 16;
+
+    // peer which lets this much output pile up isn't reading, drop it
+    private static final int MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+
+    PeerChannel(PeerConnection connection, SocketChannel channel,
+        OutboundQueue out, StreamCipher inputCipher, byte[] prefetched) {
+        this.connection = connection;
+        this.channel = channel;
+        this.out = out;
+        this.inputCipher = inputCipher;
+        int bitfieldSize =
+            (connection.getTorrent().getMetaInfo().getNumPieces() + 7) / 8;
+        // direct, so socket reads and decryption in place need no copies
+        input = ByteBuffer.allocateDirect(Math.max(16400, bitfieldSize + 16));
+        // already decrypted data read during handshake goes first
+        input.put(prefetched);
+        processor = new MessageProcessor(input, connection, connection
+            .getTorrent());
+    }
+
+    /**
+     * Hands channel over to peer engine.
+     *
+     * @throws IOException
+     *             if channel can't be registered
+     */
+    void register() throws IOException {
+        loop = PeerEngine.getInstance().register(channel, this);
+    }
+
+    public void onRegistered(EventLoop loop, SelectionKey key) {
+        this.loop = loop;
+        this.key = key;
+        flush();
+        if (input.position() > 0) {
+            processMessages();
+        }
+    }
+
+    public void onReadable() throws IOException {
+        int position = input.position();
+        int size = channel.read(input);
+        if (size < 0) {
+            connection.close();
+            return;
+        }
+        if (size > 0) {
+            if (null != inputCipher) {
+                // decrypt just what was read, in place
+                int end = input.position();
+                input.limit(end);
+                input.position(position);
+                RC4Cipher.process(inputCipher, input);
+                input.limit(input.capacity());
+                input.position(end);
+            }
+            processMessages();
+        }
+    }
+
+    public void onWritable() throws IOException {
+        if (0 == out.writeTo() && key.isValid()) {
+            loop.setWriteInterest(key, false);
+            drive();
+        }
+    }
+
+    public void onTimer() throws IOException {
+        if (readPaused && connection.getDownloadBucket().hasTokens()) {
+            readPaused = false;
+            loop.setReadInterest(key, true);
+        }
+        drive();
+    }
+
+    public void onClose() {
+        connection.close();
+        if (null != active) {
+            active.abort();
+            active = null;
+        }
+    }
+
+    /**
+     * Sends queued output from event loop as soon as it gets to it. Can be
+     * called from any thread.
+     */
+    void flushLater() {
+        EventLoop loop = this.loop;
+        if (null != loop && flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    /**
+     * Steps active connection thread as soon as event loop gets to it. Can be
+     * called from any thread.
+     */
+    void wakeup() {
+        EventLoop loop = this.loop;
+        SelectionKey key = this.key;
+        if (null != loop && null != key) {
+            loop.schedule(key, 0);
+        }
+    }
+
+    /**
+     * Starts driving connection thread from event loop. Can be called from
+     * any thread.
+     *
+     * @param ct
+     *            connection thread
+     */
+    void activate(final ConnectionThread ct) {
+        loop.execute(new Runnable() {
+
+            public void run() {
+                if (null == key || !key.isValid()) {
+                    ct.abort();
+                    return;
+                }
+                active = ct;
+                drive();
+            }
+
+        });
+    }
+
+    /**
+     * Closes channel. Can be called from any thread.
+     */
+    void close() {
+        out.close();
+        if (null != key) {
+            loop.close(key);
+        }
+    }
+
+    private void processMessages() {
+        while (processor.hasNext()) {
+            processor.processNext();
+        }
+        if (processor.hasError()) {
+            // lets handler know
+            processor.processNext();
+            return;
+        }
+        if (!readPaused && !connection.getDownloadBucket().hasTokens()) {
+            // over download limit, leave the rest in socket
+            readPaused = true;
+            loop.setReadInterest(key, false);
+        }
+        drive();
+    }
+
+    private void drive() {
+        if (null == active) {
+            if (readPaused) {
+                scheduleTimer(-1);
+            }
+            return;
+        }
+        for (int i = 0; i < MAX_STEPS; i++) {
+            if (!active.resume()) {
+                active = null;
+                scheduleTimer(-1);
+                return;
+            }
+            if (active.isIdle()) {
+                // nothing to do until something happens or it's time for
+                // periodic work
+                scheduleTimer(active.getWakeupDelay());
+                return;
+            }
+        }
+        // more work, continue after other channels had their turn
+        scheduleTimer(0);
+    }
+
+    // sets timer for next step (negative for none), or sooner if reading
+    // has to be resumed
+    private void scheduleTimer(long delay) {
+        if (readPaused) {
+            long resume = connection.getDownloadBucket().getDelay();
+            delay = delay < 0 ? resume : Math.min(delay, resume);
+        }
+        loop.schedule(key, delay);
+    }
+
+    // sends what channel takes now, the rest when it becomes writable
+    private void flush() {
+        if (null == key || !key.isValid()) {
+            return;
+        }
+        try {
+            boolean backlogged = connection.isOutputBacklogged();
+            int pending = out.writeTo();
+            if (pending > MAX_PENDING_OUTPUT) {
+                throw new IOException("peer is not reading");
+            }
+            loop.setWriteInterest(key, pending > 0);
+            if (backlogged && !connection.isOutputBacklogged()) {
+                // peer took it at once, no writable event will come
+                wakeup();
+            }
+        } catch (IOException e) {
+            loop.close(key);
+        }
+    }
+
+    private final Runnable flushTask = new Runnable() {
+
+        public void run() {
+            if (flushScheduled.compareAndSet(true, false)) {
+                flush();
+            }
+        }
+
+    };
+
+    private final PeerConnection connection;
+    private final SocketChannel channel;
+    private final OutboundQueue out;
+    private final StreamCipher inputCipher;
+    private final ByteBuffer input;
+    private final MessageProcessor processor;
+    private volatile EventLoop loop;
+    private volatile SelectionKey key;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private ConnectionThread active;
+    private boolean readPaused;
+
+}
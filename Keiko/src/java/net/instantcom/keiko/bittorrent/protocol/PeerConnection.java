@@ -1,31 +1,65 @@
 package net.instantcom.keiko.bittorrent.protocol;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.HashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.crypto.StreamCipher;
 
 import net.instantcom.keiko.Server;
+import net.instantcom.keiko.bandwidth.BandwidthManager;
+import net.instantcom.keiko.bandwidth.TokenBucket;
 import net.instantcom.keiko.bittorrent.MetaInfo;
 import net.instantcom.keiko.bittorrent.extensions.Extensions;
+import net.instantcom.keiko.bittorrent.protocol.nio.OutboundQueue;
+import net.instantcom.keiko.bittorrent.protocol.nio.Message;
+import net.instantcom.keiko.bittorrent.protocol.nio.MessageHandler;
+import net.instantcom.keiko.config.Configuration;
+import net.instantcom.keiko.diskmanager.DiskManager;
 import net.instantcom.keiko.ipfilter.IP;
 import net.instantcom.keiko.ipfilter.IPFilter;
 import net.instantcom.util.BitField;
+import net.instantcom.util.BufferPool;
 import net.instantcom.util.SHA1Util;
 
-public class PeerConnection {
+public class PeerConnection implements MessageHandler {
 
     private static final Log log = LogFactory.getLog(PeerConnection.class);
 
     // socket buffer size makes difference between 1 MB/s and 11 MB/s
     public static final int SOCKET_MIN_BUFFER_SIZE = 64512; // 16400;
 
+    // send blocks saved on disk straight from file to plaintext sockets
+    private static final boolean ZERO_COPY =
+        Configuration.getInstance().getBoolean("torrent.upload.zerocopy", true);
+
+    // don't queue more blocks while this much output is waiting for peer
+    private static final int OUTPUT_BUDGET =
+        1024 * Configuration.getInstance().getInt("torrent.nio.output.budget",
+            64);
+
+    // max number of blocks remote can have requested at once
+    private static final int UPLOAD_BACKLOG =
+        Configuration.getInstance().getInt("torrent.upload.backlog", 256);
+
+    // blocks read from disk for encrypted blocking peers and received from
+    // blocking peers
+    private static final BufferPool blockPool =
+        new BufferPool(Piece.BLOCK_SIZE, 256, false);
+
+    // blocks queued for nio peers; direct, so they're read from disk,
+    // encrypted in place and written to socket without copying to heap
+    private static final BufferPool queuedBlockPool =
+        new BufferPool(Piece.BLOCK_SIZE, 256, true);
+
     /**
      * Creates new peer connection for specified socket, using socket's streams.
      * 
@@ -44,6 +78,7 @@ public class PeerConnection {
             close();
         }
         fixSocketBuffers();
+        createBuckets();
     }
 
     /**
@@ -66,6 +101,18 @@ public class PeerConnection {
         this.dis = dis;
         this.dos = dos;
         fixSocketBuffers();
+        createBuckets();
+    }
+
+    // torrent's buckets become parents once torrent is known
+    private void createBuckets() {
+        BandwidthManager manager = BandwidthManager.getInstance();
+        uploadBucket =
+            manager.newPeerBucket(true, null != torrent ? torrent
+                .getUploadBucket() : null, socket.getInetAddress());
+        downloadBucket =
+            manager.newPeerBucket(false, null != torrent ? torrent
+                .getDownloadBucket() : null, socket.getInetAddress());
     }
 
     private void fixSocketBuffers() {
@@ -103,6 +150,102 @@ public class PeerConnection {
         this.fullyEncrypted = fullyEncrypted;
     }
 
+    /**
+     * Sets ciphers of encrypted streams. They're needed to keep decrypting
+     * and encrypting fully encrypted connection after it's handed over to
+     * peer engine.
+     * 
+     * @param inputCipher
+     *            cipher of input stream
+     * @param outputCipher
+     *            cipher of output stream
+     */
+    public void setStreamCiphers(StreamCipher inputCipher,
+        StreamCipher outputCipher) {
+        this.inputCipher = inputCipher;
+        this.outputCipher = outputCipher;
+    }
+
+    /**
+     * Hands connection over to peer engine after handshake. From then on
+     * connection is non-blocking, incoming messages are processed by event
+     * loop and output is sent by event loop as peer takes it. Does nothing if
+     * socket has no channel.
+     * 
+     * @throws IOException
+     *             if connection can't be registered
+     */
+    public void attachToEngine() throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (null == channel || null != peerChannel) {
+            return;
+        }
+        dos.flush();
+        // handshake streams may have read ahead, keep what they have
+        ByteArrayOutputStream prefetched = new ByteArrayOutputStream();
+        int available;
+        while ((available = dis.available()) > 0) {
+            byte[] tmp = new byte[available];
+            dis.readFully(tmp);
+            prefetched.write(tmp);
+        }
+        boolean encryptData = fullyEncrypted && null != outputCipher;
+        outbound =
+            new OutboundQueue(channel, encryptData ? outputCipher : null);
+        dos = new DataOutputStream(outbound.getOutputStream());
+        dis = null;
+        peerChannel =
+            new PeerChannel(this, channel, outbound, encryptData ? inputCipher
+                : null, prefetched.toByteArray());
+        peerChannel.register();
+    }
+
+    /**
+     * Gets event loop handler of this connection.
+     * 
+     * @return handler or null if connection isn't handled by peer engine
+     */
+    protected PeerChannel getPeerChannel() {
+        return peerChannel;
+    }
+
+    /**
+     * Gets controller of request queue depth.
+     * 
+     * @return request pipeline
+     */
+    public RequestPipeline getRequestPipeline() {
+        return requestPipeline;
+    }
+
+    /**
+     * Gets bucket limiting blocks sent to this peer.
+     * 
+     * @return token bucket
+     */
+    public TokenBucket getUploadBucket() {
+        return uploadBucket;
+    }
+
+    /**
+     * Gets bucket limiting data read from this peer.
+     * 
+     * @return token bucket
+     */
+    public TokenBucket getDownloadBucket() {
+        return downloadBucket;
+    }
+
+    /**
+     * Checks if too much output is still waiting to be taken by peer. Always
+     * false for blocking connections.
+     * 
+     * @return true if nothing more should be queued for now
+     */
+    protected boolean isOutputBacklogged() {
+        return null != outbound && outbound.getPending() >= OUTPUT_BUDGET;
+    }
+
     /**
      * Does BitTorrent handshake.
      * 
@@ -141,8 +284,8 @@ public class PeerConnection {
                         // check if there is an active torrent with such
                         // infoHash
                         Torrent torrent =
-                            Server.getTorrents().get(
-                                SHA1Util.convertToString(infoHash));
+                            Server.getTorrent(SHA1Util
+                                .convertToString(infoHash));
                         if (null == torrent) {
                             // no such torrent
                             throw new HandshakeException("no such torrent");
@@ -214,6 +357,9 @@ public class PeerConnection {
             socket.close();
         } catch (IOException ignored) {
         }
+        if (null != peerChannel) {
+            peerChannel.close();
+        }
         if (null != torrent) {
             torrent.getPiecePicker().cancelReservations(this);
         }
@@ -223,6 +369,7 @@ public class PeerConnection {
         this.torrent = torrent;
         this.infoHash =
             null != torrent ? torrent.getMetaInfo().getInfoHash() : null;
+        createBuckets();
     }
 
     public Socket getSocket() {
@@ -323,6 +470,8 @@ public class PeerConnection {
         checkFibrillation();
         lastChokeChangeTime = System.currentTimeMillis();
         amChoking = true;
+        // choked peer knows its requests are discarded
+        uploadQueue.clear();
         dos.writeInt(1);
         dos.writeByte(0);
         flushOutputStream();
@@ -417,14 +566,100 @@ public class PeerConnection {
         // ")");
     }
 
+    /**
+     * Sends a block of piece which is saved on disk without loading the piece.
+     * Plaintext connections get the block straight from file to socket,
+     * encrypted connections get it through a pooled block sized buffer which
+     * non-blocking connections queue as it is.
+     * 
+     * @param pieceIndex
+     *            piece index
+     * @param offset
+     *            offset of block in piece
+     * @param size
+     *            size of block
+     * @return true if block was sent, false if piece is not saved on disk
+     * @throws IOException
+     *             if read or send fails
+     */
+    public boolean pieceFromDisk(int pieceIndex, int offset, int size)
+        throws IOException {
+        DiskManager diskManager = DiskManager.getInstance();
+        if (!diskManager.contains(torrent, pieceIndex)) {
+            return false;
+        }
+        SocketChannel channel = socket.getChannel();
+        // zero-copy is for threaded connections only: sendfile blocks on
+        // disk, which event loop must never do (its connections send from
+        // cache, see ConnectionThread.sendBlocks)
+        if (ZERO_COPY && null != channel && !fullyEncrypted
+            && null == peerChannel) {
+            outputStreamFlushed = false;
+            dos.writeInt(9 + size);
+            dos.writeByte(7);
+            dos.writeInt(pieceIndex);
+            dos.writeInt(offset);
+            // header must be out before block goes around the stream
+            flushOutputStream();
+            diskManager.transferBlock(torrent, pieceIndex, offset, size,
+                channel);
+        } else if (null != outbound) {
+            ByteBuffer buffer = queuedBlockPool.acquire();
+            try {
+                buffer.limit(size);
+                if (!diskManager.readBlock(torrent, pieceIndex, offset,
+                    buffer)) {
+                    // evicted while reading
+                    queuedBlockPool.release(buffer);
+                    return false;
+                }
+                buffer.flip();
+            } catch (IOException e) {
+                queuedBlockPool.release(buffer);
+                throw e;
+            }
+            queueBlock(pieceIndex, offset, buffer);
+        } else {
+            ByteBuffer buffer = blockPool.acquire();
+            try {
+                buffer.limit(size);
+                if (!diskManager.readBlock(torrent, pieceIndex, offset,
+                    buffer)) {
+                    return false;
+                }
+                outputStreamFlushed = false;
+                dos.writeInt(9 + size);
+                dos.writeByte(7);
+                dos.writeInt(pieceIndex);
+                dos.writeInt(offset);
+                dos.write(buffer.array(), buffer.arrayOffset(), size);
+                flushOutputStream();
+            } finally {
+                blockPool.release(buffer);
+            }
+        }
+        speedMetricsUploaded += size;
+        torrent.updateUploadStats(size);
+        Server.bandwidthStats.update(0, size);
+        return true;
+    }
+
     public void piece(Piece piece, int offset, int size) throws IOException {
-        outputStreamFlushed = false;
-        dos.writeInt(9 + size);
-        dos.writeByte(7);
-        dos.writeInt(piece.getIndex());
-        dos.writeInt(offset);
-        dos.write(piece.getData(), offset, size);
-        flushOutputStream();
+        if (null != outbound) {
+            ByteBuffer buffer = queuedBlockPool.acquire();
+            buffer.limit(size);
+            piece.getPieceData().read(offset, buffer);
+            buffer.flip();
+            queueBlock(piece.getIndex(), offset, buffer);
+        } else {
+            outputStreamFlushed = false;
+            dos.writeInt(9 + size);
+            dos.writeByte(7);
+            dos.writeInt(piece.getIndex());
+            dos.writeInt(offset);
+            piece.getPieceData().writeTo(dos, offset, size);
+            flushOutputStream();
+        }
         speedMetricsUploaded += size;
         torrent.updateUploadStats(size);
         Server.bandwidthStats.update(0, size);
@@ -432,6 +667,18 @@ public class PeerConnection {
         // + ")");
     }
 
+    // queues piece message, block goes to outbound queue without copying
+    private void queueBlock(int pieceIndex, int offset, ByteBuffer block)
+        throws IOException {
+        outputStreamFlushed = false;
+        dos.writeInt(9 + block.remaining());
+        dos.writeByte(7);
+        dos.writeInt(pieceIndex);
+        dos.writeInt(offset);
+        outbound.addBlock(block, queuedBlockPool);
+        flushOutputStream();
+    }
+
     public void cancel(int pieceIndex, int offset, int size) throws IOException {
         outputStreamFlushed = false;
         dos.writeInt(13);
@@ -462,10 +709,18 @@ public class PeerConnection {
             dos.flush();
             outputStreamFlushed = true;
             updateMyTrafficTime();
+            if (null != peerChannel) {
+                // messages written until event loop gets to it go together
+                peerChannel.flushLater();
+            }
         }
     }
 
     public boolean hasIncomingTraffic() throws IOException {
+        // event loop processes messages of non-blocking connections
+        if (null != peerChannel) {
+            return false;
+        }
         // 4 bytes (keep-alive) is shortest message
         return dis.available() >= 4;
     }
@@ -495,234 +750,283 @@ public class PeerConnection {
     public void processIncomingTraffic() throws IOException {
         int len = dis.readInt();
         if (0 == len) {
-            if (log.isDebugEnabled()) {
-                debug("got: keep-alive");
-            }
-            // keep-alive
-            updateRemoteTrafficTime();
-            // updateInterestedStatus();
-        } else if (1 == len) {
-            int id = dis.readUnsignedByte();
-            if (0 == id) {
-                if (log.isDebugEnabled()) {
-                    debug("got: choke");
-                }
-                // choke
-                isChoking = true;
-                updateRemoteTrafficTime();
-            } else if (1 == id) {
-                if (log.isDebugEnabled()) {
-                    debug("got: unchoke");
-                }
-                // unchoke
-                isChoking = false;
-                updateRemoteTrafficTime();
-            } else if (2 == id) {
-                if (log.isDebugEnabled()) {
-                    debug("got: interested");
-                }
-                // interested
-                isInterested = true;
-                updateRemoteTrafficTime();
-            } else if (3 == id) {
+            onKeepAlive();
+            return;
+        }
+        int id = dis.readUnsignedByte();
+        if (1 == len && Message.ID_CHOKE == id) {
+            onChoke();
+        } else if (1 == len && Message.ID_UNCHOKE == id) {
+            onUnchoke();
+        } else if (1 == len && Message.ID_INTERESTED == id) {
+            onInterested();
+        } else if (1 == len && Message.ID_NOTINTERESTED == id) {
+            onNotInterested();
+        } else if (5 == len && Message.ID_HAVE == id) {
+            onHave(dis.readInt());
+        } else if (Message.ID_BITFIELD == id && len > 1) {
+            if (remoteHavePieces.getData().length != len - 1) {
+                // wrong size
                 if (log.isDebugEnabled()) {
-                    debug("got: not interested");
+                    debug("error: wrong size");
                 }
-                // not interested
-                isInterested = false;
-                updateRemoteTrafficTime();
+                close();
             } else {
-                if (log.isDebugEnabled()) {
-                    debug("error: unknown message: 0x"
-                        + Integer.toHexString(id));
-                    byte[] tmp = new byte[dis.available()];
-                    dis.readFully(tmp);
-                    debug("next bytes: " + SHA1Util.convertToString(tmp));
+                byte[] bitfield = new byte[len - 1];
+                dis.readFully(bitfield);
+                onBitfield(ByteBuffer.wrap(bitfield));
+            }
+        } else if (13 == len && Message.ID_REQUEST == id) {
+            int pieceIndex = dis.readInt();
+            int offset = dis.readInt();
+            int size = dis.readInt();
+            onRequest(pieceIndex, offset, size);
+        } else if (Message.ID_PIECE == id && len > 9) {
+            updateRemoteTrafficTime();
+            int pieceIndex = dis.readInt();
+            int offset = dis.readInt();
+            int size = len - 9;
+            if (isValidBlock(pieceIndex, offset, size)) {
+                ByteBuffer block = blockPool.acquire();
+                try {
+                    dis.readFully(block.array(), block.arrayOffset(), size);
+                    block.limit(size);
+                    blockArrived(pieceIndex, offset, block);
+                } finally {
+                    blockPool.release(block);
                 }
-                // unknown message
-                close();
             }
+        } else if (13 == len && Message.ID_CANCEL == id) {
+            int pieceIndex = dis.readInt();
+            int offset = dis.readInt();
+            int size = dis.readInt();
+            onCancel(pieceIndex, offset, size);
+        } else if (3 == len && Message.ID_PORT == id) {
+            onPort(dis.readShort());
         } else {
-            int id = dis.readUnsignedByte();
-            if (5 == len && 4 == id) {
-                // have
-                updateRemoteTrafficTime();
-                int pieceIndex = dis.readInt();
-                if (log.isDebugEnabled()) {
-                    debug("got: have " + pieceIndex);
-                }
-                remoteHavePieces.set(pieceIndex);
-                torrent.getPiecePicker().update(pieceIndex);
-                // updateInterestedStatus();
-            } else if (5 == id) {
-                if (log.isDebugEnabled()) {
-                    debug("got: bitfield");
-                }
-                // bitfield
-                updateRemoteTrafficTime();
-                if (remoteHavePieces.getData().length != len - 1) {
-                    // wrong size
-                    if (log.isDebugEnabled()) {
-                        debug("error: wrong size");
-                    }
-                    close();
-                } else {
-                    dis.readFully(remoteHavePieces.getData());
-                    torrent.getPiecePicker().update(remoteHavePieces);
-                    // updateInterestedStatus();
-                }
-            } else if (13 == len && 6 == id) {
-                // request
-                updateRemoteTrafficTime();
-                int pieceIndex = dis.readInt();
-                int offset = dis.readInt();
-                int size = dis.readInt();
-                // debug("got: request(" + pieceIndex + ", " + offset + ", "
-                // + size + ")");
-                if (!amChoking) {
-                    int expectedBlockSize = Piece.BLOCK_SIZE;
-                    if (pieceIndex == (torrent.getMetaInfo().getNumPieces() - 1)
-                        && (offset + Piece.BLOCK_SIZE > torrent.getMetaInfo()
-                            .getLastPieceLength())) {
-                        expectedBlockSize =
-                            torrent.getMetaInfo().getLastPieceLength()
-                                % Piece.BLOCK_SIZE;
-                    }
-                    if (pieceIndex < 0
-                        || pieceIndex >= torrent.getMetaInfo().getNumPieces()) {
-                        // wrong pieceIndex
-                        if (log.isDebugEnabled()) {
-                            debug("error: wrong piece index");
-                        }
-                        close();
-                    } else if (0 != (offset % Piece.BLOCK_SIZE)) {
-                        // wrong offset
-                        if (log.isDebugEnabled()) {
-                            debug("error: wrong offset");
-                        }
-                        close();
-                    } else if (expectedBlockSize != size) {
-                        // wrong size
-                        if (log.isDebugEnabled()) {
-                            debug("error: wrong size, got " + size
-                                + ", expected " + expectedBlockSize);
-                        }
-                        close();
-                    } else if (!torrent.getHavePieces().get(pieceIndex)) {
-                        // don't have that piece
-                        if (log.isDebugEnabled()) {
-                            debug("error: don't have requested piece");
-                        }
-                        close();
-                    } else if (remoteQueue.size() < 2) { // 2 pieces max
-                        BlockRequests reqs = remoteQueue.get(pieceIndex);
-                        if (null == reqs) {
-                            MetaInfo metaInfo = torrent.getMetaInfo();
-                            boolean lastPiece =
-                                pieceIndex == (metaInfo.getNumPieces() - 1);
-                            int pieceLength =
-                                lastPiece ? metaInfo.getLastPieceLength()
-                                    : metaInfo.getPieceLength();
-                            int numBlocks = pieceLength / Piece.BLOCK_SIZE;
-                            if (lastPiece
-                                && 0 != (pieceLength % Piece.BLOCK_SIZE)) {
-                                ++numBlocks;
-                            }
-                            reqs = new BlockRequests(pieceIndex, numBlocks);
-                            remoteQueue.put(pieceIndex, reqs);
-                        }
-                        reqs.requestBlock(offset / Piece.BLOCK_SIZE);
-                    } else if (log.isDebugEnabled()) {
-                        debug("ignoring request because remote already sent"
-                            + " too many");
-                    }
-                }
-            } else if (7 == id) {
-                // piece
-                updateRemoteTrafficTime();
-                int pieceIndex = dis.readInt();
-                int offset = dis.readInt();
-                int size = len - 9;
-                // debug("got: piece(" + pieceIndex + ", " + offset + ", " +
-                // size + ")");
-                int expectedBlockSize = Piece.BLOCK_SIZE;
-                if (pieceIndex == (torrent.getMetaInfo().getNumPieces() - 1)
-                    && (offset + Piece.BLOCK_SIZE > torrent.getMetaInfo()
-                        .getLastPieceLength())) {
-                    expectedBlockSize =
-                        torrent.getMetaInfo().getLastPieceLength()
-                            % Piece.BLOCK_SIZE;
-                }
-                if (pieceIndex < 0
-                    || pieceIndex >= torrent.getMetaInfo().getNumPieces()) {
-                    // wrong pieceIndex
-                    if (log.isDebugEnabled()) {
-                        debug("error: wrong piece index");
-                    }
-                    close();
-                } else if (0 != (offset % Piece.BLOCK_SIZE)) {
-                    // wrong offset
-                    if (log.isDebugEnabled()) {
-                        debug("error: wrong offset");
-                    }
-                    close();
-                } else if (expectedBlockSize != size) {
-                    // wrong size
-                    if (log.isDebugEnabled()) {
-                        debug("error: wrong size, got " + size + ", expected "
-                            + expectedBlockSize);
-                    }
-                    close();
-                } else {
-                    byte[] array = new byte[size];
-                    dis.readFully(array);
-                    speedMetricsDownloaded += size;
-                    // sometimes block will arrive just after connection thread
-                    // demoted connection to choked, ignore block in that case
-                    if (null != connectionThread) {
-                        // pass block data to connection thread
-                        connectionThread.onBlockArrived(pieceIndex, offset,
-                            size, array);
-                    }
-                }
-            } else if (13 == len && 8 == id) {
-                // cancel
-                updateRemoteTrafficTime();
-                int pieceIndex = dis.readInt();
-                int offset = dis.readInt();
-                int size = dis.readInt();
-                if (log.isDebugEnabled()) {
-                    debug("got: cancel(" + pieceIndex + ", " + offset + ", "
-                        + size + ")");
-                }
-                BlockRequests reqs = remoteQueue.get(pieceIndex);
-                if (null != reqs) {
-                    reqs.unrequestBlock(offset / Piece.BLOCK_SIZE);
-                }
-            } else if (3 == len && 9 == id) {
-                // port
-                updateRemoteTrafficTime();
-                int port = dis.readUnsignedShort();
-                if (log.isDebugEnabled()) {
-                    debug("got: port " + port);
-                }
-                // TODO when/if DHT is supported
-            } else {
-                if (log.isDebugEnabled()) {
-                    debug("error: unknown message: 0x"
-                        + Integer.toHexString(id));
-                    byte[] tmp = new byte[dis.available()];
-                    dis.readFully(tmp);
-                    debug("next bytes: " + SHA1Util.convertToString(tmp));
-                }
-                // unknown message
-                close();
+            if (log.isDebugEnabled()) {
+                debug("error: unknown message: 0x" + Integer.toHexString(id));
+                byte[] tmp = new byte[dis.available()];
+                dis.readFully(tmp);
+                debug("next bytes: " + SHA1Util.convertToString(tmp));
+            }
+            // unknown message
+            close();
+        }
+    }
+
+    public void onError() {
+        if (log.isDebugEnabled()) {
+            debug("error: unknown or invalid message");
+        }
+        close();
+    }
+
+    public void onKeepAlive() {
+        if (log.isDebugEnabled()) {
+            debug("got: keep-alive");
+        }
+        updateRemoteTrafficTime();
+    }
+
+    public void onChoke() {
+        if (log.isDebugEnabled()) {
+            debug("got: choke");
+        }
+        isChoking = true;
+        updateRemoteTrafficTime();
+    }
+
+    public void onUnchoke() {
+        if (log.isDebugEnabled()) {
+            debug("got: unchoke");
+        }
+        isChoking = false;
+        updateRemoteTrafficTime();
+        wakeTorrent();
+    }
+
+    public void onInterested() {
+        if (log.isDebugEnabled()) {
+            debug("got: interested");
+        }
+        isInterested = true;
+        updateRemoteTrafficTime();
+        wakeTorrent();
+    }
+
+    // choked peer which unchoked us or got interested may be promoted
+    private void wakeTorrent() {
+        if (null == connectionThread && null != torrent) {
+            torrent.wakeup();
+        }
+    }
+
+    public void onNotInterested() {
+        if (log.isDebugEnabled()) {
+            debug("got: not interested");
+        }
+        isInterested = false;
+        updateRemoteTrafficTime();
+    }
+
+    public void onHave(int pieceIndex) {
+        updateRemoteTrafficTime();
+        if (log.isDebugEnabled()) {
+            debug("got: have " + pieceIndex);
+        }
+        if (pieceIndex < 0 || pieceIndex >= remoteHavePieces.getSize()) {
+            if (log.isDebugEnabled()) {
+                debug("error: wrong piece index");
+            }
+            close();
+            return;
+        }
+        remoteHavePieces.set(pieceIndex);
+        torrent.getPiecePicker().update(pieceIndex);
+    }
+
+    public void onBitfield(ByteBuffer bitfield) {
+        if (log.isDebugEnabled()) {
+            debug("got: bitfield");
+        }
+        updateRemoteTrafficTime();
+        bitfield.get(remoteHavePieces.getData());
+        torrent.getPiecePicker().update(remoteHavePieces);
+    }
+
+    public void onRequest(int pieceIndex, int offset, int size) {
+        updateRemoteTrafficTime();
+        // debug("got: request(" + pieceIndex + ", " + offset + ", "
+        // + size + ")");
+        if (amChoking) {
+            return;
+        }
+        if (!isValidBlock(pieceIndex, offset, size)) {
+            return;
+        }
+        if (!torrent.getHavePieces().get(pieceIndex)) {
+            // don't have that piece
+            if (log.isDebugEnabled()) {
+                debug("error: don't have requested piece");
+            }
+            close();
+        } else {
+            MetaInfo metaInfo = torrent.getMetaInfo();
+            boolean lastPiece = pieceIndex == (metaInfo.getNumPieces() - 1);
+            int pieceLength =
+                lastPiece ? metaInfo.getLastPieceLength() : metaInfo
+                    .getPieceLength();
+            int numBlocks = pieceLength / Piece.BLOCK_SIZE;
+            if (lastPiece && 0 != (pieceLength % Piece.BLOCK_SIZE)) {
+                ++numBlocks;
+            }
+            if (!uploadQueue.add(pieceIndex, offset / Piece.BLOCK_SIZE,
+                numBlocks)) {
+                rejectRequest(pieceIndex, offset, size);
             }
         }
     }
 
-    protected HashMap<Integer, BlockRequests> getRemoteQueue() {
-        return remoteQueue;
+    // refuses request over upload backlog
+    private void rejectRequest(int pieceIndex, int offset, int size) {
+        // without fast extension there is no reject message, request is
+        // dropped and remote has to ask again
+        if (log.isDebugEnabled()) {
+            debug("ignoring request(" + pieceIndex + ", " + offset + ", "
+                + size + ") because remote already sent "
+                + uploadQueue.getMaxBlocks());
+        }
+    }
+
+    public void onPiece(int pieceIndex, int offset, ByteBuffer block) {
+        updateRemoteTrafficTime();
+        int size = block.remaining();
+        if (!isValidBlock(pieceIndex, offset, size)) {
+            return;
+        }
+        try {
+            blockArrived(pieceIndex, offset, block);
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                debug("connection lost");
+            }
+            close();
+        }
+    }
+
+    public void onCancel(int pieceIndex, int offset, int size) {
+        updateRemoteTrafficTime();
+        if (log.isDebugEnabled()) {
+            debug("got: cancel(" + pieceIndex + ", " + offset + ", " + size
+                + ")");
+        }
+        uploadQueue.remove(pieceIndex, offset / Piece.BLOCK_SIZE);
+    }
+
+    public void onPort(short port) {
+        updateRemoteTrafficTime();
+        if (log.isDebugEnabled()) {
+            debug("got: port " + (port & 0xffff));
+        }
+        // TODO when/if DHT is supported
+    }
+
+    // checks piece index, offset and size of requested or received block,
+    // closes connection if they're wrong
+    private boolean isValidBlock(int pieceIndex, int offset, int size) {
+        int expectedBlockSize = Piece.BLOCK_SIZE;
+        if (pieceIndex == (torrent.getMetaInfo().getNumPieces() - 1)
+            && (offset + Piece.BLOCK_SIZE > torrent.getMetaInfo()
+                .getLastPieceLength())) {
+            expectedBlockSize =
+                torrent.getMetaInfo().getLastPieceLength() % Piece.BLOCK_SIZE;
+        }
+        if (pieceIndex < 0
+            || pieceIndex >= torrent.getMetaInfo().getNumPieces()) {
+            // wrong pieceIndex
+            if (log.isDebugEnabled()) {
+                debug("error: wrong piece index");
+            }
+        } else if (0 != (offset % Piece.BLOCK_SIZE)) {
+            // wrong offset
+            if (log.isDebugEnabled()) {
+                debug("error: wrong offset");
+            }
+        } else if (expectedBlockSize != size) {
+            // wrong size
+            if (log.isDebugEnabled()) {
+                debug("error: wrong size, got " + size + ", expected "
+                    + expectedBlockSize);
+            }
+        } else {
+            return true;
+        }
+        close();
+        return false;
+    }
+
+    // block is copied into piece before this returns
+    private void blockArrived(int pieceIndex, int offset, ByteBuffer block)
+        throws IOException {
+        speedMetricsDownloaded += block.remaining();
+        // block is already here, next read waits if this was over the limit
+        downloadBucket.take(block.remaining());
+        // sometimes block will arrive just after connection thread
+        // demoted connection to choked, ignore block in that case
+        if (null != connectionThread) {
+            // pass block data to connection thread
+            connectionThread.onBlockArrived(pieceIndex, offset, block);
+        }
+    }
+
+    /**
+     * Gets blocks requested by remote.
+     * 
+     * @return upload queue
+     */
+    protected UploadQueue getUploadQueue() {
+        return uploadQueue;
     }
 
     /**
@@ -833,8 +1137,7 @@ public class PeerConnection {
     private BitField commonExtensions; // common for local and remote
     private BitField remoteHavePieces;
     private BitField advertisedPieces;
-    private HashMap<Integer, BlockRequests> remoteQueue =
-        new HashMap<Integer, BlockRequests>();
+    private final UploadQueue uploadQueue = new UploadQueue(UPLOAD_BACKLOG);
     private ConnectionThread connectionThread;
 
     private boolean amChoking = true;
@@ -856,5 +1159,13 @@ public class PeerConnection {
 
     private boolean encrypted;
     private boolean fullyEncrypted;
+    private StreamCipher inputCipher;
+    private StreamCipher outputCipher;
+
+    private volatile PeerChannel peerChannel;
+    private final RequestPipeline requestPipeline = new RequestPipeline();
+    private volatile TokenBucket uploadBucket;
+    private volatile TokenBucket downloadBucket;
+    private OutboundQueue outbound;
 
 }
@@ -0,0 +1,100 @@
+package net.instantcom.keiko.bittorrent.protocol;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.instantcom.keiko.config.Configuration;
+
+/**
+ * Shared executor of torrent, connection and handshake threads. Depending on
+ * <tt>torrent.threads</tt> tasks run on pooled platform threads or on virtual
+ * threads. Virtual threads are looked up by reflection so Keiko still runs on
+ * older JVMs, which fall back to platform threads.
+ * <p>
+ * Code running here should wait with <code>LockSupport.park</code> or
+ * <code>java.util.concurrent</code> locks rather than monitors, a virtual
+ * thread blocked in a monitor holds on to its carrier thread.
+ */
+public final class PeerThreads {
+
+    private static final Log log = LogFactory.getLog(PeerThreads.class);
+
+    private static final ExecutorService executor;
+    private static final boolean virtual;
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    static {
+        ExecutorService virtualExecutor = null;
+        if ("virtual".equalsIgnoreCase(Configuration.getInstance().getString(
+            "torrent.threads", "platform"))) {
+            virtualExecutor = newExecutor(true);
+            if (null == virtualExecutor) {
+                log.warn("virtual threads not supported by this JVM, using"
+                    + " platform threads");
+            } else {
+                log.info("peer threads are virtual");
+            }
+        }
+        virtual = null != virtualExecutor;
+        executor = virtual ? virtualExecutor : newExecutor(false);
+    }
+
+    private PeerThreads() {
+    }
+
+    /**
+     * Runs task on a thread of its own.
+     *
+     * @param task
+     *            task
+     */
+    public static void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Creates new executor running every task on a thread of its own.
+     *
+     * @param virtual
+     *            true for virtual threads, false for pooled platform threads
+     * @return executor or null if virtual threads are not supported
+     */
+    public static ExecutorService newExecutor(boolean virtual) {
+        if (virtual) {
+            try {
+                Method method =
+                    Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t =
+                    new Thread(r, "PeerThread-" + nextId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+
+        });
+    }
+
+    /**
+     * Checks if tasks run on virtual threads.
+     *
+     * @return true if virtual threads are used
+     */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+}
@@ -4,13 +4,18 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import net.instantcom.keiko.bittorrent.MetaInfo;
+import net.instantcom.keiko.bittorrent.cache.HeapPieceData;
+import net.instantcom.keiko.bittorrent.cache.PieceData;
 import net.instantcom.keiko.diskmanager.DiskManager;
 import net.instantcom.util.BitField;
 import net.instantcom.util.SHA1Util;
@@ -25,14 +30,29 @@ public class Piece implements Serializable {
     public static final int BLOCK_SIZE = 16384;
 
     public Piece(Torrent torrent, int index, boolean allocateData) {
+        this(torrent, index, allocateData ? new HeapPieceData(getSize(torrent,
+            index)) : null);
+    }
+
+    /**
+     * Creates new piece which uses specified storage for its data.
+     * 
+     * @param torrent
+     *            Torrent whom Piece belongs to
+     * @param index
+     *            index of Piece
+     * @param data
+     *            storage for data, must be exactly the size of Piece
+     */
+    public Piece(Torrent torrent, int index, PieceData data) {
         this.torrent = torrent;
         this.index = index;
-        MetaInfo metaInfo = torrent.getMetaInfo();
-        size =
-            (index < metaInfo.getNumPieces() - 1) ? metaInfo.getPieceLength()
-                : metaInfo.getLastPieceLength();
-        if (allocateData) {
-            data = new byte[size];
+        size = getSize(torrent, index);
+        if (null != data) {
+            if (data.getSize() != size) {
+                throw new IllegalArgumentException("size mismatch");
+            }
+            this.data = data;
             int numBlocks = size / BLOCK_SIZE;
             if (0 != (size % BLOCK_SIZE)) {
                 ++numBlocks;
@@ -41,6 +61,23 @@ public class Piece implements Serializable {
         }
         key = torrent.getMetaInfo().getInfoHashAsString() + index;
         saved = false;
+        refCount = 1;
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * Gets size of specified piece.
+     * 
+     * @param torrent
+     *            torrent
+     * @param index
+     *            piece index
+     * @return size of piece in bytes
+     */
+    public static int getSize(Torrent torrent, int index) {
+        MetaInfo metaInfo = torrent.getMetaInfo();
+        return (index < metaInfo.getNumPieces() - 1) ? metaInfo
+            .getPieceLength() : metaInfo.getLastPieceLength();
     }
 
     /**
@@ -80,10 +117,29 @@ public class Piece implements Serializable {
         return blockAvailability.get(index);
     }
 
-    public byte[] getData() {
+    public PieceData getPieceData() {
         return data;
     }
 
+    /**
+     * Replaces storage of this Piece. Current data is copied to new storage
+     * and old storage is freed.
+     * 
+     * @param data
+     *            new storage
+     */
+    public synchronized void setPieceData(PieceData data) {
+        if (data.getSize() != size) {
+            throw new IllegalArgumentException("size mismatch");
+        }
+        PieceData old = this.data;
+        if (null != old) {
+            data.write(0, old.toByteArray(), 0, size);
+            old.free();
+        }
+        this.data = data;
+    }
+
     /**
      * Checks if data is valid and attempts to set it for this Piece.
      * 
@@ -99,7 +155,7 @@ public class Piece implements Serializable {
         boolean result = true;
         try {
             if (Arrays.equals(sha1, SHA1Util.getSHA1(data))) {
-                this.data = data;
+                this.data.write(0, data, 0, size);
                 if (log.isDebugEnabled()) {
                     log.debug("piece " + index + " successfully downloaded");
                 }
@@ -111,17 +167,36 @@ public class Piece implements Serializable {
             }
         } catch (NoSuchAlgorithmException e) {
             // assume data is valid as we don't have any means to check it
-            this.data = data;
+            this.data.write(0, data, 0, size);
         }
         saved = false;
         return result;
     }
 
+    /**
+     * Checks current data against SHA1 of this Piece.
+     * 
+     * @return true if data is valid, false if data failed hash check
+     */
+    public boolean verify() {
+        boolean result = true;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            data.updateDigest(digest);
+            result = Arrays.equals(sha1, digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // assume data is valid as we don't have any means to check it
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("piece " + index
+                + (result ? " successfully downloaded" : " failed hash check"));
+        }
+        return result;
+    }
+
     public void clearData() {
         blockAvailability.clearAll();
-        for (int i = 0; i < data.length; i++) {
-            data[i] = 0;
-        }
+        data.clear();
         saved = false;
     }
 
@@ -131,16 +206,16 @@ public class Piece implements Serializable {
         // "block offset not aligned to 16k");
         // }
         // log.debug("readBlock: " + offset + ", " + block.length);
-        System.arraycopy(data, offset, block, 0, block.length);
+        data.read(offset, block, 0, block.length);
     }
 
-    public void writeBlock(int offset, byte[] block) {
+    public void writeBlock(int offset, ByteBuffer block) {
         // if (0 != (offset % BLOCK_SIZE)) {
         // throw new IllegalArgumentException(
         // "block offset not aligned to 16k");
         // }
-        // log.debug("writeBlock: " + offset + ", " + block.length);
-        System.arraycopy(block, 0, data, offset, block.length);
+        // log.debug("writeBlock: " + offset + ", " + block.remaining());
+        data.write(offset, block);
         blockAvailability.set(offset / BLOCK_SIZE);
         saved = false;
     }
@@ -157,10 +232,17 @@ public class Piece implements Serializable {
         return saved;
     }
 
+    public void setSaved(boolean saved) {
+        this.saved = saved;
+    }
+
+    /**
+     * Queues complete Piece for saving. Piece becomes saved once its data is
+     * durable on disk.
+     */
     public void save() {
         if (!saved && isComplete()) {
             DiskManager.getInstance().save(this);
-            saved = true;
         }
     }
 
@@ -176,11 +258,76 @@ public class Piece implements Serializable {
         this.torrent = torrent;
     }
 
+    /**
+     * Locks this Piece while blocks are written to it. Unlike a monitor this
+     * lock doesn't pin virtual threads.
+     */
+    public void lock() {
+        lock.lock();
+    }
+
+    /**
+     * Unlocks this Piece.
+     */
+    public void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Adds a reference to this Piece. Every reference must be released with
+     * <code>release()</code> once holder is done with Piece.
+     * 
+     * @return this Piece
+     */
+    public synchronized Piece retain() {
+        ++refCount;
+        return this;
+    }
+
+    /**
+     * Adds a reference to this Piece unless its storage was already freed.
+     *
+     * @return true if reference was added, false if Piece is no longer usable
+     */
+    public synchronized boolean tryRetain() {
+        if (refCount <= 0) {
+            return false;
+        }
+        ++refCount;
+        return true;
+    }
+
+    /**
+     * Checks if this Piece has more than one reference, such as when it's
+     * both cached and being downloaded.
+     *
+     * @return true if shared
+     */
+    public synchronized boolean isShared() {
+        return refCount > 1;
+    }
+
+    /**
+     * Releases a reference to this Piece. Storage is freed when last
+     * reference is released so off-heap slots can be reused.
+     */
+    public void release() {
+        PieceData toFree = null;
+        synchronized (this) {
+            if (--refCount == 0) {
+                toFree = data;
+            }
+        }
+        if (null != toFree) {
+            toFree.free();
+        }
+    }
+
     private void writeObject(ObjectOutputStream out) throws IOException {
         out.writeInt(index);
         out.writeInt(size);
         out.writeObject(sha1);
-        out.writeObject(data);
+        out.writeObject(data.toByteArray());
         out.writeObject(blockAvailability);
         out.writeUTF(key);
         saved = true;
@@ -191,10 +338,12 @@ public class Piece implements Serializable {
         index = in.readInt();
         size = in.readInt();
         sha1 = (byte[]) in.readObject();
-        data = (byte[]) in.readObject();
+        data = new HeapPieceData((byte[]) in.readObject());
         blockAvailability = (BitField) in.readObject();
         key = in.readUTF();
         saved = true;
+        refCount = 1;
+        lock = new ReentrantLock();
     }
 
     public int getApproximateSizeOf() {
@@ -211,12 +360,14 @@ public class Piece implements Serializable {
     }
 
     private Torrent torrent; // not serialized
-    private boolean saved; // not serialized
+    private volatile boolean saved; // not serialized
+    private int refCount; // not serialized
+    private transient ReentrantLock lock; // not serialized
 
     private int index;
     private int size;
     private byte[] sha1;
-    private byte[] data;
+    private PieceData data;
     private BitField blockAvailability;
     private String key;
 
@@ -3,17 +3,73 @@ package net.instantcom.keiko.bittorrent.protocol;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import net.instantcom.keiko.config.Configuration;
+import net.instantcom.keiko.diskmanager.DiskManager;
 import net.instantcom.util.BitField;
 
+/**
+ * Picks pieces to download and hands out their blocks. Blocks of a started
+ * piece are assigned to connections one by one so several peers can fill the
+ * same piece, started pieces are finished before new ones are started. Block
+ * which isn't delivered in time is given to a faster peer, blocks assigned to
+ * snubbed peers are given to any peer which isn't snubbed.
+ * <p>
+ * Started piece is held (retained) by picker while any connection downloads
+ * it, so cache can't evict it from under them and hand an empty copy to the
+ * next peer which joins it.
+ */
 public class PiecePicker {
 
     private static final Log log = LogFactory.getLog(PiecePicker.class);
 
+    // block requested this long ago (ms) can be given to a faster peer, time
+    // is longer for peers with longer round trip
+    private static final long REQUEST_TIMEOUT =
+        1000L * Configuration.getInstance().getInt("torrent.request.timeout",
+            10);
+
+    // blocks of a started piece and connections they are assigned to
+    private static final class PieceRequests {
+
+        private PieceRequests(int numBlocks) {
+            owners = new PeerConnection[numBlocks];
+            assignTimes = new long[numBlocks];
+            received = new BitField(numBlocks);
+        }
+
+        // forgets blocks, they're learned again from piece when it's joined
+        private void reset() {
+            for (int i = 0; i < owners.length; i++) {
+                owners[i] = null;
+                received.clear(i);
+            }
+        }
+
+        // drops picker's reference to piece
+        private void unpin() {
+            if (null != piece) {
+                piece.release();
+                piece = null;
+            }
+            holders = 0;
+        }
+
+        private final PeerConnection[] owners;
+        // when blocks were assigned (System.currentTimeMillis())
+        private final long[] assignTimes;
+        private final BitField received;
+        // piece shared by connections downloading it, retained by picker
+        private Piece piece;
+        // number of connections which joined piece and didn't leave it yet
+        private int holders;
+
+    }
+
     public PiecePicker(Torrent torrent) {
         this.torrent = torrent;
         numPieces = torrent.getMetaInfo().getNumPieces();
         availability = new int[numPieces];
-        reservations = new PeerConnection[numPieces];
+        requests = new PieceRequests[numPieces];
     }
 
     /**
@@ -46,10 +102,12 @@ public class PiecePicker {
     }
 
     /**
-     * Suggests a piece for download alternating between "rarest first" and
-     * "random" piece downloading strategies. Suggested piece is reserved by
-     * specified PeerConnection and won't be suggested again until reservation
-     * is cancelled.
+     * Suggests a piece for download. Started pieces which have blocks that
+     * can be assigned to specified PeerConnection come first, otherwise a new
+     * piece is started alternating between "rarest first" and "random" piece
+     * downloading strategies. Snubbed peers start random pieces only. Blocks
+     * of suggested piece need to be assigned with <code>assignBlock()</code>
+     * before they're requested.
      * <p>
      * <i>Clients may choose to download pieces in random order. A better
      * strategy is to download pieces in rarest first order. The client can
@@ -66,14 +124,6 @@ public class PiecePicker {
      * @return piece index or -1 if there was no suitable piece
      */
     public synchronized int pickPiece(PeerConnection pc) {
-        int pieceIndex;
-        ++counter;
-        counter &= 7;
-        if (counter < 3) {
-            pieceIndex = getRarestPiece(pc);
-        } else {
-            pieceIndex = getRandomPiece(pc);
-        }
         if (!endGame) {
             endGame =
                 torrent.getHavePieces().getNumOnes() == torrent.getMetaInfo()
@@ -84,40 +134,341 @@ public class PiecePicker {
                 }
             }
         }
-        // don't reserve pieces in end game, all connection threads should
-        // download it and they'll cancel requests when piece completes
-        if (pieceIndex >= 0 && !endGame) {
-            reservations[pieceIndex] = pc;
+        int pieceIndex = getStartedPiece(pc);
+        if (pieceIndex >= 0) {
+            return pieceIndex;
+        }
+        if (DiskManager.getInstance().isWriteBacklogged(torrent)) {
+            // don't start new pieces until disk catches up
+            return -1;
+        }
+        ++counter;
+        counter &= 7;
+        if (counter < 3 && !isSnubbed(pc)) {
+            pieceIndex = getRarestPiece(pc);
+        } else {
+            pieceIndex = getRandomPiece(pc);
+        }
+        if (pieceIndex >= 0) {
+            requests[pieceIndex] =
+                new PieceRequests(getNumBlocks(pieceIndex));
             if (log.isDebugEnabled()) {
-                debug(pc.getPrefix() + "reserved piece " + pieceIndex);
+                debug(pc.getPrefix() + "started piece " + pieceIndex);
             }
         }
         return pieceIndex;
     }
 
     /**
-     * Cancels all piece reservations for specified PeerConnection. This method
+     * Joins started piece which other connection is already downloading.
+     * Connection which joins piece must leave it with <code>leavePiece()</code>
+     * once done with it.
+     *
+     * @param pieceIndex
+     *            piece index
+     * @return retained piece or null if nobody is downloading it, then it's
+     *         started with <code>joinPiece(int, Piece)</code>
+     */
+    public synchronized Piece joinPiece(int pieceIndex) {
+        PieceRequests pr = requests[pieceIndex];
+        if (null == pr || null == pr.piece) {
+            return null;
+        }
+        ++pr.holders;
+        // picker's reference keeps it alive
+        return pr.piece.retain();
+    }
+
+    /**
+     * Joins started piece with a piece got from cache. Picker holds the piece
+     * until every connection leaves it. If other connection joined the piece
+     * in the meantime, its piece is used and specified one is released.
+     * Tells picker which blocks of piece are already downloaded.
+     *
+     * @param pieceIndex
+     *            piece index
+     * @param piece
+     *            retained piece
+     * @return retained piece to download
+     */
+    public synchronized Piece joinPiece(int pieceIndex, Piece piece) {
+        PieceRequests pr = requests[pieceIndex];
+        if (null == pr) {
+            pr = new PieceRequests(getNumBlocks(pieceIndex));
+            requests[pieceIndex] = pr;
+        }
+        if (null == pr.piece) {
+            pr.piece = piece.retain();
+        } else if (pr.piece != piece) {
+            piece.release();
+            piece = pr.piece.retain();
+        }
+        ++pr.holders;
+        setReceivedBlocks(pieceIndex, piece.getBlockAvailability());
+        return piece;
+    }
+
+    /**
+     * Leaves started piece and cancels block assignments of specified
+     * PeerConnection in it. Piece is let go when last connection leaves it.
+     *
+     * @param pc
+     *            PeerConnection which is done with piece
+     * @param pieceIndex
+     *            piece index
+     */
+    public synchronized void leavePiece(PeerConnection pc, int pieceIndex) {
+        cancelAssignments(pc, pieceIndex);
+        PieceRequests pr = requests[pieceIndex];
+        if (null != pr && null != pr.piece && --pr.holders <= 0) {
+            // cache may evict it now, next one to join learns blocks from
+            // whatever piece it gets
+            pr.unpin();
+            pr.reset();
+        }
+    }
+
+    /**
+     * Tells which blocks of started piece are already downloaded, such as
+     * blocks of a piece which was partially downloaded before restart.
+     * 
+     * @param pieceIndex
+     *            piece index
+     * @param blockAvailability
+     *            downloaded blocks of piece
+     */
+    public synchronized void setReceivedBlocks(int pieceIndex,
+        BitField blockAvailability) {
+        PieceRequests pr = requests[pieceIndex];
+        if (null != pr) {
+            for (int i = 0; i < blockAvailability.getSize(); i++) {
+                if (blockAvailability.get(i)) {
+                    pr.received.set(i);
+                    pr.owners[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Assigns a block to specified PeerConnection which should request it
+     * only if this method returns true. Block which is assigned to other
+     * connection is reassigned only if it wasn't delivered in time and
+     * specified connection is faster, or if block is assigned to snubbed
+     * peer. In end game blocks can be requested from several peers at once.
+     * 
+     * @param pc
+     *            PeerConnection which would request block
+     * @param pieceIndex
+     *            piece index
+     * @param blockIndex
+     *            block index
+     * @return true if block should be requested
+     */
+    public synchronized boolean assignBlock(PeerConnection pc, int pieceIndex,
+        int blockIndex) {
+        if (torrent.getHavePieces().get(pieceIndex)) {
+            return false;
+        }
+        PieceRequests pr = requests[pieceIndex];
+        if (null == pr) {
+            // failed hash check, start over
+            pr = new PieceRequests(getNumBlocks(pieceIndex));
+            requests[pieceIndex] = pr;
+        }
+        if (pr.received.get(blockIndex)) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        PeerConnection owner = pr.owners[blockIndex];
+        if (null != owner && pc != owner) {
+            if (!canReassign(pc, owner, pr.assignTimes[blockIndex], now)) {
+                // end game requests remaining blocks from everyone, they're
+                // cancelled when first one arrives
+                return endGame;
+            }
+            if (log.isDebugEnabled()) {
+                debug(pc.getPrefix() + "took block " + blockIndex
+                    + " of piece " + pieceIndex + " from "
+                    + owner.getPrefix().trim());
+            }
+        }
+        pr.owners[blockIndex] = pc;
+        pr.assignTimes[blockIndex] = now;
+        return true;
+    }
+
+    /**
+     * Marks block as downloaded so it's not assigned again.
+     * 
+     * @param pieceIndex
+     *            piece index
+     * @param blockIndex
+     *            block index
+     */
+    public synchronized void blockReceived(int pieceIndex, int blockIndex) {
+        PieceRequests pr = requests[pieceIndex];
+        if (null != pr) {
+            pr.received.set(blockIndex);
+            pr.owners[blockIndex] = null;
+        }
+    }
+
+    /**
+     * Forgets which blocks of piece were downloaded and assigned after piece
+     * failed hash check and its data was cleared.
+     * 
+     * @param pieceIndex
+     *            piece index
+     */
+    public synchronized void pieceFailed(int pieceIndex) {
+        PieceRequests pr = requests[pieceIndex];
+        if (null != pr && null != pr.piece) {
+            // connections holding cleared piece download it again
+            pr.reset();
+        } else {
+            requests[pieceIndex] = null;
+        }
+    }
+
+    /**
+     * Cancels all block assignments for specified PeerConnection. This method
      * should be called when PeerConnection is moved from active to choked list
-     * or when connection is closed. Failing to cancel reservations results in
-     * reserved pieces not being able to download.
+     * or when connection is closed. Failing to cancel assignments results in
+     * assigned blocks not being able to download until they time out.
      * 
      * @param pc
-     *            PeerConnection whose reservations needs to be cancelled
+     *            PeerConnection whose assignments needs to be cancelled
      */
     public synchronized void cancelReservations(PeerConnection pc) {
         for (int i = 0; i < numPieces; i++) {
-            if (pc == reservations[i]) {
-                reservations[i] = null;
-                if (log.isDebugEnabled()) {
-                    debug(pc.getPrefix() + "cancelled reservation of piece "
-                        + i);
+            cancelAssignments(pc, i);
+        }
+    }
+
+    /**
+     * Cancels block assignments of specified piece for specified
+     * PeerConnection. This method should be called when PeerConnection is
+     * done with a piece while keeping its other pieces.
+     * 
+     * @param pc
+     *            PeerConnection whose assignments needs to be cancelled
+     * @param pieceIndex
+     *            piece index
+     */
+    public synchronized void cancelReservation(PeerConnection pc,
+        int pieceIndex) {
+        cancelAssignments(pc, pieceIndex);
+    }
+
+    /**
+     * Cancels assignment of a block if it's assigned to specified
+     * PeerConnection, such as when request for it is cancelled.
+     * 
+     * @param pc
+     *            PeerConnection whose assignment needs to be cancelled
+     * @param pieceIndex
+     *            piece index
+     * @param blockIndex
+     *            block index
+     */
+    public synchronized void cancelReservation(PeerConnection pc,
+        int pieceIndex, int blockIndex) {
+        PieceRequests pr = requests[pieceIndex];
+        if (null != pr && pc == pr.owners[blockIndex]) {
+            pr.owners[blockIndex] = null;
+        }
+    }
+
+    private void cancelAssignments(PeerConnection pc, int pieceIndex) {
+        PieceRequests pr = requests[pieceIndex];
+        if (null == pr) {
+            return;
+        }
+        boolean cancelled = false;
+        for (int i = 0; i < pr.owners.length; i++) {
+            if (pc == pr.owners[i]) {
+                pr.owners[i] = null;
+                cancelled = true;
+            }
+        }
+        if (cancelled && log.isDebugEnabled()) {
+            debug(pc.getPrefix() + "cancelled assignments in piece "
+                + pieceIndex);
+        }
+    }
+
+    // returns index of started piece which remote has and which has blocks
+    // that can be assigned to it, finishing started pieces first keeps
+    // number of partially downloaded pieces low
+    private int getStartedPiece(PeerConnection pc) {
+        BitField have = torrent.getHavePieces();
+        BitField remoteHas = pc.getRemoteHavePieces();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < numPieces; i++) {
+            PieceRequests pr = requests[i];
+            if (null == pr) {
+                continue;
+            }
+            if (have.get(i)) {
+                // done with it
+                pr.unpin();
+                requests[i] = null;
+                continue;
+            }
+            if (remoteHas.get(i) && hasFreeBlock(pc, pr, now)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean hasFreeBlock(PeerConnection pc, PieceRequests pr,
+        long now) {
+        for (int i = 0; i < pr.owners.length; i++) {
+            if (pr.received.get(i)) {
+                continue;
+            }
+            PeerConnection owner = pr.owners[i];
+            if (null == owner || endGame
+                || canReassign(pc, owner, pr.assignTimes[i], now)) {
+                if (pc != owner) {
+                    return true;
                 }
             }
         }
+        return false;
+    }
+
+    // checks if block assigned to owner should be given to pc instead
+    private boolean canReassign(PeerConnection pc, PeerConnection owner,
+        long assignTime, long now) {
+        if (pc == owner) {
+            return false;
+        }
+        if (isSnubbed(owner)) {
+            return !isSnubbed(pc);
+        }
+        long timeout =
+            Math.max(REQUEST_TIMEOUT, 4L * owner.getRequestPipeline().getRtt());
+        // download rate resets when read so compare smoothed throughput
+        return now - assignTime > timeout
+            && pc.getRequestPipeline().getThroughput() > owner
+                .getRequestPipeline().getThroughput();
+    }
+
+    private boolean isSnubbed(PeerConnection pc) {
+        ConnectionThread ct = pc.getConnectionThread();
+        return null != ct && ct.isSnubbed();
+    }
+
+    private int getNumBlocks(int pieceIndex) {
+        int size = Piece.getSize(torrent, pieceIndex);
+        return (size + Piece.BLOCK_SIZE - 1) / Piece.BLOCK_SIZE;
     }
 
     // returns index of one of the rarest pieces in swarm which haven't been
-    // downloaded yet and have no reservation
+    // downloaded or started yet
     private int getRarestPiece(PeerConnection pc) {
         final int tolerance = Math.abs((int) System.currentTimeMillis()) % 5;
         BitField have = torrent.getHavePieces();
@@ -125,7 +476,7 @@ public class PiecePicker {
         int bestValue = Integer.MAX_VALUE;
         int bestIndex = -1;
         for (int i = 0; i < numPieces; i++) {
-            if (!have.get(i) && remoteHas.get(i) && null == reservations[i]
+            if (!have.get(i) && remoteHas.get(i) && null == requests[i]
                 && availability[i] < bestValue) {
                 bestValue = availability[i] + tolerance;
                 bestIndex = i;
@@ -137,8 +488,8 @@ public class PiecePicker {
         return bestIndex;
     }
 
-    // returns index of random piece which haven't been downloaded yet and has
-    // no reservation
+    // returns index of random piece which haven't been downloaded or started
+    // yet
     private int getRandomPiece(PeerConnection pc) {
         BitField have = torrent.getHavePieces();
         BitField remoteHas = pc.getRemoteHavePieces();
@@ -146,7 +497,7 @@ public class PiecePicker {
         int index = Math.abs((int) System.currentTimeMillis()) % numPieces;
         for (int i = 0; i < numPieces; i++) {
             if (!have.get(index) && remoteHas.get(index)
-                && null == reservations[index]) {
+                && null == requests[index]) {
                 bestIndex = index;
                 break;
             }
@@ -166,7 +517,7 @@ public class PiecePicker {
     private Torrent torrent;
     private int numPieces;
     private int[] availability;
-    private PeerConnection[] reservations;
+    private PieceRequests[] requests;
     private int counter = 0;
     private boolean endGame;
 
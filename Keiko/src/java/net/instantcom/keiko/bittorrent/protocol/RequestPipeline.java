@@ -0,0 +1,158 @@
+package net.instantcom.keiko.bittorrent.protocol;
+
+/**
+ * Decides how many block requests are kept outstanding on a connection. It
+ * measures time from request to block and smooths throughput of arriving
+ * blocks, queue depth is then bandwidth-delay product in blocks with some
+ * headroom, so pipe stays full without queueing much more at remote than it
+ * can send in one round trip. Headroom also lets depth grow while the pipe
+ * and not the remote is what limits throughput.
+ * <p>
+ * Round trip is the shortest time seen, longer times are blocks waiting
+ * behind others at remote. Requests queued at remote would hide a change of
+ * round trip so every now and then depth is halved, which is below
+ * bandwidth-delay product, until the queue drains and round trip is measured
+ * again.
+ * <p>
+ * Until first blocks arrive minimum depth is used. Pipeline belongs to the
+ * connection so what was learned survives choking and unchoking.
+ * <p>
+ * This class is not thread safe, it's used by connection's ConnectionThread
+ * (or its event loop). Other threads may only read round trip and
+ * throughput, e.g. piece picker comparing peers.
+ */
+public class RequestPipeline {
+
+    public static final int MIN_DEPTH = 4;
+    public static final int MAX_DEPTH = 256;
+
+    // throughput is sampled at least this long (ns)
+    private static final long MIN_SAMPLE_TIME = 100000000L;
+
+    // round trip is measured again after this long (ns)
+    private static final long MIN_RTT_WINDOW = 10000000000L;
+
+    /**
+     * Tells pipeline that requests are sent while none was outstanding. Time
+     * without requests doesn't count against throughput.
+     *
+     * @param now
+     *            current time (<code>System.nanoTime()</code>)
+     */
+    public void onRequestsResumed(long now) {
+        if (0 != sampleStart && now > lastArrival) {
+            sampleStart += now - lastArrival;
+        }
+    }
+
+    /**
+     * Tells pipeline that a requested block arrived.
+     *
+     * @param size
+     *            size of block
+     * @param requestTime
+     *            when block was requested (<code>System.nanoTime()</code>)
+     * @param now
+     *            current time (<code>System.nanoTime()</code>)
+     */
+    public void onBlockArrived(int size, long requestTime, long now) {
+        long rtt = Math.max(1L, now - requestTime);
+        if (0 == smoothedRtt) {
+            smoothedRtt = rtt;
+        } else {
+            // same gain as tcp's srtt
+            smoothedRtt += (rtt - smoothedRtt) / 8;
+        }
+        lastArrival = now;
+        if (0 == minRtt || rtt <= minRtt) {
+            minRtt = rtt;
+            minRttTime = now;
+        }
+        if (probeBlocks > 0) {
+            // waiting for blocks requested before and during probe
+            probeMinRtt = Math.min(probeMinRtt, rtt);
+            if (0 == --probeBlocks) {
+                minRtt = probeMinRtt;
+                minRttTime = now;
+                // throughput of drained pipe doesn't count
+                sampleStart = now;
+                sampleBytes = 0;
+                updateDepth();
+            }
+            return;
+        }
+        if (now - minRttTime > MIN_RTT_WINDOW) {
+            int probeDepth = Math.max(MIN_DEPTH, depth / 2);
+            probeBlocks = depth + probeDepth;
+            probeMinRtt = rtt;
+            depth = probeDepth;
+            return;
+        }
+
+        if (0 == sampleStart) {
+            // block which starts first sample doesn't count, its time is
+            // unknown
+            sampleStart = now;
+            return;
+        }
+        sampleBytes += size;
+        long elapsed = now - sampleStart;
+        if (elapsed >= Math.max(MIN_SAMPLE_TIME, smoothedRtt)) {
+            long rate = (sampleBytes * 1000000000L) / elapsed;
+            if (0 == throughput) {
+                throughput = rate;
+            } else {
+                throughput += (rate - throughput) / 4;
+            }
+            sampleStart = now;
+            sampleBytes = 0;
+            updateDepth();
+        }
+    }
+
+    /**
+     * Gets number of requests which should be outstanding.
+     *
+     * @return queue depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Gets smoothed time from request to block.
+     *
+     * @return time in milliseconds
+     */
+    public long getRtt() {
+        return smoothedRtt / 1000000L;
+    }
+
+    /**
+     * Gets smoothed throughput of arriving blocks.
+     *
+     * @return bytes per second
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    private void updateDepth() {
+        long bdp =
+            (long) Math.ceil(throughput * (minRtt / 1e9) / Piece.BLOCK_SIZE);
+        long newDepth = bdp + Math.max(2L, bdp / 4);
+        depth = (int) Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, newDepth));
+    }
+
+    private int depth = MIN_DEPTH;
+    private volatile long smoothedRtt;
+    private long minRtt;
+    private long minRttTime;
+    private int probeBlocks;
+    private long probeMinRtt;
+    private volatile long throughput;
+    private long sampleStart;
+    private long sampleBytes;
+    private long lastArrival;
+
+}
@@ -4,19 +4,25 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.List;
 import java.util.Queue;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import net.instantcom.keiko.Server;
+import net.instantcom.keiko.bandwidth.BandwidthManager;
+import net.instantcom.keiko.bandwidth.TokenBucket;
 import net.instantcom.keiko.bittorrent.MetaInfo;
 import net.instantcom.keiko.bittorrent.protocol.encryption.EncryptedHandshake;
+import net.instantcom.keiko.bittorrent.protocol.nio.PeerEngine;
 import net.instantcom.keiko.bittorrent.tracker.TrackerUpdater;
 import net.instantcom.keiko.config.Configuration;
 import net.instantcom.keiko.ipfilter.IP;
@@ -25,109 +31,115 @@ import net.instantcom.keiko.peer.Peer;
 import net.instantcom.util.BitField;
 
 // FIXME writing to sockets can last up to several minutes! you should not use write to socket directly from this class, use queueing and let connectionthread/? do it
-public class Torrent implements Runnable, Serializable {
+public class Torrent implements Runnable, Serializable, Connector.Source {
 
     private static final long serialVersionUID = 20080121L;
     private static final Log log = LogFactory.getLog(Torrent.class);
     private static final int MAX_TRACKER_SUPPLIED_PEERS =
         Configuration.getInstance().getInt("torrent.max.tracker.peers", 100);
     private static final Object debugLock = new Object();
+    private static final AtomicInteger nextId = new AtomicInteger();
+    // info hash -> id, ids outlive torrent instances
+    private static final ConcurrentHashMap<String, Integer> ids =
+        new ConcurrentHashMap<String, Integer>();
 
-    private class OutboundConnection extends Thread {
+    private class OutboundConnection implements Connector.Request {
 
         private final Log log = LogFactory.getLog(OutboundConnection.class);
 
-        private OutboundConnection(Peer peer) {
+        private OutboundConnection(Peer peer, boolean encrypted) {
             this.peer = peer;
+            this.encrypted = encrypted;
         }
 
-        @Override
-        public void run() {
-            String outboundPEPolicy =
-                Configuration.getInstance().getString("torrent.pe.outbound",
-                    "enabled");
+        public InetSocketAddress getAddress() {
+            return new InetSocketAddress(peer.getHost(), peer.getPort());
+        }
+
+        public void connected(Socket socket) {
             boolean success = false;
-            Socket socket = null;
-            EncryptedHandshake encrypted = null;
             PeerConnection pc = null;
             try {
-                if (peer.isSupportingCrypto()
-                    && !"disabled".equalsIgnoreCase(outboundPEPolicy)) {
-                    // try encrypted first
-                    try {
-                        if (log.isDebugEnabled()) {
-                            debug("connecting (encrypted)");
-                        }
-                        socket = new Socket(peer.getHost(), peer.getPort());
-                        encrypted =
-                            new EncryptedHandshake(socket.getInputStream(),
-                                socket.getOutputStream());
-                        encrypted.doHandshake(Torrent.this.getMetaInfo()
-                            .getInfoHash());
-                        pc =
-                            new PeerConnection(socket, false, encrypted
-                                .getDataInputStream(), encrypted
-                                .getDataOutputStream());
-                        pc.setTorrent(Torrent.this);
-                        pc.setEncrypted(true);
-                        pc.setFullyEncrypted(encrypted.isFullyEncrypted());
-                        if (Torrent.this.equals(pc.doHandshake())) {
-                            addPeer(pc, true);
-                            success = true;
-                            if (log.isDebugEnabled()) {
-                                debug("connected (encrypted)");
-                            }
-                        }
-                    } catch (Exception e) {
-                        if (log.isDebugEnabled()) {
-                            debug("failed (encrypted): " + e.toString());
-                        }
-                        safeSocketClose(socket);
-                        socket = null;
+                // peer which stops responding mustn't hold up handshake
+                // forever
+                socket.setSoTimeout(Connector.TIMEOUT);
+                if (encrypted) {
+                    if (log.isDebugEnabled()) {
+                        debug("connected (encrypted)");
+                    }
+                    EncryptedHandshake handshake =
+                        new EncryptedHandshake(socket.getInputStream(),
+                            socket.getOutputStream());
+                    handshake.doHandshake(Torrent.this.getMetaInfo()
+                        .getInfoHash());
+                    pc =
+                        new PeerConnection(socket, false, handshake
+                            .getDataInputStream(), handshake
+                            .getDataOutputStream());
+                    pc.setTorrent(Torrent.this);
+                    pc.setEncrypted(true);
+                    pc.setFullyEncrypted(handshake.isFullyEncrypted());
+                    pc.setStreamCiphers(handshake.getInputCipher(), handshake
+                        .getOutputCipher());
+                } else {
+                    if (log.isDebugEnabled()) {
+                        debug("connected (plaintext)");
                     }
+                    pc = new PeerConnection(socket, false);
+                    pc.setTorrent(Torrent.this);
+                    pc.setEncrypted(false);
+                    pc.setFullyEncrypted(false);
                 }
-                if (!success) {
-                    if (!"forced".equalsIgnoreCase(outboundPEPolicy)) {
-                        try {
-                            // try unencrypted
-                            if (log.isDebugEnabled()) {
-                                debug("connecting (plaintext)");
-                            }
-                            socket = new Socket(peer.getHost(), peer.getPort());
-                            pc = new PeerConnection(socket, false);
-                            pc.setTorrent(Torrent.this);
-                            pc.setEncrypted(false);
-                            pc.setFullyEncrypted(false);
-                            if (Torrent.this.equals(pc.doHandshake())) {
-                                addPeer(pc, true);
-                                success = true;
-                                if (log.isDebugEnabled()) {
-                                    debug("connected (plaintext)");
-                                }
-                            }
-                        } catch (Exception e) {
-                            if (log.isDebugEnabled()) {
-                                debug("failed (plaintext): " + e.toString());
-                            }
-                            safeSocketClose(socket);
-                        }
+                if (Torrent.this.equals(pc.doHandshake())) {
+                    socket.setSoTimeout(0);
+                    addPeer(pc, true);
+                    success = true;
+                    if (log.isDebugEnabled()) {
+                        debug("handshake done");
                     }
                 }
+            } catch (Exception e) {
+                if (log.isDebugEnabled()) {
+                    debug("handshake failed ("
+                        + (encrypted ? "encrypted" : "plaintext") + "): "
+                        + e.toString());
+                }
             } finally {
-                if (!success) {
+                if (success) {
+                    connecting.decrementAndGet();
+                } else {
                     if (null != pc) {
                         pc.close();
-                    } else if (null != socket) {
+                    } else {
                         safeSocketClose(socket);
                     }
-                    peer.incConnectErrors();
-                    if (peer.getConnectErrors() < Peer.MAX_CONNECT_ERRORS) {
-                        trackerSuppliedPeers.offer(peer);
+                    if (encrypted
+                        && !"forced".equalsIgnoreCase(getOutboundPEPolicy())) {
+                        // try plaintext on a new connection
+                        encrypted = false;
+                        try {
+                            Connector.getInstance().retry(this);
+                        } catch (IOException e) {
+                            failed(e);
+                        }
+                    } else {
+                        failed(null);
                     }
                 }
             }
         }
 
+        public void failed(IOException e) {
+            if (null != e && log.isDebugEnabled()) {
+                debug("failed to connect: " + e.toString());
+            }
+            connecting.decrementAndGet();
+            peer.incConnectErrors();
+            if (peer.getConnectErrors() < Peer.MAX_CONNECT_ERRORS) {
+                trackerSuppliedPeers.offer(peer);
+            }
+        }
+
         private void safeSocketClose(Socket socket) {
             if (null != socket) {
                 try {
@@ -150,14 +162,20 @@ public class Torrent implements Runnable, Serializable {
         // log.debug(getPrefix() + s, e);
         // }
 
-        private Peer peer;
+        private final Peer peer;
+        private volatile boolean encrypted;
 
     }
 
     public Torrent(MetaInfo metaInfo) {
         this.metaInfo = metaInfo;
+        lastActivityTime = System.currentTimeMillis();
+        id = getId(metaInfo.getInfoHashAsString());
         piecePicker = new PiecePicker(this);
         havePieces = new BitField(metaInfo.getNumPieces());
+        uploadBucket = BandwidthManager.getInstance().newTorrentBucket(true);
+        downloadBucket =
+            BandwidthManager.getInstance().newTorrentBucket(false);
         if (Configuration.getInstance().getBoolean("torrent.use.trackers",
             false)) {
             trackerUpdater = new TrackerUpdater(this);
@@ -167,22 +185,21 @@ public class Torrent implements Runnable, Serializable {
     public void start() {
         if (!running) {
             running = true;
-            new Thread(this).start();
+            PeerThreads.execute(this);
         }
     }
 
     public void stop() {
         running = false;
+        wakeup();
     }
 
     @Override
     public void run() {
+        runner = Thread.currentThread();
         // allow server to start listening before torrent contacts trackers
         while (!Server.listening) {
-            try {
-                Thread.sleep(1000L);
-            } catch (InterruptedException ignored) {
-            }
+            nap(1000L);
         }
         if (null != trackerUpdater) {
             // notify trackers
@@ -193,11 +210,6 @@ public class Torrent implements Runnable, Serializable {
 
         boolean wasSeed = havePieces.allBitsSet();
 
-        // randomization on outbound connections otherwise all torrents would be
-        // doing it in the same time
-        lastTSPtoCPTime =
-            System.currentTimeMillis() + new Random().nextInt(10000);
-
         while (running) {
             try {
                 boolean idle = true;
@@ -218,6 +230,7 @@ public class Torrent implements Runnable, Serializable {
                     if (havePieces.allBitsSet()) {
                         // yay, we're seeder :)
                         amSeed = true;
+                        dirty = true;
                         info("finished downloading, seeding...");
                         // save state
                         Server.saveState();
@@ -522,86 +535,22 @@ public class Torrent implements Runnable, Serializable {
                     }
                 }
 
-                // TODO half-open limit
-                // try to promote one tracker supplied peer to new peer each 10
-                // seconds
-                now = System.currentTimeMillis();
-                if (now - lastTSPtoCPTime > 10000L) {
-                    lastTSPtoCPTime = now;
+                // hand tracker supplied peers over to connector which
+                // connects to them as fast as half-open limit and other
+                // torrents allow
+                if (amSeed) {
                     // don't connect to peers if seeding, let them connect to
                     // you
-                    if (amSeed) {
-                        // clear peer list
-                        trackerSuppliedPeers.clear();
-                    } else {
-                        final Peer peer = trackerSuppliedPeers.poll();
-                        if (null != peer) {
-                            // check if it's duplicate
-                            // TODO unfortunately, can't use
-                            // chokedPeers.contains()
-                            // as there is no way to create a socket with
-                            // inetaddress without connecting
-                            boolean unique = true;
-                            // check choked peers
-                            if (unique && !chokedPeers.isEmpty()) {
-                                for (PeerConnection pc : chokedPeers) {
-                                    if (peer.getHost().equals(
-                                        pc.getSocket().getInetAddress()
-                                            .getHostAddress())) {
-                                        unique = false;
-                                        break;
-                                    }
-                                }
-                            }
-                            // check active peers
-                            if (unique && !activePeers.isEmpty()) {
-                                for (ConnectionThread ct : activePeers) {
-                                    if (peer.getHost().equals(
-                                        ct.getConnection().getSocket()
-                                            .getInetAddress().getHostAddress())) {
-                                        unique = false;
-                                        break;
-                                    }
-                                }
-                            }
-                            if (unique) {
-                                // check if IP filter blocks it
-                                try {
-                                    if (IPFilter.getInstance().isBlocking(
-                                        new IP(peer.getHost()))) {
-                                        if (log.isDebugEnabled()) {
-                                            debug("ipfilter blocked "
-                                                + peer.getHost() + ":"
-                                                + peer.getPort());
-                                        }
-                                    } else {
-                                        OutboundConnection outgoing =
-                                            new OutboundConnection(peer);
-                                        outgoing.setDaemon(true);
-                                        outgoing.start();
-                                    }
-                                } catch (IllegalArgumentException e) {
-                                    if (log.isDebugEnabled()) {
-                                        debug(e.toString());
-                                    }
-                                }
-                            } else if (log.isDebugEnabled()) {
-                                debug("tracker supplied peer "
-                                    + peer.getHost()
-                                    + ":"
-                                    + peer.getPort()
-                                    + " already exists on choked list, ignoring");
-                            }
-                        }
-                    }
+                    trackerSuppliedPeers.clear();
+                } else if (!trackerSuppliedPeers.isEmpty()) {
+                    Connector.getInstance().request(this);
                 }
 
                 if (idle) {
-                    // take a nap, not much going on around here
-                    try {
-                        Thread.sleep(1000L);
-                    } catch (InterruptedException ignored) {
-                    }
+                    // take a nap, not much going on around here. choked
+                    // peers of peer engine don't need polling and wake us
+                    // up when they unchoke us or get interested
+                    nap(PeerEngine.isEnabled() ? 5000L : 1000L);
                 }
             } catch (Exception e) {
                 log.error("error", e);
@@ -618,10 +567,7 @@ public class Torrent implements Runnable, Serializable {
                 ct.stop();
             }
             // wait until they're stopped
-            try {
-                Thread.sleep(1000L);
-            } catch (InterruptedException ignored) {
-            }
+            nap(1000L);
         }
         // clear both lists (activePeers is already empty)
         chokedPeers.clear();
@@ -630,22 +576,142 @@ public class Torrent implements Runnable, Serializable {
             trackerUpdater.stopped();
         }
         info("torrent '" + metaInfo.getName() + "' stopped");
+        runner = null;
+    }
+
+    // parks instead of sleeping so virtual threads aren't held and wakeup()
+    // can cut the nap short
+    private void nap(long millis) {
+        LockSupport.parkNanos(this, millis * 1000000L);
+    }
+
+    /**
+     * Wakes up torrent's thread if it's taking a nap.
+     */
+    protected void wakeup() {
+        Thread t = runner;
+        if (null != t) {
+            LockSupport.unpark(t);
+        }
     }
 
     public MetaInfo getMetaInfo() {
         return metaInfo;
     }
 
+    /**
+     * Gets id of this torrent. Id is unique within running process only and
+     * it's used as compact replacement for info hash in caches. It's the same
+     * for every instance of torrent, such as after torrent was dormant, so
+     * cached pieces and pending writes are found again.
+     * 
+     * @return id
+     */
+    public int getId() {
+        return id;
+    }
+
+    // gets id of info hash, assigning next one if it has none
+    private static int getId(String infoHash) {
+        Integer id = ids.get(infoHash);
+        if (null == id) {
+            Integer newId = Integer.valueOf(nextId.incrementAndGet());
+            id = ids.putIfAbsent(infoHash, newId);
+            if (null == id) {
+                id = newId;
+            }
+        }
+        return id.intValue();
+    }
+
     public BitField getHavePieces() {
         return havePieces;
     }
 
+    /**
+     * Marks piece as completed.
+     * 
+     * @param index
+     *            piece index
+     */
+    public void setHavePiece(int index) {
+        havePieces.set(index);
+        dirty = true;
+    }
+
+    /**
+     * Restores saved state of this torrent.
+     * 
+     * @param havePieces
+     *            completed pieces
+     * @param amSeed
+     *            true if torrent is completed
+     * @param bytesDownloaded
+     *            bytes downloaded in previous sessions
+     * @param bytesUploaded
+     *            bytes uploaded in previous sessions
+     */
+    public void restoreState(BitField havePieces, boolean amSeed,
+        long bytesDownloaded, long bytesUploaded) {
+        this.havePieces = havePieces;
+        this.amSeed = amSeed;
+        bytesDownloadedBefore = bytesDownloaded;
+        bytesUploadedBefore = bytesUploaded;
+        dirty = false;
+    }
+
+    /**
+     * Marks state of this torrent as changed so it's saved next time state is
+     * saved.
+     */
+    public void setDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Checks if state changed since it was last saved and clears the flag.
+     * If saving fails caller should call <code>setDirty()</code>.
+     * 
+     * @return true if state should be saved
+     */
+    public boolean clearDirty() {
+        if (!dirty) {
+            return false;
+        }
+        dirty = false;
+        return true;
+    }
+
     public PiecePicker getPiecePicker() {
         return piecePicker;
     }
 
+    /**
+     * Gets bucket limiting upload of all peers of this torrent.
+     * 
+     * @return token bucket
+     */
+    public TokenBucket getUploadBucket() {
+        return uploadBucket;
+    }
+
+    /**
+     * Gets bucket limiting download of all peers of this torrent.
+     * 
+     * @return token bucket
+     */
+    public TokenBucket getDownloadBucket() {
+        return downloadBucket;
+    }
+
     public void addPeer(PeerConnection pc, boolean newClient)
         throws IOException {
+        if (!running) {
+            // went dormant while peer was connecting
+            pc.close();
+            return;
+        }
+        lastActivityTime = System.currentTimeMillis();
         if (null == pc.getTorrent()) {
             pc.setTorrent(this);
         } else if (!this.equals(pc.getTorrent())) {
@@ -661,6 +727,9 @@ public class Torrent implements Runnable, Serializable {
         if (chokedPeers.size() < Configuration.getInstance().getInt(
             "torrent.max.inactive.peers", 100)) {
             if (newClient) {
+                if (PeerEngine.isEnabled()) {
+                    pc.attachToEngine();
+                }
                 pc.bitfield();
                 success = chokedPeers.offer(pc);
             } else if (chokedPeers.offer(pc)) {
@@ -679,6 +748,10 @@ public class Torrent implements Runnable, Serializable {
 
     protected void removeActivePeer(ConnectionThread ct) {
         activePeers.remove(ct);
+        if (!running) {
+            // torrent is waiting for active peers to stop
+            wakeup();
+        }
         // don't call size() if not needed
         if (log.isDebugEnabled()) {
             debug("choked=" + chokedPeers.size() + " active="
@@ -715,15 +788,60 @@ public class Torrent implements Runnable, Serializable {
     // actually, without read/write it's impossible to detect if remote peer
     // disconnected
     private boolean isSocketConnected(Socket socket) {
-        return !(socket.isInputShutdown() || socket.isOutputShutdown());
+        return !(socket.isClosed() || socket.isInputShutdown() || socket
+            .isOutputShutdown());
     }
 
     protected synchronized void updateDownloadStats(int bytes) {
         bytesDownloadedThisSession += bytes;
+        dirty = true;
+        lastActivityTime = System.currentTimeMillis();
     }
 
     protected synchronized void updateUploadStats(int bytes) {
         bytesUploadedThisSession += bytes;
+        dirty = true;
+        lastActivityTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets time of last peer connection or transfer.
+     * 
+     * @return time in milliseconds
+     */
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    /**
+     * Checks if torrent has no peers and nothing happened for a while.
+     * 
+     * @param timeout
+     *            idle time in milliseconds
+     * @return true if torrent can be put to sleep
+     */
+    public boolean isIdle(long timeout) {
+        return chokedPeers.isEmpty() && activePeers.isEmpty()
+            && trackerSuppliedPeers.isEmpty() && 0 == connecting.get()
+            && System.currentTimeMillis() - lastActivityTime >= timeout;
+    }
+
+    /**
+     * Gets number of bytes downloaded in all sessions.
+     * 
+     * @return downloaded bytes
+     */
+    public synchronized long getBytesDownloaded() {
+        return bytesDownloadedBefore + bytesDownloadedThisSession;
+    }
+
+    /**
+     * Gets number of bytes uploaded in all sessions.
+     * 
+     * @return uploaded bytes
+     */
+    public synchronized long getBytesUploaded() {
+        return bytesUploadedBefore + bytesUploadedThisSession;
     }
 
     public long getBytesDownloadedThisSession() {
@@ -756,10 +874,92 @@ public class Torrent implements Runnable, Serializable {
         if (log.isDebugEnabled()) {
             debug("tracker supplied list of peers has " + size + " peers");
         }
+        if (running && size > 0) {
+            try {
+                Connector.getInstance().request(this);
+            } catch (IOException e) {
+                log.error("can't start connector", e);
+            }
+        }
         // debug("tracker supplied list of crypto_flags has " +
         // cryptoFlags.length + " flags");
     }
 
+    /**
+     * Gets next tracker supplied peer to connect to, skipping peers which are
+     * already connected or blocked. Torrent has as many connections opening
+     * as it still needs peers, so it ramps up quickly when it has few.
+     * 
+     * @return connection attempt or null if none is needed
+     */
+    public Connector.Request nextConnectRequest() {
+        if (!running || amSeed) {
+            return null;
+        }
+        String policy = getOutboundPEPolicy();
+        int maxPeers =
+            Configuration.getInstance().getInt("torrent.max.inactive.peers",
+                100);
+        while (connecting.get() + chokedPeers.size() < maxPeers) {
+            Peer peer = trackerSuppliedPeers.poll();
+            if (null == peer) {
+                return null;
+            }
+            if (isConnected(peer.getHost())) {
+                if (log.isDebugEnabled()) {
+                    debug("tracker supplied peer " + peer.getHost() + ":"
+                        + peer.getPort() + " is already connected, ignoring");
+                }
+                continue;
+            }
+            try {
+                if (IPFilter.getInstance().isBlocking(new IP(peer.getHost()))) {
+                    if (log.isDebugEnabled()) {
+                        debug("ipfilter blocked " + peer.getHost() + ":"
+                            + peer.getPort());
+                    }
+                    continue;
+                }
+            } catch (IllegalArgumentException e) {
+                if (log.isDebugEnabled()) {
+                    debug(e.toString());
+                }
+                continue;
+            }
+            boolean encrypted =
+                peer.isSupportingCrypto()
+                    && !"disabled".equalsIgnoreCase(policy);
+            if (!encrypted && "forced".equalsIgnoreCase(policy)) {
+                // peer can't do encryption and plaintext isn't allowed
+                continue;
+            }
+            connecting.incrementAndGet();
+            return new OutboundConnection(peer, encrypted);
+        }
+        return null;
+    }
+
+    // checks if choked or active peer has specified address
+    private boolean isConnected(String host) {
+        for (PeerConnection pc : chokedPeers) {
+            if (host.equals(pc.getSocket().getInetAddress().getHostAddress())) {
+                return true;
+            }
+        }
+        for (ConnectionThread ct : activePeers) {
+            if (host.equals(ct.getConnection().getSocket().getInetAddress()
+                .getHostAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getOutboundPEPolicy() {
+        return Configuration.getInstance().getString("torrent.pe.outbound",
+            "enabled");
+    }
+
     public boolean isCompleted() {
         return amSeed;
     }
@@ -911,15 +1111,18 @@ public class Torrent implements Runnable, Serializable {
             if (!activePeersEmpty) {
                 debug("--------------active-peers----------------");
                 for (ConnectionThread ct : activePeers) {
+                    RequestPipeline pipeline =
+                        ct.getConnection().getRequestPipeline();
                     debug(String
                         .format(
-                            "%24s  %7s  complete: %3d  down: %6d  up: %6d  running: %5b",
+                            "%24s  %7s  complete: %3d  down: %6d  up: %6d  running: %5b  queue: %3d  rtt: %5d",
                             ct.getConnection().getPrefix(), getFlags(ct),
                             (100 * ct.getConnection().getRemoteHavePieces()
                                 .getNumOnes())
                                 / metaInfo.getNumPieces(), ct.getConnection()
                                 .getDownloadRate(), ct.getConnection()
-                                .getUploadRate(), ct.isRunning()));
+                                .getUploadRate(), ct.isRunning(), pipeline
+                                .getDepth(), pipeline.getRtt()));
                 }
             }
             if (!chokedPeersEmpty) {
@@ -966,17 +1169,24 @@ public class Torrent implements Runnable, Serializable {
         metaInfo = (MetaInfo) in.readObject();
         havePieces = (BitField) in.readObject();
         amSeed = in.readBoolean();
+        id = getId(metaInfo.getInfoHashAsString());
         running = false;
         chokedPeers = new ConcurrentLinkedQueue<PeerConnection>();
         activePeers = new ConcurrentLinkedQueue<ConnectionThread>();
         piecePicker = new PiecePicker(this);
+        uploadBucket = BandwidthManager.getInstance().newTorrentBucket(true);
+        downloadBucket =
+            BandwidthManager.getInstance().newTorrentBucket(false);
         if (Configuration.getInstance().getBoolean("torrent.use.trackers",
             false)) {
             trackerUpdater = new TrackerUpdater(this);
         }
         bytesDownloadedThisSession = bytesUploadedThisSession = 0;
+        bytesDownloadedBefore = bytesUploadedBefore = 0;
+        dirty = true;
+        lastActivityTime = System.currentTimeMillis();
         trackerSuppliedPeers = new ConcurrentLinkedQueue<Peer>();
-        lastTSPtoCPTime = 0;
+        connecting = new AtomicInteger();
         lastSeedCheckTime = 0;
         potentialDownloader = potentialSeeder = null;
         optimisticallyUnchoked = null;
@@ -991,18 +1201,27 @@ public class Torrent implements Runnable, Serializable {
     private boolean amSeed = false;
 
     // not serialized objects
-    private boolean running;
+    private int id;
+    private volatile boolean running;
+    private volatile Thread runner;
     private Queue<PeerConnection> chokedPeers =
         new ConcurrentLinkedQueue<PeerConnection>();
     private Queue<ConnectionThread> activePeers =
         new ConcurrentLinkedQueue<ConnectionThread>();
     private PiecePicker piecePicker;
+    private TokenBucket uploadBucket;
+    private TokenBucket downloadBucket;
     private TrackerUpdater trackerUpdater;
     private long bytesDownloadedThisSession;
     private long bytesUploadedThisSession;
+    private long bytesDownloadedBefore;
+    private long bytesUploadedBefore;
+    private volatile boolean dirty = true;
+    private volatile long lastActivityTime;
     private Queue<Peer> trackerSuppliedPeers =
         new ConcurrentLinkedQueue<Peer>();
-    private long lastTSPtoCPTime; // tracker supplied peer -> choked peer
+    // outbound connections being opened or handshaking
+    private AtomicInteger connecting = new AtomicInteger();
     private long lastSeedCheckTime;
     private PeerConnection potentialDownloader;
     private PeerConnection potentialSeeder;
@@ -0,0 +1,126 @@
+package net.instantcom.keiko.bittorrent.protocol;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Blocks requested by remote peer, grouped by piece. Pieces are served in
+ * order in which remote first asked for them so all blocks of a piece can be
+ * sent with one cache lookup. Number of queued blocks is limited, requests
+ * over the limit are refused.
+ * <p>
+ * This class is not thread safe, it's used by connection's ConnectionThread
+ * (or its event loop) only.
+ */
+public class UploadQueue {
+
+    /**
+     * Creates new upload queue.
+     *
+     * @param maxBlocks
+     *            max number of queued blocks
+     */
+    public UploadQueue(int maxBlocks) {
+        this.maxBlocks = maxBlocks;
+    }
+
+    /**
+     * Queues request for a block.
+     *
+     * @param pieceIndex
+     *            piece index
+     * @param blockIndex
+     *            block index
+     * @param numBlocks
+     *            number of blocks in piece
+     * @return false if queue is full and request was refused
+     */
+    public boolean add(int pieceIndex, int blockIndex, int numBlocks) {
+        BlockRequests reqs = pieces.get(pieceIndex);
+        if (null != reqs && reqs.isBlockRequested(blockIndex)) {
+            // already queued
+            return true;
+        }
+        if (numBlocksRequested >= maxBlocks) {
+            return false;
+        }
+        if (null == reqs) {
+            reqs = new BlockRequests(pieceIndex, numBlocks);
+            pieces.put(pieceIndex, reqs);
+        }
+        reqs.requestBlock(blockIndex);
+        ++numBlocksRequested;
+        return true;
+    }
+
+    /**
+     * Removes request for a block, such as when remote cancels it or after
+     * block was sent.
+     *
+     * @param pieceIndex
+     *            piece index
+     * @param blockIndex
+     *            block index
+     */
+    public void remove(int pieceIndex, int blockIndex) {
+        BlockRequests reqs = pieces.get(pieceIndex);
+        if (null != reqs && reqs.isBlockRequested(blockIndex)) {
+            reqs.unrequestBlock(blockIndex);
+            --numBlocksRequested;
+            if (0 == reqs.getNumBlocksRequested()) {
+                pieces.remove(pieceIndex);
+            }
+        }
+    }
+
+    /**
+     * Gets requests for piece which was asked for first.
+     *
+     * @return block requests or null if queue is empty
+     */
+    public BlockRequests peek() {
+        Iterator<BlockRequests> it = pieces.values().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * Removes all requests.
+     */
+    public void clear() {
+        pieces.clear();
+        numBlocksRequested = 0;
+    }
+
+    /**
+     * Checks if there are no requests.
+     *
+     * @return true if queue is empty
+     */
+    public boolean isEmpty() {
+        return 0 == numBlocksRequested;
+    }
+
+    /**
+     * Gets number of queued blocks.
+     *
+     * @return number of blocks
+     */
+    public int getNumBlocksRequested() {
+        return numBlocksRequested;
+    }
+
+    /**
+     * Gets max number of queued blocks.
+     *
+     * @return max number of blocks
+     */
+    public int getMaxBlocks() {
+        return maxBlocks;
+    }
+
+    private final int maxBlocks;
+    private final LinkedHashMap<Integer, BlockRequests> pieces =
+        new LinkedHashMap<Integer, BlockRequests>();
+    private int numBlocksRequested;
+
+}
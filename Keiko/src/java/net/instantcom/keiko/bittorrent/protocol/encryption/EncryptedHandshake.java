@@ -8,25 +8,20 @@ import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
-import java.security.InvalidAlgorithmParameterException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Random;
 
 import javax.crypto.KeyAgreement;
 import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
 import javax.crypto.spec.DHPublicKeySpec;
 
 import org.bouncycastle.crypto.StreamCipher;
-import org.bouncycastle.crypto.engines.RC4Engine;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 import net.instantcom.keiko.Server;
@@ -71,10 +66,10 @@ public class EncryptedHandshake {
         // create encrypted input and output streams with uninitialized ciphers
         eis =
             new EncryptedInputStream(is instanceof BufferedInputStream ? is
-                : new BufferedInputStream(is), new RC4Engine());
+                : new BufferedInputStream(is), new RC4Cipher());
         eos =
             new EncryptedOutputStream(os instanceof BufferedOutputStream ? os
-                : new BufferedOutputStream(os), new RC4Engine());
+                : new BufferedOutputStream(os), new RC4Cipher());
         // en/decryption is disabled by default
         eis.setEnabled(false);
         eos.setEnabled(false);
@@ -100,6 +95,24 @@ public class EncryptedHandshake {
         return dos;
     }
 
+    /**
+     * Gets cipher decrypting data from remote.
+     * 
+     * @return input stream cipher
+     */
+    public StreamCipher getInputCipher() {
+        return eis.getStreamCipher();
+    }
+
+    /**
+     * Gets cipher encrypting data sent to remote.
+     * 
+     * @return output stream cipher
+     */
+    public StreamCipher getOutputCipher() {
+        return eos.getStreamCipher();
+    }
+
     /**
      * Attempts encrypted handshake.
      * 
@@ -116,8 +129,8 @@ public class EncryptedHandshake {
         try {
             final boolean incoming = null == infoHash;
 
-            // create my public key
-            DHPublicKey myPublicKey = startKeyExchange();
+            // my public key, incoming plaintext connections don't need one
+            DHPublicKey myPublicKey = incoming ? null : startKeyExchange();
 
             // create my random pad
             byte[] myPad = new byte[1 + random.nextInt(512)];
@@ -145,6 +158,7 @@ public class EncryptedHandshake {
                     }
                     dis.reset();
                 }
+                myPublicKey = startKeyExchange();
                 // 1 A->B: Diffie Hellman Ya, PadA
                 byte[] tmp = new byte[96]; // 768 bits
                 dis.readFully(tmp);
@@ -198,16 +212,7 @@ public class EncryptedHandshake {
                         }
                     }
                     // check if torrent is known
-                    HashMap<String, Torrent> torrents = Server.getTorrents();
-                    for (Torrent torrent : torrents.values()) {
-                        byte[] expected =
-                            SHA1Util.getSHA1("req2".getBytes(), torrent
-                                .getMetaInfo().getInfoHash());
-                        if (Arrays.equals(expected, req2Hash)) {
-                            foundTorrent = torrent;
-                            break;
-                        }
-                    }
+                    foundTorrent = Server.findTorrentByReq2Hash(req2Hash);
                     if (null == foundTorrent) {
                         throw new HandshakeException("no such torrent");
                     }
@@ -352,7 +357,7 @@ public class EncryptedHandshake {
                 // that
                 byte[] expectedVC = new byte[8];
                 {
-                    StreamCipher syncCipher = new RC4Engine();
+                    StreamCipher syncCipher = new RC4Cipher();
                     syncCipher.init(true,
                         keyParameterUsedToSetupOutputStreamCipher);
                     skip1024(syncCipher);
@@ -449,11 +454,9 @@ public class EncryptedHandshake {
         return new BigInteger(SHA1Util.convertToString(array), 16);
     }
 
-    private DHPublicKey startKeyExchange() throws NoSuchAlgorithmException,
-        InvalidAlgorithmParameterException, InvalidKeyException {
-        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("DH");
-        keyPairGenerator.initialize(new DHParameterSpec(P, G, 160));
-        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+    private DHPublicKey startKeyExchange() throws GeneralSecurityException {
+        // key pairs are generated in background
+        KeyPair keyPair = KeyPool.getInstance(P, G).take();
         keyAgreement = KeyAgreement.getInstance("DH");
         keyAgreement.init(keyPair.getPrivate());
         return (DHPublicKey) keyPair.getPublic();
@@ -55,14 +55,6 @@ public class EncryptedInputStream extends FilterInputStream {
      */
     public void setEnabled(boolean enabled) {
         this.enabled = enabled;
-        if (enabled) {
-            if (null == buffer) {
-                buffer = new byte[1024];
-            }
-        } else {
-            // free some heap
-            buffer = null;
-        }
     }
 
     /**
@@ -79,47 +71,36 @@ public class EncryptedInputStream extends FilterInputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
+        int x = 0;
         if (null != initialPayload) {
             if (0 == initialPayload.available()) {
                 // end of payload reached
                 initialPayload = null;
             } else {
-                int x =
+                x =
                     initialPayload.read(b, off, Math.min(len, initialPayload
                         .available()));
                 if (x > 0) {
                     off += x;
                     len -= x;
+                } else {
+                    x = 0;
                 }
-                if (len <= 0) {
+                if (len <= 0 || 0 == in.available()) {
+                    // don't block with payload already in b
                     return x;
                 }
             }
         }
-        if (enabled) {
-            int totalRead = 0;
-            while (len > buffer.length) {
-                int size = in.read(buffer, 0, buffer.length);
-                if (size < 0) {
-                    return size;
-                }
-                streamCipher.processBytes(buffer, 0, size, b, off);
-                off += size;
-                len -= size;
-                totalRead += size;
-            }
-            if (len > 0) {
-                int size = in.read(buffer, 0, len);
-                if (size < 0) {
-                    return size;
-                }
-                streamCipher.processBytes(buffer, 0, size, b, off);
-                totalRead += size;
-            }
-            return totalRead > 0 ? totalRead : -1;
-        } else {
-            return in.read(b, off, len);
+        int size = in.read(b, off, len);
+        if (enabled && size > 0) {
+            // decrypt in place, what was read is ours to overwrite
+            streamCipher.processBytes(b, off, size, b, off);
+        }
+        if (size < 0) {
+            return 0 == x ? size : x;
         }
+        return x + size;
     }
 
     @Override
@@ -160,7 +141,6 @@ public class EncryptedInputStream extends FilterInputStream {
 
     private StreamCipher streamCipher;
     private boolean enabled;
-    private byte[] buffer;
     private ByteArrayInputStream initialPayload;
 
 }
@@ -0,0 +1,111 @@
+package net.instantcom.keiko.bittorrent.protocol.encryption;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.crypto.spec.DHParameterSpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.instantcom.keiko.config.Configuration;
+
+/**
+ * Diffie-Hellman key pairs generated ahead of time by a background thread, so
+ * handshakes don't pay for key generation while a burst of peers connects.
+ * Every key pair is handed out once. When pool runs dry key pair is generated
+ * by the caller.
+ */
+public final class KeyPool implements Runnable {
+
+    private static final Log log = LogFactory.getLog(KeyPool.class);
+
+    private static KeyPool instance;
+
+    private KeyPool(BigInteger p, BigInteger g) {
+        spec = new DHParameterSpec(p, g, 160);
+        int size =
+            Configuration.getInstance().getInt("torrent.pe.keypool.size", 32);
+        pool = new ArrayBlockingQueue<KeyPair>(Math.max(1, size));
+        Thread thread = new Thread(this, "KeyPool");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Gets key pool, starting it on first call.
+     *
+     * @param p
+     *            prime
+     * @param g
+     *            generator
+     * @return instance
+     */
+    static synchronized KeyPool getInstance(BigInteger p, BigInteger g) {
+        if (null == instance) {
+            instance = new KeyPool(p, g);
+        }
+        return instance;
+    }
+
+    /**
+     * Takes a key pair from pool or generates one if pool is empty.
+     *
+     * @return key pair
+     * @throws GeneralSecurityException
+     *             if key pair can't be generated
+     */
+    KeyPair take() throws GeneralSecurityException {
+        KeyPair keyPair = pool.poll();
+        if (null == keyPair) {
+            ++misses;
+            keyPair = generate();
+        }
+        return keyPair;
+    }
+
+    /**
+     * Gets number of key pairs generated by callers because pool was empty.
+     *
+     * @return number of misses
+     */
+    public int getMisses() {
+        return misses;
+    }
+
+    public void run() {
+        KeyPairGenerator generator;
+        try {
+            generator = KeyPairGenerator.getInstance("DH");
+            generator.initialize(spec);
+        } catch (GeneralSecurityException e) {
+            log.error("can't generate keys, key pool is disabled", e);
+            return;
+        }
+        while (true) {
+            try {
+                // waits while pool is full
+                pool.put(generator.generateKeyPair());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private KeyPair generate() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("DH");
+        generator.initialize(spec);
+        return generator.generateKeyPair();
+    }
+
+    private final DHParameterSpec spec;
+    private final BlockingQueue<KeyPair> pool;
+    // not exact, statistics only
+    private volatile int misses;
+
+}
@@ -0,0 +1,173 @@
+package net.instantcom.keiko.bittorrent.protocol.encryption;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * RC4 stream cipher which, besides byte arrays, encrypts and decrypts byte
+ * buffers in place. Heap buffers are processed in their backing array, direct
+ * buffers eight bytes at a time without copying them to heap, so data read
+ * from or written to a channel never needs a second buffer.
+ * <p>
+ * Keystream is the same as BouncyCastle's <code>RC4Engine</code>, both ends
+ * of a connection may use either.
+ */
+public class RC4Cipher implements StreamCipher {
+
+    /**
+     * Encrypts or decrypts buffer in place, from position to limit. Position
+     * and limit are left as they are.
+     *
+     * @param cipher
+     *            cipher, RC4Cipher for direct buffers
+     * @param buffer
+     *            buffer
+     */
+    public static void process(StreamCipher cipher, ByteBuffer buffer) {
+        if (cipher instanceof RC4Cipher) {
+            ((RC4Cipher) cipher).process(buffer);
+        } else if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset() + buffer.position();
+            cipher.processBytes(array, offset, buffer.remaining(), array,
+                offset);
+        } else {
+            throw new IllegalArgumentException(cipher.getAlgorithmName()
+                + " can't process direct buffers");
+        }
+    }
+
+    public void init(boolean forEncryption, CipherParameters params) {
+        if (!(params instanceof KeyParameter)) {
+            throw new IllegalArgumentException("RC4 needs a key, got "
+                + (null == params ? null : params.getClass().getName()));
+        }
+        key = ((KeyParameter) params).getKey().clone();
+        setKey(key);
+    }
+
+    public String getAlgorithmName() {
+        return "RC4";
+    }
+
+    public byte returnByte(byte in) {
+        int[] s = state;
+        x = (x + 1) & 0xff;
+        int sx = s[x];
+        y = (y + sx) & 0xff;
+        int sy = s[y];
+        s[x] = sy;
+        s[y] = sx;
+        return (byte) (in ^ s[(sx + sy) & 0xff]);
+    }
+
+    public int processBytes(byte[] in, int inOff, int len, byte[] out,
+        int outOff) {
+        if (inOff + len > in.length) {
+            throw new DataLengthException("input buffer too short");
+        }
+        if (outOff + len > out.length) {
+            throw new DataLengthException("output buffer too short");
+        }
+        int[] s = state;
+        int x = this.x;
+        int y = this.y;
+        for (int i = 0; i < len; i++) {
+            x = (x + 1) & 0xff;
+            int sx = s[x];
+            y = (y + sx) & 0xff;
+            int sy = s[y];
+            s[x] = sy;
+            s[y] = sx;
+            out[outOff + i] = (byte) (in[inOff + i] ^ s[(sx + sy) & 0xff]);
+        }
+        this.x = x;
+        this.y = y;
+        return len;
+    }
+
+    /**
+     * Encrypts or decrypts buffer in place, from position to limit. Position
+     * and limit are left as they are.
+     *
+     * @param buffer
+     *            heap or direct buffer
+     */
+    public void process(ByteBuffer buffer) {
+        int position = buffer.position();
+        int len = buffer.limit() - position;
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset() + position;
+            processBytes(array, offset, len, array, offset);
+            return;
+        }
+        boolean bigEndian = ByteOrder.BIG_ENDIAN == buffer.order();
+        int[] s = state;
+        int x = this.x;
+        int y = this.y;
+        int i = position;
+        int end = position + (len & ~7);
+        while (i < end) {
+            // keystream of next eight bytes in buffer's byte order
+            long k = 0;
+            for (int j = 0; j < 8; j++) {
+                x = (x + 1) & 0xff;
+                int sx = s[x];
+                y = (y + sx) & 0xff;
+                int sy = s[y];
+                s[x] = sy;
+                s[y] = sx;
+                long b = s[(sx + sy) & 0xff];
+                k |= bigEndian ? b << (56 - 8 * j) : b << (8 * j);
+            }
+            buffer.putLong(i, buffer.getLong(i) ^ k);
+            i += 8;
+        }
+        end = position + len;
+        while (i < end) {
+            x = (x + 1) & 0xff;
+            int sx = s[x];
+            y = (y + sx) & 0xff;
+            int sy = s[y];
+            s[x] = sy;
+            s[y] = sx;
+            buffer.put(i, (byte) (buffer.get(i) ^ s[(sx + sy) & 0xff]));
+            ++i;
+        }
+        this.x = x;
+        this.y = y;
+    }
+
+    public void reset() {
+        setKey(key);
+    }
+
+    private void setKey(byte[] key) {
+        int[] s = new int[256];
+        for (int i = 0; i < 256; i++) {
+            s[i] = i;
+        }
+        int j = 0;
+        for (int i = 0; i < 256; i++) {
+            int si = s[i];
+            j = (j + (key[i % key.length] & 0xff) + si) & 0xff;
+            s[i] = s[j];
+            s[j] = si;
+        }
+        state = s;
+        x = 0;
+        y = 0;
+    }
+
+    private byte[] key;
+    private int[] state;
+    private int x;
+    private int y;
+
+}
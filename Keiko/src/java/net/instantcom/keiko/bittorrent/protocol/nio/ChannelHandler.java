@@ -0,0 +1,52 @@
+package net.instantcom.keiko.bittorrent.protocol.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handler of a channel registered with an event loop. All methods are called
+ * from event loop's thread. Channel is closed if any method throws an
+ * exception.
+ */
+public interface ChannelHandler {
+
+    /**
+     * Called when channel is registered with event loop.
+     *
+     * @param loop
+     *            event loop owning the channel
+     * @param key
+     *            selection key of the channel
+     */
+    public void onRegistered(EventLoop loop, SelectionKey key);
+
+    /**
+     * Called when channel has data to read.
+     *
+     * @throws IOException
+     *             if read fails
+     */
+    public void onReadable() throws IOException;
+
+    /**
+     * Called when channel can take more data after write interest was set.
+     *
+     * @throws IOException
+     *             if write fails
+     */
+    public void onWritable() throws IOException;
+
+    /**
+     * Called when timer set with <code>EventLoop.schedule()</code> expires.
+     *
+     * @throws IOException
+     *             if I/O fails
+     */
+    public void onTimer() throws IOException;
+
+    /**
+     * Called once after channel is closed and removed from event loop.
+     */
+    public void onClose();
+
+}
@@ -0,0 +1,341 @@
+package net.instantcom.keiko.bittorrent.protocol.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Single selector thread owning many channels. Channels are registered,
+ * closed and have their interest changed only by loop's own thread; calls
+ * from other threads are queued as tasks and the selector is woken up.
+ * <p>
+ * Every channel can have a timer. Loop sleeps in <code>select()</code> until
+ * something happens or the earliest timer is due, there is no polling.
+ */
+public final class EventLoop implements Runnable {
+
+    private static final Log log = LogFactory.getLog(EventLoop.class);
+
+    // timer of a channel, ordered by deadline
+    private static final class Timer implements Comparable<Timer> {
+
+        private Timer(SelectionKey key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+
+        public int compareTo(Timer other) {
+            return deadline < other.deadline ? -1
+                : (deadline == other.deadline ? 0 : 1);
+        }
+
+        private final SelectionKey key;
+        private final long deadline;
+
+    }
+
+    EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Checks if caller runs on this loop's thread.
+     *
+     * @return true if called from event loop
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs a task on loop's thread.
+     *
+     * @param task
+     *            task
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers non-blocking channel for reading.
+     *
+     * @param channel
+     *            channel
+     * @param handler
+     *            handler of channel's events
+     */
+    void register(final SocketChannel channel, final ChannelHandler handler) {
+        numChannels.incrementAndGet();
+        execute(new Runnable() {
+
+            public void run() {
+                SelectionKey key;
+                try {
+                    key = channel.register(selector, SelectionKey.OP_READ,
+                        handler);
+                } catch (IOException e) {
+                    numChannels.decrementAndGet();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                    handler.onClose();
+                    return;
+                }
+                handler.onRegistered(EventLoop.this, key);
+            }
+
+        });
+    }
+
+    /**
+     * Enables or disables notifications when channel becomes writable.
+     *
+     * @param key
+     *            selection key
+     * @param enabled
+     *            true to enable
+     */
+    public void setWriteInterest(SelectionKey key, boolean enabled) {
+        setInterest(key, SelectionKey.OP_WRITE, enabled);
+    }
+
+    /**
+     * Enables or disables notifications when channel becomes readable.
+     * Unread data stays in socket's buffer and remote slows down once it's
+     * full.
+     *
+     * @param key
+     *            selection key
+     * @param enabled
+     *            true to enable
+     */
+    public void setReadInterest(SelectionKey key, boolean enabled) {
+        setInterest(key, SelectionKey.OP_READ, enabled);
+    }
+
+    private void setInterest(final SelectionKey key, final int op,
+        final boolean enabled) {
+        if (!inEventLoop()) {
+            execute(new Runnable() {
+
+                public void run() {
+                    setInterest(key, op, enabled);
+                }
+
+            });
+            return;
+        }
+        if (!key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        if (enabled) {
+            ops |= op;
+        } else {
+            ops &= ~op;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Sets channel's timer, replacing the one already set (if any). Handler's
+     * <code>onTimer()</code> is called once when it expires.
+     *
+     * @param key
+     *            selection key
+     * @param delay
+     *            delay in milliseconds, negative cancels the timer
+     */
+    public void schedule(final SelectionKey key, final long delay) {
+        if (!inEventLoop()) {
+            execute(new Runnable() {
+
+                public void run() {
+                    schedule(key, delay);
+                }
+
+            });
+            return;
+        }
+        Timer timer = timersByKey.remove(key);
+        if (null != timer) {
+            timers.remove(timer);
+        }
+        if (delay >= 0 && key.isValid()) {
+            timer = new Timer(key, System.currentTimeMillis() + delay);
+            timersByKey.put(key, timer);
+            timers.add(timer);
+        }
+    }
+
+    /**
+     * Closes channel and notifies its handler. Closing channel which is
+     * already closed does nothing.
+     *
+     * @param key
+     *            selection key
+     */
+    public void close(final SelectionKey key) {
+        if (!inEventLoop()) {
+            execute(new Runnable() {
+
+                public void run() {
+                    close(key);
+                }
+
+            });
+            return;
+        }
+        ChannelHandler handler = (ChannelHandler) key.attachment();
+        if (null == handler) {
+            return;
+        }
+        key.attach(null);
+        key.cancel();
+        Timer timer = timersByKey.remove(key);
+        if (null != timer) {
+            timers.remove(timer);
+        }
+        numChannels.decrementAndGet();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+        try {
+            handler.onClose();
+        } catch (RuntimeException e) {
+            log.error("error", e);
+        }
+    }
+
+    /**
+     * Gets number of channels owned by this loop.
+     *
+     * @return number of channels
+     */
+    public int getNumChannels() {
+        return numChannels.get();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Timer next = timers.peek();
+                long timeout =
+                    null == next ? 0L : next.deadline
+                        - System.currentTimeMillis();
+                if (!tasks.isEmpty() || (null != next && timeout <= 0)) {
+                    // tasks queued by loop itself don't wake selector
+                    selector.selectNow();
+                } else if (null == next) {
+                    selector.select();
+                } else {
+                    selector.select(timeout);
+                }
+                runTasks();
+                processSelectedKeys();
+                runTimers();
+            } catch (Exception e) {
+                log.error("error", e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while (null != (task = tasks.poll())) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("error", e);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+        while (i.hasNext()) {
+            SelectionKey key = i.next();
+            i.remove();
+            ChannelHandler handler = (ChannelHandler) key.attachment();
+            if (null == handler) {
+                continue;
+            }
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    handler.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    handler.onWritable();
+                }
+            } catch (IOException e) {
+                close(key);
+            } catch (Exception e) {
+                log.error("error", e);
+                close(key);
+            }
+        }
+    }
+
+    private void runTimers() {
+        long now = System.currentTimeMillis();
+        Timer timer;
+        // handlers may set new timers, those are due on next iteration at
+        // the earliest
+        while (null != (timer = timers.peek()) && timer.deadline <= now) {
+            timers.poll();
+            timersByKey.remove(timer.key);
+            dueKeys.add(timer.key);
+        }
+        for (int i = 0; i < dueKeys.size(); i++) {
+            SelectionKey key = dueKeys.get(i);
+            ChannelHandler handler = (ChannelHandler) key.attachment();
+            if (null == handler || !key.isValid()) {
+                close(key);
+                continue;
+            }
+            try {
+                handler.onTimer();
+            } catch (IOException e) {
+                close(key);
+            } catch (Exception e) {
+                log.error("error", e);
+                close(key);
+            }
+        }
+        dueKeys.clear();
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private final HashMap<SelectionKey, Timer> timersByKey =
+        new HashMap<SelectionKey, Timer>();
+    private final ArrayList<SelectionKey> dueKeys =
+        new ArrayList<SelectionKey>();
+    private final AtomicInteger numChannels = new AtomicInteger();
+
+}
@@ -77,7 +77,8 @@ public interface MessageHandler {
      * @param blockOffset
      *            block offset
      * @param blockData
-     *            block length
+     *            block data (from position to limit), valid only until this
+     *            method returns
      */
     public void onPiece(int pieceIndex, int blockOffset, ByteBuffer blockData);
 
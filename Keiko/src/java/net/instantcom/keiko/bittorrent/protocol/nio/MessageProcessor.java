@@ -8,7 +8,10 @@ import org.apache.commons.logging.LogFactory;
 import net.instantcom.keiko.bittorrent.protocol.Torrent;
 
 /**
- * Non-blocking message processor.
+ * Non-blocking message processor. Input buffer is kept ready for reading from
+ * channel (as after <code>compact()</code>) between calls; processor flips it
+ * to parse messages and compacts it once message is processed, so data passed
+ * to handler stays valid until handler returns.
  */
 public class MessageProcessor extends Message {
 
@@ -58,6 +61,9 @@ public class MessageProcessor extends Message {
         this.buffer = buffer;
         this.handler = handler;
         this.torrent = torrent;
+        // every block is passed as the same view of buffer, no garbage per
+        // block
+        block = buffer.duplicate();
     }
 
     /**
@@ -84,6 +90,15 @@ public class MessageProcessor extends Message {
         return STATE_COMPLETE == state;
     }
 
+    /**
+     * Checks if invalid message was received.
+     * 
+     * @return true if processor stopped because of an error
+     */
+    public boolean hasError() {
+        return STATE_ERROR == state;
+    }
+
     /**
      * Processes next message calling appropriate handler method.
      * 
@@ -151,6 +166,8 @@ public class MessageProcessor extends Message {
                     break;
             }
         }
+        // handler is done with bitfield and block, drop processed message
+        buffer.compact();
         // prepare for next message
         state = STATE_EMPTY;
         len = 0;
@@ -160,7 +177,6 @@ public class MessageProcessor extends Message {
         blockLength = 0;
         port = 0;
         bitfield = null;
-        block = null;
     }
 
     private void fetch() {
@@ -168,6 +184,7 @@ public class MessageProcessor extends Message {
         if (STATE_COMPLETE == state) {
             return;
         }
+        buffer.flip();
         try {
             switch (state) {
                 case STATE_EMPTY:
@@ -223,8 +240,8 @@ public class MessageProcessor extends Message {
                             break;
 
                         case ID_BITFIELD:
-                            assertEquals(1 + torrent.getMetaInfo()
-                                .getNumPieces(), len);
+                            assertEquals(1 + (torrent.getMetaInfo()
+                                .getNumPieces() + 7) / 8, len);
                             int bitfieldSize = len - 1;
                             // enough for bitfield?
                             if (buffer.remaining() < bitfieldSize) {
@@ -255,18 +272,19 @@ public class MessageProcessor extends Message {
                             break;
 
                         case ID_PIECE:
-                            assertTrue(len < 9 + 16384);
+                            assertTrue(len >= 9 && len <= 9 + 16384);
                             // enough for index, offset and block?
                             int blockSize = len - 9;
-                            if (buffer.remaining() < blockSize) {
+                            if (buffer.remaining() < 8 + blockSize) {
                                 // nope
                                 break;
                             }
                             // get index, offset and block
                             pieceIndex = buffer.getInt();
                             blockOffset = buffer.getInt();
-                            block = buffer.slice();
-                            block.limit(blockSize);
+                            block.clear();
+                            block.position(buffer.position());
+                            block.limit(buffer.position() + blockSize);
                             buffer.position(buffer.position() + blockSize);
                             // got all
                             state = STATE_COMPLETE;
@@ -313,8 +331,11 @@ public class MessageProcessor extends Message {
         } catch (UnsupportedOperationException e) {
             state = STATE_ERROR;
         }
-        // compact buffer
-        buffer.compact();
+        // bitfield and block are views of buffer so complete message stays
+        // in place until it's processed
+        if (STATE_COMPLETE != state) {
+            buffer.compact();
+        }
     }
 
     private void assertEquals(int expected, int actual)
@@ -342,6 +363,6 @@ public class MessageProcessor extends Message {
     private int blockLength;
     private short port;
     private ByteBuffer bitfield;
-    private ByteBuffer block;
+    private final ByteBuffer block;
 
 }
@@ -0,0 +1,227 @@
+package net.instantcom.keiko.bittorrent.protocol.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+import org.bouncycastle.crypto.StreamCipher;
+
+import net.instantcom.keiko.bittorrent.protocol.encryption.RC4Cipher;
+import net.instantcom.util.BufferPool;
+
+/**
+ * Outbound queue of a non-blocking connection. Small messages written to
+ * queue's output stream are coalesced into shared chunks, blocks are queued
+ * as they are without copying. <code>writeTo()</code> sends as much as
+ * channel takes with one gathering write and never blocks, so queue may be
+ * filled from any thread while only event loop touches the socket.
+ * <p>
+ * If connection is encrypted data is encrypted when queued, so it leaves in
+ * the same order cipher saw it.
+ */
+public class OutboundQueue {
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int MAX_GATHER = 16;
+
+    private static final class Entry {
+
+        private Entry(ByteBuffer buffer, BufferPool pool) {
+            this.buffer = buffer;
+            this.pool = pool;
+        }
+
+        private final ByteBuffer buffer;
+        private final BufferPool pool; // null for chunks
+
+    }
+
+    /**
+     * Creates new outbound queue.
+     *
+     * @param channel
+     *            non-blocking channel
+     * @param cipher
+     *            cipher encrypting queued data, null for plaintext
+     */
+    public OutboundQueue(GatheringByteChannel channel, StreamCipher cipher) {
+        this.channel = channel;
+        this.cipher = cipher;
+    }
+
+    /**
+     * Gets stream which queues small messages.
+     *
+     * @return output stream
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Queues a block without copying it.
+     *
+     * @param block
+     *            block (from position to limit), owned by queue from now on
+     * @param pool
+     *            pool block is given back to once it's sent, null if none
+     * @throws IOException
+     *             if queue is closed
+     */
+    public synchronized void addBlock(ByteBuffer block, BufferPool pool)
+        throws IOException {
+        if (closed) {
+            if (null != pool) {
+                pool.release(block);
+            }
+            throw new SocketException("socket closed");
+        }
+        int size = block.remaining();
+        if (null != cipher) {
+            // in place, direct blocks too
+            RC4Cipher.process(cipher, block);
+        }
+        entries.addLast(new Entry(block, pool));
+        pending += size;
+    }
+
+    /**
+     * Sends queued data to channel without blocking.
+     *
+     * @return number of bytes still pending
+     * @throws IOException
+     *             if queue is closed or write fails
+     */
+    public synchronized int writeTo() throws IOException {
+        if (closed) {
+            throw new SocketException("socket closed");
+        }
+        if (0 == pending) {
+            return 0;
+        }
+        int count = 0;
+        for (Entry entry : entries) {
+            gather[count++] = entry.buffer;
+            if (MAX_GATHER == count) {
+                break;
+            }
+        }
+        long written;
+        try {
+            written = channel.write(gather, 0, count);
+        } finally {
+            for (int i = 0; i < count; i++) {
+                gather[i] = null;
+            }
+        }
+        pending -= written;
+        while (!entries.isEmpty()
+            && !entries.peekFirst().buffer.hasRemaining()) {
+            Entry entry = entries.pollFirst();
+            if (null != entry.pool) {
+                entry.pool.release(entry.buffer);
+            } else if (null == spareChunk
+                && CHUNK_SIZE == entry.buffer.capacity()) {
+                spareChunk = entry.buffer;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Gets number of bytes waiting to be sent.
+     *
+     * @return number of bytes
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Closes queue, dropping everything not sent yet.
+     */
+    public synchronized void close() {
+        closed = true;
+        Entry entry;
+        while (null != (entry = entries.pollFirst())) {
+            if (null != entry.pool) {
+                entry.pool.release(entry.buffer);
+            }
+        }
+        pending = 0;
+        spareChunk = null;
+    }
+
+    private synchronized void append(byte[] b, int off, int len)
+        throws IOException {
+        if (closed) {
+            throw new SocketException("socket closed");
+        }
+        pending += len;
+        while (len > 0) {
+            ByteBuffer chunk = getTailChunk();
+            // chunk is in read mode, data goes after its limit
+            int position = chunk.position();
+            int limit = chunk.limit();
+            int size = Math.min(len, chunk.capacity() - limit);
+            int offset = chunk.arrayOffset() + limit;
+            if (null != cipher) {
+                cipher.processBytes(b, off, size, chunk.array(), offset);
+            } else {
+                System.arraycopy(b, off, chunk.array(), offset, size);
+            }
+            chunk.limit(limit + size);
+            chunk.position(position);
+            off += size;
+            len -= size;
+        }
+    }
+
+    // gets chunk with room at the end of queue
+    private ByteBuffer getTailChunk() {
+        Entry tail = entries.peekLast();
+        if (null != tail && null == tail.pool
+            && tail.buffer.limit() < tail.buffer.capacity()) {
+            return tail.buffer;
+        }
+        ByteBuffer chunk = spareChunk;
+        if (null == chunk) {
+            chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        }
+        spareChunk = null;
+        chunk.clear();
+        chunk.limit(0);
+        entries.addLast(new Entry(chunk, null));
+        return chunk;
+    }
+
+    private final OutputStream out = new OutputStream() {
+
+        @Override
+        public void write(int b) throws IOException {
+            byte[] tmp = single;
+            tmp[0] = (byte) b;
+            append(tmp, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            append(b, off, len);
+        }
+
+        private final byte[] single = new byte[1];
+
+    };
+
+    private final GatheringByteChannel channel;
+    private final StreamCipher cipher;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private ByteBuffer spareChunk;
+    private int pending;
+    private boolean closed;
+
+}
@@ -0,0 +1,99 @@
+package net.instantcom.keiko.bittorrent.protocol.nio;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.instantcom.keiko.config.Configuration;
+
+/**
+ * Selector based peer engine. Peers are spread over a few event loops (one
+ * per core by default) instead of having a thread each, so number of
+ * connections is limited by memory and file descriptors, not threads.
+ * Engine is used when <tt>torrent.engine</tt> is set to <tt>nio</tt>.
+ */
+public final class PeerEngine {
+
+    private static final Log log = LogFactory.getLog(PeerEngine.class);
+
+    private static final boolean ENABLED =
+        "nio".equalsIgnoreCase(Configuration.getInstance().getString(
+            "torrent.engine", "threads"));
+
+    private static PeerEngine instance;
+
+    private PeerEngine() throws IOException {
+        Configuration config = Configuration.getInstance();
+        int numLoops =
+            config.getInt("torrent.nio.selectors", Runtime.getRuntime()
+                .availableProcessors());
+        if (numLoops < 1) {
+            numLoops = 1;
+        }
+        loops = new EventLoop[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            loops[i] = new EventLoop("EventLoop-" + i);
+            loops[i].start();
+        }
+        log.info("peer engine started with " + numLoops + " event loops");
+    }
+
+    /**
+     * Checks if peers should be handled by this engine.
+     *
+     * @return true if selector based engine is configured
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static synchronized PeerEngine getInstance() throws IOException {
+        if (null == instance) {
+            instance = new PeerEngine();
+        }
+        return instance;
+    }
+
+    /**
+     * Switches channel to non-blocking mode and hands it over to the least
+     * loaded event loop.
+     *
+     * @param channel
+     *            connected channel
+     * @param handler
+     *            handler of channel's events
+     * @return event loop which owns the channel
+     * @throws IOException
+     *             if channel can't be switched to non-blocking mode
+     */
+    public EventLoop register(SocketChannel channel, ChannelHandler handler)
+        throws IOException {
+        channel.configureBlocking(false);
+        EventLoop loop = loops[0];
+        for (int i = 1; i < loops.length; i++) {
+            if (loops[i].getNumChannels() < loop.getNumChannels()) {
+                loop = loops[i];
+            }
+        }
+        loop.register(channel, handler);
+        return loop;
+    }
+
+    /**
+     * Gets number of channels owned by all event loops.
+     *
+     * @return number of channels
+     */
+    public int getNumChannels() {
+        int count = 0;
+        for (EventLoop loop : loops) {
+            count += loop.getNumChannels();
+        }
+        return count;
+    }
+
+    private final EventLoop[] loops;
+
+}
@@ -10,6 +10,7 @@ import org.apache.commons.logging.LogFactory;
 public final class Configuration {
 
     private static final Log log = LogFactory.getLog(Configuration.class);
+    private static final File FILE = new File("src/conf/keiko.conf");
     private static final Configuration instance = new Configuration();
 
     public static final int DEFAULT_PORT = 6881;
@@ -27,14 +28,29 @@ public final class Configuration {
      */
     public void reload() {
         try {
+            long modified = FILE.lastModified();
             Properties properties = new Properties();
-            properties.load(new FileReader(new File("src/conf/keiko.conf")));
+            properties.load(new FileReader(FILE));
             this.properties = properties;
+            lastModified = modified;
         } catch (Exception e) {
             log.error("can't load configuration", e);
         }
     }
 
+    /**
+     * Reloads configuration if file was modified since it was last loaded.
+     * 
+     * @return true if configuration was reloaded
+     */
+    public boolean reloadIfChanged() {
+        if (FILE.lastModified() == lastModified) {
+            return false;
+        }
+        reload();
+        return true;
+    }
+
     public String getString(String key, String defaultValue) {
         String s = properties.getProperty(key);
         if (null == s || "".equals(s)) {
@@ -69,6 +85,7 @@ public final class Configuration {
             || "1".equals(s);
     }
 
-    private Properties properties;
+    private volatile Properties properties;
+    private long lastModified;
 
 }
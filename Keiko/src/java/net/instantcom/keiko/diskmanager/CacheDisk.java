@@ -0,0 +1,490 @@
+package net.instantcom.keiko.diskmanager;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.instantcom.keiko.bittorrent.MetaInfo;
+import net.instantcom.keiko.config.Configuration;
+
+/**
+ * Single cache disk (one of <tt>cache.disk.path</tt> roots). Every disk has
+ * its own write queue and writer threads so disks work in parallel, and its
+ * own usage index and space limit.
+ * <p>
+ * Disk which keeps failing is taken offline; torrents stored on it are
+ * forgotten and new torrents are placed on remaining disks.
+ */
+final class CacheDisk {
+
+    private static final Log log = LogFactory.getLog(CacheDisk.class);
+
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    private static final long MAX_JOURNAL_SIZE = 1024L * 1024L;
+
+    CacheDisk(int number, File root) {
+        this.number = number;
+        this.root = root;
+        Configuration config = Configuration.getInstance();
+        if (!root.exists()) {
+            root.mkdirs();
+            log.info("created " + root.getAbsolutePath());
+        }
+
+        torrentDir = new File(root, "torrent");
+        torrentDir.mkdirs();
+        pieceIndex = new PieceIndex(torrentDir);
+        try {
+            pieceIndex.open();
+        } catch (IOException e) {
+            log.error(this + ": error opening piece index, disk is offline", e);
+            online = false;
+        }
+        // torrents with pieces in old format, one directory per torrent
+        File[] dirs = torrentDir.listFiles();
+        if (null != dirs) {
+            for (File dir : dirs) {
+                if (dir.isDirectory()) {
+                    legacyTorrents.add(dir.getName());
+                }
+            }
+        }
+
+        // find out how much disk space we're using at the moment
+        usageIndex = new UsageIndex(new File(torrentDir, "usage.idx"));
+        try {
+            if (!usageIndex.load()) {
+                rebuildUsageIndex();
+            }
+        } catch (IOException e) {
+            log.error("error loading usage index", e);
+            rebuildUsageIndex();
+        }
+
+        storageBytesLimit = GB * config.getLong("cache.disk.max.size", 0);
+        long usableSpace = root.getUsableSpace() + usageIndex.getTotalBytes();
+        if (0 == storageBytesLimit || storageBytesLimit > usableSpace) {
+            storageBytesLimit = usableSpace / 2L;
+        }
+        highWaterBytes =
+            storageBytesLimit * config.getInt("cache.disk.high.water", 95)
+                / 100L;
+        lowWaterBytes =
+            storageBytesLimit * config.getInt("cache.disk.low.water", 85)
+                / 100L;
+        maxErrors = config.getInt("cache.disk.max.errors", 3);
+        log.info(this + ": " + root.getAbsolutePath() + ", limit: "
+            + (storageBytesLimit / GB) + " GB, used: "
+            + (usageIndex.getTotalBytes() / GB) + " GB");
+
+        writeQueue =
+            new WriteQueue(this, toString(), config.getInt(
+                "cache.write.threads", 2), config.getInt(
+                "cache.write.queue.size", 32));
+    }
+
+    // estimates usage from piece index and have files which weren't moved to
+    // piece index yet, used when there is no usage index
+    private void rebuildUsageIndex() {
+        for (String infoHash : pieceIndex.getInfoHashes()) {
+            usageIndex.stored(usageIndex.getEntry(infoHash), pieceIndex
+                .getStoredBytes(infoHash));
+        }
+        File[] files = torrentDir.listFiles();
+        if (null == files) {
+            return;
+        }
+        for (File haveFile : files) {
+            String name = haveFile.getName();
+            if (!name.endsWith(".have") || haveFile.length() == 0) {
+                continue;
+            }
+            String infoHash = name.substring(0, name.length() - 5);
+            if (pieceIndex.contains(infoHash)) {
+                continue;
+            }
+            File dataFile = new File(torrentDir, infoHash + ".data");
+            try {
+                byte[] have = new byte[(int) haveFile.length()];
+                DataInputStream dis =
+                    new DataInputStream(new FileInputStream(haveFile));
+                try {
+                    dis.readFully(have);
+                } finally {
+                    dis.close();
+                }
+                int numStored = 0;
+                for (byte b : have) {
+                    if (0 != b) {
+                        ++numStored;
+                    }
+                }
+                UsageIndex.Entry entry = usageIndex.getEntry(infoHash);
+                usageIndex.stored(entry, dataFile.length() / have.length
+                    * numStored);
+            } catch (IOException e) {
+                log.error("error reading " + haveFile.getAbsolutePath(), e);
+            }
+        }
+        log.info(this + ": rebuilt disk usage index");
+    }
+
+    File getRoot() {
+        return root;
+    }
+
+    File getTorrentDir() {
+        return torrentDir;
+    }
+
+    UsageIndex getUsageIndex() {
+        return usageIndex;
+    }
+
+    PieceIndex getPieceIndex() {
+        return pieceIndex;
+    }
+
+    WriteQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    long getStorageBytesLimit() {
+        return storageBytesLimit;
+    }
+
+    boolean isOnline() {
+        return online;
+    }
+
+    /**
+     * Checks if usage is over high-water mark.
+     *
+     * @return true if disk is full
+     */
+    boolean isFull() {
+        return usageIndex.getTotalBytes() > highWaterBytes;
+    }
+
+    /**
+     * Checks if disk already keeps some data of a torrent.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     * @return true if torrent is on this disk
+     */
+    boolean hasTorrent(String infoHash) {
+        return pieceIndex.contains(infoHash) || usageIndex.contains(infoHash)
+            || hasLegacyPieces(infoHash);
+    }
+
+    /**
+     * Checks if torrent may still have pieces in old format.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     * @return true if torrent has directory with old pieces
+     */
+    boolean hasLegacyPieces(String infoHash) {
+        synchronized (legacyTorrents) {
+            return legacyTorrents.contains(infoHash);
+        }
+    }
+
+    /**
+     * Records that all pieces of torrent were moved from old format.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     */
+    void legacyPiecesMigrated(String infoHash) {
+        synchronized (legacyTorrents) {
+            legacyTorrents.remove(infoHash);
+        }
+    }
+
+    /**
+     * Gets (and opens if needed) storage for a torrent. Waits if torrent is
+     * being deleted, so a store is never opened on files being deleted.
+     * <p>
+     * Open stores are found without locking. Opening a store creates its
+     * files, so it's done outside the disk lock and only by one thread, others
+     * asking for the same torrent wait for it.
+     *
+     * @param metaInfo
+     *            torrent's meta info
+     * @return storage
+     * @throws IOException
+     *             if disk is offline or storage can't be opened
+     */
+    PieceStore getStore(final MetaInfo metaInfo) throws IOException {
+        String infoHash = metaInfo.getInfoHashAsString();
+        PieceStore store = stores.get(infoHash);
+        if (null != store && !store.isClosed() && online) {
+            return store;
+        }
+        FutureTask<PieceStore> task;
+        boolean opener = false;
+        synchronized (this) {
+            while (deleting.contains(infoHash)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+            }
+            if (!online) {
+                throw new IOException(this + " is offline");
+            }
+            store = stores.get(infoHash);
+            // closed store was closed by an interrupted read, open it again
+            if (null != store && !store.isClosed()) {
+                return store;
+            }
+            task = opening.get(infoHash);
+            if (null == task) {
+                task = new FutureTask<PieceStore>(new Callable<PieceStore>() {
+                    public PieceStore call() throws IOException {
+                        return open(metaInfo);
+                    }
+                });
+                opening.put(infoHash, task);
+                opener = true;
+            }
+        }
+        if (opener) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // opens store, called by the one thread which got to open it
+    private PieceStore open(MetaInfo metaInfo) throws IOException {
+        String infoHash = metaInfo.getInfoHashAsString();
+        PieceStore store = null;
+        boolean added = false;
+        try {
+            store =
+                new PieceStore(torrentDir, metaInfo, usageIndex, pieceIndex);
+        } catch (IOException e) {
+            ioFailed(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                opening.remove(infoHash);
+                if (null != store && online) {
+                    stores.put(infoHash, store);
+                    added = true;
+                }
+                // delete() may be waiting for us
+                notifyAll();
+            }
+        }
+        if (!added) {
+            // disk went offline in the meantime
+            store.close();
+            throw new IOException(this + " is offline");
+        }
+        return store;
+    }
+
+    /**
+     * Deletes all saved pieces of a torrent. Readers still holding its store
+     * get <code>ClosedChannelException</code>, which counts as a miss.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     */
+    void delete(String infoHash) {
+        PieceStore store;
+        boolean interrupted = false;
+        synchronized (this) {
+            deleting.add(infoHash);
+            // store being opened creates files, let it finish first
+            while (opening.containsKey(infoHash)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            store = stores.remove(infoHash);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            deleteFiles(infoHash, store);
+        } finally {
+            synchronized (this) {
+                deleting.remove(infoHash);
+                notifyAll();
+            }
+        }
+    }
+
+    private void deleteFiles(String infoHash, PieceStore store) {
+        if (null != store) {
+            store.close();
+        }
+        new File(torrentDir, infoHash + ".data").delete();
+        new File(torrentDir, infoHash + ".have").delete();
+        // pieces in old format
+        File legacyDir = new File(torrentDir, infoHash);
+        File[] files = legacyDir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+            legacyDir.delete();
+        }
+        legacyPiecesMigrated(infoHash);
+        usageIndex.remove(infoHash);
+        try {
+            pieceIndex.remove(infoHash);
+        } catch (IOException e) {
+            log.error(this + ": error removing " + infoHash + " from index", e);
+            ioFailed(e);
+        }
+    }
+
+    /**
+     * Saves usage index and compacts piece index if its journal got too big.
+     *
+     * @throws IOException
+     *             if index can't be saved
+     */
+    void saveIndexes() throws IOException {
+        usageIndex.save();
+        if (pieceIndex.getJournalSize() > MAX_JOURNAL_SIZE) {
+            try {
+                pieceIndex.compact();
+            } catch (IOException e) {
+                ioFailed(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Gets torrents to delete to get usage under low-water mark, least
+     * recently used first.
+     *
+     * @return info hashes of torrents to delete, empty if disk is not full
+     */
+    List<String> getEvictionCandidates() {
+        List<String> candidates = new ArrayList<String>();
+        if (!isFull()) {
+            return candidates;
+        }
+        long bytes = usageIndex.getTotalBytes();
+        for (UsageIndex.Entry entry : usageIndex.getEldestFirst()) {
+            if (bytes <= lowWaterBytes) {
+                break;
+            }
+            candidates.add(entry.getInfoHash());
+            bytes -= entry.getStoredBytes();
+        }
+        return candidates;
+    }
+
+    /**
+     * Reports successful I/O.
+     */
+    void ioSucceeded() {
+        errors = 0;
+    }
+
+    /**
+     * Reports failed I/O. Disk is taken offline after too many consecutive
+     * failures. Closed store isn't a disk failure, it was evicted or disk is
+     * already offline.
+     *
+     * @param e
+     *            error
+     */
+    void ioFailed(IOException e) {
+        if (e instanceof ClosedChannelException) {
+            return;
+        }
+        boolean failed;
+        synchronized (this) {
+            failed = online && ++errors >= maxErrors;
+            if (failed) {
+                online = false;
+            }
+        }
+        if (failed) {
+            log.error(this + " failed, taking it offline", e);
+            List<PieceStore> open;
+            synchronized (this) {
+                open = new ArrayList<PieceStore>(stores.values());
+                stores.clear();
+            }
+            for (PieceStore store : open) {
+                store.close();
+            }
+            pieceIndex.close();
+            DiskManager.getInstance().diskFailed(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "disk " + number;
+    }
+
+    private final int number;
+    private final File root;
+    private final File torrentDir;
+    private final PieceIndex pieceIndex;
+    private final HashSet<String> legacyTorrents = new HashSet<String>();
+    private final UsageIndex usageIndex;
+    private final WriteQueue writeQueue;
+    private final ConcurrentHashMap<String, PieceStore> stores =
+        new ConcurrentHashMap<String, PieceStore>();
+    // stores being opened, guarded by this
+    private final HashMap<String, FutureTask<PieceStore>> opening =
+        new HashMap<String, FutureTask<PieceStore>>();
+    // torrents whose files are being deleted, guarded by this
+    private final HashSet<String> deleting = new HashSet<String>();
+    private long storageBytesLimit;
+    private final long highWaterBytes;
+    private final long lowWaterBytes;
+    private final int maxErrors;
+    private volatile boolean online = true;
+    private volatile int errors;
+
+}
@@ -5,17 +5,32 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import net.instantcom.keiko.bandwidth.BandwidthStats;
+import net.instantcom.keiko.bittorrent.cache.HeapPieceData;
+import net.instantcom.keiko.bittorrent.cache.PieceData;
 import net.instantcom.keiko.bittorrent.protocol.Piece;
 import net.instantcom.keiko.bittorrent.protocol.Torrent;
 import net.instantcom.keiko.config.Configuration;
+import net.instantcom.util.BitField;
+import net.instantcom.util.LongObjectMap;
+import net.instantcom.util.SHA1Util;
 
 public final class DiskManager {
 
@@ -25,24 +40,145 @@ public final class DiskManager {
 
     private DiskManager() {
         Configuration config = Configuration.getInstance();
-        cacheRoot =
-            new File(config.getString("cache.disk.path", "keiko-cache"));
-        if (!cacheRoot.exists()) {
-            cacheRoot.mkdirs();
-            log.info("created " + cacheRoot.getAbsolutePath());
+        String[] paths =
+            config.getString("cache.disk.path", "keiko-cache").split(",");
+        ArrayList<CacheDisk> list = new ArrayList<CacheDisk>();
+        for (String path : paths) {
+            path = path.trim();
+            if (path.length() > 0) {
+                list.add(new CacheDisk(list.size(), new File(path)));
+            }
+        }
+        disks = list.toArray(new CacheDisk[list.size()]);
+        // torrent state and stats are kept on first disk
+        cacheRoot = disks[0].getRoot();
+        stateStore =
+            new TorrentStateStore(new File(cacheRoot, "torrent/state"));
+
+        Thread evictor = new Thread("DiskManager evictor") {
+
+            @Override
+            public void run() {
+                evictLoop();
+            }
+
+        };
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Sets listener notified about torrents deleted to free disk space.
+     * 
+     * @param evictionListener
+     *            listener
+     */
+    public void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Gets number of bytes used by saved pieces on all disks.
+     * 
+     * @return used bytes
+     */
+    public long getUsedBytes() {
+        long usedBytes = 0;
+        for (CacheDisk disk : disks) {
+            if (disk.isOnline()) {
+                usedBytes += disk.getUsageIndex().getTotalBytes();
+            }
         }
+        return usedBytes;
+    }
 
-        // TODO calculate how much disk space we're using at the moment and use
-        // it for restrictions later
+    public long getStorageBytesLimit() {
+        long storageBytesLimit = 0;
+        for (CacheDisk disk : disks) {
+            if (disk.isOnline()) {
+                storageBytesLimit += disk.getStorageBytesLimit();
+            }
+        }
+        return storageBytesLimit;
+    }
 
-        storageBytesLimit =
-            1024L * 1024L * 1024L * config.getLong("cache.disk.max.size", 0);
-        long usableSpace = cacheRoot.getUsableSpace();
-        if (0 == storageBytesLimit || storageBytesLimit > usableSpace) {
-            storageBytesLimit = cacheRoot.getUsableSpace() / 2L;
+    private void evictLoop() {
+        while (true) {
+            try {
+                Thread.sleep(10000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (CacheDisk disk : disks) {
+                if (!disk.isOnline()) {
+                    continue;
+                }
+                try {
+                    evictEldest(disk);
+                    disk.saveIndexes();
+                } catch (Exception e) {
+                    log.error("error", e);
+                }
+            }
+        }
+    }
+
+    // deletes least recently used torrents until disk usage drops under
+    // low-water mark
+    private void evictEldest(CacheDisk disk) {
+        for (String infoHash : disk.getEvictionCandidates()) {
+            log.info(disk + " full, deleting torrent " + infoHash);
+            EvictionListener listener = evictionListener;
+            if (null != listener) {
+                listener.onTorrentEvicted(infoHash);
+            }
+            delete(infoHash);
+        }
+    }
+
+    /**
+     * Called when disk is taken offline. Torrents placed on failed disk are
+     * forgotten.
+     * 
+     * @param disk
+     *            failed disk
+     */
+    void diskFailed(CacheDisk disk) {
+        ArrayList<String> lost = new ArrayList<String>();
+        synchronized (placement) {
+            for (Iterator<Map.Entry<String, CacheDisk>> it =
+                placement.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, CacheDisk> entry = it.next();
+                if (entry.getValue() == disk) {
+                    lost.add(entry.getKey());
+                    it.remove();
+                }
+            }
+        }
+        EvictionListener listener = evictionListener;
+        for (String infoHash : lost) {
+            log.warn("torrent " + infoHash + " lost with " + disk);
+            if (null != listener) {
+                listener.onTorrentEvicted(infoHash);
+            }
+        }
+    }
+
+    /**
+     * Deletes all saved pieces of a torrent.
+     * 
+     * @param infoHash
+     *            info hash of torrent
+     */
+    public void delete(String infoHash) {
+        synchronized (placement) {
+            placement.remove(infoHash);
+        }
+        for (CacheDisk disk : disks) {
+            if (disk.isOnline() && disk.hasTorrent(infoHash)) {
+                disk.delete(infoHash);
+            }
         }
-        log.info("disk cache limit: "
-            + (storageBytesLimit / (1024L * 1024L * 1024L)) + " GB");
     }
 
     public static DiskManager getInstance() {
@@ -59,117 +195,468 @@ public final class DiskManager {
      * @return Piece or null if piece does not exist on disk
      */
     public Piece load(Torrent torrent, int pieceIndex) {
-        // load piece
-        Piece piece = null;
+        return load(torrent, pieceIndex, new HeapPieceData(Piece.getSize(
+            torrent, pieceIndex)));
+    }
+
+    /**
+     * Loads Piece from disk into specified storage. Caller remains owner of
+     * storage if piece does not exist on disk.
+     * 
+     * @param torrent
+     *            Torrent whom Piece belongs to
+     * @param pieceIndex
+     *            index of Piece
+     * @param data
+     *            storage for piece data
+     * @return Piece or null if piece does not exist on disk
+     */
+    public Piece load(Torrent torrent, int pieceIndex, PieceData data) {
+        CacheDisk disk = null;
         try {
-            File file =
-                new File(cacheRoot.toURI().resolve(
-                    "torrent/" + torrent.getMetaInfo().getInfoHashAsString()
-                        + "/" + pieceIndex + ".piece"));
-            if (file.exists()) {
-                ObjectInputStream ois =
-                    new ObjectInputStream(new BufferedInputStream(
-                        new FileInputStream(file)));
-                piece = (Piece) ois.readObject();
-                ois.close();
-                piece.setTorrent(torrent);
+            disk = getDisk(torrent);
+            PieceStore store = disk.getStore(torrent.getMetaInfo());
+            if (!readPending(disk, torrent, pieceIndex, data)
+                && !store.read(pieceIndex, data)) {
+                // piece may still be in old format
+                if (!disk.hasLegacyPieces(torrent.getMetaInfo()
+                    .getInfoHashAsString())
+                    || !migrate(disk, torrent, store, pieceIndex, data)) {
+                    return null;
+                }
+            }
+            disk.ioSucceeded();
+            Piece piece = new Piece(torrent, pieceIndex, data);
+            piece.setSHA1(getSHA1(torrent, pieceIndex));
+            piece.getBlockAvailability().setAll();
+            if (store.contains(pieceIndex) && !store.isVerified(pieceIndex)) {
+                // stored without hash check, check it once
+                if (!piece.verify()) {
+                    log.warn("piece " + pieceIndex + " of " + torrent
+                        + " on " + disk + " failed hash check");
+                    // don't serve or count it as stored anymore
+                    store.unmarkStored(pieceIndex);
+                    return null;
+                }
+                store.markStored(pieceIndex, true);
+            }
+            piece.setSaved(store.contains(pieceIndex));
+            return piece;
+        } catch (ClosedChannelException e) {
+            // torrent was evicted while loading
+            if (log.isDebugEnabled()) {
+                log.debug("piece " + pieceIndex + " of " + torrent
+                    + " is gone");
+            }
+        } catch (IOException e) {
+            log.error("error", e);
+            if (null != disk) {
+                disk.ioFailed(e);
             }
         } catch (Exception e) {
             log.error("error", e);
         }
-        return piece;
+        return null;
+    }
+
+    private static byte[] getSHA1(Torrent torrent, int pieceIndex) {
+        byte[] sha1 = new byte[20];
+        System.arraycopy(torrent.getMetaInfo().getPiecesSHA1(),
+            20 * pieceIndex, sha1, 0, 20);
+        return sha1;
+    }
+
+    /**
+     * Sets have bits of a torrent from pieces which are stored and passed
+     * hash check, without touching the file system. Torrents which aren't in
+     * piece index yet keep their have bits.
+     * 
+     * @param torrent
+     *            torrent
+     * @return true if have bits were set from index
+     */
+    public boolean restoreHavePieces(Torrent torrent) {
+        String infoHash = torrent.getMetaInfo().getInfoHashAsString();
+        for (CacheDisk disk : disks) {
+            if (!disk.isOnline()) {
+                continue;
+            }
+            BitField verified = disk.getPieceIndex().getVerified(infoHash);
+            if (null != verified) {
+                torrent.getHavePieces().setData(verified.getData());
+                torrent.setDirty();
+                synchronized (placement) {
+                    placement.put(infoHash, disk);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // copies piece which is still waiting to be written
+    private boolean readPending(CacheDisk disk, Torrent torrent,
+        int pieceIndex, PieceData data) {
+        Piece pending =
+            disk.getWriteQueue().getPending(LongObjectMap.key(torrent.getId(),
+                pieceIndex));
+        if (null == pending) {
+            return false;
+        }
+        try {
+            byte[] bytes = pending.getPieceData().toByteArray();
+            data.write(0, bytes, 0, bytes.length);
+        } finally {
+            pending.release();
+        }
+        return true;
     }
 
     /**
-     * Saves Piece to disk.
+     * Queues Piece for saving to disk. Piece is flagged as saved once its data
+     * is durable.
      * 
      * @param piece
      *            Piece to save
      */
     public void save(Piece piece) {
-        // save piece
         try {
-            File file =
-                new File(cacheRoot.toURI().resolve(
-                    "torrent/"
-                        + piece.getTorrent().getMetaInfo()
-                            .getInfoHashAsString() + "/" + piece.getIndex()
-                        + ".piece"));
-            if (!file.exists()) {
-                file.mkdirs();
-            }
-            if (file.exists()) {
-                if (!file.delete()) {
-                    throw new Exception("unable to delete file "
-                        + file.getAbsolutePath());
-                }
-            } else {
-                if (!file.createNewFile()) {
-                    throw new Exception("unable to create file "
-                        + file.getAbsolutePath());
-                }
-            }
-            ObjectOutputStream oos =
-                new ObjectOutputStream(new BufferedOutputStream(
-                    new FileOutputStream(file)));
-            oos.writeObject(piece);
-            oos.flush();
-            oos.close();
+            Torrent torrent = piece.getTorrent();
+            CacheDisk disk = getDisk(torrent);
+            disk.getWriteQueue().offer(
+                LongObjectMap.key(torrent.getId(), piece.getIndex()), piece,
+                disk.getStore(torrent.getMetaInfo()));
         } catch (Exception e) {
             log.error("error", e);
         }
     }
 
     /**
-     * Loads torrent list from disk.
+     * Checks if pieces of specified torrent are written fast enough to start
+     * downloading new ones.
      * 
-     * @return loaded torrent list or null if it can't be loaded
+     * @param torrent
+     *            torrent
+     * @return true if writes are falling behind
      */
-    @SuppressWarnings("unchecked")
-    public HashMap<String, Torrent> loadTorrents() throws Exception {
-        HashMap<String, Torrent> torrents = null;
-        File file =
-            new File(cacheRoot.toURI().resolve("torrent/torrentlist.dat"));
-        if (file.exists()) {
-            if (log.isDebugEnabled()) {
-                log.debug("loading torrents");
+    public boolean isWriteBacklogged(Torrent torrent) {
+        try {
+            return getDisk(torrent).getWriteQueue().isFull();
+        } catch (IOException e) {
+            // no disk to write to
+            return true;
+        }
+    }
+
+    /**
+     * Waits until all queued pieces are written and saves indexes.
+     * 
+     * @param timeout
+     *            max time to wait in milliseconds
+     * @return true if all pieces were written
+     */
+    public boolean flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean flushed = true;
+        for (CacheDisk disk : disks) {
+            if (!disk.isOnline()) {
+                continue;
+            }
+            flushed &=
+                disk.getWriteQueue().flush(
+                    Math.max(1L, deadline - System.currentTimeMillis()));
+            try {
+                disk.saveIndexes();
+            } catch (IOException e) {
+                log.error("error saving indexes", e);
             }
-            ObjectInputStream ois =
-                new ObjectInputStream(new BufferedInputStream(
-                    new FileInputStream(file)));
-            torrents = (HashMap<String, Torrent>) ois.readObject();
-            ois.close();
         }
-        return torrents;
+        return flushed;
     }
 
     /**
-     * Saves torrent list to disk.
+     * Checks if Piece is saved on disk and passed hash check, so its blocks
+     * can be read directly. Pieces stored without hash check are checked when
+     * they're loaded, see <code>load()</code>.
      * 
-     * @param torrents
-     *            torrent list
+     * @param torrent
+     *            Torrent whom Piece belongs to
+     * @param pieceIndex
+     *            index of Piece
+     * @return true if verified piece is on disk
      */
-    public void saveTorrents(HashMap<String, Torrent> torrents)
-        throws Exception {
-        if (log.isDebugEnabled()) {
-            log.debug("saving torrents");
+    public boolean contains(Torrent torrent, int pieceIndex) {
+        try {
+            return getDisk(torrent).getStore(torrent.getMetaInfo())
+                .isVerified(pieceIndex);
+        } catch (IOException e) {
+            log.error("error", e);
+        }
+        return false;
+    }
+
+    /**
+     * Reads a block of saved Piece into buffer, from buffer's position to its
+     * limit.
+     * 
+     * @param torrent
+     *            Torrent whom Piece belongs to
+     * @param pieceIndex
+     *            index of Piece
+     * @param offset
+     *            offset of block in Piece
+     * @param dst
+     *            destination buffer
+     * @return false if torrent was evicted while reading
+     * @throws IOException
+     *             if read fails
+     */
+    public boolean readBlock(Torrent torrent, int pieceIndex, int offset,
+        ByteBuffer dst) throws IOException {
+        CacheDisk disk = getDisk(torrent);
+        PieceStore store = disk.getStore(torrent.getMetaInfo());
+        try {
+            store.read(pieceIndex, offset, dst);
+            return true;
+        } catch (ClosedChannelException e) {
+            return false;
+        } catch (IOException e) {
+            disk.ioFailed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a block of saved Piece directly from disk to specified channel.
+     * 
+     * @param torrent
+     *            Torrent whom Piece belongs to
+     * @param pieceIndex
+     *            index of Piece
+     * @param offset
+     *            offset of block in Piece
+     * @param length
+     *            length of block
+     * @param target
+     *            target channel
+     * @throws IOException
+     *             if transfer fails
+     */
+    public void transferBlock(Torrent torrent, int pieceIndex, int offset,
+        int length, WritableByteChannel target) throws IOException {
+        // errors can come from socket too so they don't count against disk
+        getDisk(torrent).getStore(torrent.getMetaInfo()).transferTo(
+            pieceIndex, offset, length, target);
+    }
+
+    /**
+     * Converts all pieces of a torrent saved in old format (one serialized
+     * <tt>.piece</tt> file per piece) to torrent's data file.
+     * 
+     * @param torrent
+     *            torrent
+     * @return number of converted pieces
+     * @throws IOException
+     *             if torrent's data file can't be opened
+     * @throws NoSuchAlgorithmException
+     *             if SHA-1 is not available to check pieces
+     */
+    public int migrate(Torrent torrent) throws IOException,
+        NoSuchAlgorithmException {
+        CacheDisk disk = getDisk(torrent);
+        File dir = getLegacyDirectory(disk, torrent);
+        if (!dir.isDirectory()) {
+            return 0;
+        }
+        PieceStore store = disk.getStore(torrent.getMetaInfo());
+        int count = 0;
+        int numPieces = torrent.getMetaInfo().getNumPieces();
+        for (int i = 0; i < numPieces; i++) {
+            if (store.contains(i)) {
+                // stale copy, data file wins
+                new File(dir, i + ".piece").delete();
+            } else if (migrate(disk, torrent, store, i, new HeapPieceData(
+                Piece.getSize(torrent, i)))) {
+                ++count;
+            }
+        }
+        if (dir.delete()) {
+            disk.legacyPiecesMigrated(torrent.getMetaInfo()
+                .getInfoHashAsString());
         }
-        File file =
-            new File(cacheRoot.toURI().resolve("torrent/torrentlist.dat"));
+        return count;
+    }
+
+    // moves a single piece from old format to data file
+    private boolean migrate(CacheDisk disk, Torrent torrent, PieceStore store,
+        int pieceIndex, PieceData data) throws IOException,
+        NoSuchAlgorithmException {
+        File dir = getLegacyDirectory(disk, torrent);
+        File file = new File(dir, pieceIndex + ".piece");
         if (!file.exists()) {
-            file.mkdirs();
+            return false;
         }
-        if (file.exists()) {
+        Piece legacy;
+        ObjectInputStream ois =
+            new ObjectInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try {
+            legacy = (Piece) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e.toString());
+        } finally {
+            ois.close();
+        }
+        byte[] bytes = legacy.getPieceData().toByteArray();
+        if (bytes.length != data.getSize()) {
+            log.warn("size mismatch in " + file.getAbsolutePath()
+                + ", discarding");
             file.delete();
-        } else {
-            file.createNewFile();
+            return false;
         }
-        ObjectOutputStream oos =
-            new ObjectOutputStream(new BufferedOutputStream(
-                new FileOutputStream(file)));
-        oos.writeObject(torrents);
-        oos.flush();
-        oos.close();
+        data.write(0, bytes, 0, bytes.length);
+        // old file is deleted only once piece is durable in data file
+        store.writeData(pieceIndex, data);
+        store.syncData();
+        store.markStored(pieceIndex, Arrays.equals(getSHA1(torrent,
+            pieceIndex), SHA1Util.getSHA1(bytes)));
+        store.getPieceIndex().sync();
+        file.delete();
+        // remove directory once it's empty
+        if (dir.delete()) {
+            disk.legacyPiecesMigrated(torrent.getMetaInfo()
+                .getInfoHashAsString());
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("migrated " + file.getAbsolutePath());
+        }
+        return true;
+    }
+
+    // finds disk of a torrent, placing new torrents by hash
+    private CacheDisk getDisk(Torrent torrent) throws IOException {
+        String infoHash = torrent.getMetaInfo().getInfoHashAsString();
+        synchronized (placement) {
+            CacheDisk disk = placement.get(infoHash);
+            if (null != disk && disk.isOnline()) {
+                return disk;
+            }
+            disk = null;
+            for (CacheDisk candidate : disks) {
+                if (candidate.isOnline() && candidate.hasTorrent(infoHash)) {
+                    disk = candidate;
+                    break;
+                }
+            }
+            if (null == disk) {
+                // probe from torrent's home disk, skipping offline disks and
+                // preferring ones with free space
+                int home = (infoHash.hashCode() & 0x7fffffff) % disks.length;
+                CacheDisk full = null;
+                for (int i = 0; i < disks.length; i++) {
+                    CacheDisk candidate = disks[(home + i) % disks.length];
+                    if (!candidate.isOnline()) {
+                        continue;
+                    }
+                    if (!candidate.isFull()) {
+                        disk = candidate;
+                        break;
+                    }
+                    if (null == full) {
+                        full = candidate;
+                    }
+                }
+                if (null == disk) {
+                    disk = full;
+                }
+            }
+            if (null == disk) {
+                throw new IOException("no cache disk online");
+            }
+            placement.put(infoHash, disk);
+            return disk;
+        }
+    }
+
+    private File getLegacyDirectory(CacheDisk disk, Torrent torrent) {
+        return new File(disk.getTorrentDir(), torrent.getMetaInfo()
+            .getInfoHashAsString());
+    }
+
+    /**
+     * Lists saved torrents. Torrent list in old format
+     * (<tt>torrentlist.dat</tt>) is converted first.
+     * 
+     * @return info hashes of saved torrents
+     */
+    public List<String> listTorrents() {
+        File file = new File(cacheRoot, "torrent/torrentlist.dat");
+        if (file.exists()) {
+            try {
+                HashMap<String, Torrent> torrents = loadTorrentList(file);
+                for (Torrent torrent : torrents.values()) {
+                    stateStore.save(torrent);
+                }
+                file.renameTo(new File(file.getPath() + ".old"));
+                log.info("converted " + torrents.size()
+                    + " torrents from torrent list");
+            } catch (Exception e) {
+                log.error("error converting torrent list", e);
+            }
+        }
+        return stateStore.list();
+    }
+
+    // loads torrent list in old format
+    @SuppressWarnings("unchecked")
+    private HashMap<String, Torrent> loadTorrentList(File file)
+        throws Exception {
+        if (log.isDebugEnabled()) {
+            log.debug("loading torrents");
+        }
+        ObjectInputStream ois =
+            new ObjectInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try {
+            return (HashMap<String, Torrent>) ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+
+    /**
+     * Loads saved torrent.
+     * 
+     * @param infoHash
+     *            info hash of torrent
+     * @return torrent, not started
+     * @throws IOException
+     *             if torrent can't be loaded
+     */
+    public Torrent loadTorrent(String infoHash) throws IOException {
+        return stateStore.load(infoHash);
+    }
+
+    /**
+     * Saves state of a torrent.
+     * 
+     * @param torrent
+     *            torrent
+     * @throws IOException
+     *             if torrent can't be saved
+     */
+    public void saveTorrent(Torrent torrent) throws IOException {
+        stateStore.save(torrent);
+    }
+
+    /**
+     * Deletes saved state of a torrent.
+     * 
+     * @param infoHash
+     *            info hash of torrent
+     */
+    public void deleteTorrent(String infoHash) {
+        stateStore.delete(infoHash);
     }
 
     public BandwidthStats loadBandwidthStats() throws Exception {
@@ -211,6 +698,10 @@ public final class DiskManager {
     }
 
     private File cacheRoot;
-    private long storageBytesLimit;
+    private final CacheDisk[] disks;
+    private final TorrentStateStore stateStore;
+    private final HashMap<String, CacheDisk> placement =
+        new HashMap<String, CacheDisk>();
+    private volatile EvictionListener evictionListener;
 
 }
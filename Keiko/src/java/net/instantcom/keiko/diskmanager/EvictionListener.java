@@ -0,0 +1,17 @@
+package net.instantcom.keiko.diskmanager;
+
+/**
+ * Gets notified when torrent is about to be deleted from disk to free space.
+ */
+public interface EvictionListener {
+
+    /**
+     * Called before files of a torrent are deleted. Torrent should be stopped
+     * and forgotten.
+     *
+     * @param infoHash
+     *            info hash of torrent being evicted
+     */
+    public void onTorrentEvicted(String infoHash);
+
+}
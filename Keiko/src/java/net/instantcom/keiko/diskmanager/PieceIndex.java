@@ -0,0 +1,585 @@
+package net.instantcom.keiko.diskmanager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.instantcom.util.BitField;
+
+/**
+ * Index of pieces stored on a single disk. For every torrent index keeps a
+ * bitmap of stored pieces and a bitmap of pieces which passed hash check, so
+ * presence of a piece is answered from memory. Piece <tt>n</tt> of a torrent
+ * is located at <tt>n * pieceLength</tt> in torrent's data file on the same
+ * disk.
+ * <p>
+ * Index is kept in two files: snapshot (<tt>pieces.idx</tt>) and journal
+ * (<tt>pieces.jnl</tt>). Every change is appended to journal as a record
+ * with its own checksum; <code>sync()</code> makes appended records durable.
+ * On open journal is replayed over snapshot and a torn record at its end
+ * (crash while appending) is cut off. <code>compact()</code> writes a new
+ * snapshot and empties journal. Records are idempotent so replaying journal
+ * over a snapshot which already contains it is harmless.
+ * <p>
+ * This class is thread safe. Presence lookups, which uploads make for every
+ * block, only lock the torrent's entry for a moment; changes and journal
+ * writes are serialized on the index and snapshot is written outside of any
+ * lock.
+ */
+public class PieceIndex {
+
+    private static final Log log = LogFactory.getLog(PieceIndex.class);
+
+    /**
+     * Piece data is on disk.
+     */
+    public static final int STORED = 1;
+
+    /**
+     * Piece data passed hash check.
+     */
+    public static final int VERIFIED = 2;
+
+    private static final int VERSION = 1;
+
+    private static final int ADD = 1;
+    private static final int MARK = 2;
+    private static final int REMOVE = 3;
+
+    /**
+     * Pieces of a single torrent. Bitmaps are guarded by entry itself.
+     */
+    public static final class Entry {
+
+        private Entry(String infoHash, int numPieces, int pieceLength,
+            int lastPieceLength) {
+            this.infoHash = infoHash;
+            this.numPieces = numPieces;
+            this.pieceLength = pieceLength;
+            this.lastPieceLength = lastPieceLength;
+            stored = new BitField(numPieces);
+            verified = new BitField(numPieces);
+        }
+
+        public String getInfoHash() {
+            return infoHash;
+        }
+
+        public int getNumPieces() {
+            return numPieces;
+        }
+
+        private final String infoHash;
+        private final int numPieces;
+        private final int pieceLength;
+        private final int lastPieceLength;
+        private final BitField stored;
+        private final BitField verified;
+        private int numStored;
+
+    }
+
+    /**
+     * Creates index kept in specified directory. Index must be opened before
+     * use.
+     *
+     * @param dir
+     *            directory of index files
+     */
+    public PieceIndex(File dir) {
+        snapshotFile = new File(dir, "pieces.idx");
+        journalFile = new File(dir, "pieces.jnl");
+    }
+
+    /**
+     * Loads snapshot, replays journal and opens journal for appending.
+     *
+     * @throws IOException
+     *             if index can't be read or journal can't be opened
+     */
+    public synchronized void open() throws IOException {
+        entries.clear();
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        if (!snapshotFile.exists() && tmp.exists()) {
+            // crashed while replacing snapshot
+            tmp.renameTo(snapshotFile);
+        }
+        if (snapshotFile.exists()) {
+            loadSnapshot();
+        }
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        journal = raf.getChannel();
+        long valid = replay();
+        if (valid < journal.size()) {
+            log.warn("discarding " + (journal.size() - valid)
+                + " bytes of torn journal " + journalFile.getAbsolutePath());
+            journal.truncate(valid);
+            journal.force(false);
+        }
+        journalSize = valid;
+    }
+
+    private void loadSnapshot() throws IOException {
+        DataInputStream dis =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(
+                snapshotFile)));
+        try {
+            if (VERSION != dis.readInt()) {
+                throw new IOException("unknown version of "
+                    + snapshotFile.getAbsolutePath());
+            }
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry =
+                    new Entry(dis.readUTF(), dis.readInt(), dis.readInt(), dis
+                        .readInt());
+                byte[] bits = new byte[entry.stored.getData().length];
+                dis.readFully(bits);
+                entry.stored.setData(bits);
+                bits = new byte[entry.verified.getData().length];
+                dis.readFully(bits);
+                entry.verified.setData(bits);
+                entry.numStored = entry.stored.getNumOnes();
+                entries.put(entry.infoHash, entry);
+            }
+        } finally {
+            dis.close();
+        }
+    }
+
+    // applies journal records, returns length of valid part of journal
+    private long replay() throws IOException {
+        byte[] bytes = new byte[(int) journal.size()];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (journal.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+        DataInputStream dis = new DataInputStream(bais);
+        long valid = 0;
+        CRC32 crc = new CRC32();
+        try {
+            while (bais.available() > 0) {
+                int length = dis.readUnsignedShort();
+                byte[] record = new byte[length];
+                dis.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != dis.readInt()) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(record)));
+                valid = bytes.length - bais.available();
+            }
+        } catch (EOFException e) {
+            // torn record
+        }
+        return valid;
+    }
+
+    private void apply(DataInputStream dis) throws IOException {
+        int type = dis.readByte();
+        String infoHash = dis.readUTF();
+        switch (type) {
+        case ADD:
+            if (!entries.containsKey(infoHash)) {
+                entries.put(infoHash, new Entry(infoHash, dis.readInt(), dis
+                    .readInt(), dis.readInt()));
+            }
+            break;
+        case MARK:
+            Entry entry = entries.get(infoHash);
+            if (null != entry) {
+                setFlags(entry, dis.readInt(), dis.readByte());
+            }
+            break;
+        case REMOVE:
+            entries.remove(infoHash);
+            break;
+        default:
+            throw new IOException("unknown journal record " + type);
+        }
+    }
+
+    private void setFlags(Entry entry, int index, int flags) {
+        synchronized (entry) {
+            setFlagsLocked(entry, index, flags);
+        }
+    }
+
+    private void setFlagsLocked(Entry entry, int index, int flags) {
+        boolean wasStored = entry.stored.get(index);
+        if (0 != (flags & STORED)) {
+            entry.stored.set(index);
+            if (!wasStored) {
+                ++entry.numStored;
+            }
+        } else {
+            entry.stored.clear(index);
+            if (wasStored) {
+                --entry.numStored;
+            }
+        }
+        if (0 != (flags & VERIFIED)) {
+            entry.verified.set(index);
+        } else {
+            entry.verified.clear(index);
+        }
+    }
+
+    // appends record to journal, caller must hold lock
+    private void append(ByteArrayOutputStream record) throws IOException {
+        byte[] bytes = record.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 6);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            journalSize += journal.write(buffer, journalSize);
+        }
+    }
+
+    /**
+     * Gets pieces of a torrent, adding torrent to index if needed.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     * @param numPieces
+     *            number of pieces
+     * @param pieceLength
+     *            length of piece
+     * @param lastPieceLength
+     *            length of last piece
+     * @return entry of torrent
+     * @throws IOException
+     *             if journal can't be written
+     */
+    public synchronized Entry add(String infoHash, int numPieces,
+        int pieceLength, int lastPieceLength) throws IOException {
+        Entry entry = entries.get(infoHash);
+        if (null == entry) {
+            entry =
+                new Entry(infoHash, numPieces, pieceLength, lastPieceLength);
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(record);
+            dos.writeByte(ADD);
+            dos.writeUTF(infoHash);
+            dos.writeInt(numPieces);
+            dos.writeInt(pieceLength);
+            dos.writeInt(lastPieceLength);
+            append(record);
+            entries.put(infoHash, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Sets flags of a piece. Change is durable only after <code>sync()</code>.
+     *
+     * @param entry
+     *            entry of torrent
+     * @param index
+     *            piece index
+     * @param flags
+     *            combination of <tt>STORED</tt> and <tt>VERIFIED</tt>
+     * @throws IOException
+     *             if journal can't be written
+     */
+    public synchronized void mark(Entry entry, int index, int flags)
+        throws IOException {
+        if (entries.get(entry.infoHash) != entry) {
+            // removed in the meantime
+            return;
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(record);
+        dos.writeByte(MARK);
+        dos.writeUTF(entry.infoHash);
+        dos.writeInt(index);
+        dos.writeByte(flags);
+        append(record);
+        setFlags(entry, index, flags);
+    }
+
+    /**
+     * Removes torrent from index.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     * @throws IOException
+     *             if journal can't be written
+     */
+    public synchronized void remove(String infoHash) throws IOException {
+        if (null == entries.remove(infoHash)) {
+            return;
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(record);
+        dos.writeByte(REMOVE);
+        dos.writeUTF(infoHash);
+        append(record);
+    }
+
+    /**
+     * Forces appended records to disk.
+     *
+     * @throws IOException
+     *             if sync fails
+     */
+    public void sync() throws IOException {
+        FileChannel channel = journal;
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            if (channel == journal) {
+                throw e;
+            }
+            // replaced by compaction, which forced what was in it
+            journal.force(false);
+        }
+    }
+
+    /**
+     * Checks if torrent is in index.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     * @return true if torrent is in index
+     */
+    public boolean contains(String infoHash) {
+        return entries.containsKey(infoHash);
+    }
+
+    /**
+     * Checks if piece is stored.
+     *
+     * @param entry
+     *            entry of torrent
+     * @param index
+     *            piece index
+     * @return true if stored
+     */
+    public boolean isStored(Entry entry, int index) {
+        synchronized (entry) {
+            return entry.stored.get(index);
+        }
+    }
+
+    /**
+     * Checks if piece is stored and passed hash check.
+     *
+     * @param entry
+     *            entry of torrent
+     * @param index
+     *            piece index
+     * @return true if verified
+     */
+    public boolean isVerified(Entry entry, int index) {
+        synchronized (entry) {
+            return entry.verified.get(index);
+        }
+    }
+
+    /**
+     * Gets number of stored pieces.
+     *
+     * @param entry
+     *            entry of torrent
+     * @return number of stored pieces
+     */
+    public int getNumStored(Entry entry) {
+        synchronized (entry) {
+            return entry.numStored;
+        }
+    }
+
+    /**
+     * Gets copy of verified pieces bitmap of a torrent.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     * @return verified pieces or null if torrent is not in index
+     */
+    public BitField getVerified(String infoHash) {
+        Entry entry = entries.get(infoHash);
+        if (null == entry) {
+            return null;
+        }
+        BitField copy = new BitField(entry.numPieces);
+        synchronized (entry) {
+            copy.setData(entry.verified.getData().clone());
+        }
+        return copy;
+    }
+
+    /**
+     * Gets number of bytes stored for a torrent.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     * @return stored bytes
+     */
+    public long getStoredBytes(String infoHash) {
+        Entry entry = entries.get(infoHash);
+        if (null == entry) {
+            return 0;
+        }
+        synchronized (entry) {
+            long bytes = (long) entry.numStored * entry.pieceLength;
+            if (entry.stored.get(entry.numPieces - 1)) {
+                bytes -= entry.pieceLength - entry.lastPieceLength;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Gets info hashes of all torrents in index.
+     *
+     * @return info hashes
+     */
+    public List<String> getInfoHashes() {
+        return new ArrayList<String>(entries.keySet());
+    }
+
+    /**
+     * Gets size of journal.
+     *
+     * @return journal size in bytes
+     */
+    public synchronized long getJournalSize() {
+        return journalSize;
+    }
+
+    /**
+     * Writes snapshot of index and empties journal. Index is locked only
+     * while snapshot is copied in memory and while journal is replaced,
+     * records appended while snapshot is written are kept.
+     *
+     * @throws IOException
+     *             if snapshot can't be written
+     */
+    public void compact() throws IOException {
+        synchronized (compactLock) {
+            byte[] snapshot;
+            long copied;
+            synchronized (this) {
+                // changes hold the index lock, no entry can change now
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(baos);
+                dos.writeInt(VERSION);
+                dos.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    dos.writeUTF(entry.infoHash);
+                    dos.writeInt(entry.numPieces);
+                    dos.writeInt(entry.pieceLength);
+                    dos.writeInt(entry.lastPieceLength);
+                    dos.write(entry.stored.getData());
+                    dos.write(entry.verified.getData());
+                }
+                snapshot = baos.toByteArray();
+                copied = journalSize;
+            }
+            File tmp = new File(snapshotFile.getPath() + ".tmp");
+            write(tmp, ByteBuffer.wrap(snapshot));
+            synchronized (this) {
+                rename(tmp, snapshotFile);
+                if (journalSize == copied) {
+                    journal.truncate(0);
+                    journal.force(false);
+                } else {
+                    // records appended meanwhile go to new journal
+                    ByteBuffer tail =
+                        ByteBuffer.allocate((int) (journalSize - copied));
+                    while (tail.hasRemaining()) {
+                        if (journal.read(tail, copied + tail.position()) < 0) {
+                            throw new EOFException(journalFile
+                                .getAbsolutePath());
+                        }
+                    }
+                    tail.flip();
+                    tmp = new File(journalFile.getPath() + ".tmp");
+                    write(tmp, tail);
+                    FileChannel old = journal;
+                    rename(tmp, journalFile);
+                    journal =
+                        new RandomAccessFile(journalFile, "rw").getChannel();
+                    old.close();
+                }
+                journalSize = journal.size();
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("compacted " + snapshotFile.getAbsolutePath());
+        }
+    }
+
+    // writes file and forces it to disk
+    private static void write(File file, ByteBuffer buffer) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            FileChannel channel = fos.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            // some platforms can't rename over existing file
+            to.delete();
+            if (!from.renameTo(to)) {
+                throw new IOException("can't rename " + from.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Closes journal.
+     */
+    public synchronized void close() {
+        if (null != journal) {
+            try {
+                journal.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final ConcurrentHashMap<String, Entry> entries =
+        new ConcurrentHashMap<String, Entry>();
+    // only one snapshot is written at a time
+    private final Object compactLock = new Object();
+    private volatile FileChannel journal;
+    private long journalSize;
+
+}
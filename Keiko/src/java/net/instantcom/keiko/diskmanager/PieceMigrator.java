@@ -0,0 +1,49 @@
+package net.instantcom.keiko.diskmanager;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.PropertyConfigurator;
+
+import net.instantcom.keiko.bittorrent.protocol.Torrent;
+
+/**
+ * Converts disk cache from old format (one serialized <tt>.piece</tt> file
+ * per piece in <tt>torrent/&lt;infohash&gt;/</tt>) to one data file per
+ * torrent. Must not be run while server is running.
+ * <p>
+ * Conversion is optional, pieces in old format are also converted one by one
+ * as they are loaded by a running server.
+ */
+public class PieceMigrator {
+
+    private static final Log log = LogFactory.getLog(PieceMigrator.class);
+
+    public static void main(String[] args) {
+        // Configure Log4J
+        PropertyConfigurator.configure("src/conf/keiko.conf");
+
+        DiskManager diskManager = DiskManager.getInstance();
+        List<String> infoHashes = diskManager.listTorrents();
+        if (infoHashes.isEmpty()) {
+            log.info("no torrents to migrate");
+            return;
+        }
+        int total = 0;
+        for (String infoHash : infoHashes) {
+            try {
+                Torrent torrent = diskManager.loadTorrent(infoHash);
+                int count = diskManager.migrate(torrent);
+                if (count > 0) {
+                    log.info(infoHash + ": migrated " + count + " pieces");
+                }
+                total += count;
+            } catch (Exception e) {
+                log.error("error migrating " + infoHash, e);
+            }
+        }
+        log.info("migrated " + total + " pieces");
+    }
+
+}
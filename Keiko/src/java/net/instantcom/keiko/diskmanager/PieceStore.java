@@ -0,0 +1,360 @@
+package net.instantcom.keiko.diskmanager;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import net.instantcom.keiko.bittorrent.MetaInfo;
+import net.instantcom.keiko.bittorrent.cache.PieceData;
+
+/**
+ * Disk storage of pieces of a single torrent. All pieces are kept in one
+ * preallocated sparse file (<tt>&lt;infohash&gt;.data</tt>) at offset
+ * <tt>index * pieceLength</tt> and are read and written with positional
+ * <tt>FileChannel</tt> I/O. Which pieces are stored is recorded in disk's
+ * <tt>PieceIndex</tt>, so checking for a piece never touches the file system.
+ * <p>
+ * Reads and writes of different pieces may run concurrently. Stored bytes and
+ * accesses are reported to <tt>UsageIndex</tt>.
+ */
+public class PieceStore {
+
+    /**
+     * Opens (and creates if needed) storage for a torrent.
+     *
+     * @param dir
+     *            directory to keep files in
+     * @param metaInfo
+     *            torrent's meta info
+     * @param usageIndex
+     *            index to report usage to or null
+     * @param pieceIndex
+     *            index of stored pieces
+     * @throws IOException
+     *             if files can't be opened
+     */
+    public PieceStore(File dir, MetaInfo metaInfo, UsageIndex usageIndex,
+        PieceIndex pieceIndex) throws IOException {
+        String name = metaInfo.getInfoHashAsString();
+        pieceLength = metaInfo.getPieceLength();
+        lastPieceLength = metaInfo.getLastPieceLength();
+        numPieces = metaInfo.getNumPieces();
+        this.usageIndex = usageIndex;
+        usage = null == usageIndex ? null : usageIndex.getEntry(name);
+        this.pieceIndex = pieceIndex;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        RandomAccessFile raf =
+            new RandomAccessFile(new File(dir, name + ".data"), "rw");
+        long length =
+            (long) (numPieces - 1) * pieceLength
+                + metaInfo.getLastPieceLength();
+        if (raf.length() < length) {
+            // file stays sparse until pieces are written
+            raf.setLength(length);
+        }
+        dataChannel = raf.getChannel();
+
+        boolean indexed = pieceIndex.contains(name);
+        entry = pieceIndex.add(name, numPieces, pieceLength, lastPieceLength);
+        if (!indexed) {
+            importHaveFile(new File(dir, name + ".have"));
+        }
+    }
+
+    // moves stored marks from have file (one byte per piece) to index, only
+    // pieces which passed hash check were ever marked there
+    private void importHaveFile(File haveFile) throws IOException {
+        if (!haveFile.exists()) {
+            return;
+        }
+        byte[] have = new byte[(int) Math.min(haveFile.length(), numPieces)];
+        DataInputStream dis =
+            new DataInputStream(new FileInputStream(haveFile));
+        try {
+            dis.readFully(have);
+        } finally {
+            dis.close();
+        }
+        for (int i = 0; i < have.length; i++) {
+            if (0 != have[i]) {
+                pieceIndex.mark(entry, i, PieceIndex.STORED
+                    | PieceIndex.VERIFIED);
+            }
+        }
+        pieceIndex.sync();
+        haveFile.delete();
+    }
+
+    /**
+     * Checks if piece is stored.
+     *
+     * @param index
+     *            piece index
+     * @return true if stored
+     */
+    public boolean contains(int index) {
+        return pieceIndex.isStored(entry, index);
+    }
+
+    /**
+     * Checks if piece is stored and passed hash check.
+     *
+     * @param index
+     *            piece index
+     * @return true if verified
+     */
+    public boolean isVerified(int index) {
+        return pieceIndex.isVerified(entry, index);
+    }
+
+    /**
+     * Gets number of stored pieces.
+     *
+     * @return number of stored pieces
+     */
+    public int getNumStored() {
+        return pieceIndex.getNumStored(entry);
+    }
+
+    /**
+     * Reads piece into specified storage.
+     *
+     * @param index
+     *            piece index
+     * @param data
+     *            storage of piece size
+     * @return true if piece was read, false if it isn't stored
+     * @throws IOException
+     *             if read fails
+     */
+    public boolean read(int index, PieceData data) throws IOException {
+        if (!contains(index)) {
+            return false;
+        }
+        data.readFrom(dataChannel, getOffset(index));
+        touch();
+        return true;
+    }
+
+    /**
+     * Reads part of stored piece. Buffer is filled from its position to its
+     * limit.
+     *
+     * @param index
+     *            piece index
+     * @param offset
+     *            offset in piece
+     * @param dst
+     *            destination buffer
+     * @throws IOException
+     *             if read fails
+     */
+    public void read(int index, int offset, ByteBuffer dst)
+        throws IOException {
+        long position = getOffset(index) + offset;
+        while (dst.hasRemaining()) {
+            int n = dataChannel.read(dst, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+        touch();
+    }
+
+    /**
+     * Transfers part of stored piece directly to specified channel. If target
+     * is a socket channel operating system can send data from file cache
+     * without copying it to user space.
+     *
+     * @param index
+     *            piece index
+     * @param offset
+     *            offset in piece
+     * @param length
+     *            number of bytes to transfer
+     * @param target
+     *            target channel
+     * @throws IOException
+     *             if transfer fails
+     */
+    public void transferTo(int index, int offset, int length,
+        WritableByteChannel target) throws IOException {
+        long position = getOffset(index) + offset;
+        while (length > 0) {
+            long n = dataChannel.transferTo(position, length, target);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            position += n;
+            length -= n;
+        }
+        touch();
+    }
+
+    /**
+     * Writes piece and marks it as stored. Nothing is synced to disk, see
+     * <code>writeData()</code> for durable writes.
+     *
+     * @param index
+     *            piece index
+     * @param data
+     *            piece data
+     * @param verified
+     *            true if piece passed hash check
+     * @throws IOException
+     *             if write fails
+     */
+    public void write(int index, PieceData data, boolean verified)
+        throws IOException {
+        writeData(index, data);
+        markStored(index, verified);
+    }
+
+    /**
+     * Writes piece data without marking piece as stored. To store piece
+     * durably write its data, call <code>syncData()</code>, mark it with
+     * <code>markStored()</code> and finally sync piece index.
+     *
+     * @param index
+     *            piece index
+     * @param data
+     *            piece data
+     * @throws IOException
+     *             if write fails
+     */
+    public void writeData(int index, PieceData data) throws IOException {
+        data.writeTo(dataChannel, getOffset(index));
+    }
+
+    /**
+     * Marks piece as stored.
+     *
+     * @param index
+     *            piece index
+     * @param verified
+     *            true if piece passed hash check
+     * @throws IOException
+     *             if index can't be written
+     */
+    public synchronized void markStored(int index, boolean verified)
+        throws IOException {
+        boolean wasStored = contains(index);
+        if (wasStored && verified == isVerified(index)) {
+            return;
+        }
+        pieceIndex.mark(entry, index, verified ? PieceIndex.STORED
+            | PieceIndex.VERIFIED : PieceIndex.STORED);
+        if (!wasStored && null != usage) {
+            usageIndex.stored(usage, index < numPieces - 1 ? pieceLength
+                : lastPieceLength);
+        }
+    }
+
+    /**
+     * Marks piece as not stored, e.g. when its data failed hash check. Its
+     * space in data file is reused when piece is written again.
+     *
+     * @param index
+     *            piece index
+     * @throws IOException
+     *             if index can't be written
+     */
+    public synchronized void unmarkStored(int index) throws IOException {
+        if (!contains(index)) {
+            return;
+        }
+        pieceIndex.mark(entry, index, 0);
+        if (null != usage) {
+            usageIndex.stored(usage, index < numPieces - 1 ? -pieceLength
+                : -lastPieceLength);
+        }
+    }
+
+    /**
+     * Forces written piece data to disk.
+     *
+     * @throws IOException
+     *             if sync fails
+     */
+    public void syncData() throws IOException {
+        dataChannel.force(false);
+    }
+
+    /**
+     * Gets index which keeps stored marks. Stored marks are durable once
+     * index is synced.
+     *
+     * @return piece index
+     */
+    public PieceIndex getPieceIndex() {
+        return pieceIndex;
+    }
+
+    /**
+     * Checks if store was closed, such as because torrent was evicted. Reads
+     * from closed store fail with <code>ClosedChannelException</code>.
+     *
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return !dataChannel.isOpen();
+    }
+
+    /**
+     * Closes files.
+     */
+    public void close() {
+        try {
+            dataChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Gets offset of piece in data file.
+     *
+     * @param index
+     *            piece index
+     * @return offset in bytes
+     */
+    public long getOffset(int index) {
+        if (index < 0 || index >= numPieces) {
+            throw new IndexOutOfBoundsException("piece " + index);
+        }
+        return (long) index * pieceLength;
+    }
+
+    private void touch() {
+        if (null != usage) {
+            usageIndex.touch(usage);
+        }
+    }
+
+    /**
+     * Gets channel of data file, used for reading pieces directly.
+     *
+     * @return data channel
+     */
+    public FileChannel getDataChannel() {
+        return dataChannel;
+    }
+
+    private final int pieceLength;
+    private final int lastPieceLength;
+    private final int numPieces;
+    private final UsageIndex usageIndex;
+    private final UsageIndex.Entry usage;
+    private final PieceIndex pieceIndex;
+    private final PieceIndex.Entry entry;
+    private final FileChannel dataChannel;
+
+}
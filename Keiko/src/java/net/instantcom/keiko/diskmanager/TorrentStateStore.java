@@ -0,0 +1,183 @@
+package net.instantcom.keiko.diskmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.instantcom.keiko.bittorrent.MetaInfo;
+import net.instantcom.keiko.bittorrent.protocol.Torrent;
+import net.instantcom.util.BitField;
+
+/**
+ * Keeps state of every torrent in its own files, so torrents are saved and
+ * loaded one by one. Each torrent has two files in
+ * <tt>state/&lt;first two chars of infohash&gt;/</tt>:
+ * <ul>
+ * <li><tt>&lt;infohash&gt;.meta</tt> - serialized meta info, written once
+ * <li><tt>&lt;infohash&gt;.state</tt> - have bits, seed flag and transfer
+ * counters, rewritten when torrent changes
+ * </ul>
+ * Files are written to a temporary file which then replaces old one, so a
+ * crash leaves either old or new state.
+ */
+final class TorrentStateStore {
+
+    private static final int VERSION = 1;
+
+    TorrentStateStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Lists all stored torrents.
+     *
+     * @return info hashes of torrents
+     */
+    List<String> list() {
+        List<String> infoHashes = new ArrayList<String>();
+        File[] buckets = dir.listFiles();
+        if (null == buckets) {
+            return infoHashes;
+        }
+        for (File bucket : buckets) {
+            String[] names = bucket.list();
+            if (null == names) {
+                continue;
+            }
+            for (String name : names) {
+                if (name.endsWith(".state")) {
+                    infoHashes.add(name.substring(0, name.length() - 6));
+                }
+            }
+        }
+        return infoHashes;
+    }
+
+    /**
+     * Loads torrent.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     * @return loaded torrent, not started
+     * @throws IOException
+     *             if torrent can't be loaded
+     */
+    Torrent load(String infoHash) throws IOException {
+        MetaInfo metaInfo;
+        ObjectInputStream ois =
+            new ObjectInputStream(new BufferedInputStream(new FileInputStream(
+                getFile(infoHash, ".meta"))));
+        try {
+            metaInfo = (MetaInfo) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e.toString());
+        } finally {
+            ois.close();
+        }
+        Torrent torrent = new Torrent(metaInfo);
+        DataInputStream dis =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(
+                getFile(infoHash, ".state"))));
+        try {
+            if (VERSION != dis.readInt()) {
+                throw new IOException("unknown state version of " + infoHash);
+            }
+            BitField have = new BitField(metaInfo.getNumPieces());
+            byte[] bits = new byte[have.getData().length];
+            boolean amSeed = dis.readBoolean();
+            long downloaded = dis.readLong();
+            long uploaded = dis.readLong();
+            dis.readFully(bits);
+            have.setData(bits);
+            torrent.restoreState(have, amSeed, downloaded, uploaded);
+        } finally {
+            dis.close();
+        }
+        return torrent;
+    }
+
+    /**
+     * Saves torrent. Meta info is written only if it's not saved yet.
+     *
+     * @param torrent
+     *            torrent
+     * @throws IOException
+     *             if torrent can't be saved
+     */
+    void save(Torrent torrent) throws IOException {
+        String infoHash = torrent.getMetaInfo().getInfoHashAsString();
+        File metaFile = getFile(infoHash, ".meta");
+        if (!metaFile.exists()) {
+            metaFile.getParentFile().mkdirs();
+            File tmp = new File(metaFile.getPath() + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            ObjectOutputStream oos =
+                new ObjectOutputStream(new BufferedOutputStream(fos));
+            try {
+                oos.writeObject(torrent.getMetaInfo());
+                oos.flush();
+                fos.getFD().sync();
+            } finally {
+                oos.close();
+            }
+            replace(tmp, metaFile);
+        }
+
+        File stateFile = getFile(infoHash, ".state");
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream dos =
+            new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            dos.writeInt(VERSION);
+            dos.writeBoolean(torrent.isCompleted());
+            dos.writeLong(torrent.getBytesDownloaded());
+            dos.writeLong(torrent.getBytesUploaded());
+            dos.write(torrent.getHavePieces().getData());
+            dos.flush();
+            fos.getFD().sync();
+        } finally {
+            dos.close();
+        }
+        replace(tmp, stateFile);
+    }
+
+    /**
+     * Deletes files of a torrent.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     */
+    void delete(String infoHash) {
+        // state first, torrent without state file is not listed
+        getFile(infoHash, ".state").delete();
+        getFile(infoHash, ".meta").delete();
+    }
+
+    private void replace(File tmp, File file) throws IOException {
+        if (!tmp.renameTo(file)) {
+            // some platforms can't rename over existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("can't rename " + tmp.getAbsolutePath());
+            }
+        }
+    }
+
+    private File getFile(String infoHash, String suffix) {
+        return new File(new File(dir, infoHash.substring(0, 2)), infoHash
+            + suffix);
+    }
+
+    private final File dir;
+
+}
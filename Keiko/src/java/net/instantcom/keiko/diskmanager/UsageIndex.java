@@ -0,0 +1,245 @@
+package net.instantcom.keiko.diskmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index of disk usage and last access time of every torrent on disk. Index is
+ * updated in memory as pieces are stored and accessed and is saved to disk
+ * periodically, so current usage is known without walking directories.
+ * <p>
+ * This class is thread safe.
+ */
+public class UsageIndex {
+
+    private static final int VERSION = 1;
+
+    /**
+     * Usage of a single torrent.
+     */
+    public static final class Entry {
+
+        private Entry(String infoHash) {
+            this.infoHash = infoHash;
+        }
+
+        public String getInfoHash() {
+            return infoHash;
+        }
+
+        public long getStoredBytes() {
+            return storedBytes;
+        }
+
+        public long getLastAccessTime() {
+            return lastAccessTime;
+        }
+
+        private final String infoHash;
+        private volatile long storedBytes;
+        private volatile long lastAccessTime;
+
+    }
+
+    /**
+     * Creates new index kept in specified file.
+     *
+     * @param file
+     *            index file
+     */
+    public UsageIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads index from its file.
+     *
+     * @return true if index was loaded, false if there is no index file
+     * @throws IOException
+     *             if file can't be read
+     */
+    public synchronized boolean load() throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        DataInputStream dis =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try {
+            if (VERSION != dis.readInt()) {
+                return false;
+            }
+            int count = dis.readInt();
+            entries.clear();
+            totalBytes = 0;
+            for (int i = 0; i < count; i++) {
+                Entry entry = getEntry(dis.readUTF());
+                entry.storedBytes = dis.readLong();
+                entry.lastAccessTime = dis.readLong();
+                totalBytes += entry.storedBytes;
+            }
+        } finally {
+            dis.close();
+        }
+        dirty = false;
+        return true;
+    }
+
+    /**
+     * Saves index if it was changed since it was last saved or loaded. Index is
+     * written to temporary file which then replaces old index.
+     *
+     * @throws IOException
+     *             if file can't be written
+     */
+    public void save() throws IOException {
+        List<Entry> snapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            snapshot = new ArrayList<Entry>(entries.values());
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream dos =
+            new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            dos.writeInt(VERSION);
+            dos.writeInt(snapshot.size());
+            for (Entry entry : snapshot) {
+                dos.writeUTF(entry.infoHash);
+                dos.writeLong(entry.storedBytes);
+                dos.writeLong(entry.lastAccessTime);
+            }
+        } finally {
+            dos.close();
+        }
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            dirty = true;
+            throw new IOException("can't rename " + tmp.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Gets usage of specified torrent, creating it if needed.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     * @return usage
+     */
+    public synchronized Entry getEntry(String infoHash) {
+        Entry entry = entries.get(infoHash);
+        if (null == entry) {
+            entry = new Entry(infoHash);
+            entry.lastAccessTime = System.currentTimeMillis();
+            entries.put(infoHash, entry);
+            dirty = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Checks if torrent is in index.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     * @return true if torrent has some data stored
+     */
+    public synchronized boolean contains(String infoHash) {
+        return entries.containsKey(infoHash);
+    }
+
+    /**
+     * Records that bytes were stored for a torrent.
+     *
+     * @param entry
+     *            torrent's usage
+     * @param bytes
+     *            number of bytes stored
+     */
+    public synchronized void stored(Entry entry, long bytes) {
+        entry.storedBytes += bytes;
+        entry.lastAccessTime = System.currentTimeMillis();
+        totalBytes += bytes;
+        dirty = true;
+    }
+
+    /**
+     * Records that torrent's data was used. Doesn't lock so it's cheap enough
+     * to be called on every read.
+     *
+     * @param entry
+     *            torrent's usage
+     */
+    public void touch(Entry entry) {
+        entry.lastAccessTime = System.currentTimeMillis();
+        dirty = true;
+    }
+
+    /**
+     * Removes torrent from index.
+     *
+     * @param infoHash
+     *            info hash of torrent
+     */
+    public synchronized void remove(String infoHash) {
+        Entry entry = entries.remove(infoHash);
+        if (null != entry) {
+            totalBytes -= entry.storedBytes;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Gets number of bytes stored for all torrents.
+     *
+     * @return total bytes
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Gets all torrents, least recently accessed first.
+     *
+     * @return entries sorted by last access time
+     */
+    public List<Entry> getEldestFirst() {
+        // access times keep changing, sort a snapshot of them
+        final HashMap<Entry, Long> times = new HashMap<Entry, Long>();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                times.put(entry, entry.lastAccessTime);
+            }
+        }
+        List<Entry> list = new ArrayList<Entry>(times.keySet());
+        Collections.sort(list, new Comparator<Entry>() {
+
+            public int compare(Entry e1, Entry e2) {
+                return times.get(e1).compareTo(times.get(e2));
+            }
+
+        });
+        return list;
+    }
+
+    private final File file;
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private long totalBytes;
+    private volatile boolean dirty;
+
+}
@@ -0,0 +1,239 @@
+package net.instantcom.keiko.diskmanager;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.instantcom.keiko.bittorrent.protocol.Piece;
+import net.instantcom.util.LongObjectMap;
+
+/**
+ * Write-behind queue of completed pieces for a single disk. Pieces are written
+ * by dedicated writer threads so threads talking to peers never wait for disk.
+ * <p>
+ * Each writer takes a batch of queued pieces, writes their data, syncs every
+ * touched data file once, then marks pieces as stored and syncs piece index
+ * once. Piece is flagged as saved only after both syncs, so a crash can never
+ * leave a piece marked as stored with its data missing.
+ * <p>
+ * Queue is bounded softly: <code>offer()</code> never blocks, but once queue
+ * holds <tt>capacity</tt> pieces <code>isFull()</code> tells piece picker to
+ * stop starting new pieces until writers catch up.
+ */
+public class WriteQueue {
+
+    private static final Log log = LogFactory.getLog(WriteQueue.class);
+
+    private static final int MAX_BATCH = 16;
+
+    private static final class Entry {
+
+        private Entry(long key, Piece piece, PieceStore store) {
+            this.key = key;
+            this.piece = piece;
+            this.store = store;
+        }
+
+        private final long key;
+        private final Piece piece;
+        private final PieceStore store;
+
+    }
+
+    /**
+     * Creates new queue and starts its writer threads.
+     *
+     * @param disk
+     *            disk which gets notified about write errors, may be null
+     * @param name
+     *            name used for writer threads
+     * @param numWriters
+     *            number of writer threads
+     * @param capacity
+     *            number of queued pieces at which queue is considered full
+     */
+    WriteQueue(CacheDisk disk, String name, int numWriters, int capacity) {
+        this.disk = disk;
+        this.capacity = capacity;
+        for (int i = 0; i < numWriters; i++) {
+            Thread writer = new Thread(name + " writer " + i) {
+
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+
+            };
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Queues piece for writing. Piece is retained until it's written.
+     *
+     * @param key
+     *            key of piece, unique among all torrents
+     * @param piece
+     *            complete piece
+     * @param store
+     *            storage of piece's torrent
+     * @return true if queued, false if piece is already queued
+     */
+    public synchronized boolean offer(long key, Piece piece, PieceStore store) {
+        if (pending.containsKey(key)) {
+            return false;
+        }
+        Entry entry = new Entry(key, piece.retain(), store);
+        pending.put(key, entry);
+        queue.offer(entry);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Gets piece which is queued or being written. Returned piece is retained
+     * and caller must release it.
+     *
+     * @param key
+     *            key of piece
+     * @return retained piece or null if piece is not pending
+     */
+    public synchronized Piece getPending(long key) {
+        Entry entry = pending.get(key);
+        return null == entry ? null : entry.piece.retain();
+    }
+
+    /**
+     * Checks if writers are falling behind.
+     *
+     * @return true if no new pieces should be started
+     */
+    public synchronized boolean isFull() {
+        return pending.size() >= capacity;
+    }
+
+    /**
+     * Gets number of pieces waiting to be written or being written.
+     *
+     * @return number of pending pieces
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Waits until all pending pieces are written.
+     *
+     * @param timeout
+     *            max time to wait in milliseconds
+     * @return true if queue is empty
+     */
+    public synchronized boolean flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!pending.isEmpty()) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<Entry>(MAX_BATCH);
+        while (true) {
+            synchronized (this) {
+                while (queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                while (batch.size() < MAX_BATCH && !queue.isEmpty()) {
+                    batch.add(queue.poll());
+                }
+            }
+            write(batch);
+            synchronized (this) {
+                for (Entry entry : batch) {
+                    pending.remove(entry.key);
+                }
+                notifyAll();
+            }
+            for (Entry entry : batch) {
+                entry.piece.release();
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(List<Entry> batch) {
+        IdentityHashMap<PieceStore, Boolean> stores =
+            new IdentityHashMap<PieceStore, Boolean>();
+        List<Entry> written = new ArrayList<Entry>(batch.size());
+        for (Entry entry : batch) {
+            try {
+                entry.store.writeData(entry.piece.getIndex(), entry.piece
+                    .getPieceData());
+                stores.put(entry.store, Boolean.TRUE);
+                written.add(entry);
+            } catch (IOException e) {
+                log.error("error writing piece " + entry.piece.getIndex(), e);
+                if (null != disk) {
+                    disk.ioFailed(e);
+                }
+            }
+        }
+        try {
+            // one sync per file for the whole batch
+            for (PieceStore store : stores.keySet()) {
+                store.syncData();
+            }
+            // stores of a disk share one index
+            IdentityHashMap<PieceIndex, Boolean> indexes =
+                new IdentityHashMap<PieceIndex, Boolean>();
+            for (Entry entry : written) {
+                // only pieces which passed hash check are saved
+                entry.store.markStored(entry.piece.getIndex(), true);
+                indexes.put(entry.store.getPieceIndex(), Boolean.TRUE);
+            }
+            for (PieceIndex index : indexes.keySet()) {
+                index.sync();
+            }
+        } catch (IOException e) {
+            log.error("error syncing pieces", e);
+            if (null != disk) {
+                disk.ioFailed(e);
+            }
+            return;
+        }
+        if (null != disk && !written.isEmpty()) {
+            disk.ioSucceeded();
+        }
+        for (Entry entry : written) {
+            entry.piece.setSaved(true);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("saved " + written.size() + " pieces");
+        }
+    }
+
+    private final CacheDisk disk;
+    private final int capacity;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+    private final LongObjectMap<Entry> pending = new LongObjectMap<Entry>();
+
+}
@@ -1,5 +1,7 @@
 package net.instantcom.keiko.ipfilter;
 
+import java.net.Inet4Address;
+
 public class IP implements Comparable<IP> {
 
     /**
@@ -11,24 +13,47 @@ public class IP implements Comparable<IP> {
      *             if specified IP is not a valid IP
      */
     public IP(String ip) throws IllegalArgumentException {
-        // convert to 000.000.000.000 format
-        StringBuffer sb = new StringBuffer();
-        int count = 0;
-        for (String s : ip.split("\\.")) {
-            if (3 != s.length()) {
-                s = "000" + s;
-                s = s.substring(s.length() - 3);
+        String[] parts = ip.split("\\.");
+        if (4 != parts.length) {
+            throw new IllegalArgumentException(ip + " is not valid IP");
+        }
+        long value = 0;
+        for (String s : parts) {
+            int b;
+            try {
+                b = Integer.parseInt(s.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(ip + " is not valid IP");
             }
-            sb.append(s);
-            if (count < 3) {
-                sb.append(".");
+            if (b < 0 || b > 255) {
+                throw new IllegalArgumentException(ip + " is not valid IP");
             }
-            ++count;
+            value = (value << 8) | b;
         }
-        if (4 != count) {
-            throw new IllegalArgumentException(ip + " is not valid IP");
-        }
-        this.ip = sb.toString();
+        this.value = value;
+    }
+
+    /**
+     * Creates new IP from IPv4 address.
+     * 
+     * @param address
+     *            address
+     */
+    public IP(Inet4Address address) {
+        this.value = toLong(address);
+    }
+
+    /**
+     * Converts IPv4 address to number, first byte being the most significant.
+     * 
+     * @param address
+     *            address
+     * @return IP as number from 0 to 2^32 - 1
+     */
+    public static long toLong(Inet4Address address) {
+        byte[] b = address.getAddress();
+        return ((b[0] & 0xffL) << 24) | ((b[1] & 0xff) << 16)
+            | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
     }
 
     /**
@@ -37,7 +62,30 @@ public class IP implements Comparable<IP> {
      * @return ip in 000.000.000.000 format
      */
     public String getIP() {
-        return ip;
+        StringBuilder sb = new StringBuilder(15);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            int b = (int) (value >>> shift) & 0xff;
+            if (b < 100) {
+                sb.append('0');
+            }
+            if (b < 10) {
+                sb.append('0');
+            }
+            sb.append(b);
+            if (shift > 0) {
+                sb.append('.');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets IP as number.
+     * 
+     * @return IP as number from 0 to 2^32 - 1
+     */
+    public long getValue() {
+        return value;
     }
 
     /*
@@ -47,7 +95,7 @@ public class IP implements Comparable<IP> {
      */
     @Override
     public int compareTo(IP other) {
-        return ip.compareTo(other.getIP());
+        return value < other.value ? -1 : (value == other.value ? 0 : 1);
     }
 
     /*
@@ -57,9 +105,9 @@ public class IP implements Comparable<IP> {
      */
     @Override
     public String toString() {
-        return ip;
+        return getIP();
     }
 
-    private String ip;
+    private final long value;
 
 }
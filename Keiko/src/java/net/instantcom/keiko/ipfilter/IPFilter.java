@@ -1,7 +1,10 @@
 package net.instantcom.keiko.ipfilter;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -11,7 +14,11 @@ public final class IPFilter {
     private static final Log log = LogFactory.getLog(IPFilter.class);
     private static final IPFilter instance = new IPFilter();
 
-    private IPFilter() {
+    /**
+     * Creates new empty list of IP ranges, such as for ranges other than the
+     * blocking list.
+     */
+    public IPFilter() {
     }
 
     /**
@@ -49,6 +56,8 @@ public final class IPFilter {
         if (null == list) {
             return;
         }
+        // added at once, each add copies the list
+        ArrayList<IPRange> parsed = new ArrayList<IPRange>();
         for (String s : list.split(",")) {
             try {
                 int dash = s.indexOf('-');
@@ -56,15 +65,17 @@ public final class IPFilter {
                     // ip range
                     IP start = new IP(s.substring(0, dash).trim());
                     IP end = new IP(s.substring(1 + dash).trim());
-                    add(new IPRange(start, end));
+                    parsed.add(new IPRange(start, end));
                 } else {
                     // single ip
-                    add(new IP(s.trim()));
+                    IP ip = new IP(s.trim());
+                    parsed.add(new IPRange(ip, ip));
                 }
             } catch (Exception e) {
                 log.warn("'" + s + "' is not valid IP nor IP range");
             }
         }
+        ranges.addAll(parsed);
     }
 
     /**
@@ -95,14 +106,57 @@ public final class IPFilter {
      * @return true if filter is blocking specified IP
      */
     public boolean isBlocking(IP ip) {
+        return contains(ip);
+    }
+
+    /**
+     * Checks if filter is blocking specified address. Only IPv4 addresses can
+     * be blocked.
+     * 
+     * @param address
+     *            address to check
+     * @return true if filter is blocking specified address
+     */
+    public boolean isBlocking(InetAddress address) {
+        return contains(address);
+    }
+
+    /**
+     * Checks if specified IP is in any of ranges.
+     * 
+     * @param ip
+     *            IP to check
+     * @return true if IP is in list
+     */
+    public boolean contains(IP ip) {
+        return contains(ip.getValue());
+    }
+
+    /**
+     * Checks if specified address is in any of ranges, without converting it
+     * to String.
+     * 
+     * @param address
+     *            address to check
+     * @return true if address is IPv4 and in list
+     */
+    public boolean contains(InetAddress address) {
+        if (!(address instanceof Inet4Address) || ranges.isEmpty()) {
+            return false;
+        }
+        return contains(IP.toLong((Inet4Address) address));
+    }
+
+    private boolean contains(long ip) {
         for (IPRange range : ranges) {
-            if (range.isBlocking(ip)) {
+            if (range.contains(ip)) {
                 return true;
             }
         }
         return false;
     }
 
-    private final List<IPRange> ranges = new ArrayList<IPRange>();
+    // read by acceptors and handshakes while peer may be banned
+    private final List<IPRange> ranges = new CopyOnWriteArrayList<IPRange>();
 
 }
@@ -15,7 +15,7 @@ public class IPRange {
         this.end = end;
         if (start.compareTo(end) > 0) {
             throw new IllegalArgumentException("start > end : " + start + "-"
-                + start);
+                + end);
         }
     }
 
@@ -45,10 +45,21 @@ public class IPRange {
      * @return true if blocking
      */
     public boolean isBlocking(IP ip) {
-        return start.compareTo(ip) <= 0 && end.compareTo(ip) >= 0;
+        return contains(ip.getValue());
     }
 
-    private IP start;
-    private IP end;
+    /**
+     * Checks if IP is in this range.
+     * 
+     * @param ip
+     *            IP as number
+     * @return true if IP is in range
+     */
+    public boolean contains(long ip) {
+        return start.getValue() <= ip && end.getValue() >= ip;
+    }
+
+    private final IP start;
+    private final IP end;
 
 }
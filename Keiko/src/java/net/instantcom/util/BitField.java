@@ -1,6 +1,7 @@
 package net.instantcom.util;
 
 import java.io.Serializable;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class BitField implements Serializable {
 
@@ -12,6 +13,16 @@ public class BitField implements Serializable {
         0xff, 0x80, 0xc0, 0xe0, 0xf0, 0xf8, 0xfc, 0xfe
     };
 
+    // setters share a few locks instead of using monitor of each bitfield,
+    // monitors pin virtual threads and a lock per bitfield costs memory
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
     public BitField(int size) {
         this.size = size;
         int arraySize = size / 8;
@@ -26,29 +37,57 @@ public class BitField implements Serializable {
         data[data.length - 1] &= LAST_BYTE_FIX[size & 7];
     }
 
-    public synchronized void clearAll() {
-        for (int i = 0; i < data.length; i++) {
-            data[i] = 0x00;
+    public void clearAll() {
+        ReentrantLock lock = getLock();
+        lock.lock();
+        try {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = 0x00;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized void setAll() {
-        for (int i = 0; i < data.length; i++) {
-            data[i] = (byte) 0xff;
+    public void setAll() {
+        ReentrantLock lock = getLock();
+        lock.lock();
+        try {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) 0xff;
+            }
+            fixLastByte();
+        } finally {
+            lock.unlock();
         }
-        fixLastByte();
     }
 
     public boolean get(int index) {
         return 0 != (data[index / 8] & BITS[index & 7]);
     }
 
-    public synchronized void clear(int index) {
-        data[index / 8] &= ~BITS[index & 7];
+    public void clear(int index) {
+        ReentrantLock lock = getLock();
+        lock.lock();
+        try {
+            data[index / 8] &= ~BITS[index & 7];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void set(int index) {
+        ReentrantLock lock = getLock();
+        lock.lock();
+        try {
+            data[index / 8] |= BITS[index & 7];
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void set(int index) {
-        data[index / 8] |= BITS[index & 7];
+    private ReentrantLock getLock() {
+        return LOCKS[System.identityHashCode(this) & (LOCKS.length - 1)];
     }
 
     public int getSize() {
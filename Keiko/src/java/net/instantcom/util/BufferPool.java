@@ -0,0 +1,78 @@
+package net.instantcom.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of equally sized byte buffers. Buffers are created on demand and up to
+ * specified number of released buffers is kept for reuse, the rest is left to
+ * garbage collector. Taking a pooled buffer and giving it back allocates
+ * nothing.
+ * <p>
+ * This class is thread safe.
+ */
+public class BufferPool {
+
+    /**
+     * Creates new pool.
+     *
+     * @param bufferSize
+     *            size of each buffer in bytes
+     * @param maxPooled
+     *            max number of idle buffers kept in pool
+     * @param direct
+     *            true to create direct buffers, false for heap buffers
+     */
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        pool = new ByteBuffer[maxPooled];
+    }
+
+    /**
+     * Gets a cleared buffer from pool or creates new one if pool is empty.
+     *
+     * @return buffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = null;
+        synchronized (pool) {
+            if (pooled > 0) {
+                buffer = pool[--pooled];
+                pool[pooled] = null;
+            }
+        }
+        if (null == buffer) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer
+                .allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives buffer back to pool. Buffer must not be used after this call.
+     *
+     * @param buffer
+     *            buffer acquired from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) {
+            throw new IllegalArgumentException("buffer not from this pool");
+        }
+        synchronized (pool) {
+            if (pooled < pool.length) {
+                pool[pooled++] = buffer;
+            }
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final ByteBuffer[] pool;
+    private int pooled;
+
+}
@@ -0,0 +1,100 @@
+package net.instantcom.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in milliseconds with power of two buckets: bucket 0
+ * counts durations under 1 ms, bucket i durations from 2^(i-1) up to 2^i ms
+ * and last bucket everything longer. Percentiles are reported as upper bound
+ * of their bucket, which is precise enough to tell 5 ms from 500 ms.
+ * <p>
+ * This class is thread safe, recording doesn't lock.
+ */
+public class Histogram {
+
+    // last bucket is 2^16 ms (about a minute) and longer
+    private static final int NUM_BUCKETS = 18;
+
+    /**
+     * Records a duration.
+     *
+     * @param millis
+     *            duration in milliseconds
+     */
+    public void record(long millis) {
+        int bucket =
+            millis <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+        buckets.incrementAndGet(Math.min(bucket, NUM_BUCKETS - 1));
+    }
+
+    /**
+     * Gets number of recorded durations.
+     *
+     * @return count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Gets duration which specified share of recorded durations doesn't
+     * exceed.
+     *
+     * @param percentile
+     *            percentile, 0 to 100
+     * @return upper bound of bucket in milliseconds, 0 if nothing was
+     *         recorded or Long.MAX_VALUE if it's in last bucket
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[NUM_BUCKETS];
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (0 == count) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Gets number of durations in each bucket.
+     *
+     * @return counts, index is bucket
+     */
+    public long[] getBuckets() {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " p50<=" + format(getPercentile(50))
+            + " p90<=" + format(getPercentile(90)) + " p99<="
+            + format(getPercentile(99));
+    }
+
+    private static String format(long millis) {
+        return Long.MAX_VALUE == millis ? ">" + (1L << (NUM_BUCKETS - 2))
+            + "ms" : millis + "ms";
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+}
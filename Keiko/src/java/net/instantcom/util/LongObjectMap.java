@@ -0,0 +1,198 @@
+package net.instantcom.util;
+
+/**
+ * Hash map with primitive long keys. Keys are not boxed and no entry objects
+ * are created, so it's suitable for large maps kept alive for a long time.
+ * <p>
+ * Uses open addressing with linear probing. Null values are not allowed.
+ * This class is not synchronized.
+ *
+ * @param <V>
+ *            type of values
+ */
+public class LongObjectMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Creates new map.
+     */
+    public LongObjectMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates new map able to hold specified number of entries without
+     * resizing.
+     *
+     * @param expectedSize
+     *            expected number of entries
+     */
+    public LongObjectMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Combines two ints into a single long key.
+     *
+     * @param high
+     *            high 32 bits
+     * @param low
+     *            low 32 bits
+     * @return key
+     */
+    public static long key(int high, int low) {
+        return ((long) high << 32) | (low & 0xffffffffL);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return 0 == size;
+    }
+
+    public boolean containsKey(long key) {
+        return null != get(key);
+    }
+
+    /**
+     * Gets value for specified key.
+     *
+     * @param key
+     *            key
+     * @return value or null if there is no such key
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    /**
+     * Puts value for specified key.
+     *
+     * @param key
+     *            key
+     * @param value
+     *            value, must not be null
+     * @return previous value or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (null == value) {
+            throw new NullPointerException("value == null");
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (null != values[i]) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > threshold) {
+            resize(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Removes value for specified key.
+     *
+     * @param key
+     *            key
+     * @return removed value or null if there was no such key
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        V old = (V) values[i];
+        // shift following entries back so probing chains stay unbroken
+        int mask = keys.length - 1;
+        int hole = i;
+        int j = (i + 1) & mask;
+        while (null != values[j]) {
+            int home = hash(keys[j]) & mask;
+            // move entry if its home slot is not between hole and j
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        values[hole] = null;
+        --size;
+        return old;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    private int indexOf(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (null != values[i]) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (null != oldValues[i]) {
+                int j = hash(oldKeys[i]) & mask;
+                while (null != values[j]) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        threshold = (capacity * 3) / 4;
+    }
+
+    private static int hash(long key) {
+        // spread bits, keys often differ only in low bits of each half
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int threshold;
+
+}
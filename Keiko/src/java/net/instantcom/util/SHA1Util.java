@@ -45,4 +45,16 @@ public abstract class SHA1Util {
         return sb.toString();
     }
 
+    public static byte[] convertFromString(String s) {
+        if (null == s) {
+            return null;
+        }
+        byte[] data = new byte[s.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] =
+                (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return data;
+    }
+
 }
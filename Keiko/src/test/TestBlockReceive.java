@@ -0,0 +1,188 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import net.instantcom.keiko.bittorrent.MetaInfo;
+import net.instantcom.keiko.bittorrent.protocol.Piece;
+import net.instantcom.keiko.bittorrent.protocol.Torrent;
+import net.instantcom.keiko.bittorrent.protocol.nio.MessageHandler;
+import net.instantcom.keiko.bittorrent.protocol.nio.MessageProcessor;
+import net.instantcom.util.BufferPool;
+
+/**
+ * Checks that receiving blocks into a piece allocates nothing per block, both
+ * when blocks are parsed from event loop's buffer and when they are read from
+ * a blocking stream into pooled buffers. Skipped on JVMs which can't measure
+ * allocations per thread.
+ */
+public class TestBlockReceive extends TestCase {
+
+    private static final int PIECE_LENGTH = 1024 * 1024;
+    private static final int BLOCKS = 20000;
+
+    private static class Receiver implements MessageHandler {
+
+        public void onError() {
+            throw new IllegalStateException();
+        }
+
+        public void onKeepAlive() {
+        }
+
+        public void onChoke() {
+        }
+
+        public void onUnchoke() {
+        }
+
+        public void onInterested() {
+        }
+
+        public void onNotInterested() {
+        }
+
+        public void onBitfield(ByteBuffer bitfield) {
+        }
+
+        public void onHave(int pieceIndex) {
+        }
+
+        public void onRequest(int pieceIndex, int blockOffset,
+            int blockLength) {
+        }
+
+        public void onPiece(int pieceIndex, int blockOffset,
+            ByteBuffer blockData) {
+            piece.writeBlock(blockOffset, blockData);
+            ++received;
+        }
+
+        public void onCancel(int pieceIndex, int blockOffset, int blockLength) {
+        }
+
+        public void onPort(short port) {
+        }
+
+        private Piece piece;
+        private int received;
+
+    }
+
+    public void test() throws Exception {
+        com.sun.management.ThreadMXBean threads = getThreadMXBean();
+        if (null == threads) {
+            // allocation counting not supported
+            return;
+        }
+        long id = Thread.currentThread().getId();
+
+        MetaInfo metaInfo = new MetaInfo();
+        metaInfo.setInfoHash(new byte[20]);
+        metaInfo.setPieceLength(PIECE_LENGTH);
+        metaInfo.setLastPieceLength(PIECE_LENGTH);
+        metaInfo.setPiecesSHA1(new byte[20]);
+        Torrent torrent = new Torrent(metaInfo);
+        Piece piece = new Piece(torrent, 0, true);
+
+        // one piece worth of piece messages
+        int blocksPerPiece = PIECE_LENGTH / Piece.BLOCK_SIZE;
+        ByteBuffer stream =
+            ByteBuffer.allocate(blocksPerPiece * (13 + Piece.BLOCK_SIZE));
+        for (int i = 0; i < blocksPerPiece; i++) {
+            stream.putInt(9 + Piece.BLOCK_SIZE).put((byte) 7).putInt(0)
+                .putInt(i * Piece.BLOCK_SIZE);
+            for (int j = 0; j < Piece.BLOCK_SIZE; j++) {
+                stream.put((byte) (i + j));
+            }
+        }
+        byte[] bytes = stream.array();
+
+        // event loop path
+        ByteBuffer input = ByteBuffer.allocate(16400);
+        Receiver receiver = new Receiver();
+        receiver.piece = piece;
+        MessageProcessor processor =
+            new MessageProcessor(input, receiver, torrent);
+        receiveFromBuffer(bytes, input, processor, receiver, 2000);
+        long before = threads.getThreadAllocatedBytes(id);
+        receiveFromBuffer(bytes, input, processor, receiver, BLOCKS);
+        long nio = threads.getThreadAllocatedBytes(id) - before;
+        assertTrue(piece.isComplete());
+
+        // blocking stream path
+        ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+        DataInputStream dis = new DataInputStream(bis);
+        BufferPool pool = new BufferPool(Piece.BLOCK_SIZE, 4, false);
+        receiveFromStream(bis, dis, pool, piece, 2000);
+        before = threads.getThreadAllocatedBytes(id);
+        receiveFromStream(bis, dis, pool, piece, BLOCKS);
+        long blocking = threads.getThreadAllocatedBytes(id) - before;
+
+        // measuring itself may allocate a little, a block would be 16 KB
+        assertTrue(nio < BLOCKS);
+        assertTrue(blocking < BLOCKS);
+    }
+
+    private void receiveFromBuffer(byte[] bytes, ByteBuffer input,
+        MessageProcessor processor, Receiver receiver, int blocks) {
+        receiver.received = 0;
+        while (receiver.received < blocks) {
+            // socket reads rarely line up with messages
+            int size = Math.min(input.remaining(), 1460);
+            size = Math.min(size, bytes.length - streamOffset);
+            input.put(bytes, streamOffset, size);
+            streamOffset += size;
+            if (bytes.length == streamOffset) {
+                streamOffset = 0;
+            }
+            while (processor.hasNext()) {
+                processor.processNext();
+            }
+        }
+    }
+
+    private void receiveFromStream(ByteArrayInputStream bis,
+        DataInputStream dis, BufferPool pool, Piece piece, int blocks)
+        throws Exception {
+        for (int i = 0; i < blocks; i++) {
+            if (0 == bis.available()) {
+                bis.reset();
+            }
+            int size = dis.readInt() - 9;
+            dis.readByte();
+            dis.readInt();
+            int offset = dis.readInt();
+            // same as PeerConnection.processIncomingTraffic()
+            ByteBuffer block = pool.acquire();
+            try {
+                dis.readFully(block.array(), block.arrayOffset(), size);
+                block.limit(size);
+                piece.writeBlock(offset, block);
+            } finally {
+                pool.release(block);
+            }
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        try {
+            com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory
+                    .getThreadMXBean();
+            if (!threads.isThreadAllocatedMemorySupported()) {
+                return null;
+            }
+            threads.setThreadAllocatedMemoryEnabled(true);
+            return threads;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    // position in stream, input buffer may hold part of next message
+    private int streamOffset;
+
+}
@@ -0,0 +1,37 @@
+import junit.framework.TestCase;
+
+import net.instantcom.keiko.bittorrent.cache.FrequencySketch;
+
+public class TestFrequencySketch extends TestCase {
+
+    public void test() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(512);
+        assertEquals(0, sketch.frequency(1L));
+        for (int i = 0; i < 5; i++) {
+            sketch.increment(1L);
+        }
+        sketch.increment(2L);
+        assertTrue(sketch.frequency(1L) >= 5);
+        assertTrue(sketch.frequency(1L) > sketch.frequency(2L));
+
+        // counters saturate at 15
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(3L);
+        }
+        assertEquals(15, sketch.frequency(3L));
+    }
+
+    public void testAging() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 15; i++) {
+            sketch.increment(42L);
+        }
+        assertEquals(15, sketch.frequency(42L));
+        // scan of many one-off keys causes counters to be halved
+        for (long key = 1000; key < 2000; key++) {
+            sketch.increment(key);
+        }
+        assertTrue(sketch.frequency(42L) < 15);
+    }
+
+}
@@ -0,0 +1,27 @@
+import junit.framework.TestCase;
+
+import net.instantcom.util.Histogram;
+
+public class TestHistogram extends TestCase {
+
+    public void test() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 0; i < 90; i++) {
+            histogram.record(3);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(100);
+        }
+        histogram.record(1000000);
+        assertEquals(100, histogram.getCount());
+        // 3 ms is in bucket [2, 4)
+        assertEquals(4, histogram.getPercentile(50));
+        assertEquals(4, histogram.getPercentile(90));
+        assertEquals(128, histogram.getPercentile(99));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+        histogram.record(0);
+        assertEquals(1, histogram.getBuckets()[0]);
+    }
+
+}
@@ -1,3 +1,5 @@
+import java.net.InetAddress;
+
 import junit.framework.TestCase;
 
 import net.instantcom.keiko.ipfilter.IP;
@@ -6,7 +8,7 @@ import net.instantcom.keiko.ipfilter.IPRange;
 
 public class TestIPFilter extends TestCase {
 
-    public void test() {
+    public void test() throws Exception {
         IPFilter filter = IPFilter.getInstance();
         assertEquals(0, filter.size()); // make sure Keiko is not started
         assertFalse(filter.isBlocking(new IP("192.168.0.1")));
@@ -26,6 +28,19 @@ public class TestIPFilter extends TestCase {
         assertFalse(filter.isBlocking(new IP("111.111.111.111")));
         assertFalse(filter.isBlocking(new IP("222.222.222.222")));
         assertTrue(filter.isBlocking(new IP("123.123.123.123")));
+
+        // addresses are compared as numbers, without going through String
+        assertTrue(filter.isBlocking(InetAddress.getByName("192.168.3.7")));
+        assertFalse(filter.isBlocking(InetAddress.getByName("192.168.11.1")));
+        assertFalse(filter.isBlocking(InetAddress.getByName("::1")));
+        assertTrue(new IP("9.255.255.255").compareTo(new IP("10.0.0.0")) < 0);
+        assertEquals("010.000.000.001", new IP("10.0.0.1").toString());
+        try {
+            new IP("10.0.0.256");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        filter.clear();
     }
 
 }
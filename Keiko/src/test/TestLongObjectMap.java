@@ -0,0 +1,45 @@
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import net.instantcom.util.LongObjectMap;
+
+public class TestLongObjectMap extends TestCase {
+
+    public void test() {
+        LongObjectMap<String> map = new LongObjectMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1));
+        assertNull(map.put(LongObjectMap.key(1, 2), "a"));
+        assertNull(map.put(LongObjectMap.key(2, 1), "b"));
+        assertEquals("a", map.get(LongObjectMap.key(1, 2)));
+        assertEquals("b", map.get(LongObjectMap.key(2, 1)));
+        assertEquals("a", map.put(LongObjectMap.key(1, 2), "c"));
+        assertEquals(2, map.size());
+        assertEquals("c", map.remove(LongObjectMap.key(1, 2)));
+        assertNull(map.remove(LongObjectMap.key(1, 2)));
+        assertEquals(1, map.size());
+        assertEquals(LongObjectMap.key(0, -1), 0xffffffffL);
+    }
+
+    public void testRandom() {
+        // compare against HashMap while growing and removing
+        Random random = new Random(20080119L);
+        LongObjectMap<Long> map = new LongObjectMap<Long>();
+        HashMap<Long, Long> expected = new HashMap<Long, Long>();
+        for (int i = 0; i < 100000; i++) {
+            long key = LongObjectMap.key(random.nextInt(50), random.nextInt(500));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, key), map.put(key, key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Long key : expected.keySet()) {
+            assertEquals(key, map.get(key));
+        }
+    }
+
+}
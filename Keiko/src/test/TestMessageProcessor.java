@@ -0,0 +1,123 @@
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import net.instantcom.keiko.bittorrent.MetaInfo;
+import net.instantcom.keiko.bittorrent.protocol.Torrent;
+import net.instantcom.keiko.bittorrent.protocol.nio.MessageHandler;
+import net.instantcom.keiko.bittorrent.protocol.nio.MessageProcessor;
+
+public class TestMessageProcessor extends TestCase {
+
+    private static class Recorder implements MessageHandler {
+
+        public void onError() {
+            log.append("error;");
+        }
+
+        public void onKeepAlive() {
+            log.append("keepalive;");
+        }
+
+        public void onChoke() {
+            log.append("choke;");
+        }
+
+        public void onUnchoke() {
+            log.append("unchoke;");
+        }
+
+        public void onInterested() {
+            log.append("interested;");
+        }
+
+        public void onNotInterested() {
+            log.append("notinterested;");
+        }
+
+        public void onBitfield(ByteBuffer bitfield) {
+            log.append("bitfield " + bitfield.remaining() + " "
+                + bitfield.get(0) + ";");
+        }
+
+        public void onHave(int pieceIndex) {
+            log.append("have " + pieceIndex + ";");
+        }
+
+        public void onRequest(int pieceIndex, int blockOffset,
+            int blockLength) {
+            log.append("request " + pieceIndex + " " + blockOffset + " "
+                + blockLength + ";");
+        }
+
+        public void onPiece(int pieceIndex, int blockOffset,
+            ByteBuffer blockData) {
+            int sum = 0;
+            while (blockData.hasRemaining()) {
+                sum += blockData.get() & 0xff;
+            }
+            log.append("piece " + pieceIndex + " " + blockOffset + " " + sum
+                + ";");
+        }
+
+        public void onCancel(int pieceIndex, int blockOffset, int blockLength) {
+            log.append("cancel;");
+        }
+
+        public void onPort(short port) {
+            log.append("port " + port + ";");
+        }
+
+        private StringBuilder log = new StringBuilder();
+
+    }
+
+    public void test() {
+        MetaInfo metaInfo = new MetaInfo();
+        metaInfo.setInfoHash(new byte[20]);
+        metaInfo.setPieceLength(32768);
+        metaInfo.setLastPieceLength(32768);
+        // 20 pieces, 3 bytes of bitfield
+        metaInfo.setPiecesSHA1(new byte[20 * 20]);
+
+        ByteBuffer stream = ByteBuffer.allocate(20000);
+        stream.putInt(0);
+        stream.putInt(1).put((byte) 1);
+        stream.putInt(4).put((byte) 5).put(new byte[] { 7, 0, 0 });
+        stream.putInt(5).put((byte) 4).putInt(19);
+        stream.putInt(9 + 16384).put((byte) 7).putInt(3).putInt(16384);
+        for (int i = 0; i < 16384; i++) {
+            stream.put((byte) 1);
+        }
+        stream.putInt(3).put((byte) 9).putShort((short) 6881);
+        stream.flip();
+
+        // feed stream in small chunks like a slow socket would
+        ByteBuffer input = ByteBuffer.allocate(16400);
+        Recorder recorder = new Recorder();
+        MessageProcessor processor =
+            new MessageProcessor(input, recorder, new Torrent(metaInfo));
+        while (stream.hasRemaining()) {
+            int size = Math.min(1000, Math.min(input.remaining(), stream
+                .remaining()));
+            for (int i = 0; i < size; i++) {
+                input.put(stream.get());
+            }
+            while (processor.hasNext()) {
+                processor.processNext();
+            }
+        }
+        assertFalse(processor.hasError());
+        assertEquals("keepalive;unchoke;bitfield 3 7;have 19;piece 3 16384 "
+            + "16384;port 6881;", recorder.log.toString());
+
+        // bitfield with one byte per piece is invalid
+        input.clear();
+        input.putInt(21).put((byte) 5).put(new byte[20]);
+        assertFalse(processor.hasNext());
+        assertTrue(processor.hasError());
+        processor.processNext();
+        assertTrue(recorder.log.toString().endsWith("error;"));
+    }
+
+}
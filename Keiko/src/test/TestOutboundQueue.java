@@ -0,0 +1,85 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.engines.RC4Engine;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import net.instantcom.keiko.bittorrent.protocol.nio.OutboundQueue;
+import net.instantcom.util.BufferPool;
+
+public class TestOutboundQueue extends TestCase {
+
+    public void test() throws Exception {
+        run(null);
+    }
+
+    public void testEncrypted() throws Exception {
+        run(newCipher());
+    }
+
+    private void run(StreamCipher cipher) throws Exception {
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        BufferPool pool = new BufferPool(16384, 4, false);
+        OutboundQueue queue = new OutboundQueue(pipe.sink(), cipher);
+        DataOutputStream dos = new DataOutputStream(queue.getOutputStream());
+
+        // small messages around a block, like a piece message
+        ByteBuffer expected = ByteBuffer.allocate(20000);
+        for (int i = 0; i < 100; i++) {
+            dos.writeInt(i);
+            expected.putInt(i);
+        }
+        ByteBuffer block = pool.acquire();
+        for (int i = 0; i < 16384; i++) {
+            block.put((byte) i);
+            expected.put((byte) i);
+        }
+        block.flip();
+        queue.addBlock(block, pool);
+        dos.writeInt(12345);
+        expected.putInt(12345);
+        expected.flip();
+        assertEquals(expected.remaining(), queue.getPending());
+
+        ByteBuffer received = ByteBuffer.allocate(20000);
+        while (queue.getPending() > 0) {
+            queue.writeTo();
+            pipe.source().read(received);
+        }
+        while (pipe.source().read(received) > 0) {
+        }
+        received.flip();
+        byte[] data = new byte[received.remaining()];
+        received.get(data);
+        if (null != cipher) {
+            newCipher().processBytes(data, 0, data.length, data, 0);
+        }
+        byte[] plain = new byte[expected.remaining()];
+        expected.get(plain);
+        assertTrue(Arrays.equals(plain, data));
+
+        queue.close();
+        try {
+            dos.writeInt(1);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        pipe.sink().close();
+        pipe.source().close();
+    }
+
+    private static StreamCipher newCipher() {
+        StreamCipher cipher = new RC4Engine();
+        cipher.init(true, new KeyParameter("secret".getBytes()));
+        return cipher;
+    }
+
+}
@@ -0,0 +1,120 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.instantcom.keiko.bittorrent.protocol.PeerThreads;
+
+/**
+ * Compares platform and virtual peer threads. Every connection gets a task
+ * which, like ConnectionThread, naps until its peer has something and answers
+ * it. Benchmark runs only with <tt>-Dkeiko.bench=true</tt> and logs its
+ * results. Number of connections is 1000 by default, run with
+ * <tt>-Dkeiko.bench.connections=10000</tt> for full benchmark (needs about
+ * 20000 file descriptors). Virtual mode is skipped on JVMs without virtual
+ * threads.
+ */
+public class TestPeerThreads extends TestCase {
+
+    private static final Log log = LogFactory.getLog(TestPeerThreads.class);
+
+    private static final int ROUNDS = 5;
+
+    public void test() throws Exception {
+        if (!Boolean.getBoolean("keiko.bench")) {
+            return;
+        }
+        int connections = Integer.getInteger("keiko.bench.connections", 1000);
+        run("platform", PeerThreads.newExecutor(false), connections);
+        ExecutorService virtual = PeerThreads.newExecutor(true);
+        if (null != virtual) {
+            run("virtual", virtual, connections);
+        }
+    }
+
+    private void run(String mode, ExecutorService executor, int connections)
+        throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getByName(null), 0),
+            connections);
+        Socket[] remotes = new Socket[connections];
+        final Socket[] locals = new Socket[connections];
+        final AtomicInteger answered = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(connections);
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            remotes[i] = new Socket(server.getInetAddress(), server
+                .getLocalPort());
+            locals[i] = server.accept();
+            final DataInputStream dis =
+                new DataInputStream(locals[i].getInputStream());
+            final DataOutputStream dos =
+                new DataOutputStream(locals[i].getOutputStream());
+            executor.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        for (int round = 0; round < ROUNDS; round++) {
+                            while (dis.available() < 4) {
+                                LockSupport.parkNanos(20000000L);
+                            }
+                            dos.writeInt(dis.readInt());
+                            dos.flush();
+                            answered.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+
+            });
+        }
+        long setup = System.nanoTime() - start;
+
+        long worstRound = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long roundStart = System.nanoTime();
+            for (Socket remote : remotes) {
+                new DataOutputStream(remote.getOutputStream()).writeInt(round);
+            }
+            for (Socket remote : remotes) {
+                assertEquals(round, new DataInputStream(remote
+                    .getInputStream()).readInt());
+            }
+            worstRound = Math.max(worstRound, System.nanoTime() - roundStart);
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertEquals(connections * ROUNDS, answered.get());
+        log.info(mode + ": " + connections + " connections, setup "
+            + (setup / 1000000L) + " ms, worst round "
+            + (worstRound / 1000000L) + " ms, peak threads "
+            + threads.getPeakThreadCount());
+
+        executor.shutdown();
+        for (int i = 0; i < connections; i++) {
+            remotes[i].close();
+            locals[i].close();
+        }
+        server.close();
+    }
+
+}
@@ -0,0 +1,115 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import net.instantcom.keiko.diskmanager.PieceIndex;
+import net.instantcom.util.BitField;
+
+public class TestPieceIndex extends TestCase {
+
+    public void test() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+            "keiko-test-" + System.nanoTime());
+        dir.mkdirs();
+        PieceIndex index = new PieceIndex(dir);
+        index.open();
+        PieceIndex.Entry a = index.add("a", 10, 100, 50);
+        PieceIndex.Entry b = index.add("b", 3, 100, 100);
+        index.mark(a, 0, PieceIndex.STORED | PieceIndex.VERIFIED);
+        index.mark(a, 9, PieceIndex.STORED);
+        index.mark(b, 1, PieceIndex.STORED | PieceIndex.VERIFIED);
+        index.sync();
+        index.close();
+
+        // replay journal
+        index = new PieceIndex(dir);
+        index.open();
+        assertTrue(index.contains("a"));
+        assertEquals(150, index.getStoredBytes("a"));
+        BitField verified = index.getVerified("a");
+        assertTrue(verified.get(0));
+        assertFalse(verified.get(9));
+
+        // snapshot plus journal
+        index.compact();
+        assertEquals(0, index.getJournalSize());
+        index.remove("b");
+        a = index.add("a", 10, 100, 50);
+        index.mark(a, 5, PieceIndex.STORED | PieceIndex.VERIFIED);
+        index.sync();
+        long length = index.getJournalSize();
+        index.close();
+
+        // torn record at the end of journal is discarded
+        RandomAccessFile raf =
+            new RandomAccessFile(new File(dir, "pieces.jnl"), "rw");
+        raf.seek(length);
+        raf.write(new byte[] { 0, 20, 1, 2, 3 });
+        raf.close();
+        index = new PieceIndex(dir);
+        index.open();
+        assertEquals(length, index.getJournalSize());
+        assertFalse(index.contains("b"));
+        a = index.add("a", 10, 100, 50);
+        assertTrue(index.isVerified(a, 5));
+        assertTrue(index.isStored(a, 9));
+        assertEquals(3, index.getNumStored(a));
+        index.close();
+
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testCompactWhileMarking() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+            "keiko-test-" + System.nanoTime());
+        dir.mkdirs();
+        final PieceIndex index = new PieceIndex(dir);
+        index.open();
+        final int numPieces = 5000;
+        final PieceIndex.Entry entry = index.add("a", numPieces, 100, 100);
+        final Exception[] failure = new Exception[1];
+        Thread marker = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < numPieces; i++) {
+                        index.mark(entry, i, PieceIndex.STORED);
+                        if (0 == i % 100) {
+                            index.sync();
+                        }
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+
+        };
+        marker.start();
+        while (marker.isAlive()) {
+            // records appended while snapshot is written must survive
+            index.compact();
+            index.isStored(entry, 0);
+        }
+        marker.join();
+        assertNull(failure[0]);
+        index.sync();
+        index.close();
+
+        PieceIndex reopened = new PieceIndex(dir);
+        reopened.open();
+        PieceIndex.Entry a = reopened.add("a", numPieces, 100, 100);
+        assertEquals(numPieces, reopened.getNumStored(a));
+        reopened.close();
+
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+}
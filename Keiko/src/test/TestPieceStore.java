@@ -0,0 +1,82 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import net.instantcom.keiko.bittorrent.MetaInfo;
+import net.instantcom.keiko.bittorrent.cache.HeapPieceData;
+import net.instantcom.keiko.diskmanager.PieceIndex;
+import net.instantcom.keiko.diskmanager.PieceStore;
+
+public class TestPieceStore extends TestCase {
+
+    public void test() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+            "keiko-test-" + System.nanoTime());
+        MetaInfo metaInfo = new MetaInfo();
+        metaInfo.setInfoHash(new byte[20]);
+        metaInfo.setPieceLength(32768);
+        metaInfo.setLastPieceLength(1000);
+        metaInfo.setPiecesSHA1(new byte[3 * 20]);
+
+        PieceIndex index = new PieceIndex(dir);
+        dir.mkdirs();
+        index.open();
+        PieceStore store = new PieceStore(dir, metaInfo, null, index);
+        assertEquals(0, store.getNumStored());
+        assertFalse(store.read(1, new HeapPieceData(32768)));
+
+        byte[] bytes = new byte[32768];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        store.write(1, new HeapPieceData(bytes), true);
+        byte[] last = new byte[1000];
+        Arrays.fill(last, (byte) 7);
+        store.write(2, new HeapPieceData(last), false);
+        assertEquals(2, store.getNumStored());
+        assertEquals(2 * 32768L + 1000L, store.getDataChannel().size());
+        store.close();
+        index.close();
+
+        // reopen, stored pieces must be remembered
+        index = new PieceIndex(dir);
+        index.open();
+        store = new PieceStore(dir, metaInfo, null, index);
+        assertFalse(store.contains(0));
+        assertTrue(store.contains(1));
+        assertTrue(store.isVerified(1));
+        assertFalse(store.isVerified(2));
+        assertEquals(2, store.getNumStored());
+        HeapPieceData data = new HeapPieceData(32768);
+        assertTrue(store.read(1, data));
+        assertTrue(Arrays.equals(bytes, data.toByteArray()));
+        data = new HeapPieceData(1000);
+        assertTrue(store.read(2, data));
+        assertTrue(Arrays.equals(last, data.toByteArray()));
+
+        // piece which failed hash check isn't stored anymore
+        store.unmarkStored(2);
+        assertFalse(store.contains(2));
+        assertEquals(1, store.getNumStored());
+        assertFalse(store.read(2, new HeapPieceData(1000)));
+        store.close();
+        index.close();
+
+        // evicted store, readers still holding it see it closed
+        assertTrue(store.isClosed());
+        try {
+            store.read(1, 0, ByteBuffer.allocate(16));
+            fail();
+        } catch (ClosedChannelException expected) {
+        }
+
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+}
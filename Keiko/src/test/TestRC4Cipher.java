@@ -0,0 +1,225 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.engines.RC4Engine;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import net.instantcom.keiko.bittorrent.protocol.encryption.EncryptedInputStream;
+import net.instantcom.keiko.bittorrent.protocol.encryption.EncryptedOutputStream;
+import net.instantcom.keiko.bittorrent.protocol.encryption.RC4Cipher;
+import net.instantcom.util.SHA1Util;
+
+public class TestRC4Cipher extends TestCase {
+
+    private static final Log log = LogFactory.getLog(TestRC4Cipher.class);
+    private static final Random random = new Random();
+
+    public void testKeystream() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            byte[] key = randomKey();
+            StreamCipher expected = new RC4Engine();
+            setupStreamCipher(expected, key);
+            StreamCipher actual = new RC4Cipher();
+            setupStreamCipher(actual, key);
+
+            byte[] data = new byte[1 + random.nextInt(5000)];
+            random.nextBytes(data);
+            byte[] a = new byte[data.length];
+            byte[] b = new byte[data.length];
+            expected.processBytes(data, 0, data.length, a, 0);
+            actual.processBytes(data, 0, data.length, b, 0);
+            assertTrue(Arrays.equals(a, b));
+            assertEquals(expected.returnByte((byte) 7), actual
+                .returnByte((byte) 7));
+
+            actual.reset();
+            actual.processBytes(new byte[1024], 0, 1024, new byte[1024], 0);
+            actual.processBytes(data, 0, data.length, b, 0);
+            assertTrue(Arrays.equals(a, b));
+        }
+    }
+
+    public void testBuffers() throws Exception {
+        ByteOrder[] orders =
+            new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN };
+        for (int i = 0; i < 40; i++) {
+            byte[] key = randomKey();
+            int len = random.nextInt(3000);
+            int offset = random.nextInt(13);
+            byte[] data = new byte[len];
+            random.nextBytes(data);
+            byte[] expected = new byte[len];
+            StreamCipher engine = new RC4Engine();
+            setupStreamCipher(engine, key);
+            engine.processBytes(data, 0, len, expected, 0);
+
+            ByteBuffer heap = ByteBuffer.allocate(offset + len + 5);
+            ByteBuffer direct = ByteBuffer.allocateDirect(offset + len + 5);
+            direct.order(orders[i % 2]);
+            ByteBuffer[] buffers = new ByteBuffer[] { heap, direct };
+            for (int j = 0; j < buffers.length; j++) {
+                ByteBuffer buffer = buffers[j];
+                buffer.position(offset);
+                buffer.put(data);
+                buffer.flip();
+                buffer.position(offset);
+                RC4Cipher cipher = new RC4Cipher();
+                setupStreamCipher(cipher, key);
+                // split in two to check that state carries over
+                int half = len / 2 + random.nextInt(3);
+                if (half > len) {
+                    half = len;
+                }
+                buffer.limit(offset + half);
+                cipher.process(buffer);
+                buffer.limit(offset + len);
+                buffer.position(offset + half);
+                cipher.process(buffer);
+                assertEquals(offset + half, buffer.position());
+                assertEquals(offset + len, buffer.limit());
+
+                byte[] actual = new byte[len];
+                buffer.position(offset);
+                buffer.get(actual);
+                assertTrue(Arrays.equals(expected, actual));
+            }
+        }
+    }
+
+    public void testStreams() throws Exception {
+        byte[] key = randomKey();
+        byte[] data = new byte[100000];
+        random.nextBytes(data);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        StreamCipher outCipher = new RC4Cipher();
+        setupStreamCipher(outCipher, key);
+        EncryptedOutputStream eos = new EncryptedOutputStream(baos, outCipher);
+        eos.setEnabled(true);
+        eos.write(data);
+        eos.close();
+
+        // other end uses BouncyCastle's engine
+        StreamCipher inCipher = new RC4Engine();
+        setupStreamCipher(inCipher, key);
+        EncryptedInputStream eis =
+            new EncryptedInputStream(new ByteArrayInputStream(baos
+                .toByteArray()), inCipher);
+        eis.setEnabled(true);
+        byte[] tmp = new byte[data.length];
+        new DataInputStream(eis).readFully(tmp);
+        eis.close();
+        assertTrue(Arrays.equals(data, tmp));
+    }
+
+    public void testInitialPayload() throws Exception {
+        byte[] key = randomKey();
+        byte[] data = "normal".getBytes();
+        StreamCipher outCipher = new RC4Cipher();
+        setupStreamCipher(outCipher, key);
+        outCipher.processBytes(data, 0, data.length, data, 0);
+
+        StreamCipher inCipher = new RC4Cipher();
+        setupStreamCipher(inCipher, key);
+        EncryptedInputStream eis =
+            new EncryptedInputStream(new ByteArrayInputStream(data), inCipher);
+        eis.setEnabled(true);
+        eis.setInitialPayload(new ByteArrayInputStream("initial".getBytes()));
+        byte[] tmp = new byte[13];
+        assertEquals(13, eis.read(tmp));
+        assertEquals("initialnormal", new String(tmp));
+        assertEquals(-1, eis.read(tmp));
+        eis.close();
+    }
+
+    /**
+     * Compares encrypting through streams with encrypting direct buffers in
+     * place. Runs only with <tt>-Dkeiko.bench=true</tt> and logs timings,
+     * they depend too much on machine to assert anything.
+     */
+    public void testSpeed() throws Exception {
+        if (!Boolean.getBoolean("keiko.bench")) {
+            return;
+        }
+        byte[] key = randomKey();
+        byte[] data = new byte[16 * 1024];
+        random.nextBytes(data);
+        final int rounds = 512;
+
+        long streams = Long.MAX_VALUE;
+        long buffers = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            // streams, as connection threads use them
+            StreamCipher outCipher = new RC4Engine();
+            setupStreamCipher(outCipher, key);
+            StreamCipher inCipher = new RC4Engine();
+            setupStreamCipher(inCipher, key);
+            ByteArrayOutputStream baos =
+                new ByteArrayOutputStream(data.length);
+            EncryptedOutputStream eos =
+                new EncryptedOutputStream(baos, outCipher);
+            eos.setEnabled(true);
+            byte[] tmp = new byte[data.length];
+            long start = System.nanoTime();
+            for (int j = 0; j < rounds; j++) {
+                baos.reset();
+                eos.write(data);
+                EncryptedInputStream eis =
+                    new EncryptedInputStream(new ByteArrayInputStream(baos
+                        .toByteArray()), inCipher);
+                eis.setEnabled(true);
+                new DataInputStream(eis).readFully(tmp);
+            }
+            streams = Math.min(streams, System.nanoTime() - start);
+            assertTrue(Arrays.equals(data, tmp));
+
+            // direct buffer encrypted and decrypted in place
+            RC4Cipher outRC4 = new RC4Cipher();
+            setupStreamCipher(outRC4, key);
+            RC4Cipher inRC4 = new RC4Cipher();
+            setupStreamCipher(inRC4, key);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+            buffer.put(data);
+            buffer.flip();
+            start = System.nanoTime();
+            for (int j = 0; j < rounds; j++) {
+                outRC4.process(buffer);
+                inRC4.process(buffer);
+            }
+            buffers = Math.min(buffers, System.nanoTime() - start);
+            buffer.get(tmp);
+            assertTrue(Arrays.equals(data, tmp));
+        }
+        long megabytes = 2L * rounds * data.length / (1024 * 1024);
+        log.info("RC4 " + megabytes + " MB: streams "
+            + streams / 1000000 + " ms, direct buffers " + buffers / 1000000
+            + " ms");
+    }
+
+    private static byte[] randomKey() throws Exception {
+        byte[] secret = new byte[96];
+        random.nextBytes(secret);
+        byte[] infoHash = new byte[20];
+        random.nextBytes(infoHash);
+        return SHA1Util.getSHA1("keyA".getBytes(), secret, infoHash);
+    }
+
+    private static void setupStreamCipher(StreamCipher streamCipher,
+        byte[] key) {
+        streamCipher.init(true, new KeyParameter(key));
+        // skip first 1024 bytes of stream, as handshake does
+        byte[] tmp = new byte[1024];
+        streamCipher.processBytes(tmp, 0, tmp.length, tmp, 0);
+    }
+
+}
@@ -0,0 +1,72 @@
+import java.util.ArrayDeque;
+
+import junit.framework.TestCase;
+
+import net.instantcom.keiko.bittorrent.protocol.Piece;
+import net.instantcom.keiko.bittorrent.protocol.RequestPipeline;
+
+/**
+ * Simulates a peer which serves requests in order at fixed rate over a link
+ * with fixed round trip time and checks that pipeline keeps the pipe full
+ * without queueing much more than bandwidth-delay product.
+ */
+public class TestRequestPipeline extends TestCase {
+
+    private static final long SECOND = 1000000000L;
+
+    public void testFastHighLatency() {
+        // 10 MB/s over 200 ms is 122 blocks in flight
+        run(10 * 1024 * 1024, 200);
+    }
+
+    public void testFastLowLatency() {
+        run(10 * 1024 * 1024, 20);
+    }
+
+    public void testSlow() {
+        // 20 kB/s needs no more than minimum
+        int depth = run(20 * 1024, 50);
+        assertTrue(depth <= RequestPipeline.MIN_DEPTH + 2);
+    }
+
+    // returns depth at the end
+    private int run(long rate, long rttMillis) {
+        RequestPipeline pipeline = new RequestPipeline();
+        long oneWay = rttMillis * 1000000L / 2;
+        long serviceTime = Piece.BLOCK_SIZE * SECOND / rate;
+        // request and arrival times of outstanding requests, in order
+        ArrayDeque<long[]> outstanding = new ArrayDeque<long[]>();
+        long now = SECOND;
+        long peerFree = 0;
+        long end = now + 60 * SECOND;
+        long measureFrom = end - 10 * SECOND;
+        long received = 0;
+        long depthSum = 0;
+        int depthSamples = 0;
+        pipeline.onRequestsResumed(now);
+        while (now < end) {
+            while (outstanding.size() < pipeline.getDepth()) {
+                long served = Math.max(peerFree, now + oneWay) + serviceTime;
+                peerFree = served;
+                outstanding.add(new long[] { now, served + oneWay });
+            }
+            long[] request = outstanding.poll();
+            now = request[1];
+            pipeline.onBlockArrived(Piece.BLOCK_SIZE, request[0], now);
+            if (now >= measureFrom) {
+                received += Piece.BLOCK_SIZE;
+                depthSum += outstanding.size() + 1;
+                ++depthSamples;
+            }
+        }
+        long throughput = received * SECOND / (end - measureFrom);
+        long bdp = rate * rttMillis / 1000L / Piece.BLOCK_SIZE;
+        long depth = depthSum / depthSamples;
+        // pipe is full
+        assertTrue(throughput >= rate * 95 / 100);
+        // but not overfilled
+        assertTrue(depth <= 2 * bdp + RequestPipeline.MIN_DEPTH);
+        return pipeline.getDepth();
+    }
+
+}
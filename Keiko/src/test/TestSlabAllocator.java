@@ -0,0 +1,65 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import net.instantcom.keiko.bittorrent.cache.HeapPieceData;
+import net.instantcom.keiko.bittorrent.cache.PieceData;
+import net.instantcom.keiko.bittorrent.cache.SlabAllocator;
+
+public class TestSlabAllocator extends TestCase {
+
+    private static final int SLOT = 16384;
+
+    public void test() throws Exception {
+        // 2 slabs with 4 slots each
+        SlabAllocator allocator =
+            new SlabAllocator(8 * SLOT, 4 * SLOT, SLOT, null);
+        assertEquals(8 * SLOT, allocator.getCapacity());
+
+        PieceData a = allocator.allocate(3 * SLOT + 100);
+        assertNotNull(a);
+        assertTrue(a.isOffHeap());
+        assertEquals(4 * SLOT, allocator.getUsedBytes());
+        PieceData b = allocator.allocate(4 * SLOT);
+        assertNotNull(b);
+        // no more room
+        assertNull(allocator.allocate(1));
+
+        // data spanning slot boundaries must survive round trip
+        byte[] data = new byte[a.getSize()];
+        new Random().nextBytes(data);
+        a.write(0, data, 0, data.length);
+        b.clear();
+        assertTrue(Arrays.equals(data, a.toByteArray()));
+        byte[] block = new byte[SLOT];
+        a.read(SLOT / 2, block, 0, SLOT);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, SLOT / 2, SLOT / 2
+            + SLOT), block));
+        // into direct buffer too, as queued blocks are
+        ByteBuffer direct = ByteBuffer.allocateDirect(SLOT);
+        a.read(SLOT / 2, direct);
+        assertFalse(direct.hasRemaining());
+        direct.flip();
+        Arrays.fill(block, (byte) 0);
+        direct.get(block);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, SLOT / 2, SLOT / 2
+            + SLOT), block));
+
+        // digest must match heap digest
+        MessageDigest expected = MessageDigest.getInstance("SHA-1");
+        new HeapPieceData(data).updateDigest(expected);
+        MessageDigest actual = MessageDigest.getInstance("SHA-1");
+        a.updateDigest(actual);
+        assertTrue(Arrays.equals(expected.digest(), actual.digest()));
+
+        // freed slots are reused, double free is ignored
+        a.free();
+        a.free();
+        assertEquals(4 * SLOT, allocator.getUsedBytes());
+        assertNotNull(allocator.allocate(4 * SLOT));
+    }
+
+}
@@ -0,0 +1,152 @@
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import net.instantcom.keiko.bittorrent.MetaInfo;
+import net.instantcom.keiko.bittorrent.cache.TinyLfuPolicy;
+import net.instantcom.keiko.bittorrent.protocol.PeerConnection;
+import net.instantcom.keiko.bittorrent.protocol.Piece;
+import net.instantcom.keiko.bittorrent.protocol.PiecePicker;
+import net.instantcom.keiko.bittorrent.protocol.Torrent;
+
+public class TestTinyLfuPolicy extends TestCase {
+
+    private static final int PIECE_LENGTH = 1024 * 1024;
+
+    public void testAdmission() throws Exception {
+        Torrent torrent = newTorrent(16);
+        // window takes one piece, main five
+        TinyLfuPolicy policy =
+            new TinyLfuPolicy(8L * PIECE_LENGTH, 25, 1, 64);
+        List<TinyLfuPolicy.Node> evicted = new ArrayList<TinyLfuPolicy.Node>();
+        TinyLfuPolicy.Node[] nodes = new TinyLfuPolicy.Node[10];
+        for (int i = 1; i < nodes.length; i++) {
+            Piece piece = new Piece(torrent, i, true);
+            piece.getBlockAvailability().setAll();
+            nodes[i] = new TinyLfuPolicy.Node(i, piece);
+        }
+        for (int i = 1; i <= 6; i++) {
+            policy.onAdd(nodes[i], evicted);
+        }
+        assertTrue(evicted.isEmpty());
+        assertEquals(TinyLfuPolicy.WINDOW, nodes[6].getQueue());
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(TinyLfuPolicy.PROBATION, nodes[i].getQueue());
+            for (int j = 0; j < 5; j++) {
+                policy.recordAccess(i);
+            }
+        }
+
+        // piece nobody asked for doesn't replace popular ones
+        policy.onAdd(nodes[7], evicted);
+        assertEquals(1, evicted.size());
+        assertSame(nodes[6], evicted.get(0));
+        assertEquals(TinyLfuPolicy.NONE, nodes[6].getQueue());
+        assertEquals(TinyLfuPolicy.PROBATION, nodes[1].getQueue());
+
+        // more popular one does, least recently used one goes
+        for (int j = 0; j < 10; j++) {
+            policy.recordAccess(8);
+        }
+        evicted.clear();
+        policy.onAdd(nodes[8], evicted);
+        assertSame(nodes[7], evicted.get(0));
+        evicted.clear();
+        policy.onAdd(nodes[9], evicted);
+        assertEquals(1, evicted.size());
+        assertSame(nodes[1], evicted.get(0));
+        assertEquals(TinyLfuPolicy.PROBATION, nodes[8].getQueue());
+        assertEquals(TinyLfuPolicy.WINDOW, nodes[9].getQueue());
+
+        // hit in probation protects
+        policy.onHit(nodes[2], evicted);
+        assertEquals(TinyLfuPolicy.PROTECTED, nodes[2].getQueue());
+    }
+
+    public void testInProgressBudget() throws Exception {
+        Torrent torrent = newTorrent(8);
+        // 2 MB for pieces being downloaded
+        TinyLfuPolicy policy =
+            new TinyLfuPolicy(8L * PIECE_LENGTH, 25, 1, 64);
+        List<TinyLfuPolicy.Node> evicted = new ArrayList<TinyLfuPolicy.Node>();
+        Piece[] pieces = new Piece[3];
+        TinyLfuPolicy.Node[] nodes = new TinyLfuPolicy.Node[3];
+        for (int i = 0; i < nodes.length; i++) {
+            pieces[i] = new Piece(torrent, i, true);
+            nodes[i] = new TinyLfuPolicy.Node(i, pieces[i]);
+            policy.onAdd(nodes[i], evicted);
+        }
+        // oldest goes, newest is always kept
+        assertEquals(1, evicted.size());
+        assertSame(nodes[0], evicted.get(0));
+        assertEquals(2L * PIECE_LENGTH, policy.getInProgressByteSize());
+
+        // verified piece leaves the budget
+        evicted.clear();
+        pieces[1].getBlockAvailability().setAll();
+        policy.onVerified(nodes[1], evicted);
+        assertTrue(evicted.isEmpty());
+        assertEquals(TinyLfuPolicy.WINDOW, nodes[1].getQueue());
+        assertEquals(1L * PIECE_LENGTH, policy.getInProgressByteSize());
+        assertEquals(2L * PIECE_LENGTH, policy.getByteSize());
+    }
+
+    public void testSharedInProgress() throws Exception {
+        Torrent torrent = newTorrent(8);
+        PiecePicker picker = torrent.getPiecePicker();
+        // 2 MB for pieces being downloaded
+        TinyLfuPolicy policy =
+            new TinyLfuPolicy(8L * PIECE_LENGTH, 25, 1, 64);
+        List<TinyLfuPolicy.Node> evicted = new ArrayList<TinyLfuPolicy.Node>();
+
+        // two peers download piece 0, cache holds the first reference
+        Piece shared = new Piece(torrent, 0, true);
+        TinyLfuPolicy.Node node = new TinyLfuPolicy.Node(0, shared);
+        policy.onAdd(node, evicted);
+        PeerConnection first = newPeerConnection();
+        PeerConnection second = newPeerConnection();
+        assertNull(picker.joinPiece(0));
+        assertSame(shared, picker.joinPiece(0, shared.retain()));
+        assertSame(shared, picker.joinPiece(0));
+
+        // pieces started later push budget over, shared one stays
+        for (int i = 1; i < 4; i++) {
+            policy.onAdd(new TinyLfuPolicy.Node(i, new Piece(torrent, i,
+                true)), evicted);
+        }
+        assertEquals(2, evicted.size());
+        assertEquals(TinyLfuPolicy.IN_PROGRESS, node.getQueue());
+        evicted.clear();
+        while (policy.evictAny(evicted)) {
+        }
+        assertEquals(1, evicted.size());
+        assertEquals(TinyLfuPolicy.IN_PROGRESS, node.getQueue());
+
+        // once both peers are done it can go
+        picker.leavePiece(first, 0);
+        shared.release();
+        assertTrue(shared.isShared());
+        picker.leavePiece(second, 0);
+        shared.release();
+        assertFalse(shared.isShared());
+        assertNull(picker.joinPiece(0));
+        assertTrue(policy.evictAny(evicted));
+        assertEquals(TinyLfuPolicy.NONE, node.getQueue());
+    }
+
+    private static Torrent newTorrent(int numPieces) {
+        MetaInfo metaInfo = new MetaInfo();
+        metaInfo.setInfoHash(new byte[20]);
+        metaInfo.setPieceLength(PIECE_LENGTH);
+        metaInfo.setLastPieceLength(PIECE_LENGTH);
+        metaInfo.setPiecesSHA1(new byte[20 * numPieces]);
+        return new Torrent(metaInfo);
+    }
+
+    private static PeerConnection newPeerConnection() {
+        return new PeerConnection(new Socket(), false, null, null);
+    }
+
+}
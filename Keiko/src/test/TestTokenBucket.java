@@ -0,0 +1,103 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import net.instantcom.keiko.bandwidth.TokenBucket;
+
+/**
+ * Checks that the tightest limit in hierarchy wins, that rate can be changed
+ * while buckets are in use and that concurrent takers don't exceed it.
+ */
+public class TestTokenBucket extends TestCase {
+
+    public void test() {
+        AtomicLong globalRate = new AtomicLong(100 * 1024);
+        AtomicLong peerRate = new AtomicLong();
+        TokenBucket global = new TokenBucket(globalRate, null);
+        TokenBucket peer = new TokenBucket(peerRate, global);
+
+        // peer is unlimited but global isn't, block goes into debt
+        assertTrue(peer.tryTake(16384));
+        assertFalse(peer.tryTake(16384));
+        assertTrue(peer.getDelay() > 100);
+
+        // unlimited everywhere
+        globalRate.set(0);
+        assertTrue(peer.hasTokens());
+        assertTrue(peer.tryTake(1024 * 1024));
+        assertEquals(0, peer.getDelay());
+
+        // debt has to be paid off, 256 kB at 100 kB/s takes over 2 seconds
+        globalRate.set(100 * 1024);
+        sleep(50);
+        assertTrue(peer.tryTake(256 * 1024));
+        assertFalse(peer.hasTokens());
+        assertTrue(peer.getDelay() > 2000);
+        assertFalse(global.tryTake(1));
+
+        // raising the limit shortens the wait
+        globalRate.set(10 * 1024 * 1024);
+        assertTrue(peer.getDelay() < 100);
+    }
+
+    public void testGiveBack() {
+        AtomicLong globalRate = new AtomicLong(100 * 1024);
+        TokenBucket global = new TokenBucket(globalRate, null);
+        TokenBucket peer = new TokenBucket(new AtomicLong(), global);
+
+        // block which wasn't sent doesn't count against parent
+        assertTrue(peer.tryTake(256 * 1024));
+        assertFalse(global.hasTokens());
+        peer.giveBack(256 * 1024);
+        assertTrue(global.hasTokens());
+
+        // but doesn't make more room than a burst (32 kB) either
+        peer.giveBack(1024 * 1024);
+        assertTrue(peer.tryTake(32768));
+        assertTrue(peer.tryTake(16384));
+        assertFalse(peer.tryTake(1));
+    }
+
+    public void testConcurrent() throws Exception {
+        final AtomicLong globalRate = new AtomicLong(1024 * 1024);
+        final TokenBucket global = new TokenBucket(globalRate, null);
+        final AtomicLong taken = new AtomicLong();
+        final long end = System.currentTimeMillis() + 500L;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final TokenBucket peer =
+                new TokenBucket(new AtomicLong(), global);
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        if (peer.tryTake(16384)) {
+                            taken.addAndGet(16384);
+                        } else {
+                            TestTokenBucket.sleep(peer.getDelay());
+                        }
+                    }
+                }
+
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // half a second at 1 MB/s, burst and one block per thread of debt
+        long max = 512 * 1024 + 256 * 1024 + threads.length * 16384;
+        assertTrue(taken.get() <= max);
+        assertTrue(taken.get() >= 256 * 1024);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.instantcom.keiko.bittorrent.protocol.PeerThreads;
+import net.instantcom.keiko.bittorrent.protocol.nio.ChannelHandler;
+import net.instantcom.keiko.bittorrent.protocol.nio.EventLoop;
+import net.instantcom.keiko.bittorrent.protocol.nio.PeerEngine;
+
+/**
+ * Compares a thread per connection which naps between polls of its socket,
+ * like ConnectionThread on threads engine, with connections registered with
+ * peer engine which are handled only when data arrives. Measures time from
+ * request to first byte of answer and CPU used while all connections are
+ * idle. Runs only with <tt>-Dkeiko.bench=true</tt>, timings depend on
+ * machine. Number of connections is 200 by default, run with
+ * <tt>-Dkeiko.bench.connections=N</tt> for more.
+ */
+public class TestWakeups extends TestCase {
+
+    private static final Log log = LogFactory.getLog(TestWakeups.class);
+
+    private static final int PINGS = 200;
+    private static final long IDLE_MILLIS = 2000L;
+
+    // answers 4 byte pings as soon as they arrive
+    private static class Echo implements ChannelHandler {
+
+        private Echo(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public void onRegistered(EventLoop loop, SelectionKey key) {
+            this.loop = loop;
+            this.key = key;
+        }
+
+        public void onReadable() throws IOException {
+            if (channel.read(buffer) < 0) {
+                loop.close(key);
+                return;
+            }
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                channel.write(buffer);
+                buffer.clear();
+            }
+        }
+
+        public void onWritable() {
+        }
+
+        public void onTimer() {
+        }
+
+        public void onClose() {
+        }
+
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(4);
+        private EventLoop loop;
+        private SelectionKey key;
+
+    }
+
+    public void test() throws Exception {
+        if (!Boolean.getBoolean("keiko.bench")) {
+            return;
+        }
+        int connections = Integer.getInteger("keiko.bench.connections", 200);
+        long[] polling = run(false, connections);
+        long[] events = run(true, connections);
+        log.info("request to first byte (median): polling "
+            + (polling[0] / 1000L) + " us, events " + (events[0] / 1000L)
+            + " us");
+        log.info("idle cpu for " + connections
+            + " connections: polling " + (polling[1] / 1000000L)
+            + " ms, events " + (events[1] / 1000000L) + " ms in "
+            + IDLE_MILLIS + " ms");
+        assertTrue(events[0] < polling[0]);
+        if (polling[1] >= 0) {
+            assertTrue(events[1] < polling[1]);
+        }
+    }
+
+    // returns median latency and idle cpu time in ns
+    private long[] run(boolean events, int connections) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(
+            new InetSocketAddress(InetAddress.getByName(null), 0), connections);
+        Socket[] remotes = new Socket[connections];
+        final SocketChannel[] locals = new SocketChannel[connections];
+        final AtomicBoolean stopped = new AtomicBoolean();
+        ExecutorService executor = PeerThreads.newExecutor(false);
+        for (int i = 0; i < connections; i++) {
+            remotes[i] = new Socket(server.socket().getInetAddress(), server
+                .socket().getLocalPort());
+            remotes[i].setTcpNoDelay(true);
+            locals[i] = server.accept();
+            locals[i].socket().setTcpNoDelay(true);
+            if (events) {
+                PeerEngine.getInstance().register(locals[i],
+                    new Echo(locals[i]));
+            } else {
+                final DataInputStream dis =
+                    new DataInputStream(locals[i].socket().getInputStream());
+                final DataOutputStream dos =
+                    new DataOutputStream(locals[i].socket().getOutputStream());
+                executor.execute(new Runnable() {
+
+                    public void run() {
+                        try {
+                            while (!stopped.get()) {
+                                if (dis.available() >= 4) {
+                                    dos.writeInt(dis.readInt());
+                                    dos.flush();
+                                } else {
+                                    // ConnectionThread's nap while waiting
+                                    // for blocks
+                                    LockSupport.parkNanos(20000000L);
+                                }
+                            }
+                        } catch (IOException ignored) {
+                        }
+                    }
+
+                });
+            }
+        }
+
+        long[] latencies = new long[PINGS];
+        for (int i = 0; i < PINGS; i++) {
+            Socket remote = remotes[i % connections];
+            DataOutputStream out =
+                new DataOutputStream(remote.getOutputStream());
+            DataInputStream in = new DataInputStream(remote.getInputStream());
+            long start = System.nanoTime();
+            out.writeInt(i);
+            assertEquals(i, in.readInt());
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+
+        long cpu = getProcessCpuTime();
+        Thread.sleep(IDLE_MILLIS);
+        cpu = getProcessCpuTime() - cpu;
+
+        stopped.set(true);
+        executor.shutdown();
+        for (int i = 0; i < connections; i++) {
+            remotes[i].close();
+            if (!events) {
+                locals[i].close();
+            }
+        }
+        server.close();
+        return new long[] { latencies[PINGS / 2], cpu };
+    }
+
+    private static long getProcessCpuTime() {
+        try {
+            com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory
+                    .getOperatingSystemMXBean();
+            return os.getProcessCpuTime();
+        } catch (Throwable t) {
+            return -1L;
+        }
+    }
+
+}